@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 
@@ -45,7 +46,9 @@ public class LapControllerAdvice {
             || ex instanceof MissingTenantException 
             || ex instanceof NotFoundException) {
             return handleExceptionWithMessageAndStatusCode(request, ex, 404);
-        } 
+        } else if (ex instanceof AccessDeniedException) {
+            return handleExceptionWithMessageAndStatusCode(request, ex, 403);
+        }
         // Everything else gets a generic 500 exception
         return handleGenericExceptionWithoutMessage(request, ex);
     }
@@ -14,6 +14,9 @@
  *******************************************************************************/
 package org.apereo.lap.controllers;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -22,9 +25,15 @@ import java.util.Map;
 import org.apereo.lap.exception.MissingPipelineException;
 import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.services.ProcessingManagerService;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.InputMetricsRegistry;
+import org.apereo.lap.services.input.handlers.InputMetrics;
+import org.apereo.lap.services.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -42,6 +51,15 @@ public class PipelineController {
     @Autowired
     ProcessingManagerService processingManagerService;
 
+    @Autowired
+    StorageService storage;
+
+    @Autowired
+    ConfigurationService configuration;
+
+    @Autowired
+    InputMetricsRegistry inputMetricsRegistry;
+
     /**
      * lists out the pipelines available (keys)
      */
@@ -83,6 +101,128 @@ public class PipelineController {
         return cfg;
     }
 
+    /**
+     * Checks the inputs of one pipeline without loading them (only the headers of files are read)
+     * @return valid (true if all inputs appear valid) and the sources (type and collection -> null OR the reason it is not valid)
+     * @throws MissingPipelineException
+     */
+    @RequestMapping(value = {"/pipelines/preflight/{type}"}, method = RequestMethod.GET, produces="application/json;charset=utf-8")
+    public @ResponseBody Map<String, Object> preflight(@PathVariable("type") String type) throws MissingPipelineException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Preflight pipeline inputs for type: "+type);
+        }
+
+        PipelineConfig cfg = getType(type);
+        boolean valid = true;
+        List<Map<String, Object>> sources = new ArrayList<>();
+        for (BaseInputHandlerService inputHandler : cfg.getInputHandlers()) {
+            Map<BaseInputHandlerService.InputCollection, String> collections = inputHandler.preflightInputCollections();
+            for (String problem : collections.values()) {
+                valid = valid && problem == null;
+            }
+            Map<String, Object> source = new LinkedHashMap<>();
+            source.put("type", inputHandler.getType());
+            source.put("collections", collections);
+            sources.add(source);
+        }
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("valid", valid);
+        data.put("sources", sources);
+        return data;
+    }
+
+    /**
+     * Get the live throughput of the input loads (can be checked while a pipeline is loading its inputs)
+     * @return loading (true if any input is loading now), active (the loads running now) and recent (the most recent loads),
+     * each with the totals and the metrics for each load (rows/sec, bytes/sec, parse and insert time, failure rate)
+     */
+    @RequestMapping(value = {"/pipelines/inputs/metrics"}, method = RequestMethod.GET, produces="application/json;charset=utf-8")
+    public @ResponseBody Map<String, Object> inputMetrics() {
+        List<InputMetrics> active = inputMetricsRegistry.getActive();
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("loading", !active.isEmpty());
+        data.put("active", InputMetricsRegistry.summarize(active));
+        data.put("recent", InputMetricsRegistry.summarize(inputMetricsRegistry.getLoads()));
+        return data;
+    }
+
+    /**
+     * lists the temp store snapshots which can be restored
+     * @return snapshots (name, file, bytes and lastModified of each)
+     */
+    @RequestMapping(value = {"/pipelines/snapshots"}, method = RequestMethod.GET, produces="application/json;charset=utf-8")
+    public @ResponseBody Map<String, Object> snapshots() throws IOException {
+        List<Map<String, Object>> snapshots = new ArrayList<>();
+        for (String name : storage.findTempStoreSnapshots()) {
+            Path file = storage.getTempStoreSnapshotFile(name);
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("name", name);
+            snapshot.put("file", file.toString());
+            snapshot.put("bytes", Files.size(file));
+            snapshot.put("lastModified", Files.getLastModifiedTime(file).toMillis());
+            snapshots.add(snapshot);
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("snapshots", snapshots);
+        return data;
+    }
+
+    /**
+     * Post to write a snapshot of the whole temp store (replaces the snapshot with the same name)
+     * @return name, file and ms (the time to write it)
+     * @throws IllegalArgumentException if the name is not valid (letters, digits, - and _ only)
+     */
+    @RequestMapping(value = {"/pipelines/snapshots/{name}"}, method = RequestMethod.POST, produces="application/json;charset=utf-8")
+    public @ResponseBody Map<String, Object> snapshot(@PathVariable("name") String name) {
+        checkSnapshotName(name);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Snapshot the temp store: "+name);
+        }
+
+        long start = System.currentTimeMillis();
+        Path file = storage.snapshotTempStore(name);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", name);
+        data.put("file", String.valueOf(file));
+        data.put("ms", System.currentTimeMillis() - start);
+        return data;
+    }
+
+    /**
+     * Post to replace the temp store with a snapshot (e.g. to run a pipeline again without loading the inputs),
+     * fails while the temp store is in use (a pipeline run, an input load or activity events being inserted).
+     * Only allowed when tempstore.snapshot.restore.api is enabled since it drops everything in the temp store.
+     * @return name, restored (false if there is no snapshot with the name) and ms (the time to restore it)
+     * @throws IllegalArgumentException if the name is not valid (letters, digits, - and _ only)
+     * @throws AccessDeniedException if restoring through the API is not enabled
+     */
+    @RequestMapping(value = {"/pipelines/snapshots/restore/{name}"}, method = RequestMethod.POST, produces="application/json;charset=utf-8")
+    public @ResponseBody Map<String, Object> restoreSnapshot(@PathVariable("name") String name) {
+        checkSnapshotName(name);
+        if (!configuration.isTempStoreSnapshotRestoreApi()) {
+            throw new AccessDeniedException("Restoring a temp store snapshot is not enabled (tempstore.snapshot.restore.api)");
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Restore the temp store snapshot: "+name);
+        }
+
+        long start = System.currentTimeMillis();
+        boolean restored = storage.restoreTempStore(name);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", name);
+        data.put("restored", restored);
+        data.put("ms", System.currentTimeMillis() - start);
+        return data;
+    }
+
+    private void checkSnapshotName(String name) {
+        // checked before the name is used for anything (e.g. the snapshot file path)
+        if (!StorageService.isValidTempStoreSnapshotName(name)) {
+            throw new IllegalArgumentException("Invalid temp store snapshot name, only letters, digits, - and _ are allowed");
+        }
+    }
+
     /**
      * Post to start one pipeline
      * TODO probably need to add security to this
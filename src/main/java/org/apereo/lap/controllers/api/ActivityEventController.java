@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.controllers.api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apereo.lap.services.input.ActivityEventService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Receives the activity events from the LMS as they happen (appended to the ACTIVITY collection)
+ */
+@RestController
+public class ActivityEventController {
+
+  private static final Logger logger = LoggerFactory.getLogger(ActivityEventController.class);
+
+  @Autowired
+  ActivityEventService activityEventService;
+
+  /**
+   * Post one event (an object) or a batch of events (an array of objects) with the activity extract fields
+   * (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE).
+   * Responds with 202 when the events were accepted, 400 when none of the events were valid,
+   * 429 when the buffer is full (the refused events are the last ones, send them again after the Retry-After seconds),
+   * or 503 when the activity events are not enabled (input.events.enabled)
+   */
+  @RequestMapping(method = RequestMethod.POST, consumes = {"application/json"}, produces = {"application/json"}, value="/api/activity/events")
+  public ResponseEntity<Map<String, Object>> postEvents(@RequestBody Object body) {
+    if (!activityEventService.isEnabled()) {
+      Map<String, Object> data = new LinkedHashMap<>();
+      data.put("error", "activity events are not enabled (input.events.enabled)");
+      return new ResponseEntity<>(data, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+    List<Map<String, Object>> events = new ArrayList<>();
+    if (body instanceof List) {
+      for (Object event : (List<?>) body) {
+        events.add(toEvent(event));
+      }
+    } else {
+      events.add(toEvent(body));
+    }
+    ActivityEventService.OfferResult result = activityEventService.offer(events);
+    if (logger.isDebugEnabled()) {
+      logger.debug("Activity events: "+result);
+    }
+
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("received", result.received);
+    data.put("accepted", result.accepted);
+    data.put("invalid", result.invalid);
+    data.put("refused", result.refused);
+    HttpHeaders headers = new HttpHeaders();
+    HttpStatus status = HttpStatus.ACCEPTED;
+    if (result.refused > 0) {
+      status = HttpStatus.TOO_MANY_REQUESTS;
+      headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (activityEventService.getFlushInterval() + 999) / 1000)));
+    } else if (result.accepted == 0 && !result.invalid.isEmpty()) {
+      status = HttpStatus.BAD_REQUEST;
+    }
+    return new ResponseEntity<>(data, headers, status);
+  }
+
+  /**
+   * The buffer depth, counts and insert (flush) timings for the received events
+   */
+  @RequestMapping(method = RequestMethod.GET, produces = {"application/json"}, value="/api/activity/events/metrics")
+  public Map<String, Object> metrics() {
+    return activityEventService.getMetrics();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> toEvent(Object event) {
+    // anything other than an object is invalid (null is rejected by the service)
+    return event instanceof Map ? (Map<String, Object>) event : null;
+  }
+}
@@ -37,6 +37,12 @@ import org.springframework.stereotype.Component;
 public class KettleConfiguration {
     private static final Logger logger = LoggerFactory.getLogger(KettleConfiguration.class);
 
+    /**
+     * the kettle variable which holds the temp store database the shared connections use,
+     * set on each job or transformation to the temp store of the run (defaults to the shared temp store)
+     */
+    public static final String TEMP_DB_VARIABLE = "LAP_TEMP_DB";
+
     @Autowired
     private ConfigurationService config;
 
@@ -66,6 +72,9 @@ public class KettleConfiguration {
         // gets existing shared.xml objects, or creates a new object to store properties
         sharedObjects = new SharedObjects();
 
+        // the default for the temp store variable (kettle variables start from the system properties)
+        System.setProperty(TEMP_DB_VARIABLE, makeDatabaseName(datasourceProperties.getTempUrl()));
+
         // process and store each defined database connection
         for (String databaseConnectionName : kettleProperties.getDatabaseConnectionNames()) {
             // must remove existing connection, as multiple connection names are allowed
@@ -74,8 +83,8 @@ public class KettleConfiguration {
                 sharedObjects.removeObject(existingDatabaseConnection);
             }
 
-            // remove the prefix from the url property
-            String databaseName = StringUtils.remove(datasourceProperties.getTemp().getUrl(), "jdbc:h2:");
+            // the database is a variable so each run can use its own temp store
+            String databaseName = "${" + TEMP_DB_VARIABLE + "}";
 
             // create a fully-configured H2 database connection
             H2DatabaseMeta h2DatabaseMeta = new H2DatabaseMeta();
@@ -106,6 +115,14 @@ public class KettleConfiguration {
         logger.info("Shared objects saved to: " + sharedObjects.getFilename());
     }
 
+    /**
+     * @param url the temp store url
+     * @return the H2 database name for the url (without the prefix) for the kettle connections
+     */
+    public static String makeDatabaseName(String url) {
+        return StringUtils.remove(url, "jdbc:h2:");
+    }
+
     public SharedObjects getSharedObjects() {
         return sharedObjects;
     }
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package org.apereo.lap.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Id;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * Identifies the extract which was loaded into the temp store for an input collection
+ * (used to avoid loading the same extract again)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class InputFingerprint implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id private String id;
+  private String collection;
+  private String source;
+  private long size;
+  private long lastModified;
+  private String hash;
+  /**
+   * hash of the first and last few KB (null if the file does not end with a line break, so it cannot be appended to)
+   */
+  private String edgeHash;
+  private int rowCount;
+  /**
+   * number of lines (or records) read from the source
+   */
+  private int lines;
+  /**
+   * the latest event date loaded from the source (null if it has no events)
+   */
+  private Date highWaterMark;
+  private Date loadedAt;
+
+  /**
+   * @param other the fingerprint of the extract which was loaded before (can be null)
+   * @return true if this is the same extract (same source and size and the same hash if there is one, otherwise the same last modified time)
+   */
+  public boolean matches(InputFingerprint other) {
+    if (other == null || !ObjectUtils.equals(source, other.source) || size != other.size) {
+      return false;
+    }
+    if (hash != null) {
+      // content is the same even if the file was copied again
+      return hash.equals(other.hash);
+    }
+    return lastModified == other.lastModified;
+  }
+
+  public String getId() {
+    return id;
+  }
+  public void setId(String id) {
+    this.id = id;
+  }
+  public String getCollection() {
+    return collection;
+  }
+  public void setCollection(String collection) {
+    this.collection = collection;
+  }
+  public String getSource() {
+    return source;
+  }
+  public void setSource(String source) {
+    this.source = source;
+  }
+  public long getSize() {
+    return size;
+  }
+  public void setSize(long size) {
+    this.size = size;
+  }
+  public long getLastModified() {
+    return lastModified;
+  }
+  public void setLastModified(long lastModified) {
+    this.lastModified = lastModified;
+  }
+  public String getHash() {
+    return hash;
+  }
+  public void setHash(String hash) {
+    this.hash = hash;
+  }
+  public String getEdgeHash() {
+    return edgeHash;
+  }
+  public void setEdgeHash(String edgeHash) {
+    this.edgeHash = edgeHash;
+  }
+  public int getRowCount() {
+    return rowCount;
+  }
+  public void setRowCount(int rowCount) {
+    this.rowCount = rowCount;
+  }
+  public int getLines() {
+    return lines;
+  }
+  public void setLines(int lines) {
+    this.lines = lines;
+  }
+  public Date getHighWaterMark() {
+    return highWaterMark;
+  }
+  public void setHighWaterMark(Date highWaterMark) {
+    this.highWaterMark = highWaterMark;
+  }
+  public Date getLoadedAt() {
+    return loadedAt;
+  }
+  public void setLoadedAt(Date loadedAt) {
+    this.loadedAt = loadedAt;
+  }
+
+  @Override
+  public String toString() {
+    return "InputFingerprint:" + collection + ", source=" + source + ", size=" + size + ", lastModified=" + lastModified
+        + (hash != null ? ", hash=" + hash : "") + ", rows=" + rowCount + ", lines=" + lines
+        + (highWaterMark != null ? ", highWaterMark=" + highWaterMark : "");
+  }
+
+}
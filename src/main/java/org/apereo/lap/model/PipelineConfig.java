@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
  * - description (and recommendations for running the model)
  * - stat indicators (accuracy, confidence interval, etc.)
  * - required input fields
+ * - index hints (secondary indexes on the input collections which the processors need)
  * - processors (kettle ktr and kjb files, pmml files, etc.)
  * - output result definition
  * 
@@ -67,6 +68,7 @@ public class PipelineConfig {
 
     List<BaseInputHandlerService> inputHandlers;
     List<InputField> inputs;
+    List<IndexHint> indexes;
     List<Processor> processors;
     List<Output> outputs;
 
@@ -101,6 +103,24 @@ public class PipelineConfig {
         return this.inputs;
     }
 
+    /**
+     * Add an IndexHint to this config
+     * @param indexHint the IndexHint
+     * @return the list of all current IndexHint
+     */
+    public List<IndexHint> addIndexHint(IndexHint indexHint) {
+        if (this.indexes == null) {
+            this.indexes = new ArrayList<>();
+        }
+        for (IndexHint index : this.indexes) {
+            if (indexHint.getName().equals(index.getName())) {
+                throw new IllegalArgumentException("Duplicate index hint ("+indexHint.getName()+"), index can only be defined once");
+            }
+        }
+        this.indexes.add(indexHint);
+        return this.indexes;
+    }
+
     public List<BaseInputHandlerService> addInputHandlerField(String type, HierarchicalConfiguration sourceConfiguration, ConfigurationService configurationService, StorageService storage) {
         if (this.inputHandlers == null) {
             this.inputHandlers = new ArrayList<>();
@@ -160,6 +180,13 @@ public class PipelineConfig {
         return inputs;
     }
 
+    /**
+     * @return the secondary indexes to build after the inputs are loaded (empty if there are none)
+     */
+    public List<IndexHint> getIndexes() {
+        return indexes != null ? indexes : new ArrayList<IndexHint>();
+    }
+
     public List<Processor> getProcessors() {
         return processors;
     }
@@ -260,6 +287,20 @@ public class PipelineConfig {
                 logger.warn("Unable to load input field ("+field.toString()+") (skipping it): "+e);
             }
         }
+        // index hints
+        List<HierarchicalConfiguration> indexHints = xmlConfig.configurationsAt("inputs.indexes.index");
+        for (HierarchicalConfiguration index : indexHints) {
+            try {
+                List<String> columns = new ArrayList<>();
+                for (Object column : index.getList("column")) {
+                    columns.add(String.valueOf(column));
+                }
+                pc.addIndexHint(IndexHint.make(index.getString("collection"), columns));
+            } catch (Exception e) {
+                // skip this index and warn
+                logger.warn("Unable to load index hint ("+index.toString()+") (skipping it): "+e);
+            }
+        }
         // processors
         List<HierarchicalConfiguration> processors = xmlConfig.configurationsAt("processors.processor");
         for (HierarchicalConfiguration processor : processors) {
@@ -387,4 +428,66 @@ public class PipelineConfig {
         }
     }
 
+    /**
+     * Represents a secondary index on one of the input collections (temp tables) which the pipeline processors
+     * need (e.g. for the columns the processor SQL joins or groups on).
+     * The indexes are built after the inputs are loaded (not while loading so the inserts stay fast)
+     * and are dropped again before the collection is loaded the next time.
+     */
+    public static class IndexHint {
+        public BaseInputHandlerService.InputCollection collection;
+        public List<String> columns;
+
+        private IndexHint() {}
+        /**
+         * For making index hints
+         * @param collection the collection to index (e.g. ACTIVITY)
+         * @param columns the columns of the collection to index (in index order)
+         * @return the index hint object
+         */
+        public static IndexHint make(String collection, List<String> columns) {
+            assert StringUtils.isNotBlank(collection);
+            if (columns == null || columns.isEmpty()) {
+                throw new IllegalArgumentException("Index hint for "+collection+" must include at least 1 column");
+            }
+            IndexHint index = new IndexHint();
+            index.collection = BaseInputHandlerService.InputCollection.fromString(StringUtils.trim(collection));
+            index.columns = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                column = StringUtils.upperCase(StringUtils.trimToEmpty(column));
+                if (!column.matches("[A-Z_][A-Z0-9_]*")) {
+                    throw new IllegalArgumentException("Invalid column ("+column+") in index hint for "+collection+" (must be a column name)");
+                }
+                index.columns.add(column);
+            }
+            return index;
+        }
+
+        /**
+         * @return the collection (temp table) for this index
+         */
+        public BaseInputHandlerService.InputCollection getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return the indexed columns (in index order)
+         */
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return the name of the index in the temp store (e.g. LAP_IDX_ACTIVITY_COURSE_ID_EVENT)
+         */
+        public String getName() {
+            return StorageService.INDEX_PREFIX + collection.name() + "_" + StringUtils.join(columns, "_");
+        }
+
+        @Override
+        public String toString() {
+            return "Index hint (" + collection + "(" + StringUtils.join(columns, ",") + "))";
+        }
+    }
+
 }
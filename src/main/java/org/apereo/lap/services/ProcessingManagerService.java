@@ -14,27 +14,33 @@
  *******************************************************************************/
 package org.apereo.lap.services;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.commons.lang.StringUtils;
 import org.apereo.lap.model.Output;
 import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.model.Processor;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.InputMetricsRegistry;
 import org.apereo.lap.services.notification.NotificationService;
 import org.apereo.lap.services.output.OutputHandlerService;
 import org.apereo.lap.services.output.handlers.OutputHandler;
 import org.apereo.lap.services.pipelines.PipelineProcessor;
 import org.apereo.lap.services.storage.ModelRun;
 import org.apereo.lap.services.storage.ModelRunPersistentStorage;
+import org.apereo.lap.services.storage.RunTempStore;
 import org.apereo.lap.services.storage.StorageFactory;
 import org.apereo.lap.services.storage.StorageService;
 import org.slf4j.Logger;
@@ -60,11 +66,17 @@ public class ProcessingManagerService {
 
     static final Logger logger = LoggerFactory.getLogger(ProcessingManagerService.class);
 
+    /**
+     * makes the ids of the isolated runs unique
+     */
+    static final AtomicLong runCounter = new AtomicLong();
+
     @Autowired ConfigurationService configuration;
     @Autowired StorageService storage;
     @Autowired NotificationService notification;
     @Autowired OutputHandlerService outputHandler;
     @Autowired private StorageFactory storageFactory;
+    @Autowired InputMetricsRegistry inputMetrics;
 
     @Autowired
     List<PipelineProcessor> pipelineProcessors;
@@ -75,6 +87,17 @@ public class ProcessingManagerService {
     public void init() {
         logger.info("INIT");
         modelRunPersistentStorage = storageFactory.getModelRunPersistentStorage();
+        // warm start from a temp store snapshot
+        String snapshot = configuration.getTempStoreSnapshotRestore();
+        if (StringUtils.isNotBlank(snapshot)) {
+            try {
+                if (!storage.restoreTempStore(snapshot)) {
+                    logger.info("No temp store snapshot ("+snapshot+") to restore");
+                }
+            } catch (Exception e) {
+                logger.error("Unable to restore the temp store snapshot ("+snapshot+"), starting with an empty temp store: "+e, e);
+            }
+        }
     }
 
     @PreDestroy
@@ -102,8 +125,26 @@ public class ProcessingManagerService {
         logger.info("Pipeline Initialized: "+pipelineId);
         boolean processResult = false;
         ModelRun modelRun = new ModelRun();
+        long startMS = System.currentTimeMillis();
+        // time spent building the index hints and in each processor (to compare runs with and without the indexes)
+        List<Map<String, Object>> indexTimings = new ArrayList<>();
+        List<Map<String, Object>> processorTimings = new ArrayList<>();
+        RunTempStore runTempStore = null;
+        boolean sharedTempStore = false;
+        // the input loads of this run are marked with the run id so they are kept apart from the loads of any other run
+        String runId = makeRunId(pipelineId);
+        inputMetrics.beginRun(runId);
 
         try {
+            if (configuration.isPipelineRunIsolated()) {
+                // this run gets its own temp store so it does not see or change the temp data of other runs
+                runTempStore = storage.openRunTempStore(runId);
+            } else {
+                // the shared temp store cannot be restored from a snapshot while this run uses it
+                storage.beginTempStoreUse();
+                sharedTempStore = true;
+            }
+
             // load up pipeline config (by id)
             PipelineConfig pipelineConfig = configuration.getPipelineConfig(pipelineId);
             if (pipelineConfig == null) {
@@ -117,7 +158,7 @@ public class ProcessingManagerService {
             // load up the inputs
             List<PipelineConfig.InputField> inputs = pipelineConfig.getInputs();
 
-            // verify the inputs exist
+            // verify the inputs exist (checked against the cached temp store catalog)
             boolean missingRequiredInput = false;
             for (PipelineConfig.InputField input : inputs) {
                 if (!storage.checkTableAndColumnExist(input.getCollection().name(), input.getName())) {
@@ -146,10 +187,14 @@ public class ProcessingManagerService {
             {
             	for(BaseInputHandlerService inputHandler : pipelineConfigs.getValue().getInputHandlers())
             	{
-            		inputHandler.loadInputCollections(false, false, toLoad); // load on-demand, do not reset
+            		// load on-demand, do not reset (an isolated run starts with an empty temp store so it always loads)
+            		inputHandler.loadInputCollections(runTempStore != null, false, toLoad);
             	}
             }
 
+            // build the secondary indexes the processors need now the inputs are loaded
+            indexTimings.addAll(buildIndexes(pipelineConfig.getIndexes()));
+
             // start the pipeline processors
             List<Processor> processors = pipelineConfig.getProcessors();
             logger.info("Pipeline ("+pipelineId+") running "+processors.size()+" processors");
@@ -158,11 +203,22 @@ public class ProcessingManagerService {
                 for (PipelineProcessor pipelineProcessor : pipelineProcessors) {
                     if (pipelineProcessor.getProcessorType() == processorConfig.type) {
                         matched = true;
+                        Map<String, Object> timing = new LinkedHashMap<>();
+                        timing.put("processor", processorConfig.name);
+                        timing.put("type", String.valueOf(processorConfig.type));
+                        processorTimings.add(timing);
+                        long processorStartMS = System.currentTimeMillis();
                         try {
                             PipelineProcessor.ProcessorResult result = pipelineProcessor.process(pipelineConfig, processorConfig, inputJson);
+                            // the processor can create and fill tables so the cached temp store details are out of date
+                            storage.getCatalog().invalidate();
+                            timing.put("success", true);
                             logger.info(pipelineProcessor.getProcessorType()+" pipeline (" + pipelineId + ") processor ("+processorConfig.name+") complete: "+result);
                         } catch (Exception e) {
+                            timing.put("success", false);
                             throw new RuntimeException(pipelineProcessor.getProcessorType()+" pipeline (" + pipelineId + ") processor ("+processorConfig.name+") failed: " + e);
+                        } finally {
+                            timing.put("ms", System.currentTimeMillis() - processorStartMS);
                         }
                     }
                 }
@@ -172,6 +228,16 @@ public class ProcessingManagerService {
                 }
             }
 
+            if (configuration.isTempStoreSnapshot()) {
+                // keep the temp store (the inputs and the tables of all the processors of this run) so it can be restored
+                // after a restart or to output this run again without loading or processing again
+                try {
+                    storage.snapshotTempStore(makeSnapshotName(pipelineId));
+                } catch (Exception e) {
+                    logger.warn("Pipeline ("+pipelineId+") temp store snapshot failed (continuing without it): "+e);
+                }
+            }
+
             // handle the outputs
             List<Output> outputs = pipelineConfig.getOutputs();
             boolean outputSuccess = false;
@@ -206,14 +272,98 @@ public class ProcessingManagerService {
             logger.error(msg);
             modelRun.setSuccess(false);
             notification.sendNotification(msg, NotificationService.NotificationLevel.CRITICAL);
+        } finally {
+            if (runTempStore != null) {
+                storage.closeRunTempStore(runTempStore);
+            }
+            if (sharedTempStore) {
+                storage.endTempStoreUse();
+            }
+            inputMetrics.endRun();
         }
 
+        // keep the throughput of the input loads of this run (including a failed load)
+        modelRun.setInputMetrics(InputMetricsRegistry.summarize(inputMetrics.findStartedSince(startMS, runId)));
+        modelRun.setStageTimings(makeStageTimings(indexTimings, processorTimings));
+
         ModelRun savedModelRun = modelRunPersistentStorage.save(modelRun);
         logger.debug(savedModelRun.toString());
 
         return processResult;
     }
 
+    /**
+     * @param pipelineId the id for the pipeline config
+     * @return a unique id for a run of the pipeline (safe to use in a database name)
+     */
+    static String makeRunId(String pipelineId) {
+        return String.valueOf(pipelineId).replaceAll("[^A-Za-z0-9]", "_") + "-" + runCounter.incrementAndGet();
+    }
+
+    /**
+     * @param pipelineId the id for the pipeline config
+     * @return the name of the temp store snapshot written after the pipeline processors are done
+     */
+    static String makeSnapshotName(String pipelineId) {
+        return String.valueOf(pipelineId).replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * Builds the secondary indexes from the pipeline index hints (indexes which already exist are left alone),
+     * an index which cannot be built is logged and skipped since the processors can still run without it
+     * @param indexes the index hints of the pipeline
+     * @return the timing of each index (name, collection, columns, created, ms)
+     */
+    List<Map<String, Object>> buildIndexes(List<PipelineConfig.IndexHint> indexes) {
+        List<Map<String, Object>> timings = new ArrayList<>();
+        if (indexes == null) {
+            return timings;
+        }
+        for (PipelineConfig.IndexHint index : indexes) {
+            Map<String, Object> timing = new LinkedHashMap<>();
+            timing.put("index", index.getName());
+            timing.put("collection", index.getCollection().name());
+            timing.put("columns", index.getColumns());
+            long indexStartMS = System.currentTimeMillis();
+            try {
+                timing.put("created", storage.createIndex(index.getName(), index.getCollection().name(), index.getColumns()));
+            } catch (Exception e) {
+                logger.warn("Unable to build the "+index+" (skipping it): "+e);
+                timing.put("error", e.toString());
+            }
+            timing.put("ms", System.currentTimeMillis() - indexStartMS);
+            timings.add(timing);
+        }
+        if (!timings.isEmpty()) {
+            logger.info("Built the index hints: "+timings);
+        }
+        return timings;
+    }
+
+    /**
+     * @param indexTimings the timings from building the index hints
+     * @param processorTimings the timings of the processors
+     * @return the stage timings to keep with the run (totals and the timing of each index and processor)
+     */
+    static Map<String, Object> makeStageTimings(List<Map<String, Object>> indexTimings, List<Map<String, Object>> processorTimings) {
+        long indexMS = 0;
+        for (Map<String, Object> timing : indexTimings) {
+            indexMS += (Long) timing.get("ms");
+        }
+        long processorMS = 0;
+        for (Map<String, Object> timing : processorTimings) {
+            if (timing.containsKey("ms")) {
+                processorMS += (Long) timing.get("ms");
+            }
+        }
+        Map<String, Object> stageTimings = new LinkedHashMap<>();
+        stageTimings.put("indexMS", indexMS);
+        stageTimings.put("processorMS", processorMS);
+        stageTimings.put("indexes", indexTimings);
+        stageTimings.put("processors", processorTimings);
+        return stageTimings;
+    }
+
     public List<PipelineProcessor> getPipelineProcessors() {
         return pipelineProcessors;
     }
@@ -54,6 +54,7 @@ public class ConfigurationService {
   private Path pipelinesDirectory;
   private Path inputDirectory;
   private Path outputDirectory;
+  private Path snapshotDirectory;
 
   // working directories
   @Value("${lap.home:#{null}}")
@@ -64,8 +65,54 @@ public class ConfigurationService {
   private String dirInputs;
   @Value("${dir.outputs:#{null}}")
   private String dirOutputs;
+  @Value("${dir.snapshots:#{null}}")
+  private String dirSnapshots;
   @Value("${input.init.load.csv:false}")
   private boolean inputInitLoadCSV;
+  @Value("${input.batch.size:1000}")
+  private int inputBatchSize;
+  @Value("${input.load.threads:4}")
+  private int inputLoadThreads;
+  @Value("${input.csv.split.threads:1}")
+  private int inputCSVSplitThreads;
+  @Value("${input.csv.split.min.size:67108864}")
+  private long inputCSVSplitMinSize;
+  @Value("${input.csv.stage.threads:0}")
+  private int inputCSVStageThreads;
+  @Value("${input.csv.stage.queue.size:4}")
+  private int inputCSVStageQueueSize;
+  @Value("${input.csv.bulk:false}")
+  private boolean inputCSVBulk;
+  @Value("${input.fingerprint.hash:false}")
+  private boolean inputFingerprintHash;
+  @Value("${input.incremental:false}")
+  private boolean inputIncremental;
+  @Value("${input.failures.sample:100}")
+  private int inputFailureSampleSize;
+  @Value("${input.rejects.file:true}")
+  private boolean inputRejectFile;
+  @Value("${input.database.fetch.size:1000}")
+  private int inputDatabaseFetchSize;
+  @Value("${input.http.timeout:60000}")
+  private int inputHttpTimeout;
+  @Value("${input.events.enabled:false}")
+  private boolean inputEventsEnabled;
+  @Value("${input.events.buffer.size:8192}")
+  private int inputEventsBufferSize;
+  @Value("${input.events.flush.interval:1000}")
+  private int inputEventsFlushInterval;
+  @Value("${input.dedup:false}")
+  private boolean inputDedup;
+  @Value("${input.dedup.expected:10000000}")
+  private long inputDedupExpected;
+  @Value("${pipeline.run.isolated:false}")
+  private boolean pipelineRunIsolated;
+  @Value("${tempstore.snapshot:false}")
+  private boolean tempStoreSnapshot;
+  @Value("${tempstore.snapshot.restore:#{null}}")
+  private String tempStoreSnapshotRestore;
+  @Value("${tempstore.snapshot.restore.api:false}")
+  private boolean tempStoreSnapshotRestoreApi;
 
   @Autowired
   StorageService storage;
@@ -103,6 +150,12 @@ public class ConfigurationService {
     
     logger.info("Pipeline Dir: " + pipelinesDirectory);
     logger.info("Inputs Dir: " + inputDirectory);
+    if (StringUtils.isNotBlank(dirSnapshots)) {
+      snapshotDirectory = Paths.get(dirSnapshots);
+    } else {
+      snapshotDirectory = applicationHomeDirectory.resolve("snapshots");
+    }
+
     logger.info("Outputs Dir: " + outputDirectory);
 
     if (!Files.isDirectory(outputDirectory)) {
@@ -191,7 +244,168 @@ public class ConfigurationService {
     return outputDirectory;
   }
 
+  /**
+   * @return the directory used for storing the snapshots of the temp store (only created when snapshots are written)
+   */
+  public Path getSnapshotDirectory() {
+    return snapshotDirectory;
+  }
+
   public boolean isInputInitLoadCSV() {
     return inputInitLoadCSV;
   }
+
+  /**
+   * @return the number of rows to send to the temp database in each JDBC batch (1 means row by row)
+   */
+  public int getInputBatchSize() {
+    return inputBatchSize;
+  }
+
+  /**
+   * @return the max number of input collections to load at the same time
+   */
+  public int getInputLoadThreads() {
+    return inputLoadThreads;
+  }
+
+  /**
+   * @return the number of threads used to read a single large CSV file (defaults to 1, 0 means the number of processors)
+   */
+  public int getInputCSVSplitThreads() {
+    return inputCSVSplitThreads > 0 ? inputCSVSplitThreads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return the min size (in bytes) of a CSV file before it is split up and read by multiple threads
+   */
+  public long getInputCSVSplitMinSize() {
+    return inputCSVSplitMinSize;
+  }
+
+  /**
+   * @return the number of threads which validate and convert the records of a CSV read in stages (0 means read on a single thread)
+   */
+  public int getInputCSVStageThreads() {
+    return inputCSVStageThreads;
+  }
+
+  /**
+   * @return the number of record blocks which can wait between the stages of a staged CSV read
+   */
+  public int getInputCSVStageQueueSize() {
+    return inputCSVStageQueueSize;
+  }
+
+  /**
+   * @return true if CSV files should be bulk loaded by the temp database (H2 only)
+   */
+  public boolean isInputCSVBulk() {
+    return inputCSVBulk;
+  }
+
+  /**
+   * @return true if the content of extracts should be hashed to detect changes (otherwise only size and last modified time are checked)
+   */
+  public boolean isInputFingerprintHash() {
+    return inputFingerprintHash;
+  }
+
+  /**
+   * @return true if event inputs (e.g. ACTIVITY) which were only appended to should be updated by loading just the appended data
+   */
+  public boolean isInputIncremental() {
+    return inputIncremental;
+  }
+
+  /**
+   * @return the max number of failure messages kept (and logged) for each input read
+   */
+  public int getInputFailureSampleSize() {
+    return inputFailureSampleSize;
+  }
+
+  /**
+   * @return true if the rejected input rows should be written to a reject file in the outputs dir
+   */
+  public boolean isInputRejectFile() {
+    return inputRejectFile;
+  }
+
+  /**
+   * @return the number of rows fetched at a time from a source database (DATABASE inputs can override this with params.fetchSize)
+   */
+  public int getInputDatabaseFetchSize() {
+    return inputDatabaseFetchSize;
+  }
+
+  /**
+   * @return the connect and read timeout (in ms) for HTTP inputs (HTTP inputs can override this with params.timeout)
+   */
+  public int getInputHttpTimeout() {
+    return inputHttpTimeout;
+  }
+
+  /**
+   * @return true if activity events are received (POST /api/activity/events) and appended to the ACTIVITY collection
+   */
+  public boolean isInputEventsEnabled() {
+    return inputEventsEnabled;
+  }
+
+  /**
+   * @return the max number of received activity events waiting to be inserted (more events are refused until there is room)
+   */
+  public int getInputEventsBufferSize() {
+    return inputEventsBufferSize;
+  }
+
+  /**
+   * @return the max time (in ms) a received activity event waits to be inserted when the batch is not full
+   */
+  public int getInputEventsFlushInterval() {
+    return inputEventsFlushInterval;
+  }
+
+  /**
+   * @return true if each pipeline run gets its own temp store (created from schema.sql and dropped after the run)
+   */
+  public boolean isPipelineRunIsolated() {
+    return pipelineRunIsolated;
+  }
+
+  /**
+   * @return true if a snapshot of the whole temp store should be written after the processors of each pipeline run are done (named after the pipeline)
+   */
+  public boolean isTempStoreSnapshot() {
+    return tempStoreSnapshot;
+  }
+
+  /**
+   * @return the name of the temp store snapshot to restore on startup OR null to start with an empty temp store
+   */
+  public String getTempStoreSnapshotRestore() {
+    return tempStoreSnapshotRestore;
+  }
+
+  /**
+   * @return true if the temp store can be replaced with a snapshot through the pipelines API (POST /pipelines/snapshots/restore/{name})
+   */
+  public boolean isTempStoreSnapshotRestoreApi() {
+    return tempStoreSnapshotRestoreApi;
+  }
+
+  /**
+   * @return true if the ACTIVITY rows which were already loaded (same ALTERNATIVE_ID, COURSE_ID, EVENT and EVENT_DATE) should be skipped
+   */
+  public boolean isInputDedup() {
+    return inputDedup;
+  }
+
+  /**
+   * @return the number of ACTIVITY rows the duplicate filter is sized for (about 10 bits of memory per row)
+   */
+  public long getInputDedupExpected() {
+    return inputDedupExpected;
+  }
 }
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.RingBuffer;
+import org.apereo.lap.services.input.handlers.csv.ActivityCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.BulkColumn;
+import org.apereo.lap.services.storage.InputFingerprintPersistentStorage;
+import org.apereo.lap.services.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Appends activity events (sent by the LMS as they happen) to the ACTIVITY collection in the temp database
+ * so the risk can be refreshed during the day without waiting for the next activity extract.
+ *
+ * The events are validated (with the same rules as the activity extract) by the thread which receives them
+ * and put into a bounded ring buffer, a single writer thread takes them from the buffer and inserts them in
+ * JDBC batches when a batch is full or when the oldest waiting event has waited for the flush interval.
+ * When the buffer is full the events are refused so the sender can back off and send them again later.
+ *
+ * NOTE: the events reference the PERSONAL and COURSE records so those must be loaded first
+ * (events which do not match are counted as failed), loading the activity extract again replaces the events.
+ * The inserted events are added to the row count in the ACTIVITY input fingerprint so an unchanged extract is not loaded again
+ * (which would replace the events).
+ * If input.dedup is enabled the events are checked against the ACTIVITY rows which were there when the writer started
+ * and the events received since then.
+ * The events are always written to the shared temp store, pipeline runs which have their own temp store
+ * (pipeline.run.isolated) do not see the events.
+ * Nothing is started (and all events are refused) unless input.events.enabled is true
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+@Component
+public class ActivityEventService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ActivityEventService.class);
+
+    @Autowired ConfigurationService config;
+    @Autowired StorageService storage;
+
+    ActivityCSVInputHandler converter;
+    /**
+     * the column (in the activity extract order) for each event field name (upper case)
+     */
+    final Map<String, Integer> columns = new HashMap<>();
+    boolean enabled;
+    RingBuffer<Event> buffer;
+    int batchSize;
+    long flushIntervalNanos;
+    volatile boolean running;
+    Thread writer;
+
+    final AtomicInteger sequence = new AtomicInteger();
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong invalid = new AtomicLong();
+    final AtomicLong refused = new AtomicLong();
+    InputFailures failures;
+    // only updated by the writer thread
+    volatile long inserted;
+    volatile long flushes;
+    volatile long lastFlushRows;
+    volatile long lastFlushNanos;
+    volatile long maxFlushNanos;
+    volatile long totalFlushNanos;
+
+    @PostConstruct
+    public void init() {
+        enabled = config.isInputEventsEnabled();
+        if (!enabled) {
+            logger.info("INIT: activity events are disabled (input.events.enabled)");
+            return;
+        }
+        converter = new ActivityCSVInputHandler(config, storage.getTempJdbcTemplate());
+        BulkColumn[] bulkColumns = converter.getBulkColumns();
+        for (int i = 0; i < bulkColumns.length; i++) {
+            columns.put(bulkColumns[i].getName(), i);
+        }
+        buffer = new RingBuffer<>(config.getInputEventsBufferSize());
+        batchSize = Math.max(1, config.getInputBatchSize());
+        flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getInputEventsFlushInterval()));
+        failures = new InputFailures("ACTIVITY events", config.getInputFailureSampleSize(), null, false);
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "lap-activity-events");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("INIT: activity events buffer="+buffer.capacity()+", batch="+batchSize+", flush interval="+config.getInputEventsFlushInterval()+"ms");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                // the writer inserts the buffered events before it stops
+                writer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.info("DESTROY: activity events "+getMetrics());
+    }
+
+    /**
+     * Validates the events and adds the valid ones to the buffer (in order) until the buffer is full
+     * @param events the events, each is a map of the activity extract fields (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE) to the values
+     * @return the results (the events after the accepted and invalid ones were refused because the buffer was full)
+     * @throws IllegalStateException if the activity events are not enabled
+     */
+    public OfferResult offer(List<Map<String, Object>> events) {
+        assert events != null;
+        if (!enabled) {
+            throw new IllegalStateException("Activity events are not enabled (input.events.enabled)");
+        }
+        OfferResult result = new OfferResult(events.size());
+        received.addAndGet(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Object[] params;
+            try {
+                params = toParams(events.get(i));
+            } catch (Exception e) {
+                result.invalid.add("event "+(i + 1)+": "+e.getMessage());
+                continue;
+            }
+            if (!buffer.offer(new Event(sequence.incrementAndGet(), params, System.nanoTime()))) {
+                result.refused = events.size() - i;
+                break;
+            }
+            result.accepted++;
+        }
+        accepted.addAndGet(result.accepted);
+        invalid.addAndGet(result.invalid.size());
+        refused.addAndGet(result.refused);
+        if (buffer.size() >= batchSize) {
+            LockSupport.unpark(writer); // a full batch is waiting
+        }
+        return result;
+    }
+
+    Object[] toParams(Map<String, Object> event) {
+        if (event == null) {
+            throw new IllegalArgumentException("event is not an object");
+        }
+        String[] values = new String[columns.size()];
+        for (Map.Entry<String, Object> field : event.entrySet()) {
+            Integer column = columns.get(field.getKey().toUpperCase());
+            if (column != null && field.getValue() != null) {
+                values[column] = field.getValue().toString();
+            }
+        }
+        FieldDecoder.trimToNull(values);
+        return converter.validateAndConvertParams(values);
+    }
+
+    /**
+     * Runs in the writer thread until the service is destroyed (and the buffer is empty)
+     */
+    void writeEvents() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        BatchInserter inserter = converter.makeBatchInserter(config, failures);
+        long oldest = 0;
+        while (running || !buffer.isEmpty() || !batch.isEmpty()) {
+            Event event = buffer.poll();
+            if (event != null) {
+                if (batch.isEmpty()) {
+                    oldest = event.offered;
+                }
+                batch.add(event);
+                if (batch.size() >= batchSize) {
+                    flush(batch, inserter);
+                }
+            } else if (!batch.isEmpty() && (!running || System.nanoTime() - oldest >= flushIntervalNanos)) {
+                flush(batch, inserter);
+            } else if (running) {
+                // wait for the next event (or for the oldest waiting event to be due)
+                LockSupport.parkNanos(this, batch.isEmpty() ? flushIntervalNanos : flushIntervalNanos - (System.nanoTime() - oldest));
+            } else {
+                Thread.yield(); // an event is being added
+            }
+        }
+    }
+
+    void flush(List<Event> batch, BatchInserter inserter) {
+        // the temp store is not restored from a snapshot while the events are inserted
+        storage.beginTempStoreUse();
+        long start = System.nanoTime();
+        int before = inserter.getInserted();
+        int added;
+        try {
+            // a load of the ACTIVITY extract does not count the rows or save its fingerprint between the insert and the fingerprint update
+            storage.beginInputFingerprintUpdate();
+            try {
+                try {
+                    for (Event event : batch) {
+                        inserter.add(event.sequence, event.params);
+                    }
+                    inserter.flush();
+                } catch (Exception e) {
+                    // keep the writer running, the events in this batch are lost
+                    logger.error("Failed to insert "+batch.size()+" activity events: "+e, e);
+                }
+                added = inserter.getInserted() - before;
+                if (added > 0) {
+                    addToFingerprint(added);
+                }
+            } finally {
+                storage.endInputFingerprintUpdate();
+            }
+            storage.getCatalog().invalidateData(BaseInputHandlerService.InputCollection.ACTIVITY.name());
+        } finally {
+            storage.endTempStoreUse();
+        }
+        long nanos = System.nanoTime() - start;
+        inserted += added;
+        flushes++;
+        lastFlushRows = batch.size();
+        lastFlushNanos = nanos;
+        maxFlushNanos = Math.max(maxFlushNanos, nanos);
+        totalFlushNanos += nanos;
+        batch.clear();
+    }
+
+    /**
+     * Adds the inserted events to the row count of the loaded ACTIVITY extract (if there is a fingerprint for it),
+     * the caller MUST hold the input fingerprint update (see {@link StorageService#beginInputFingerprintUpdate()})
+     * @param added the number of events inserted
+     */
+    void addToFingerprint(int added) {
+        InputFingerprintPersistentStorage registry = storage.getInputFingerprintStorage();
+        if (registry == null) {
+            return;
+        }
+        try {
+            InputFingerprint fingerprint = registry.get(BaseInputHandlerService.InputCollection.ACTIVITY.name());
+            if (fingerprint != null) {
+                fingerprint.setRowCount(fingerprint.getRowCount() + added);
+                registry.save(fingerprint);
+            }
+        } catch (Exception e) {
+            // the extract is loaded again next time (replacing the events)
+            logger.warn("Unable to add "+added+" activity events to the ACTIVITY input fingerprint: "+e);
+        }
+    }
+
+    /**
+     * @return true if the activity events are received (input.events.enabled)
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the current counts and timings for the received events
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        if (!enabled) {
+            return metrics;
+        }
+        metrics.put("bufferCapacity", buffer.capacity());
+        metrics.put("bufferDepth", buffer.size());
+        metrics.put("received", received.get());
+        metrics.put("accepted", accepted.get());
+        metrics.put("invalid", invalid.get());
+        metrics.put("refused", refused.get());
+        metrics.put("inserted", inserted);
+        metrics.put("failed", failures.size());
+        metrics.put("failures", failures.getMessages());
+        metrics.put("flushes", flushes);
+        metrics.put("lastFlushRows", lastFlushRows);
+        metrics.put("lastFlushMS", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos));
+        metrics.put("maxFlushMS", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos));
+        metrics.put("avgFlushMS", flushes > 0 ? TimeUnit.NANOSECONDS.toMillis(totalFlushNanos / flushes) : 0);
+        return metrics;
+    }
+
+    /**
+     * @return the flush interval (in ms), i.e. the longest time an accepted event waits in the buffer
+     */
+    public long getFlushInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+    }
+
+    static class Event {
+        final int sequence;
+        final Object[] params;
+        /**
+         * when the event was added to the buffer (System.nanoTime)
+         */
+        final long offered;
+
+        Event(int sequence, Object[] params, long offered) {
+            this.sequence = sequence;
+            this.params = params;
+            this.offered = offered;
+        }
+    }
+
+    /**
+     * The results of offering a set of events
+     */
+    public static class OfferResult {
+        public int received;
+        public int accepted = 0;
+        /**
+         * the events which were not refused and are not valid (the number of the event in the set and the reason)
+         */
+        public List<String> invalid = new ArrayList<>();
+        /**
+         * the number of events at the end of the set which were not added because the buffer was full
+         */
+        public int refused = 0;
+
+        public OfferResult(int received) {
+            this.received = received;
+        }
+
+        @Override
+        public String toString() {
+            return "OfferResult: received=" + received + ", accepted=" + accepted + ", invalid=" + invalid.size() + ", refused=" + refused;
+        }
+    }
+}
@@ -15,21 +15,41 @@
 package org.apereo.lap.services.input;
 
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.handlers.IncrementalInputHandler;
 import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.InputMetrics;
+import org.apereo.lap.services.storage.InputFingerprintPersistentStorage;
 import org.apereo.lap.services.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * Handles the inputs by reading the data into the temporary data storage
@@ -52,7 +72,7 @@ public abstract class BaseInputHandlerService {
      * Defines the valid types of input the system can handle
      */
     public static enum InputType {
-        CSV, STORAGE;
+        CSV, STORAGE, DATABASE, HTTP, JSON;
         public static InputType fromString(String str) {
             if (StringUtils.equalsIgnoreCase(str, CSV.name())) {
                 return CSV;
@@ -69,6 +89,15 @@ public abstract class BaseInputHandlerService {
     	if (StringUtils.equalsIgnoreCase(type, BaseInputHandlerService.Type.CSV.name())) {
 			return new CSVInputHandlerService(configuration, storage, sourceConfiguration);
     	}
+    	if (StringUtils.equalsIgnoreCase(type, BaseInputHandlerService.Type.DATABASE.name())) {
+			return new DatabaseInputHandlerService(configuration, storage, sourceConfiguration);
+    	}
+    	if (StringUtils.equalsIgnoreCase(type, BaseInputHandlerService.Type.HTTP.name())) {
+			return new HttpInputHandlerService(configuration, storage, sourceConfiguration);
+    	}
+    	if (StringUtils.equalsIgnoreCase(type, BaseInputHandlerService.Type.JSON.name())) {
+			return new JSONInputHandlerService(configuration, storage, sourceConfiguration);
+    	}
 
     	 throw new IllegalArgumentException("collection type ("+type+") does not match the valid types: "+ ArrayUtils.toString(Type.values()));
     }
@@ -77,14 +106,30 @@ public abstract class BaseInputHandlerService {
      * Defines the data collection sets that
      */
     public static enum Type {
-        SAMPLECSV, CSV, DATABASE, HTTP
+        SAMPLECSV, CSV, DATABASE, HTTP, JSON
     }
 
     /**
      * Defines the data collection sets that
+     * NOTE: the dependencies MUST match the foreign keys in schema.sql (and the names MUST match the table names)
      */
     public enum InputCollection {
-        PERSONAL, COURSE, ENROLLMENT, GRADE, ACTIVITY;
+        PERSONAL, COURSE,
+        ENROLLMENT(PERSONAL, COURSE), GRADE(PERSONAL, COURSE), ACTIVITY(PERSONAL, COURSE);
+
+        private final InputCollection[] dependsOn;
+
+        InputCollection(InputCollection... dependsOn) {
+            this.dependsOn = dependsOn;
+        }
+
+        /**
+         * @return the collections which have to be loaded before this one can be loaded (empty if none)
+         */
+        public InputCollection[] getDependsOn() {
+            return dependsOn.clone();
+        }
+
         public static InputCollection fromString(String str) {
             return Enum.valueOf(InputCollection.class, str.toUpperCase());
         }
@@ -101,9 +146,20 @@ public abstract class BaseInputHandlerService {
      */
     protected Set<InputType> loadedInputTypes;
 
+    /**
+     * The collections which will be updated by loading only the data appended to the input since it was loaded
+     * (mapped to the fingerprint of the input when it was loaded)
+     */
+    protected Map<InputCollection, InputFingerprint> appendInputCollections;
+    /**
+     * the number of temp store restores when the loadedInputCollections were last checked
+     */
+    long loadedRestores = 0;
+
     public void init() {
         logger.info("INIT");
         loadedInputCollections = new ConcurrentHashMap<>();
+        appendInputCollections = new ConcurrentHashMap<>();
         //noinspection unchecked
         loadedInputTypes = Collections.newSetFromMap(new ConcurrentHashMap());
     }
@@ -120,6 +176,13 @@ public abstract class BaseInputHandlerService {
      */
     public abstract <T extends InputHandler> Map<String, T> findHandlers(Class<T> type);
 
+    /**
+     * @return all the handlers this service would use to load its input collections (empty if unknown)
+     */
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return Collections.emptyList();
+    }
+
     /**
      * Load the inputs by collection type needed for the pipeline
      * By default we should not reload the data or reset the store
@@ -129,7 +192,27 @@ public abstract class BaseInputHandlerService {
      * @return the set of all loaded collections (empty if none loaded)
      */
     public Set<InputCollection> loadInputCollections(boolean reloadData, boolean resetStore, Set<InputCollection> inputCollections) {
+        // the shared temp store cannot be restored from a snapshot during the load
+        boolean sharedTempStore = storage.getRunTempStore() == null;
+        if (sharedTempStore) {
+            storage.beginTempStoreUse();
+        }
+        try {
+            return loadInputCollections(reloadData, resetStore, inputCollections, storage.getTempStoreRestores());
+        } finally {
+            if (sharedTempStore) {
+                storage.endTempStoreUse();
+            }
+        }
+    }
+
+    private Set<InputCollection> loadInputCollections(boolean reloadData, boolean resetStore, Set<InputCollection> inputCollections, long restores) {
         Set<InputCollection> loaded = new HashSet<>();
+        if (restores != loadedRestores) {
+            // the temp store was replaced by a snapshot so what this service loaded before may not be there
+            loadedInputCollections.clear();
+            loadedRestores = restores;
+        }
         if (resetStore) {
             storage.resetTempStore();
         }
@@ -150,12 +233,10 @@ public abstract class BaseInputHandlerService {
                 icToLoad.addAll(inputCollections);
             }
             if (!reloadData) {
-                // only load if not already loaded
-                for (InputCollection ic : inputCollections) {
-                    if (loadedInputCollections.containsKey(ic)) {
-                        // remove the ones already loaded so they are not loaded again
-                        icToLoad.remove(ic);
-                    }
+                // only load if not already loaded (or the input changed since it was loaded)
+                icToLoad.removeAll(findUnchangedInputCollections(icToLoad));
+                if (!icToLoad.isEmpty()) {
+                    clearInputCollections(icToLoad);
                 }
             }
             // see what we need to load
@@ -163,14 +244,121 @@ public abstract class BaseInputHandlerService {
                 logger.info("No input collections to load (already loaded) from set: "+inputCollections);
             } else {
                 // for now we only have one source to load from, might need to handle more sources later
-                Map<InputCollection, InputHandler.ReadResult> loadedResults = loadInputCollection(icToLoad.toArray(new InputCollection[icToLoad.size()]));
-                loaded = loadedResults.keySet();
+                try {
+                    Map<InputCollection, InputHandler.ReadResult> loadedResults = loadInputCollection(icToLoad.toArray(new InputCollection[icToLoad.size()]));
+                    loaded = loadedResults.keySet();
+                } finally {
+                    appendInputCollections.clear();
+                }
                 logger.info("Input collections loaded ("+loaded+") of original: "+inputCollections);
             }
         }
         return loaded;
     }
 
+    /**
+     * Finds the collections which do not have to be loaded again because the input was already loaded into the temp store,
+     * the fingerprint of the input is checked against the one saved when it was loaded (so this works across restarts)
+     * and the temp store must still hold the rows which were loaded.
+     * Inputs which cannot be fingerprinted are only unchanged if they were already loaded by this service.
+     * Changed inputs which only had data appended are added to the appendInputCollections (if input.incremental is enabled).
+     *
+     * @param inputCollections the collections to check
+     * @return the collections which are unchanged or which cannot be loaded by this service (empty if none)
+     */
+    protected Set<InputCollection> findUnchangedInputCollections(Set<InputCollection> inputCollections) {
+        Set<InputCollection> unchanged = EnumSet.noneOf(InputCollection.class);
+        unchanged.addAll(inputCollections);
+        InputFingerprintPersistentStorage registry = storage.getInputFingerprintStorage();
+        for (InputHandler inputHandler : findInputHandlers()) {
+            InputCollection ic = inputHandler.getInputCollection();
+            if (!inputCollections.contains(ic)) {
+                continue;
+            }
+            InputFingerprint current = registry != null ? makeFingerprint(inputHandler) : null;
+            if (current == null) {
+                if (!loadedInputCollections.containsKey(ic)) {
+                    unchanged.remove(ic);
+                }
+            } else {
+                InputFingerprint loaded = registry.get(ic.name());
+                boolean intact = loaded != null && loaded.getRowCount() == storage.countTempTableRows(ic.name());
+                if (intact && current.matches(loaded)) {
+                    logger.info(ic+" input is unchanged since it was loaded at "+loaded.getLoadedAt()+" (not loading it again): "+current);
+                    loadedInputCollections.put(ic, inputHandler);
+                } else {
+                    unchanged.remove(ic);
+                    if (intact && isAppended(inputHandler, current, loaded)) {
+                        logger.info(ic+" input was appended to since it was loaded at "+loaded.getLoadedAt()+" (only loading the new data after line "
+                                +loaded.getLines()+", high water mark "+loaded.getHighWaterMark()+"): "+current);
+                        appendInputCollections.put(ic, loaded);
+                    }
+                }
+            }
+        }
+        return unchanged;
+    }
+
+    boolean isAppended(InputHandler inputHandler, InputFingerprint current, InputFingerprint loaded) {
+        if (!configuration.isInputIncremental() || !(inputHandler instanceof IncrementalInputHandler)
+                || !StringUtils.equals(current.getSource(), loaded.getSource()) || current.getSize() <= loaded.getSize()) {
+            return false;
+        }
+        try {
+            return ((IncrementalInputHandler) inputHandler).isAppendedTo(loaded);
+        } catch (Exception e) {
+            logger.warn("Unable to check if the "+inputHandler.getInputCollection()+" input was appended to (loading all of it): "+e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the existing data for collections which are about to be loaded (except the ones which will only have data appended),
+     * collections which reference them are also removed (and added to the set so they are loaded again).
+     * The hinted secondary indexes of the cleared tables are dropped too so they are loaded without maintaining them
+     * (the pipeline builds them again after the load), the tables which are not cleared keep their indexes
+     *
+     * @param inputCollections the collections which will be loaded (the referencing collections are added to this)
+     */
+    protected void clearInputCollections(Set<InputCollection> inputCollections) {
+        for (InputCollection ic : InputCollection.values()) { // parents come first
+            for (InputCollection dependency : ic.getDependsOn()) {
+                if (inputCollections.contains(dependency) && !appendInputCollections.containsKey(dependency)) {
+                    if (appendInputCollections.remove(ic) != null) {
+                        logger.info(ic+" input will be loaded completely since it references "+dependency);
+                    } else if (!inputCollections.contains(ic) && storage.countTempTableRows(ic.name()) > 0) {
+                        logger.info(ic+" input will be loaded again since it references "+dependency);
+                        inputCollections.add(ic);
+                    }
+                    break;
+                }
+            }
+        }
+        List<String> tables = new ArrayList<>();
+        InputCollection[] all = InputCollection.values();
+        for (int i = all.length - 1; i >= 0; i--) { // referencing tables first
+            if (inputCollections.contains(all[i]) && !appendInputCollections.containsKey(all[i])) {
+                tables.add(all[i].name());
+                loadedInputCollections.remove(all[i]);
+            }
+        }
+        storage.clearTempTables(tables.toArray(new String[tables.size()]));
+        storage.dropIndexes(tables.toArray(new String[tables.size()]));
+    }
+
+    /**
+     * @param inputHandler the handler for the input
+     * @return the fingerprint of the handler input OR null if it cannot be made
+     */
+    InputFingerprint makeFingerprint(InputHandler inputHandler) {
+        try {
+            return inputHandler.makeFingerprint(configuration.isInputFingerprintHash());
+        } catch (Exception e) {
+            logger.warn("Unable to detect changes in the "+inputHandler.getInputCollection()+" input (it will always be loaded): "+e);
+            return null;
+        }
+    }
+
     /**
      * @return the collection of all InputCollection types which have been loaded in this input handler
      */
@@ -191,4 +379,205 @@ public abstract class BaseInputHandlerService {
      * @return a map of all loaded collection types -> the results of the load
      */
     public abstract Map<InputCollection, InputHandler.ReadResult> loadInputCollection(InputCollection... inputCollections);
+
+    /**
+     * Checks the inputs without loading them (e.g. only the CSV headers are read) so problems are found before a long load,
+     * the inputs are checked at the same time (up to the input.load.threads limit)
+     * @param inputCollections the collections to check (empty indicates that all should be checked)
+     * @return a map of the checked collection types -> null if the input appears valid OR the reason it is not valid
+     */
+    public Map<InputCollection, String> preflightInputCollections(InputCollection... inputCollections) {
+        Map<InputCollection, String> checked = new EnumMap<>(InputCollection.class);
+        final Map<InputCollection, InputHandler> handlers = new EnumMap<>(InputCollection.class);
+        for (InputHandler inputHandler : findInputHandlers()) {
+            if (inputCollections == null || inputCollections.length == 0 || ArrayUtils.contains(inputCollections, inputHandler.getInputCollection())) {
+                handlers.put(inputHandler.getInputCollection(), inputHandler);
+            }
+        }
+        if (handlers.isEmpty()) {
+            return checked;
+        }
+        int threads = Math.max(1, Math.min(configuration.getInputLoadThreads(), handlers.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("lap-preflight-"));
+        try {
+            Map<InputCollection, Future<String>> futures = new EnumMap<>(InputCollection.class);
+            for (final InputHandler inputHandler : handlers.values()) {
+                futures.put(inputHandler.getInputCollection(), executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            inputHandler.verify();
+                            return null;
+                        } catch (RuntimeException e) {
+                            return e.getMessage();
+                        }
+                    }
+                }));
+            }
+            for (Map.Entry<InputCollection, Future<String>> entry : futures.entrySet()) {
+                String problem;
+                try {
+                    problem = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    problem = String.valueOf(e.getCause());
+                }
+                if (problem != null) {
+                    logger.warn(getType()+" "+entry.getKey()+" input is not valid: "+problem);
+                }
+                checked.put(entry.getKey(), problem);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while checking inputs: "+handlers.keySet(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info(getType()+" preflight checked "+checked.size()+" inputs: "+checked);
+        return checked;
+    }
+
+    /**
+     * Reads the data from the handlers into the temp DB.
+     * Each collection is started as soon as the collections it depends on (in this set of handlers) are loaded,
+     * independent collections are loaded at the same time (up to the input.load.threads limit)
+     *
+     * @param inputHandlers the verified handlers to load (only 1 per collection)
+     * @return a map of all loaded collection types -> the results of the load (in the order they finished loading)
+     * @throws RuntimeException if any handler fails to load (loads which have not started yet are cancelled)
+     */
+    protected Map<InputCollection, InputHandler.ReadResult> loadInputHandlers(Collection<? extends InputHandler> inputHandlers) {
+        assert inputHandlers != null;
+        Map<InputCollection, InputHandler.ReadResult> loaded = new LinkedHashMap<>();
+        if (inputHandlers.isEmpty()) {
+            return loaded;
+        }
+        long loadStartMS = System.currentTimeMillis();
+        Map<InputCollection, InputHandler> pending = new EnumMap<>(InputCollection.class);
+        for (InputHandler inputHandler : inputHandlers) {
+            pending.put(inputHandler.getInputCollection(), inputHandler);
+        }
+        Set<InputCollection> unfinished = EnumSet.copyOf(pending.keySet());
+        int threads = Math.max(1, Math.min(configuration.getInputLoadThreads(), pending.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("lap-input-"));
+        CompletionService<InputHandler.ReadResult> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<InputHandler.ReadResult>, InputHandler> running = new HashMap<>();
+        final InputFingerprintPersistentStorage registry = storage.getInputFingerprintStorage();
+        final Map<InputCollection, InputFingerprint> fingerprints = new ConcurrentHashMap<>();
+        // the loads of each pipeline run are kept apart from the other runs (which may overlap it)
+        final InputMetricsRegistry metricsRegistry = storage.getInputMetricsRegistry();
+        final String runId = metricsRegistry.getRunId();
+        try {
+            while (!unfinished.isEmpty()) {
+                // start everything which is not waiting on another collection
+                Iterator<InputHandler> iterator = pending.values().iterator();
+                while (iterator.hasNext()) {
+                    final InputHandler inputHandler = iterator.next();
+                    boolean ready = true;
+                    for (InputCollection dependency : inputHandler.getInputCollection().getDependsOn()) {
+                        if (unfinished.contains(dependency)) {
+                            ready = false;
+                            break;
+                        }
+                    }
+                    if (ready) {
+                        Future<InputHandler.ReadResult> future = completionService.submit(new Callable<InputHandler.ReadResult>() {
+                            @Override
+                            public InputHandler.ReadResult call() throws Exception {
+                                InputMetrics metrics = metricsRegistry.start(inputHandler, runId);
+                                try {
+                                    InputHandler.ReadResult result = load(inputHandler);
+                                    metrics.done(result);
+                                    result.metrics = metrics;
+                                    return result;
+                                } catch (Exception e) {
+                                    metrics.failed(e);
+                                    throw e;
+                                } finally {
+                                    inputHandler.setMetrics(null);
+                                }
+                            }
+
+                            InputHandler.ReadResult load(InputHandler inputHandler) {
+                                // fingerprint first so a change during the load is picked up next time
+                                InputFingerprint fingerprint = registry != null ? makeFingerprint(inputHandler) : null;
+                                InputFingerprint appendTo = appendInputCollections.get(inputHandler.getInputCollection());
+                                InputHandler.ReadResult result;
+                                if (appendTo != null && fingerprint != null && inputHandler instanceof IncrementalInputHandler) {
+                                    IncrementalInputHandler incremental = (IncrementalInputHandler) inputHandler;
+                                    result = incremental.readAppendedInputIntoDB(appendTo, fingerprint);
+                                    fingerprint.setLines(appendTo.getLines() + result.total);
+                                    // the mark of the records loaded before is kept unless the appended ones are later
+                                    Date mark = incremental.getHighWaterMark();
+                                    fingerprint.setHighWaterMark(mark == null || (appendTo.getHighWaterMark() != null && appendTo.getHighWaterMark().after(mark))
+                                            ? appendTo.getHighWaterMark() : mark);
+                                } else {
+                                    result = inputHandler.readInputIntoDB();
+                                    if (fingerprint != null) {
+                                        fingerprint.setLines(result.total);
+                                        if (inputHandler instanceof IncrementalInputHandler) {
+                                            fingerprint.setHighWaterMark(((IncrementalInputHandler) inputHandler).getHighWaterMark());
+                                        }
+                                    }
+                                }
+                                if (fingerprint != null) {
+                                    fingerprints.put(inputHandler.getInputCollection(), fingerprint);
+                                }
+                                return result;
+                            }
+                        });
+                        running.put(future, inputHandler);
+                        iterator.remove();
+                    }
+                }
+                // wait for the next one to finish
+                Future<InputHandler.ReadResult> done = completionService.take();
+                InputHandler inputHandler = running.remove(done);
+                InputCollection inputCollection = inputHandler.getInputCollection();
+                InputHandler.ReadResult result;
+                try {
+                    result = done.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to load "+inputCollection+" input: "+e.getCause(), e.getCause());
+                }
+                result.waitTimeMS = Math.max(0, result.startTimeMS - loadStartMS);
+                if (result.failures != null && !result.failures.isEmpty()) {
+                    logger.error(result.failures+" while parsing "+result.handledType+":\n"+ StringUtils.join(result.failures.getMessages(), "\n")+"\n");
+                }
+                logger.info(result.loaded+" lines from "+result.handledType+" (out of "+result.total+" lines) inserted into temp DB (with "+result.failed+" failures): "+result);
+                loaded.put(inputCollection, result);
+                loadedInputCollections.put(inputCollection, inputHandler);
+                InputFingerprint fingerprint = fingerprints.get(inputCollection);
+                if (fingerprint != null) {
+                    // rows added by other writers (e.g. activity events) are either in the count or added to the saved fingerprint
+                    storage.beginInputFingerprintUpdate();
+                    try {
+                        fingerprint.setRowCount(storage.countTempTableRows(inputCollection.name()));
+                        fingerprint.setLoadedAt(new Date());
+                        registry.save(fingerprint);
+                    } finally {
+                        storage.endInputFingerprintUpdate();
+                    }
+                }
+                unfinished.remove(inputCollection);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading inputs: "+unfinished, e);
+        } finally {
+            executor.shutdownNow();
+            // the cached counts and statistics of the loaded tables (and the rejects) are out of date now
+            List<String> tables = new ArrayList<>();
+            for (InputHandler inputHandler : inputHandlers) {
+                tables.add(inputHandler.getInputCollection().name());
+            }
+            tables.add("INPUT_REJECTS");
+            storage.getCatalog().invalidateData(tables.toArray(new String[tables.size()]));
+        }
+        long loadTotalTimeMS = System.currentTimeMillis() - loadStartMS;
+        for (InputHandler.ReadResult result : loaded.values()) {
+            result.loadTotalTimeMS = loadTotalTimeMS;
+        }
+        logger.info("Loaded "+loaded.size()+" input collections "+loaded.keySet()+" in "+String.format("%.2f", loadTotalTimeMS/1000f)+" secs (using "+threads+" threads)");
+        return loaded;
+    }
 }
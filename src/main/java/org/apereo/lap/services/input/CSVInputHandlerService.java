@@ -16,8 +16,6 @@ package org.apereo.lap.services.input;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,7 +23,6 @@ import java.util.Map.Entry;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.handlers.InputHandler;
 import org.apereo.lap.services.input.handlers.csv.ActivityCSVInputHandler;
@@ -129,6 +126,11 @@ public class CSVInputHandlerService extends BaseInputHandlerService {
         return handlers;
     }
 
+    @Override
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return findHandlers(CSVInputHandler.class).values();
+    }
+
     /**
      * Loads and verifies the standard CSVs from the inputs directory
      * @param inputCollections all collections to load (empty indicates that all should be loaded, null indicates none should be loaded)
@@ -156,32 +158,8 @@ public class CSVInputHandlerService extends BaseInputHandlerService {
                 }
                 logger.info("Loaded "+csvInputHandlers.size()+" CSV InputHandlers: "+csvInputHandlerMap.keySet());
 
-                // First we verify the CSV files
-                for (CSVInputHandler csvInputHandler : csvInputHandlers) {
-                    csvInputHandler.readCSV(true); // force it true just in case
-                    logger.info(csvInputHandler.getPath()+" file and header appear valid");
-                }
-
-                List<CSVInputHandler> csvInputList = new ArrayList<>(csvInputHandlers);
-
-                Comparator<CSVInputHandler> comparator = new Comparator<CSVInputHandler>() {
-                    public int compare(CSVInputHandler c1, CSVInputHandler c2) {
-                        return c1.getOrder() < c2.getOrder() ? -1 : 1;
-                    }
-                };
-
-                Collections.sort(csvInputList, comparator); // use the comparator as much as u wan
-
-                // Next we load the data into the temp DB
-                for (CSVInputHandler csvInputHandler : csvInputList) {
-                    InputHandler.ReadResult result = csvInputHandler.readInputIntoDB();
-                    if (!result.failures.isEmpty()) {
-                        logger.error(result.failures.size()+" failures while parsing "+result.handledType+":\n"+ StringUtils.join(result.failures, "\n")+"\n");
-                    }
-                    logger.info(result.loaded+" lines from "+result.handledType+" (out of "+result.total+" lines) inserted into temp DB (with "+result.failed+" failures): "+result);
-                    loaded.put(csvInputHandler.getInputCollection(), result);
-                    loadedInputCollections.put(csvInputHandler.getInputCollection(), csvInputHandler);
-                }
+                // Load the data into the temp DB (each input is opened, checked and read once, parents before the collections which reference them)
+                loaded = loadInputHandlers(csvInputHandlers);
 
                 logger.info("Loaded CSV files: "+loadedInputCollections.keySet());
             } catch (Exception e) {
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.db.DatabaseInputHandler;
+import org.apereo.lap.services.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * Handles the inputs by reading the data from a source database (e.g. the data warehouse) into the temporary data storage
+ * Each input collection is selected by a query which returns the same columns as the CSV extract for that collection
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class DatabaseInputHandlerService extends BaseInputHandlerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseInputHandlerService.class);
+
+    public DatabaseInputHandlerService(ConfigurationService configuration, StorageService storage, HierarchicalConfiguration xmlConfig)
+    {
+        super(xmlConfig);
+        this.configuration = configuration;
+        this.storage = storage;
+        this.init(xmlConfig);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.DATABASE;
+    }
+
+    private DriverManagerDataSource dataSource;
+    private int fetchSize;
+    /**
+     * the source query for each collection (in the order they were configured)
+     */
+    private Map<InputCollection, String> queries = new LinkedHashMap<>();
+
+    public void init(HierarchicalConfiguration xmlConfig) {
+        super.init();
+
+        String url = xmlConfig.getString("params.url");
+        if (StringUtils.isBlank(url)) {
+            throw new IllegalArgumentException("DATABASE input source must have a params.url (the JDBC url of the source database)");
+        }
+        dataSource = new DriverManagerDataSource(url, xmlConfig.getString("params.username"), xmlConfig.getString("params.password"));
+        String driver = xmlConfig.getString("params.driver");
+        if (StringUtils.isNotBlank(driver)) {
+            dataSource.setDriverClassName(driver);
+        }
+        fetchSize = xmlConfig.getInt("params.fetchSize", configuration.getInputDatabaseFetchSize());
+
+        // load the lists
+        // queries
+        List<HierarchicalConfiguration> queryFields = xmlConfig.configurationsAt("params.queries.query");
+        for (HierarchicalConfiguration field : queryFields) {
+            try {
+                InputCollection ic = InputCollection.fromString(field.getString("type"));
+                queries.put(ic, makeQuery(ic, field));
+            } catch (Exception e) {
+                // skip this input and warn
+                logger.warn("Unable to load input query ("+field.getString("type")+") (skipping it): "+e);
+            }
+        }
+        logger.info("DATABASE input source "+url+" has queries for: "+queries.keySet());
+    }
+
+    /**
+     * @param ic the collection
+     * @param field the query config (sql OR table, defaults to selecting everything from the table with the collection name)
+     * @return the query for the collection
+     */
+    static String makeQuery(InputCollection ic, HierarchicalConfiguration field) {
+        // the config splits values on commas so the parts of the SQL have to be put back together
+        String sql = StringUtils.join(field.getStringArray("sql"), ", ");
+        if (StringUtils.isNotBlank(sql)) {
+            return sql.trim();
+        }
+        return "SELECT * FROM "+StringUtils.defaultIfBlank(field.getString("table"), ic.name());
+    }
+
+    /**
+     * @param type the class of input handlers we are looking for
+     * @param <T> InputHandler type (e.g. DatabaseInputHandler)
+     * @return all handlers for a given type mapped by their unique handled type of data OR empty map if there are none
+     */
+    public <T extends InputHandler> Map<String, T> findHandlers(Class<T> type) {
+        assert type != null;
+        Map<String, T> handlers = new HashMap<>(); // empty set by default
+        if (type.isAssignableFrom(DatabaseInputHandler.class)) {
+            for (Map.Entry<InputCollection, String> query : queries.entrySet()) {
+                // the CSV handler defines the columns and the validation for the collection
+                BaseCSVInputHandler converter = BaseCSVInputHandler.makeCSVHandler(query.getKey(), configuration, storage.getTempJdbcTemplate());
+                DatabaseInputHandler handler = new DatabaseInputHandler(configuration, storage.getTempJdbcTemplate(),
+                        converter, dataSource, query.getValue(), fetchSize);
+                //noinspection unchecked
+                handlers.put(query.getKey().name(), (T) handler);
+            }
+        } // add other types here
+        return handlers;
+    }
+
+    @Override
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return findHandlers(DatabaseInputHandler.class).values();
+    }
+
+    /**
+     * Verifies the source queries and loads the collections from the source database
+     * @param inputCollections all collections to load (empty indicates that all should be loaded, null indicates none should be loaded)
+     * @return a map of all loaded collection types -> the results of the load
+     */
+    public Map<InputCollection, InputHandler.ReadResult> loadInputCollection(InputCollection... inputCollections) {
+        Map<InputCollection, InputHandler.ReadResult> loaded = new HashMap<>();
+        if (inputCollections == null) {
+            logger.info("Not loading any database queries (empty inputCollections param)");
+        } else {
+            logger.info("load database queries from: "+dataSource.getUrl());
+            try {
+                Collection<DatabaseInputHandler> dbInputHandlers = new ArrayList<>();
+                for (DatabaseInputHandler handler : findHandlers(DatabaseInputHandler.class).values()) {
+                    // null or empty means include them all
+                    if (inputCollections.length == 0 || ArrayUtils.contains(inputCollections, handler.getInputCollection())) {
+                        dbInputHandlers.add(handler);
+                    }
+                }
+                logger.info("Loaded "+dbInputHandlers.size()+" DATABASE InputHandlers: "+dbInputHandlers);
+
+                // Load the data into the temp DB (each input is opened, checked and read once, parents before the collections which reference them)
+                loaded = loadInputHandlers(dbInputHandlers);
+
+                logger.info("Loaded database queries: "+loadedInputCollections.keySet());
+            } catch (Exception e) {
+                String msg = "Failed to load database queries: "+e;
+                logger.error(msg);
+                throw new RuntimeException(msg, e);
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.http.HttpInputHandler;
+import org.apereo.lap.services.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the inputs by downloading the CSV extracts from a web server into the temporary data storage
+ * Unchanged extracts (conditional HEAD returns 304) are not downloaded or loaded again
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class HttpInputHandlerService extends BaseInputHandlerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpInputHandlerService.class);
+
+    public HttpInputHandlerService(ConfigurationService configuration, StorageService storage, HierarchicalConfiguration xmlConfig)
+    {
+        super(xmlConfig);
+        this.configuration = configuration;
+        this.storage = storage;
+        this.init(xmlConfig);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.HTTP;
+    }
+
+    private String username;
+    private String password;
+    private int timeoutMS;
+    /**
+     * the extract URL for each collection (in the order they were configured)
+     */
+    private Map<InputCollection, URL> urls = new LinkedHashMap<>();
+
+    public void init(HierarchicalConfiguration xmlConfig) {
+        super.init();
+
+        username = xmlConfig.getString("params.username");
+        password = xmlConfig.getString("params.password");
+        timeoutMS = xmlConfig.getInt("params.timeout", configuration.getInputHttpTimeout());
+        URL baseUrl = null;
+        String base = xmlConfig.getString("params.baseUrl");
+        if (StringUtils.isNotBlank(base)) {
+            try {
+                baseUrl = new URL(StringUtils.removeEnd(base, "/") + "/");
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("HTTP input source params.baseUrl ("+base+") is invalid: "+e, e);
+            }
+        }
+
+        // load the lists
+        // sources
+        List<HierarchicalConfiguration> sourceFields = xmlConfig.configurationsAt("params.files.file");
+        for (HierarchicalConfiguration field : sourceFields) {
+            try {
+                InputCollection ic = InputCollection.fromString(field.getString("type"));
+                // relative urls are resolved against the baseUrl
+                urls.put(ic, baseUrl != null ? new URL(baseUrl, field.getString("url")) : new URL(field.getString("url")));
+            } catch (Exception e) {
+                // skip this input and warn
+                logger.warn("Unable to load input field ("+field.getString("type")+") (skipping it): "+e);
+            }
+        }
+        logger.info("HTTP input source has urls for: "+urls.keySet());
+    }
+
+    /**
+     * @param type the class of input handlers we are looking for
+     * @param <T> InputHandler type (e.g. HttpInputHandler)
+     * @return all handlers for a given type mapped by their unique handled type of data OR empty map if there are none
+     */
+    public <T extends InputHandler> Map<String, T> findHandlers(Class<T> type) {
+        assert type != null;
+        Map<String, T> handlers = new HashMap<>(); // empty set by default
+        if (type.isAssignableFrom(HttpInputHandler.class)) {
+            for (Map.Entry<InputCollection, URL> url : urls.entrySet()) {
+                // the CSV handler defines the columns and the validation for the collection
+                BaseCSVInputHandler converter = BaseCSVInputHandler.makeCSVHandler(url.getKey(), configuration, storage.getTempJdbcTemplate());
+                HttpInputHandler handler = new HttpInputHandler(storage.getTempJdbcTemplate(), converter, url.getValue(),
+                        username, password, timeoutMS, storage.getInputFingerprintStorage());
+                //noinspection unchecked
+                handlers.put(url.getValue().toString(), (T) handler);
+            }
+        } // add other types here
+        return handlers;
+    }
+
+    @Override
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return findHandlers(HttpInputHandler.class).values();
+    }
+
+    /**
+     * Downloads and loads the CSV extracts (independent collections are downloaded at the same time, up to the input.load.threads limit)
+     * @param inputCollections all collections to load (empty indicates that all should be loaded, null indicates none should be loaded)
+     * @return a map of all loaded collection types -> the results of the load
+     */
+    public Map<InputCollection, InputHandler.ReadResult> loadInputCollection(InputCollection... inputCollections) {
+        Map<InputCollection, InputHandler.ReadResult> loaded = new HashMap<>();
+        if (inputCollections == null) {
+            logger.info("Not loading any HTTP extracts (empty inputCollections param)");
+        } else {
+            try {
+                Collection<HttpInputHandler> httpInputHandlers = new ArrayList<>();
+                for (HttpInputHandler handler : findHandlers(HttpInputHandler.class).values()) {
+                    // null or empty means include them all
+                    if (inputCollections.length == 0 || ArrayUtils.contains(inputCollections, handler.getInputCollection())) {
+                        httpInputHandlers.add(handler);
+                    }
+                }
+                logger.info("Loaded "+httpInputHandlers.size()+" HTTP InputHandlers: "+httpInputHandlers);
+
+                // the extracts are verified (header) as they are downloaded and loaded into the temp DB (parents before the collections which reference them)
+                loaded = loadInputHandlers(httpInputHandlers);
+
+                logger.info("Loaded HTTP extracts: "+loadedInputCollections.keySet());
+            } catch (Exception e) {
+                String msg = "Failed to load HTTP extract(s): "+e;
+                logger.error(msg);
+                throw new RuntimeException(msg, e);
+            }
+        }
+        return loaded;
+    }
+}
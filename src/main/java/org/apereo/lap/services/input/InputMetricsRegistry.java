@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.InputMetrics;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the live metrics of the input loads which are running and the most recent finished loads
+ * (for all the input handler services) so the throughput can be checked while a load is running
+ * and stored with the pipeline run.
+ *
+ * NOTE: the input handler services are created from the pipeline configs (not by spring) so they get this from the StorageService
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+@Component
+public class InputMetricsRegistry {
+
+    /**
+     * the number of finished loads which are kept
+     */
+    static final int MAX_FINISHED = 100;
+
+    /**
+     * the loads in the order they started
+     */
+    final List<InputMetrics> loads = new ArrayList<>();
+
+    /**
+     * the id of the pipeline run on this thread (and the threads it starts) OR null if no run is active
+     */
+    final InheritableThreadLocal<String> runId = new InheritableThreadLocal<>();
+
+    /**
+     * Marks the loads started on this thread (and any threads it starts) as part of a pipeline run
+     * until {@link #endRun()} is called, so the loads of overlapping runs are kept apart (for both shared and isolated temp stores)
+     * @param runId the unique id of the run
+     */
+    public void beginRun(String runId) {
+        assert StringUtils.isNotBlank(runId);
+        this.runId.set(runId);
+    }
+
+    /**
+     * Ends the pipeline run on this thread (see {@link #beginRun(String)})
+     */
+    public void endRun() {
+        this.runId.remove();
+    }
+
+    /**
+     * @return the id of the pipeline run on this thread OR null if the loads on this thread are not part of a run
+     */
+    public String getRunId() {
+        return runId.get();
+    }
+
+    /**
+     * Starts measuring a load
+     * @param inputHandler the handler which is about to load its input (the metrics are set on it)
+     * @param runId the id of the pipeline run the load is for OR null if it is not part of a run
+     * @return the live metrics for the load
+     */
+    public synchronized InputMetrics start(InputHandler inputHandler, String runId) {
+        assert inputHandler != null;
+        InputMetrics metrics = new InputMetrics(inputHandler.getInputCollection().name(), inputHandler.getHandledType().name(), inputHandler.toString(), runId);
+        inputHandler.setMetrics(metrics);
+        loads.add(metrics);
+        // drop the oldest finished loads
+        int finished = 0;
+        for (InputMetrics load : loads) {
+            if (load.getState() != InputMetrics.State.LOADING) {
+                finished++;
+            }
+        }
+        Iterator<InputMetrics> iterator = loads.iterator();
+        while (finished > MAX_FINISHED && iterator.hasNext()) {
+            if (iterator.next().getState() != InputMetrics.State.LOADING) {
+                iterator.remove();
+                finished--;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the loads which are still running (oldest first)
+     */
+    public synchronized List<InputMetrics> getActive() {
+        List<InputMetrics> active = new ArrayList<>();
+        for (InputMetrics load : loads) {
+            if (load.getState() == InputMetrics.State.LOADING) {
+                active.add(load);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * @param startMS the time (ms) to start from
+     * @param runId the id of the pipeline run OR null for the loads which were not part of a run
+     * @return all the loads (running or finished) for the run which started at or after the time (oldest first)
+     */
+    public synchronized List<InputMetrics> findStartedSince(long startMS, String runId) {
+        List<InputMetrics> started = new ArrayList<>();
+        for (InputMetrics load : loads) {
+            if (load.getStartMS() >= startMS && StringUtils.equals(runId, load.getRunId())) {
+                started.add(load);
+            }
+        }
+        return started;
+    }
+
+    /**
+     * @return all the loads which are kept (oldest first)
+     */
+    public synchronized List<InputMetrics> getLoads() {
+        return new ArrayList<>(loads);
+    }
+
+    /**
+     * Makes the summary of a set of loads (e.g. the loads of a pipeline run)
+     * @param loads the loads to summarize
+     * @return the totals and the metrics for each load (rates are for the time from the first start to the last end)
+     */
+    public static Map<String, Object> summarize(Collection<InputMetrics> loads) {
+        long records = 0;
+        long failed = 0;
+        long bytes = 0;
+        long parseMS = 0;
+        long insertMS = 0;
+        long startMS = Long.MAX_VALUE;
+        long endMS = 0;
+        List<Map<String, Object>> collections = new ArrayList<>();
+        for (InputMetrics load : loads) {
+            records += load.getRecords();
+            failed += load.getFailed();
+            bytes += load.getBytes();
+            parseMS += load.getParseTimeMS();
+            insertMS += load.getInsertTimeMS();
+            startMS = Math.min(startMS, load.getStartMS());
+            endMS = Math.max(endMS, load.getStartMS() + load.getElapsedMS());
+            collections.add(load.toMap());
+        }
+        long elapsedMS = loads.isEmpty() ? 0 : endMS - startMS;
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("loads", loads.size());
+        summary.put("elapsedMS", elapsedMS);
+        summary.put("records", records);
+        summary.put("failed", failed);
+        summary.put("bytes", bytes);
+        summary.put("rowsPerSec", elapsedMS > 0 ? Math.round(records * 1000d / elapsedMS) : 0);
+        summary.put("bytesPerSec", elapsedMS > 0 ? Math.round(bytes * 1000d / elapsedMS) : 0);
+        summary.put("parseMS", parseMS);
+        summary.put("insertMS", insertMS);
+        summary.put("failureRate", records > 0 ? Math.round(failed * 10000d / records) / 10000d : 0d);
+        summary.put("collections", collections);
+        return summary;
+    }
+}
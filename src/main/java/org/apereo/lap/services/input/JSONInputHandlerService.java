@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.lang.ArrayUtils;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.json.JSONInputHandler;
+import org.apereo.lap.services.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the inputs by reading JSON (or NDJSON) files into the temporary data storage
+ * Each file holds the records for one input collection with the same fields as the CSV extract for that collection
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class JSONInputHandlerService extends BaseInputHandlerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(JSONInputHandlerService.class);
+
+    public JSONInputHandlerService(ConfigurationService configuration, StorageService storage, HierarchicalConfiguration xmlConfig)
+    {
+        super(xmlConfig);
+        this.configuration = configuration;
+        this.storage = storage;
+        this.init(xmlConfig);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.JSON;
+    }
+
+    /**
+     * the file path for each collection (in the order they were configured)
+     */
+    private Map<InputCollection, String> files = new LinkedHashMap<>();
+
+    public void init(HierarchicalConfiguration xmlConfig) {
+        super.init();
+
+        // load the lists
+        // sources
+        List<HierarchicalConfiguration> sourceFields = xmlConfig.configurationsAt("params.files.file");
+        for (HierarchicalConfiguration field : sourceFields) {
+            try {
+                files.put(InputCollection.fromString(field.getString("type")), field.getString("path"));
+            } catch (Exception e) {
+                // skip this input and warn
+                logger.warn("Unable to load input field ("+field.getString("type")+") (skipping it): "+e);
+            }
+        }
+    }
+
+    /**
+     * @param type the class of input handlers we are looking for
+     * @param <T> InputHandler type (e.g. JSONInputHandler)
+     * @return all handlers for a given type mapped by their unique handled type of data OR empty map if there are none
+     */
+    public <T extends InputHandler> Map<String, T> findHandlers(Class<T> type) {
+        assert type != null;
+        Map<String, T> handlers = new HashMap<>(); // empty set by default
+        if (type.isAssignableFrom(JSONInputHandler.class)) {
+            for (Map.Entry<InputCollection, String> file : files.entrySet()) {
+                // the CSV handler defines the fields and the validation for the collection
+                BaseCSVInputHandler converter = BaseCSVInputHandler.makeCSVHandler(file.getKey(), configuration, storage.getTempJdbcTemplate());
+                JSONInputHandler handler = new JSONInputHandler(configuration, storage.getTempJdbcTemplate(), converter);
+                handler.setPath(file.getValue());
+                //noinspection unchecked
+                handlers.put(file.getValue(), (T) handler);
+            }
+        } // add other types here
+        return handlers;
+    }
+
+    @Override
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return findHandlers(JSONInputHandler.class).values();
+    }
+
+    /**
+     * Loads and verifies the JSON files
+     * @param inputCollections all collections to load (empty indicates that all should be loaded, null indicates none should be loaded)
+     * @return a map of all loaded collection types -> the results of the load
+     */
+    public Map<InputCollection, InputHandler.ReadResult> loadInputCollection(InputCollection... inputCollections) {
+        Map<InputCollection, InputHandler.ReadResult> loaded = new HashMap<>();
+        if (inputCollections == null) {
+            logger.info("Not loading any JSON files (empty inputCollections param)");
+        } else {
+            logger.info("load JSON files from: "+configuration.getApplicationHomeDirectory());
+            try {
+                Collection<JSONInputHandler> jsonInputHandlers = new ArrayList<>();
+                for (JSONInputHandler handler : findHandlers(JSONInputHandler.class).values()) {
+                    // null or empty means include them all
+                    if (inputCollections.length == 0 || ArrayUtils.contains(inputCollections, handler.getInputCollection())) {
+                        jsonInputHandlers.add(handler);
+                    }
+                }
+                logger.info("Loaded "+jsonInputHandlers.size()+" JSON InputHandlers: "+jsonInputHandlers);
+
+                // Load the data into the temp DB (each input is opened, checked and read once, parents before the collections which reference them)
+                loaded = loadInputHandlers(jsonInputHandlers);
+
+                logger.info("Loaded JSON files: "+loadedInputCollections.keySet());
+            } catch (Exception e) {
+                String msg = "Failed to load JSON file(s): "+e;
+                logger.error(msg);
+                throw new RuntimeException(msg, e);
+            }
+        }
+        return loaded;
+    }
+}
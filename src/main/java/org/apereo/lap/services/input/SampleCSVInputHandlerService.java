@@ -21,7 +21,6 @@ import java.util.Map;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.handlers.InputHandler;
 import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
@@ -76,6 +75,11 @@ public class SampleCSVInputHandlerService extends BaseInputHandlerService {
         return handlers;
     }
 
+    @Override
+    protected Collection<? extends InputHandler> findInputHandlers() {
+        return findHandlers(CSVInputHandler.class).values();
+    }
+
     /**
      * Loads and verifies the standard CSVs from the inputs directory
      * @param inputCollections all collections to load (empty indicates that all should be loaded, null indicates none should be loaded)
@@ -103,21 +107,8 @@ public class SampleCSVInputHandlerService extends BaseInputHandlerService {
                 }
                 logger.info("Loaded "+csvInputHandlers.size()+" CSV InputHandlers: "+csvInputHandlerMap.keySet());
 
-                // First we verify the CSV files
-                for (CSVInputHandler csvInputHandler : csvInputHandlers) {
-                    csvInputHandler.readCSV(true); // force it true just in case
-                    logger.info(csvInputHandler.getPath()+" file and header appear valid");
-                }
-                // Next we load the data into the temp DB
-                for (CSVInputHandler csvInputHandler : csvInputHandlers) {
-                    InputHandler.ReadResult result = csvInputHandler.readInputIntoDB();
-                    if (!result.failures.isEmpty()) {
-                        logger.error(result.failures.size()+" failures while parsing "+result.handledType+":\n"+ StringUtils.join(result.failures, "\n")+"\n");
-                    }
-                    logger.info(result.loaded+" lines from "+result.handledType+" (out of "+result.total+" lines) inserted into temp DB (with "+result.failed+" failures): "+result);
-                    loaded.put(csvInputHandler.getInputCollection(), result);
-                    loadedInputCollections.put(csvInputHandler.getInputCollection(), csvInputHandler);
-                }
+                // Load the data into the temp DB (each input is opened, checked and read once, parents before the collections which reference them)
+                loaded = loadInputHandlers(csvInputHandlers);
 
                 logger.info("Loaded CSV files: "+loadedInputCollections.keySet());
             } catch (Exception e) {
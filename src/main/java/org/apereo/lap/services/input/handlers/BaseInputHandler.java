@@ -14,13 +14,20 @@
  *******************************************************************************/
 package org.apereo.lap.services.input.handlers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
-import java.text.ParseException;
-import java.util.Date;
 
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.time.DateUtils;
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 /**
@@ -31,6 +38,8 @@ import org.springframework.jdbc.core.JdbcTemplate;
 public abstract class BaseInputHandler implements InputHandler {
 
     JdbcTemplate jdbc;
+    volatile InputMetrics metrics;
+
     public BaseInputHandler(JdbcTemplate jdbcTemplate) {
         assert jdbcTemplate != null;
         this.jdbc = jdbcTemplate;
@@ -41,16 +50,179 @@ public abstract class BaseInputHandler implements InputHandler {
         return jdbc;
     }
 
+    @Override
+    public InputFingerprint makeFingerprint(boolean hash) {
+        return null; // changes cannot be detected by default
+    }
+
+    @Override
+    public InputMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void setMetrics(InputMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param in the input data stream
+     * @return the stream which counts the bytes read into the live metrics (the same stream if the load is not measured)
+     */
+    public InputStream countBytes(InputStream in) {
+        InputMetrics current = metrics;
+        return current != null ? current.count(in) : in;
+    }
+
     // UTILITIES
 
+    /**
+     * @param configuration current system config
+     * @param inputCollection the collection being read
+     * @param inputType the type of input being read (used in the failure messages)
+     * @param append if true, add to the reject file from the last read (otherwise it is replaced)
+     * @return the failures for a read of the input (rejects go to {collection}-rejects.csv in the outputs dir if enabled)
+     */
+    public static InputFailures makeInputFailures(ConfigurationService configuration, BaseInputHandlerService.InputCollection inputCollection,
+                                                  BaseInputHandlerService.InputType inputType, boolean append) {
+        Path rejectFile = null;
+        if (configuration.isInputRejectFile() && configuration.getOutputDirectory() != null) {
+            rejectFile = configuration.getOutputDirectory().resolve(inputCollection.name().toLowerCase()+"-rejects.csv");
+        }
+        return new InputFailures(inputType.name(), configuration.getInputFailureSampleSize(), rejectFile, append);
+    }
+
+    /**
+     * @param configuration current system config
+     * @param failures the failures to record failed rows into
+     * @return the batch writer for the rows of this input (which skips the rows already loaded if input.dedup is enabled and updates the live metrics)
+     */
+    public BatchInserter makeBatchInserter(ConfigurationService configuration, InputFailures failures) {
+        BatchInserter inserter = new BatchInserter(getTempDatabase(), makeInsertSQL(), makeInsertSQLParams(), configuration.getInputBatchSize(), getHandledType().name(), failures);
+        if (configuration.isInputDedup()) {
+            inserter.setDuplicateFilter(DuplicateFilter.forCollection(getInputCollection(), getTempDatabase(), configuration.getInputDedupExpected()));
+        }
+        InputMetrics current = metrics;
+        if (current != null) {
+            current.setFailures(failures);
+            inserter.setMetrics(current);
+        }
+        return inserter;
+    }
+
+    /**
+     * Size of the start and end of a file which are hashed to check that it was only appended to
+     */
+    static final int EDGE_BYTES = 4096;
+
+    /**
+     * Make the fingerprint of an input file
+     * @param inputCollection the collection loaded from the file
+     * @param file the input file
+     * @param hash if true, include the SHA-1 hash of the file content (reads the whole file)
+     * @return the fingerprint for the file
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    public static InputFingerprint makeFileFingerprint(BaseInputHandlerService.InputCollection inputCollection, Path file, boolean hash) {
+        assert inputCollection != null;
+        assert file != null;
+        InputFingerprint inputFingerprint = new InputFingerprint();
+        inputFingerprint.setCollection(inputCollection.name());
+        inputFingerprint.setSource(file.toAbsolutePath().normalize().toString());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            inputFingerprint.setSize(size);
+            inputFingerprint.setLastModified(Files.getLastModifiedTime(file).toMillis());
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (size > 0 && channel.read(last, size - 1) == 1 && (last.get(0) == '\n' || last.get(0) == '\r')) {
+                // only complete records so anything added later starts a new record
+                inputFingerprint.setEdgeHash(makeFileHash(channel, size, true));
+            }
+            if (hash) {
+                inputFingerprint.setHash(makeFileHash(channel, size, false));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to fingerprint "+file+": "+e, e);
+        }
+        return inputFingerprint;
+    }
+
+    /**
+     * Checks if the file is the file which was loaded with more data appended to it
+     * (the part which was loaded has to be unchanged, checked using the hash or the edge hash from the loaded fingerprint)
+     * @param file the input file
+     * @param loaded the fingerprint of the file when it was loaded
+     * @return true if the file only has data appended since it was loaded
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    public static boolean isFileAppendedTo(Path file, InputFingerprint loaded) {
+        assert file != null;
+        assert loaded != null;
+        if (loaded.getEdgeHash() == null) {
+            return false; // last record was incomplete
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() <= loaded.getSize()) {
+                return false;
+            }
+            if (loaded.getHash() != null) {
+                return loaded.getHash().equals(makeFileHash(channel, loaded.getSize(), false));
+            }
+            return loaded.getEdgeHash().equals(makeFileHash(channel, loaded.getSize(), true));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to check "+file+": "+e, e);
+        }
+    }
+
+    /**
+     * @param channel the open file
+     * @param end hash the file up to this position
+     * @param edges if true, only hash the first and last EDGE_BYTES (before end)
+     * @return the SHA-1 hash of the file content (as hex)
+     */
+    static String makeFileHash(FileChannel channel, long end, boolean edges) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available: "+e, e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        if (edges && end > EDGE_BYTES * 2) {
+            digestRange(channel, 0, EDGE_BYTES, digest, buffer);
+            digestRange(channel, end - EDGE_BYTES, end, digest, buffer);
+        } else {
+            digestRange(channel, 0, end, digest, buffer);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void digestRange(FileChannel channel, long start, long end, MessageDigest digest, ByteBuffer buffer) throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("file is shorter than expected ("+position+" < "+end+")");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
     /**
      * Trim all the values in this array to null if they are empty
      * @param strings an array of strings
+     * @see FieldDecoder#trimToNull(String[])
      */
     public static void trimStringArrayToNull(String[] strings) {
-        for (int i = 0; i < strings.length; i++) {
-            strings[i] = StringUtils.trimToNull(strings[i]);
-        }
+        FieldDecoder.trimToNull(strings);
     }
 
     /**
@@ -62,102 +234,38 @@ public abstract class BaseInputHandler implements InputHandler {
      * @param name the name of the string (the field), for error messages
      * @return the integer OR null (if allowed)
      * @throws java.lang.IllegalArgumentException is the string fails validation
+     * @see FieldDecoder#decodeInt(String, int, int, boolean, String)
      */
     public static Integer parseInt(String string, Integer min, Integer max, boolean cannotBeBlank, String name) {
-        boolean blank = StringUtils.isBlank(string);
-        if (cannotBeBlank && blank) {
-            throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
-        } else if (blank) {
-            // can be blank, so return null
-            return null;
-        }
-        Integer num;
-        try {
-            num = Integer.parseInt(string);
-            if (min != null && num < min) {
-                throw new IllegalArgumentException(name+" integer ("+num+") is less than the minimum ("+min+")");
-            } else if (max != null && num > max) {
-                throw new IllegalArgumentException(name+" integer ("+num+") is greater than the maximum ("+max+")");
-            }
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException(name+" ("+string+") must be an integer: "+e);
-        }
-        return num;
+        return FieldDecoder.get().decodeInt(string, min != null ? min : Integer.MIN_VALUE, max != null ? max : Integer.MAX_VALUE, cannotBeBlank, name);
     }
 
+    /**
+     * @see FieldDecoder#decodeFloat(String, float, float, boolean, String)
+     */
     public static Float parseFloat(String string, Float min, Float max, boolean cannotBeBlank, String name) {
-        boolean blank = StringUtils.isBlank(string);
-        if (cannotBeBlank && blank) {
-            throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
-        } else if (blank) {
-            // can be blank, so return null
-            return null;
-        }
-        Float num;
-        try {
-            num = Float.parseFloat(string);
-            if (min != null && num < min) {
-                throw new IllegalArgumentException(name+" number ("+num+") is less than the minimum ("+min+")");
-            } else if (max != null && num > max) {
-                throw new IllegalArgumentException(name+" number ("+num+") is greater than the maximum ("+max+")");
-            }
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException(name+" ("+string+") must be a float: "+e);
-        }
-        return num;
+        return FieldDecoder.get().decodeFloat(string, min != null ? min : Float.NEGATIVE_INFINITY, max != null ? max : Float.POSITIVE_INFINITY, cannotBeBlank, name);
     }
 
+    /**
+     * @see FieldDecoder#decodeBoolean(String, boolean, String)
+     */
     public static Boolean parseBoolean(String string, boolean cannotBeBlank, String name) {
-        boolean blank = StringUtils.isBlank(string);
-        if (cannotBeBlank && blank) {
-            throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
-        } else if (blank) {
-            // can be blank, so return null
-            return null;
-        }
-        Boolean bool;
-        if ("T".equalsIgnoreCase(string)
-                || "Y".equalsIgnoreCase(string)
-                || "YES".equalsIgnoreCase(string)
-                ) {
-            bool = Boolean.TRUE;
-        } else {
-            bool = Boolean.parseBoolean(string);
-        }
-        return bool;
+        return FieldDecoder.get().decodeBoolean(string, cannotBeBlank, name);
     }
 
+    /**
+     * @see FieldDecoder#decodeString(String, String[], boolean, String)
+     */
     public static String parseString(String string, String[] valid, boolean cannotBeBlank, String name) {
-        boolean blank = StringUtils.isBlank(string);
-        if (cannotBeBlank && blank) {
-            throw new IllegalArgumentException(name + " ("+string+") cannot be blank");
-        } else if (!blank) {
-            if (valid != null && valid.length > 0) {
-                if (!ArrayUtils.contains(valid, string)) {
-                    // invalid if not in the valid set
-                    throw new IllegalArgumentException(name + " ("+string+") must be in the valid set: "+ArrayUtils.toString(valid));
-                }
-            }
-        }
-        return string;
+        return FieldDecoder.get().decodeString(string, valid, cannotBeBlank, name);
     }
 
-    static String[] dateFormats = new String[]{"yyyy-MM-dd'T'HH:mm:ssZZ","yyyy-MM-dd'T'HH:mm:ss","yyyy-MM-dd'T'HH:mm","yyyy-MM-dd"};
+    /**
+     * @see FieldDecoder#decodeDateTime(String, boolean, String)
+     */
     public static Timestamp parseDateTime(String string, boolean cannotBeBlank, String name) {
-        Timestamp ts = null; // blank ts is null
-        boolean blank = StringUtils.isBlank(string);
-        if (cannotBeBlank && blank) {
-            throw new IllegalArgumentException(name + " ("+string+") cannot be blank");
-        } else if (!blank) {
-            Date d;
-            try {
-                d = DateUtils.parseDate(string, dateFormats);
-            } catch (ParseException e) {
-                throw new IllegalArgumentException(name + " ("+string+") cannot be parsed into a Timestamp/Date, format should be ISO-8601 (yyyy-MM-dd'T'HH:mm, e.g. 2014-02-03T12:34)");
-            }
-            ts = new Timestamp(d.getTime());
-        }
-        return ts;
+        return FieldDecoder.get().decodeDateTime(string, cannotBeBlank, name);
     }
 
 }
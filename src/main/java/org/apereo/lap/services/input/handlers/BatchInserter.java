@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Groups the insert rows for a single data source into JDBC batches for the temp database.
+ *
+ * Each batch is sent in its own transaction, if the batch fails it is rolled back
+ * and the rows are retried one at a time so the failing lines can still be recorded.
+ *
+ * NOTE: not thread safe, use one inserter per reading thread
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class BatchInserter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchInserter.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    final JdbcTemplate jdbc;
+    final TransactionTemplate transactionTemplate;
+    final String insertSQL;
+    final int[] insertTypes;
+    final int batchSize;
+    final String name;
+    final InputFailures failures;
+
+    final List<Object[]> batchRows;
+    final int[] batchLines;
+    int inserted = 0;
+    int batches = 0;
+    DuplicateFilter duplicateFilter;
+    InputMetrics metrics;
+
+    /**
+     * @param jdbcTemplate the temp database
+     * @param insertSQL the insert SQL statement with ? vars
+     * @param insertTypes the insert param types (Types.* constants) in the same order as the insert SQL
+     * @param batchSize the number of rows to send in each JDBC batch (1 or less means row by row)
+     * @param name the name used when reporting failures (e.g. the handled type)
+     * @param failures the failures to record failed rows into
+     */
+    public BatchInserter(JdbcTemplate jdbcTemplate, String insertSQL, int[] insertTypes, int batchSize, String name, InputFailures failures) {
+        assert jdbcTemplate != null;
+        assert insertSQL != null;
+        assert failures != null;
+        this.jdbc = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+        this.insertSQL = insertSQL;
+        this.insertTypes = insertTypes;
+        this.batchSize = Math.max(1, batchSize);
+        this.name = name;
+        this.failures = failures;
+        this.batchRows = new ArrayList<>(this.batchSize);
+        this.batchLines = new int[this.batchSize];
+    }
+
+    /**
+     * Add a row to the current batch, the batch is sent when it is full
+     * @param line the line (or record) number of this row in the source (for failure messages)
+     * @param params the converted insert params (MUST be in the same order as the insert SQL)
+     */
+    public void add(int line, Object[] params) {
+        if (duplicateFilter != null && duplicateFilter.isDuplicate(params, batchRows)) {
+            failures.add(InputFailures.Category.DUPLICATE, line, "same as a row which was already loaded (skipped)", params);
+            return;
+        }
+        batchLines[batchRows.size()] = line;
+        batchRows.add(params);
+        if (batchRows.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send any rows in the current batch to the database
+     */
+    public void flush() {
+        if (batchRows.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int insertedBefore = inserted;
+        if (batchRows.size() == 1) {
+            insertRow(batchLines[0], batchRows.get(0));
+        } else {
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        jdbc.batchUpdate(insertSQL, batchRows, insertTypes);
+                    }
+                });
+                inserted += batchRows.size();
+            } catch (Exception e) {
+                // the batch was rolled back so retry it row by row to find the failing lines
+                if (logger.isDebugEnabled()) logger.debug(name+" batch of "+batchRows.size()+" rows failed (retrying rows individually): "+e);
+                for (int i = 0; i < batchRows.size(); i++) {
+                    insertRow(batchLines[i], batchRows.get(i));
+                }
+            }
+        }
+        batches++;
+        batchRows.clear();
+        if (metrics != null) {
+            metrics.addInsert(inserted - insertedBefore, System.nanoTime() - start);
+        }
+    }
+
+    private void insertRow(int line, Object[] params) {
+        try {
+            jdbc.update(insertSQL, params, insertTypes);
+            inserted++;
+        } catch (Exception e) {
+            if (logger.isDebugEnabled()) logger.debug(name+" line "+line+": "+e.getMessage(), e); // to help in fixing the problem
+            failures.add(e instanceof DataIntegrityViolationException ? InputFailures.Category.CONSTRAINT : InputFailures.Category.INSERT, line, e.getMessage(), params);
+        }
+    }
+
+    /**
+     * @return the number of rows successfully inserted so far
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    /**
+     * @return the number of batches sent so far
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the filter for the duplicate rows OR null if duplicates are not filtered out
+     */
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @param duplicateFilter OPTIONAL filter for the rows which are already in the table (skipped and recorded as DUPLICATE failures)
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * @return the live metrics of the load OR null if the load is not measured
+     */
+    public InputMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics OPTIONAL live metrics of the load (the inserted rows and insert time are added to it)
+     */
+    public void setMetrics(InputMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Finds the rows which are already in a temp database table (or already waiting to be inserted) by their key columns.
+ *
+ * Every key is added to a bloom filter (a fixed size bit set, about 10 bits per expected key) which can tell for sure
+ * that a key was never seen, only the possible hits (the real duplicates and about 1% of the new keys) are
+ * checked exactly against the rows waiting to be inserted and then against the table.
+ * So the memory used does not grow with the number of rows, if there are more rows than expected
+ * there are just more possible hits to check.
+ *
+ * NOTE: not thread safe, use one filter per inserter
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class DuplicateFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateFilter.class);
+
+    /**
+     * bits per expected key and number of bits set for each key (for about 1% false positives)
+     */
+    static final int BITS_PER_KEY = 10;
+    static final int HASHES = 7;
+
+    /**
+     * ACTIVITY rows are the same event if they have the same (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE)
+     */
+    static final String[] ACTIVITY_KEY_COLUMNS = new String[] {"ALTERNATIVE_ID", "COURSE_ID", "EVENT", "EVENT_DATE"};
+    static final int[] ACTIVITY_KEY_TYPES = new int[] {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP};
+
+    final JdbcTemplate jdbc;
+    final String table;
+    final int[] keyParams;
+    final String selectSQL;
+    final String existsSQL;
+    /**
+     * the key column of each exists SQL param (the nullable key columns are passed twice) and its type
+     */
+    final int[] existsKeys;
+    final int[] existsTypes;
+    final long[] bits;
+    final long bitCount;
+    long keys = 0;
+    long possibleHits = 0;
+    long duplicates = 0;
+
+    /**
+     * @param jdbcTemplate the temp database
+     * @param table the table the rows are inserted into
+     * @param keyColumns the names of the key columns
+     * @param keyParams the position of each key column in the insert params
+     * @param keyTypes the type of each key column (Types.* constants)
+     * @param expectedKeys the number of keys the filter is sized for
+     */
+    public DuplicateFilter(JdbcTemplate jdbcTemplate, String table, String[] keyColumns, int[] keyParams, int[] keyTypes, long expectedKeys) {
+        assert jdbcTemplate != null;
+        assert keyColumns.length == keyParams.length && keyColumns.length == keyTypes.length;
+        this.jdbc = jdbcTemplate;
+        this.table = table;
+        this.keyParams = keyParams;
+        this.selectSQL = "SELECT "+StringUtils.join(keyColumns, ", ")+" FROM "+table;
+        // col = NULL never matches so the nullable columns also match when both are null
+        boolean[] nullable = findNullable(keyColumns.length);
+        StringBuilder where = new StringBuilder();
+        List<Integer> existsKeys = new ArrayList<>();
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) {
+                where.append(" AND ");
+            }
+            existsKeys.add(i);
+            if (nullable[i]) {
+                where.append('(').append(keyColumns[i]).append(" = ? OR (").append(keyColumns[i]).append(" IS NULL AND ? IS NULL))");
+                existsKeys.add(i);
+            } else {
+                where.append(keyColumns[i]).append(" = ?");
+            }
+        }
+        this.existsSQL = "SELECT COUNT(*) FROM "+table+" WHERE "+where;
+        this.existsKeys = new int[existsKeys.size()];
+        this.existsTypes = new int[existsKeys.size()];
+        for (int i = 0; i < this.existsKeys.length; i++) {
+            this.existsKeys[i] = existsKeys.get(i);
+            this.existsTypes[i] = keyTypes[existsKeys.get(i)];
+        }
+        long words = Math.max(1, (Math.max(1, expectedKeys) * BITS_PER_KEY + 63) / 64);
+        this.bits = new long[(int) Math.min(words, Integer.MAX_VALUE - 8)];
+        this.bitCount = bits.length * 64L;
+    }
+
+    /**
+     * @param inputCollection the collection being loaded
+     * @param jdbcTemplate the temp database
+     * @param expectedKeys the number of rows the filter is sized for (in the table and loaded)
+     * @return the filter for the collection (with the keys of the rows already in the table) OR null if the collection is not deduplicated
+     */
+    public static DuplicateFilter forCollection(BaseInputHandlerService.InputCollection inputCollection, JdbcTemplate jdbcTemplate, long expectedKeys) {
+        if (inputCollection != BaseInputHandlerService.InputCollection.ACTIVITY) {
+            return null; // the other collections have natural primary keys
+        }
+        // the insert params are in the same order as the key columns
+        DuplicateFilter filter = new DuplicateFilter(jdbcTemplate, "ACTIVITY", ACTIVITY_KEY_COLUMNS, new int[] {0, 1, 2, 3}, ACTIVITY_KEY_TYPES, expectedKeys);
+        filter.addExistingKeys();
+        return filter;
+    }
+
+    /**
+     * @param columnCount the number of key columns
+     * @return true for each key column which can be null in the table
+     */
+    boolean[] findNullable(final int columnCount) {
+        return jdbc.query(selectSQL+" WHERE 1=0", new ResultSetExtractor<boolean[]>() {
+            @Override
+            public boolean[] extractData(ResultSet rs) throws SQLException {
+                ResultSetMetaData metaData = rs.getMetaData();
+                boolean[] nullable = new boolean[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    nullable[i] = metaData.isNullable(i + 1) != ResultSetMetaData.columnNoNulls;
+                }
+                return nullable;
+            }
+        });
+    }
+
+    /**
+     * Adds the keys of all the rows already in the table
+     */
+    public void addExistingKeys() {
+        long start = System.currentTimeMillis();
+        final Object[] key = new Object[keyParams.length];
+        jdbc.query(selectSQL, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = rs.getObject(i + 1);
+                }
+                add(hash(key, null));
+            }
+        });
+        if (keys > 0) {
+            logger.info("Added the keys of "+keys+" existing "+table+" rows to the duplicate filter in "+(System.currentTimeMillis() - start)+" ms");
+        }
+    }
+
+    /**
+     * Checks the row and adds its key
+     * @param params the insert params of the row
+     * @param pending the insert params of the rows which are waiting to be inserted
+     * @return true if a row with the same key is waiting to be inserted or is in the table
+     */
+    public boolean isDuplicate(Object[] params, List<Object[]> pending) {
+        if (add(hash(params, keyParams))) {
+            return false; // never seen
+        }
+        possibleHits++;
+        boolean duplicate = false;
+        for (int i = pending.size() - 1; i >= 0 && !duplicate; i--) {
+            duplicate = sameKey(params, pending.get(i));
+        }
+        if (!duplicate) {
+            Object[] key = new Object[existsKeys.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = params[keyParams[existsKeys[i]]];
+            }
+            Integer count = jdbc.queryForObject(existsSQL, key, existsTypes, Integer.class);
+            duplicate = count != null && count > 0;
+        }
+        if (duplicate) {
+            duplicates++;
+        }
+        return duplicate;
+    }
+
+    /**
+     * Sets the bits for the key
+     * @return true if any bit was not set before (so the key was never added)
+     */
+    boolean add(long hash) {
+        keys++;
+        // double hashing: the bits are h1 + i*h2
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        boolean added = false;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    boolean sameKey(Object[] params, Object[] other) {
+        for (int keyParam : keyParams) {
+            if (!sameValue(params[keyParam], other[keyParam])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameValue(Object value, Object other) {
+        if (value instanceof Date && other instanceof Date) {
+            return ((Date) value).getTime() == ((Date) other).getTime();
+        }
+        return value == null ? other == null : value.equals(other);
+    }
+
+    /**
+     * @param values the row values
+     * @param positions the positions of the key values in the row OR null if the values are only the key
+     * @return the 64 bit hash of the key values (dates are hashed by their time so a Date and a Timestamp are the same)
+     */
+    static long hash(Object[] values, int[] positions) {
+        long hash = 0xCBF29CE484222325L;
+        int count = positions != null ? positions.length : values.length;
+        for (int i = 0; i < count; i++) {
+            Object value = values[positions != null ? positions[i] : i];
+            long valueHash;
+            if (value == null) {
+                valueHash = 0;
+            } else if (value instanceof Date) {
+                valueHash = ((Date) value).getTime();
+            } else {
+                String string = value.toString();
+                valueHash = 0;
+                for (int c = 0; c < string.length(); c++) {
+                    valueHash = (valueHash ^ string.charAt(c)) * 0x100000001B3L;
+                }
+            }
+            hash = mix(hash ^ valueHash) * 31 + i;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * spreads the bits of a hash (the murmur3 64 bit finalizer)
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the number of duplicate rows found
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of rows which were checked exactly (the duplicates and the false positives)
+     */
+    public long getPossibleHits() {
+        return possibleHits;
+    }
+
+    @Override
+    public String toString() {
+        return "DuplicateFilter:" + table + ", keys=" + keys + ", bits=" + bitCount + ", possibleHits=" + possibleHits + ", duplicates=" + duplicates;
+    }
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
+
+/**
+ * Validates and converts the string fields read from an input into typed values.
+ *
+ * Common values are decoded without exceptions or temporary objects (ISO-8601 dates are decoded by hand
+ * and integers are parsed as primitives), anything else is decoded by the standard java parsers
+ * so the results and failure messages are always the same.
+ * NOTE: this is NOT thread safe, use {@link #get()} to get the decoder for the current thread
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class FieldDecoder {
+
+    static final String[] DATE_FORMATS = new String[]{"yyyy-MM-dd'T'HH:mm:ssZZ","yyyy-MM-dd'T'HH:mm:ss","yyyy-MM-dd'T'HH:mm","yyyy-MM-dd"};
+
+    static final long NOT_DECODED = Long.MIN_VALUE;
+
+    private static final ThreadLocal<FieldDecoder> DECODERS = new ThreadLocal<FieldDecoder>() {
+        @Override
+        protected FieldDecoder initialValue() {
+            return new FieldDecoder();
+        }
+    };
+
+    /**
+     * @return the decoder for the current thread
+     */
+    public static FieldDecoder get() {
+        return DECODERS.get();
+    }
+
+    /**
+     * same calendar (default time zone and locale, lenient) that SimpleDateFormat uses,
+     * so the fast path converts dates exactly like the date formats do
+     */
+    final Calendar calendar = Calendar.getInstance();
+
+    FieldDecoder() {
+    }
+
+    /**
+     * Trim all the values in this array to null if they are empty (same as StringUtils.trimToNull)
+     * @param strings an array of strings
+     */
+    public static void trimToNull(String[] strings) {
+        for (int i = 0; i < strings.length; i++) {
+            String string = strings[i];
+            if (string != null) {
+                int last = string.length() - 1;
+                if (last < 0) {
+                    strings[i] = null;
+                } else if (string.charAt(0) <= ' ' || string.charAt(last) <= ' ') {
+                    strings[i] = StringUtils.trimToNull(string);
+                } // else nothing to trim
+            }
+        }
+    }
+
+    /**
+     * @param string the string to check
+     * @return true if the string is null, empty or only whitespace
+     */
+    static boolean isBlank(String string) {
+        if (string == null || string.isEmpty()) {
+            return true;
+        }
+        // trimmed values only need the first char checked
+        return Character.isWhitespace(string.charAt(0)) && StringUtils.isBlank(string);
+    }
+
+    /**
+     * @param string the string to verify
+     * @param valid OPTIONAL the set of valid values
+     * @param cannotBeBlank true if the string cannot be null or blank
+     * @param name the name of the string (the field), for error messages
+     * @return the string (unchanged)
+     * @throws java.lang.IllegalArgumentException is the string fails validation
+     */
+    public String decodeString(String string, String[] valid, boolean cannotBeBlank, String name) {
+        if (isBlank(string)) {
+            if (cannotBeBlank) {
+                throw new IllegalArgumentException(name + " ("+string+") cannot be blank");
+            }
+        } else if (valid != null && valid.length > 0 && !contains(valid, string)) {
+            // invalid if not in the valid set
+            throw new IllegalArgumentException(name + " ("+string+") must be in the valid set: "+ArrayUtils.toString(valid));
+        }
+        return string;
+    }
+
+    private static boolean contains(String[] valid, String string) {
+        for (String value : valid) {
+            if (string.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param string string to verify as integer
+     * @param min minimum value (Integer.MIN_VALUE for no minimum)
+     * @param max maximum value (Integer.MAX_VALUE for no maximum)
+     * @param cannotBeBlank true if this must be a number and cannot be null
+     * @param name the name of the string (the field), for error messages
+     * @return the integer OR null (if allowed)
+     * @throws java.lang.IllegalArgumentException is the string fails validation
+     */
+    public Integer decodeInt(String string, int min, int max, boolean cannotBeBlank, String name) {
+        if (isBlank(string)) {
+            if (cannotBeBlank) {
+                throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
+            }
+            return null; // can be blank, so return null
+        }
+        int num;
+        long decoded = decodeSimpleInt(string);
+        if (decoded != NOT_DECODED) {
+            num = (int) decoded;
+        } else {
+            try {
+                num = Integer.parseInt(string);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name+" ("+string+") must be an integer: "+e);
+            }
+        }
+        if (num < min) {
+            throw new IllegalArgumentException(name+" integer ("+num+") is less than the minimum ("+min+")");
+        } else if (num > max) {
+            throw new IllegalArgumentException(name+" integer ("+num+") is greater than the maximum ("+max+")");
+        }
+        return num;
+    }
+
+    /**
+     * @param string the string
+     * @return the int value if the string is only an optional sign and ASCII digits (in the int range), NOT_DECODED otherwise
+     */
+    static long decodeSimpleInt(String string) {
+        int length = string.length();
+        int i = 0;
+        boolean negative = false;
+        char c = string.charAt(0);
+        if (c == '-' || c == '+') {
+            negative = (c == '-');
+            i++;
+        }
+        if (i == length || length - i > 10) {
+            return NOT_DECODED;
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_DECODED;
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (negative) {
+            value = -value;
+        }
+        return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? NOT_DECODED : value;
+    }
+
+    /**
+     * @param string string to verify as a float
+     * @param min minimum value (Float.NEGATIVE_INFINITY for no minimum)
+     * @param max maximum value (Float.POSITIVE_INFINITY for no maximum)
+     * @param cannotBeBlank true if this must be a number and cannot be null
+     * @param name the name of the string (the field), for error messages
+     * @return the float OR null (if allowed)
+     * @throws java.lang.IllegalArgumentException is the string fails validation
+     */
+    public Float decodeFloat(String string, float min, float max, boolean cannotBeBlank, String name) {
+        if (isBlank(string)) {
+            if (cannotBeBlank) {
+                throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
+            }
+            return null; // can be blank, so return null
+        }
+        float num;
+        try {
+            // the JDK parser is exact (a hand written one would need to handle rounding) and does not throw for valid numbers
+            num = Float.parseFloat(string);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name+" ("+string+") must be a float: "+e);
+        }
+        if (num < min) {
+            throw new IllegalArgumentException(name+" number ("+num+") is less than the minimum ("+min+")");
+        } else if (num > max) {
+            throw new IllegalArgumentException(name+" number ("+num+") is greater than the maximum ("+max+")");
+        }
+        return num;
+    }
+
+    /**
+     * @param string string to convert (T, Y, YES and TRUE are true, anything else is false)
+     * @param cannotBeBlank true if this cannot be null
+     * @param name the name of the string (the field), for error messages
+     * @return the boolean OR null (if allowed)
+     * @throws java.lang.IllegalArgumentException is the string fails validation
+     */
+    public Boolean decodeBoolean(String string, boolean cannotBeBlank, String name) {
+        if (isBlank(string)) {
+            if (cannotBeBlank) {
+                throw new IllegalArgumentException(name+" (" + string + ") cannot be blank");
+            }
+            return null; // can be blank, so return null
+        }
+        if ("T".equalsIgnoreCase(string)
+                || "Y".equalsIgnoreCase(string)
+                || "YES".equalsIgnoreCase(string)
+                || "TRUE".equalsIgnoreCase(string)
+                ) {
+            return Boolean.TRUE;
+        }
+        return Boolean.FALSE;
+    }
+
+    /**
+     * @param string ISO-8601 date or date and time (yyyy-MM-dd'T'HH:mm:ssZZ, yyyy-MM-dd'T'HH:mm:ss, yyyy-MM-dd'T'HH:mm, yyyy-MM-dd)
+     * @param cannotBeBlank true if this cannot be null
+     * @param name the name of the string (the field), for error messages
+     * @return the timestamp OR null (if allowed)
+     * @throws java.lang.IllegalArgumentException is the string fails validation
+     */
+    public Timestamp decodeDateTime(String string, boolean cannotBeBlank, String name) {
+        if (isBlank(string)) {
+            if (cannotBeBlank) {
+                throw new IllegalArgumentException(name + " ("+string+") cannot be blank");
+            }
+            return null; // blank ts is null
+        }
+        long millis = decodeSimpleDateTime(string);
+        if (millis == NOT_DECODED) {
+            // not a plain ISO-8601 value, let the date formats decide
+            Date d;
+            try {
+                d = DateUtils.parseDate(string, DATE_FORMATS);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(name + " ("+string+") cannot be parsed into a Timestamp/Date, format should be ISO-8601 (yyyy-MM-dd'T'HH:mm, e.g. 2014-02-03T12:34)");
+            }
+            millis = d.getTime();
+        }
+        return new Timestamp(millis);
+    }
+
+    /**
+     * Decodes the ISO-8601 forms the date formats handle (only the exact lengths with ASCII digits in every position)
+     * @param string the date string
+     * @return the date in millis OR NOT_DECODED if the string is not one of the plain forms
+     */
+    long decodeSimpleDateTime(String string) {
+        int length = string.length();
+        if (length != 10 && length != 16 && length != 19 && length != 24 && length != 25) {
+            return NOT_DECODED;
+        }
+        if (string.charAt(4) != '-' || string.charAt(7) != '-') {
+            return NOT_DECODED;
+        }
+        int year = digits(string, 0, 4);
+        int month = digits(string, 5, 2);
+        int day = digits(string, 8, 2);
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        int zoneMillis = 0;
+        if (length > 10) {
+            if (string.charAt(10) != 'T' || string.charAt(13) != ':') {
+                return NOT_DECODED;
+            }
+            hour = digits(string, 11, 2);
+            minute = digits(string, 14, 2);
+            if (length > 16) {
+                if (string.charAt(16) != ':') {
+                    return NOT_DECODED;
+                }
+                second = digits(string, 17, 2);
+                if (length > 19) {
+                    // +hhmm or +hh:mm
+                    char sign = string.charAt(19);
+                    int zoneMinutesIndex = 22;
+                    if (length == 25) {
+                        if (string.charAt(22) != ':') {
+                            return NOT_DECODED;
+                        }
+                        zoneMinutesIndex = 23;
+                    }
+                    int zoneHours = digits(string, 20, 2);
+                    int zoneMinutes = digits(string, zoneMinutesIndex, 2);
+                    if ((sign != '+' && sign != '-') || zoneHours < 0 || zoneHours > 23 || zoneMinutes < 0 || zoneMinutes > 59) {
+                        return NOT_DECODED;
+                    }
+                    zoneMillis = (zoneHours * 60 + zoneMinutes) * 60000;
+                    if (sign == '-') {
+                        zoneMillis = -zoneMillis;
+                    }
+                }
+            }
+        }
+        if (year < 1600 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+            return NOT_DECODED; // not digits (or close to the julian calendar cutover)
+        }
+        // out of range values roll over exactly like they do in the (lenient) date formats
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        if (length > 19) {
+            calendar.set(Calendar.ZONE_OFFSET, zoneMillis);
+            calendar.set(Calendar.DST_OFFSET, 0);
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return the value of the ASCII digits OR -1 if any char is not an ASCII digit
+     */
+    private static int digits(String string, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.util.Date;
+
+import org.apereo.lap.model.InputFingerprint;
+
+/**
+ * Handles an event style input (new data is only ever added to the end of it)
+ * which can be updated by loading only the data added since it was last loaded
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public interface IncrementalInputHandler extends InputHandler {
+
+    /**
+     * @param loaded the fingerprint of the input when it was last loaded
+     * @return true if the input only has data appended to it since it was loaded (false if it was rewritten)
+     */
+    boolean isAppendedTo(InputFingerprint loaded);
+
+    /**
+     * Read only the data appended since the input was last loaded into the database
+     * @param loaded the fingerprint of the input when it was last loaded
+     * @param current the fingerprint of the input now (only the data up to this point is read)
+     * @return the results of the processing (total is the number of appended records read)
+     */
+    ReadResult readAppendedInputIntoDB(InputFingerprint loaded, InputFingerprint current);
+
+    /**
+     * @return the latest event date in the records read by the last read of this input into the database
+     * (only the appended records for an appended read) OR null if no records were read
+     */
+    Date getHighWaterMark();
+
+}
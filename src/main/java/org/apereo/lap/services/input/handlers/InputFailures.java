@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Records the failures (rejected lines) while reading an input.
+ *
+ * Only the failure counts (per category) and a sample of the messages (for the lowest line numbers)
+ * are kept in memory, the rejected rows and the reasons are written to the reject file (if there is one) as they happen.
+ * NOTE: this is thread safe (many readers can record into the same failures)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class InputFailures implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InputFailures.class);
+
+    public static final int DEFAULT_SAMPLE_SIZE = 100;
+
+    /**
+     * the number of rejects written between the checks for write errors (the writer does not throw them and each check flushes)
+     */
+    static final int REJECT_CHECK_INTERVAL = 1000;
+
+    public static enum Category {
+        /**
+         * the values failed validation (or could not be converted)
+         */
+        INVALID,
+        /**
+         * the row was rejected by a database constraint (e.g. duplicate key or missing referenced row)
+         */
+        CONSTRAINT,
+        /**
+         * the row could not be inserted for any other reason
+         */
+        INSERT,
+        /**
+         * the row is the same as a row which was already loaded (only when duplicates are filtered out)
+         */
+        DUPLICATE
+    }
+
+    final String name;
+    final int sampleSize;
+    final Path rejectFile;
+
+    final Map<Category, Integer> counts = new EnumMap<>(Category.class);
+    /**
+     * failure messages by line (and order added)
+     */
+    final TreeMap<Long, String> sample = new TreeMap<>();
+    int failed = 0;
+    CSVWriter rejectWriter;
+    int rejectsWritten = 0;
+    boolean rejectFileFailed = false;
+
+    /**
+     * @param name the name used in the failure messages (e.g. the handled type)
+     * @param sampleSize the max number of failure messages to keep (0 keeps none)
+     * @param rejectFile OPTIONAL file to write the rejected rows into (only created if there are failures)
+     * @param append if true, add to the reject file, otherwise any existing reject file is replaced
+     */
+    public InputFailures(String name, int sampleSize, Path rejectFile, boolean append) {
+        this.name = name;
+        this.sampleSize = Math.max(0, sampleSize);
+        this.rejectFile = rejectFile;
+        if (rejectFile != null && !append) {
+            try {
+                // remove the rejects from the last time this input was read
+                Files.deleteIfExists(rejectFile);
+            } catch (IOException e) {
+                logger.warn("Unable to remove the old reject file ("+rejectFile+"): "+e);
+            }
+        }
+    }
+
+    /**
+     * Keeps failures in memory only (up to the default sample size)
+     * @param name the name used in the failure messages (e.g. the handled type)
+     */
+    public InputFailures(String name) {
+        this(name, DEFAULT_SAMPLE_SIZE, null, false);
+    }
+
+    /**
+     * Record a failed line
+     * @param category the type of failure
+     * @param line the line (or record) number in the source
+     * @param reason the reason the line failed
+     * @param row OPTIONAL the values of the rejected line (written to the reject file)
+     */
+    public synchronized void add(Category category, int line, String reason, Object[] row) {
+        assert category != null;
+        failed++;
+        Integer count = counts.get(category);
+        counts.put(category, count == null ? 1 : count + 1);
+        if (sampleSize > 0) {
+            long key = ((long) line << 32) | failed;
+            if (sample.size() < sampleSize || key < sample.lastKey()) {
+                sample.put(key, name+" line "+line+": "+reason);
+                if (sample.size() > sampleSize) {
+                    sample.pollLastEntry();
+                }
+            }
+        }
+        if (rejectFile != null && !rejectFileFailed) {
+            writeReject(category, line, reason, row);
+        }
+    }
+
+    private void writeReject(Category category, int line, String reason, Object[] row) {
+        try {
+            if (rejectWriter == null) {
+                boolean exists = Files.exists(rejectFile);
+                rejectWriter = new CSVWriter(Files.newBufferedWriter(rejectFile, Charset.defaultCharset(), StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                if (!exists) {
+                    rejectWriter.writeNext(new String[] {"LINE", "CATEGORY", "REASON", "VALUES..."});
+                }
+            }
+            int fields = row != null ? row.length : 0;
+            String[] reject = new String[3 + fields];
+            reject[0] = String.valueOf(line);
+            reject[1] = category.name();
+            reject[2] = reason;
+            for (int i = 0; i < fields; i++) {
+                reject[3 + i] = row[i] != null ? row[i].toString() : null;
+            }
+            rejectWriter.writeNext(reject);
+            // the first reject is checked so a file which cannot be written is found right away
+            if (++rejectsWritten % REJECT_CHECK_INTERVAL == 1) {
+                checkRejectWriter();
+            }
+        } catch (IOException e) {
+            // keep counting the failures even if they cannot be written
+            rejectFileFailed = true;
+            logger.error("Unable to write to the reject file ("+rejectFile+"), no more rejects will be written: "+e);
+        }
+    }
+
+    /**
+     * Flushes the reject file and checks for write errors (the CSV writer does not report them, e.g. when the disk is full)
+     * @return true if the rejects were written OK so far
+     */
+    private boolean checkRejectWriter() {
+        if (rejectWriter.checkError()) {
+            rejectFileFailed = true;
+            logger.error("Unable to write to the reject file ("+rejectFile+"), it is missing some of the rejects and no more rejects will be written");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the total number of failures
+     */
+    public synchronized int size() {
+        return failed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return failed == 0;
+    }
+
+    /**
+     * @param category the type of failure
+     * @return the number of failures of this type
+     */
+    public synchronized int getCount(Category category) {
+        Integer count = counts.get(category);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return the number of failures by type (only the types which had failures)
+     */
+    public synchronized Map<Category, Integer> getCounts() {
+        return new EnumMap<>(counts);
+    }
+
+    /**
+     * @return the failure messages for the lowest line numbers (in line order), at most the sample size
+     */
+    public synchronized List<String> getMessages() {
+        return new ArrayList<>(sample.values());
+    }
+
+    /**
+     * @return the reject file OR null if no rejects were written
+     */
+    public synchronized Path getRejectFile() {
+        return rejectFile != null && failed > 0 && !rejectFileFailed ? rejectFile : null;
+    }
+
+    /**
+     * Finish writing the reject file (more failures can still be added, they will be appended)
+     */
+    @Override
+    public synchronized void close() {
+        if (rejectWriter != null) {
+            try {
+                if (!rejectFileFailed) {
+                    checkRejectWriter();
+                }
+                rejectWriter.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the reject file ("+rejectFile+"): "+e);
+            }
+            rejectWriter = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return failed + " failures " + counts
+                + (failed > sample.size() ? " (first "+sample.size()+" shown)" : "")
+                + (getRejectFile() != null ? ", rejects written to "+rejectFile : "");
+    }
+
+}
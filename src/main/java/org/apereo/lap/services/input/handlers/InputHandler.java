@@ -14,9 +14,10 @@
  *******************************************************************************/
 package org.apereo.lap.services.input.handlers;
 
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.services.input.BaseInputHandlerService;
 import org.springframework.jdbc.core.JdbcTemplate;
 
@@ -55,30 +56,74 @@ public interface InputHandler {
      */
     Object[] validateAndConvertParams(String[] params);
 
+    /**
+     * Checks that the input can be read and appears valid without loading any of it (e.g. only reads a CSV header),
+     * anything opened for the check is closed again (used to preflight the inputs, loading does the same checks itself)
+     * @throws IllegalStateException if the input cannot be read or is not valid
+     */
+    void verify();
+
     /**
      * Read the handler input data completely and load the data into the database
+     * (the input is opened, checked and read in a single pass and closed when done)
      * @return the results of the processing with details of how many items loaded etc. (item failures are recorded but will not stop the processing)
+     * @throws IllegalStateException if the input cannot be read or is not valid
      */
     ReadResult readInputIntoDB();
 
     BaseInputHandlerService.InputCollection getInputCollection();
 
+    /**
+     * @param hash if true, include a hash of the input content (reads all the input)
+     * @return the fingerprint of the current input data (used to detect changes) OR null if changes cannot be detected for this input
+     */
+    InputFingerprint makeFingerprint(boolean hash);
+
+    /**
+     * @return the live metrics of the current load OR null if no load is being measured
+     */
+    InputMetrics getMetrics();
+
+    /**
+     * @param metrics the live metrics to update during the next load (null to stop measuring)
+     */
+    void setMetrics(InputMetrics metrics);
+
     public static class ReadResult {
         public String handledType;
         public long totalTimeMS;
         public long startTimeMS;
         public long endTimeMS;
+        /**
+         * time spent waiting (for the collections this one depends on) before this read started
+         */
+        public long waitTimeMS;
+        /**
+         * wall-clock time for loading all the collections which were loaded together with this one
+         */
+        public long loadTotalTimeMS;
         public int total = 0;
         public int loaded = 0;
         public int failed = 0;
-        public ArrayList<String> failures;
+        /**
+         * the failure counts and a sample of the failure messages (the rejected rows are in the reject file if there is one)
+         */
+        public InputFailures failures;
+        /**
+         * the work and wait times of each stage for reads done in stages or in chunks (null otherwise)
+         */
+        public List<StageStats> stages;
+        /**
+         * the throughput of the load (only set for loads started by an input handler service)
+         */
+        public InputMetrics metrics;
 
         public ReadResult(String handledType) {
             this.handledType = handledType;
             startTimeMS = System.currentTimeMillis();
         }
 
-        public void done(int itemsCount, ArrayList<String> failures) {
+        public void done(int itemsCount, InputFailures failures) {
             this.total = itemsCount;
             this.failures = failures;
             this.failed = failures != null ? failures.size() : 0;
@@ -94,6 +139,7 @@ public interface InputHandler {
                     ", loaded=" + loaded +
                     ", failed=" + failed +
                     ", runSecs=" + String.format("%.2f", totalTimeMS/1000f) +
+                    ", waitSecs=" + String.format("%.2f", waitTimeMS/1000f) +
                     ", started=" + new Date(startTimeMS);
         }
     }
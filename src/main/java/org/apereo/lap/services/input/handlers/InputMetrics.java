@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live throughput counters for a single input load (one handler reading one collection).
+ * The counters are updated by the handler while it reads (bytes from the input, rows inserted and the time
+ * spent in the database inserts) so they can be checked while the load is still running.
+ *
+ * The parse time is the part of the load time not spent in the database inserts (reading, parsing and
+ * converting the input), for reads where parsing overlaps inserting (staged or split CSV reads) it is the time
+ * the writer spent waiting for parsed rows.
+ *
+ * NOTE: thread safe, the counters can be updated by the reading threads and read from any thread
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class InputMetrics {
+
+    public static enum State {
+        LOADING, LOADED, FAILED
+    }
+
+    final String collection;
+    final String inputType;
+    final String source;
+    final String runId;
+    final long startMS;
+    volatile long endMS;
+    volatile State state = State.LOADING;
+    volatile String error;
+    volatile InputFailures failures;
+    volatile int records = -1; // -1 until the read is done
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong inserted = new AtomicLong();
+    final AtomicLong insertNanos = new AtomicLong();
+
+    /**
+     * @param collection the collection being loaded
+     * @param inputType the type of the input (e.g. CSV)
+     * @param source the input (e.g. the file path or URL)
+     * @param runId the id of the pipeline run the load is for OR null if it is not part of a run
+     */
+    public InputMetrics(String collection, String inputType, String source, String runId) {
+        this.collection = collection;
+        this.inputType = inputType;
+        this.source = source;
+        this.runId = runId;
+        this.startMS = System.currentTimeMillis();
+    }
+
+    /**
+     * @param in the input data stream
+     * @return the stream which adds the bytes read from it to these metrics
+     */
+    public InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    bytes.incrementAndGet();
+                }
+                return b;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytes.addAndGet(read);
+                }
+                return read;
+            }
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                bytes.addAndGet(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * @param bytes the total bytes of the input (for inputs which are not read through {@link #count(InputStream)})
+     */
+    public void setBytes(long bytes) {
+        this.bytes.set(bytes);
+    }
+
+    /**
+     * @param rows the number of rows inserted
+     * @param nanos the time spent inserting them (including any failed attempts)
+     */
+    public void addInsert(int rows, long nanos) {
+        inserted.addAndGet(rows);
+        insertNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param failures the failures of the read (counted live)
+     */
+    public void setFailures(InputFailures failures) {
+        this.failures = failures;
+    }
+
+    /**
+     * Marks the load as done
+     * @param result the results of the read
+     */
+    public void done(InputHandler.ReadResult result) {
+        if (result != null) {
+            records = result.total;
+            if (result.failures != null) {
+                failures = result.failures;
+            }
+        }
+        endMS = System.currentTimeMillis();
+        state = State.LOADED;
+    }
+
+    /**
+     * Marks the load as failed
+     * @param e the reason it failed
+     */
+    public void failed(Throwable e) {
+        error = String.valueOf(e);
+        endMS = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getInputType() {
+        return inputType;
+    }
+
+    /**
+     * @return the id of the pipeline run the load was done for OR null if it was not part of a run
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getStartMS() {
+        return startMS;
+    }
+
+    /**
+     * @return the load time so far (or the total time if it is done)
+     */
+    public long getElapsedMS() {
+        return (endMS != 0 ? endMS : System.currentTimeMillis()) - startMS;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getInserted() {
+        return inserted.get();
+    }
+
+    public int getFailed() {
+        InputFailures current = failures;
+        return current != null ? current.size() : 0;
+    }
+
+    /**
+     * @return the number of records read (while loading this is the number inserted or failed so far)
+     */
+    public long getRecords() {
+        return records >= 0 ? records : getInserted() + getFailed();
+    }
+
+    public long getInsertTimeMS() {
+        return TimeUnit.NANOSECONDS.toMillis(insertNanos.get());
+    }
+
+    /**
+     * @return the load time not spent inserting (reading, parsing and converting)
+     */
+    public long getParseTimeMS() {
+        return Math.max(0, getElapsedMS() - getInsertTimeMS());
+    }
+
+    public double getRowsPerSecond() {
+        return perSecond(getRecords());
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(getBytes());
+    }
+
+    /**
+     * @return the share (0-1) of the records read which failed
+     */
+    public double getFailureRate() {
+        long read = getRecords();
+        return read > 0 ? Math.min(1d, getFailed() / (double) read) : 0d;
+    }
+
+    double perSecond(long count) {
+        long elapsed = getElapsedMS();
+        return elapsed > 0 ? count * 1000d / elapsed : 0d;
+    }
+
+    /**
+     * @return the metrics as a map (for the REST endpoint and to store with the run)
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("collection", getCollection());
+        map.put("type", inputType);
+        map.put("source", source);
+        if (runId != null) {
+            map.put("runId", runId);
+        }
+        map.put("state", state.name());
+        map.put("startMS", startMS);
+        map.put("elapsedMS", getElapsedMS());
+        map.put("records", getRecords());
+        map.put("inserted", getInserted());
+        map.put("failed", getFailed());
+        map.put("bytes", getBytes());
+        map.put("rowsPerSec", Math.round(getRowsPerSecond()));
+        map.put("bytesPerSec", Math.round(getBytesPerSecond()));
+        map.put("parseMS", getParseTimeMS());
+        map.put("insertMS", getInsertTimeMS());
+        map.put("failureRate", Math.round(getFailureRate() * 10000) / 10000d);
+        if (error != null) {
+            map.put("error", error);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "InputMetrics:" + getCollection() + "(" + inputType + ")" +
+                ", state=" + state +
+                ", records=" + getRecords() +
+                ", failed=" + getFailed() +
+                ", rowsPerSec=" + Math.round(getRowsPerSecond()) +
+                ", bytesPerSec=" + Math.round(getBytesPerSecond()) +
+                ", parseMS=" + getParseTimeMS() +
+                ", insertMS=" + getInsertTimeMS();
+    }
+}
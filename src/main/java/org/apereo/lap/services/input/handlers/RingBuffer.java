@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producer threads and a single consumer thread.
+ *
+ * Producers claim a slot by moving the tail forward (compare and set) and then publish the item into it,
+ * the consumer takes the item from the head slot once it is published and then frees the slot by moving the head.
+ * Nothing blocks, offer fails (returns false) when the buffer is full so the producer can push back on its caller.
+ *
+ * NOTE: only ONE thread may call poll
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class RingBuffer<E> {
+
+    final AtomicReferenceArray<E> slots;
+    final int mask;
+    /**
+     * the next slot to claim (only moved by the producers)
+     */
+    final AtomicLong tail = new AtomicLong();
+    /**
+     * the next slot to take (only moved by the consumer)
+     */
+    final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the max number of items held, rounded up to a power of 2
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: "+capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an item to the end of the buffer (safe for any number of threads)
+     * @param item the item to add
+     * @return true if added, false if the buffer is full
+     */
+    public boolean offer(E item) {
+        assert item != null;
+        while (true) {
+            long t = tail.get();
+            if (t - head.get() > mask) {
+                return false; // full
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                // the slot is free because the consumer clears it before moving the head past it
+                slots.lazySet((int) (t & mask), item);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the item from the start of the buffer (only ONE thread may call this)
+     * @return the item OR null if the buffer is empty (or the next item is not published yet)
+     */
+    public E poll() {
+        long h = head.get();
+        int slot = (int) (h & mask);
+        E item = slots.get(slot);
+        if (item != null) {
+            slots.lazySet(slot, null);
+            head.lazySet(h + 1);
+        }
+        return item;
+    }
+
+    /**
+     * @return the number of items in the buffer (including claimed slots which are not published yet)
+     */
+    public int size() {
+        // read the head first so the size is never negative
+        long h = head.get();
+        return (int) Math.max(0, tail.get() - h);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the max number of items held
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of converted rows ready to be inserted (passed from a reading thread to the batch writer)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class RowBatch {
+
+    /**
+     * marks the end of the rows from a reader
+     */
+    public static final RowBatch DONE = new RowBatch(0);
+
+    /**
+     * the line (or record) number of each row in the source
+     */
+    public final int[] lines;
+    public final List<Object[]> rows;
+
+    /**
+     * @param size the max number of rows in this batch
+     */
+    public RowBatch(int size) {
+        this.lines = new int[size];
+        this.rows = new ArrayList<>(size);
+    }
+
+    /**
+     * @param line the line (or record) number of the row in the source
+     * @param row the converted insert params
+     * @return true if the batch is now full
+     */
+    public boolean add(int line, Object[] row) {
+        lines[rows.size()] = line;
+        rows.add(row);
+        return rows.size() >= lines.length;
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * Add all the rows to the inserter
+     * @param inserter the batch writer
+     */
+    public void insert(BatchInserter inserter) {
+        for (int i = 0; i < rows.size(); i++) {
+            inserter.add(lines[i], rows.get(i));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the work done by one stage of a staged load (e.g. read, convert, write) and the time its threads spent
+ * working, waiting for input from the stage before and waiting for room in the queue to the stage after.
+ * The stage with the highest utilization (busy time / thread time) is the one which limits the load,
+ * the stages before it mostly wait for output and the stages after it mostly wait for input.
+ *
+ * NOTE: thread safe, the threads of a stage all add to the same counters
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class StageStats {
+
+    final String name;
+    final int threads;
+    final AtomicLong items = new AtomicLong();
+    final AtomicLong busyNanos = new AtomicLong();
+    final AtomicLong inputWaitNanos = new AtomicLong();
+    final AtomicLong outputWaitNanos = new AtomicLong();
+    volatile long startNanos;
+    volatile long endNanos;
+
+    /**
+     * @param name the stage name
+     * @param threads the number of threads working in the stage
+     */
+    public StageStats(String name, int threads) {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    public void end() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * @param count the number of items (e.g. records) handled
+     * @param nanos the time spent handling them
+     */
+    public void addBusy(long count, long nanos) {
+        items.addAndGet(count);
+        busyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param nanos the time spent waiting for input from the stage before
+     */
+    public void addInputWait(long nanos) {
+        inputWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param nanos the time spent waiting for room in the queue to the stage after
+     */
+    public void addOutputWait(long nanos) {
+        outputWaitNanos.addAndGet(nanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getItems() {
+        return items.get();
+    }
+
+    /**
+     * @return the time from the start of the stage until the end (or until now if it has not ended)
+     */
+    public long getElapsedNanos() {
+        if (startNanos == 0) {
+            return 0;
+        }
+        return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * @param nanos time spent by the stage threads
+     * @return the share (0-1) of the total thread time of the stage
+     */
+    double share(long nanos) {
+        long threadNanos = getElapsedNanos() * threads;
+        return threadNanos > 0 ? Math.min(1d, nanos / (double) threadNanos) : 0d;
+    }
+
+    /**
+     * @return the share of the stage thread time spent working (close to 1 means this stage limits the load)
+     */
+    public double getUtilization() {
+        return share(busyNanos.get());
+    }
+
+    /**
+     * @return the share of the stage thread time spent waiting for the stage before
+     */
+    public double getInputWait() {
+        return share(inputWaitNanos.get());
+    }
+
+    /**
+     * @return the share of the stage thread time spent waiting for the stage after
+     */
+    public double getOutputWait() {
+        return share(outputWaitNanos.get());
+    }
+
+    /**
+     * @return the counters as a map (times in ms, shares in percent)
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stage", name);
+        map.put("threads", threads);
+        map.put("items", getItems());
+        map.put("elapsedMS", TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()));
+        map.put("busyMS", TimeUnit.NANOSECONDS.toMillis(busyNanos.get()));
+        map.put("utilization", Math.round(getUtilization() * 100));
+        map.put("inputWait", Math.round(getInputWait() * 100));
+        map.put("outputWait", Math.round(getOutputWait() * 100));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: threads=%d, items=%d, busy=%d%%, waitingForInput=%d%%, waitingForOutput=%d%%",
+                name, threads, getItems(), Math.round(getUtilization() * 100), Math.round(getInputWait() * 100), Math.round(getOutputWait() * 100));
+    }
+}
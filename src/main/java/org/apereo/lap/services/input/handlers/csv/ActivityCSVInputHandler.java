@@ -14,15 +14,21 @@
  *******************************************************************************/
 package org.apereo.lap.services.input.handlers.csv;
 
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.IncrementalInputHandler;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import au.com.bytecode.opencsv.CSVReader;
 
-public class ActivityCSVInputHandler extends BaseCSVInputHandler {
+public class ActivityCSVInputHandler extends BaseCSVInputHandler implements IncrementalInputHandler {
     static final String SQL_INSERT = "INSERT INTO ACTIVITY (ALTERNATIVE_ID,COURSE_ID,EVENT,EVENT_DATE) VALUES (?,?,?,?)";
 
     static final int[] SQL_TYPES = new int[] {
@@ -30,6 +36,22 @@ public class ActivityCSVInputHandler extends BaseCSVInputHandler {
             Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP
     };
 
+    static final BulkColumn[] BULK_COLUMNS = new BulkColumn[] {
+            // MUST match validateAndConvertParams
+            BulkColumn.string("ALTERNATIVE_ID", null, true),
+            BulkColumn.string("COURSE_ID", null, true),
+            BulkColumn.string("EVENT", null, true),
+            BulkColumn.dateTime("EVENT_DATE", true)
+    };
+
+    static final long NO_EVENTS = Long.MIN_VALUE;
+
+    /**
+     * the latest EVENT_DATE (ms) in the records converted by the current read (NO_EVENTS if none),
+     * the records may be converted by several threads at once
+     */
+    final AtomicLong highWaterMark = new AtomicLong(NO_EVENTS);
+
     public ActivityCSVInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
         super(configuration, jdbcTemplate);
     }
@@ -49,30 +71,79 @@ public class ActivityCSVInputHandler extends BaseCSVInputHandler {
         return SQL_TYPES;
     }
 
+    @Override
+    public BulkColumn[] getBulkColumns() {
+        return BULK_COLUMNS;
+    }
+
     @Override
     public BaseInputHandlerService.InputCollection getInputCollection() {
         return BaseInputHandlerService.InputCollection.ACTIVITY;
     }
 
     @Override
-    public CSVReader readCSV(boolean reRead) {
-        return readCSV(4, "ALTERNATIVE_ID", reRead);
+    public CSVReader openCSV() {
+        return openCSV(4, "ALTERNATIVE_ID");
+    }
+
+    @Override
+    public boolean isAppendedTo(InputFingerprint loaded) {
+        // the compressed data cannot be read from the middle
+        return !isCompressed() && isFileAppendedTo(resolveCSVPath(), loaded);
     }
 
+    /**
+     * Reads the whole file, the high water mark is taken from the records in the file
+     */
     @Override
     public ReadResult readInputIntoDB() {
-        CSVReader reader = readCSV(false);
-        return readCSVFileIntoDB(reader);
+        highWaterMark.set(NO_EVENTS);
+        // the bulk loader converts the records in the database so its mark is taken from the rows it inserted
+        Long lastId = getTempDatabase().queryForObject("SELECT MAX(ID) FROM ACTIVITY", Long.class);
+        ReadResult result = super.readInputIntoDB();
+        if (highWaterMark.get() == NO_EVENTS && result.loaded > 0) {
+            Timestamp latest = getTempDatabase().queryForObject("SELECT MAX(EVENT_DATE) FROM ACTIVITY WHERE ID > ?",
+                    Timestamp.class, lastId != null ? lastId : 0L);
+            if (latest != null) {
+                raiseHighWaterMark(latest.getTime());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads only the appended records, the high water mark is taken from those records
+     */
+    @Override
+    public ReadResult readAppendedInputIntoDB(InputFingerprint loaded, InputFingerprint current) {
+        highWaterMark.set(NO_EVENTS);
+        return readCSVTailIntoDB(loaded, current);
+    }
+
+    @Override
+    public Date getHighWaterMark() {
+        long mark = highWaterMark.get();
+        return mark != NO_EVENTS ? new Timestamp(mark) : null;
+    }
+
+    void raiseHighWaterMark(long eventTime) {
+        long mark = highWaterMark.get();
+        while (eventTime > mark && !highWaterMark.compareAndSet(mark, eventTime)) {
+            mark = highWaterMark.get();
+        }
     }
 
     @Override
     public Object[] validateAndConvertParams(String[] csvLine) {
         assert csvLine != null && csvLine.length > 0;
-        Object[] params = new Object[csvLine.length];
-        params[0] = parseString(csvLine[0], null, true, "ALTERNATIVE_ID");
-        params[1] = parseString(csvLine[1], null, true, "COURSE_ID");
-        params[2] = parseString(csvLine[2], null, true, "EVENT");
-        params[3] = parseDateTime(csvLine[3], true, "EVENT_DATE");
+        FieldDecoder decoder = FieldDecoder.get();
+        Object[] params = new Object[SQL_TYPES.length];
+        params[0] = decoder.decodeString(csvLine[0], null, true, "ALTERNATIVE_ID");
+        params[1] = decoder.decodeString(csvLine[1], null, true, "COURSE_ID");
+        params[2] = decoder.decodeString(csvLine[2], null, true, "EVENT");
+        Timestamp eventDate = decoder.decodeDateTime(csvLine[3], true, "EVENT_DATE");
+        params[3] = eventDate;
+        raiseHighWaterMark(eventDate.getTime());
         return params;
     }
 }
@@ -17,18 +17,22 @@ package org.apereo.lap.services.input.handlers.csv;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
 import org.apereo.lap.services.input.SampleCSVInputHandlerService;
 import org.apereo.lap.services.input.handlers.BaseInputHandler;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.InputFailures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -71,6 +75,29 @@ public abstract class BaseCSVInputHandler extends BaseInputHandler implements CS
         return handlers;
     }
 
+    /**
+     * @param inputCollection the collection
+     * @param configuration current system config
+     * @param jdbcTemplate temp DB jdbc template
+     * @return the CSV handler for the collection (with no path set)
+     */
+    public static BaseCSVInputHandler makeCSVHandler(BaseInputHandlerService.InputCollection inputCollection, ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
+        switch (inputCollection) {
+            case PERSONAL:
+                return new PersonalCSVInputHandler(configuration, jdbcTemplate);
+            case COURSE:
+                return new CourseCSVInputHandler(configuration, jdbcTemplate);
+            case ENROLLMENT:
+                return new EnrollmentCSVInputHandler(configuration, jdbcTemplate);
+            case GRADE:
+                return new GradeCSVInputHandler(configuration, jdbcTemplate);
+            case ACTIVITY:
+                return new ActivityCSVInputHandler(configuration, jdbcTemplate);
+            default:
+                throw new IllegalArgumentException("no CSV handler for "+inputCollection);
+        }
+    }
+
     @Override
     public SampleCSVInputHandlerService.InputType getHandledType() {
         return BaseInputHandlerService.InputType.CSV;
@@ -78,86 +105,290 @@ public abstract class BaseCSVInputHandler extends BaseInputHandler implements CS
 
     // general use functions
 
-    CSVReader reader;
+    /**
+     * Smallest chunk used when splitting up a large CSV file
+     */
+    static final long MIN_CHUNK_BYTES = 1024 * 1024;
 
     /**
-     * Reads a CSV file and verifies basic infor about it
+     * Opens the CSV file and checks the header line
      * @param minColumns min number of columns
      * @param headerStartsWith expected header value
-     * @param reRead force reading the file again (otherwise it will use the existing copy)
-     * @return the CSVReader
-     * @throws IllegalStateException if we fail to produce the reader
+     * @return the CSVReader positioned at the first record (the caller MUST close it)
+     * @throws IllegalStateException if the file cannot be opened or the header is not valid
      */
-    CSVReader readCSV(int minColumns, String headerStartsWith, boolean reRead) {
-        return readCSVResource(minColumns, headerStartsWith, reRead);
+    CSVReader openCSV(int minColumns, String headerStartsWith) {
+        assert minColumns > 0 : "minColumns must be > 0: "+minColumns;
+        assert StringUtils.isNotBlank(headerStartsWith) : "headerStartsWith must not be blank: "+ getPath();
+        CSVReader fileCSV = null;
+        try {
+            Path csvPath = resolveCSVPath();
+            InputStream fileCSV_IS = countBytes(openCSVStream(csvPath));
+            fileCSV = new CSVReader(new InputStreamReader(fileCSV_IS));
+            String[] check = fileCSV.readNext();
+            if (check != null
+                    && check.length >= minColumns
+                    && StringUtils.startsWithIgnoreCase(headerStartsWith,StringUtils.trimToEmpty(check[0]))
+                    ) {
+                return fileCSV;
+            } else {
+                throw new IllegalStateException(getPath()+" file and header do not appear valid (no "+headerStartsWith+" header or less than "+minColumns+" required columns");
+            }
+        } catch (Exception e) {
+            if (fileCSV != null) {
+                closeQuietly(fileCSV); // stops the decompressing if it was started
+            }
+            throw new IllegalStateException(getPath()+" CSV is invalid: "+e);
+        }
     }
 
+    /**
+     * Checks the CSV file header (only the header line is read, the file is closed again)
+     * @throws IllegalStateException if the file cannot be opened or the header is not valid
+     */
+    @Override
+    public void verify() {
+        closeQuietly(openCSV());
+    }
 
     /**
-     * Reads a CSV file and verifies basic infor about it
-     * @param minColumns min number of columns
-     * @param headerStartsWith expected header value
-     * @param reRead force reading the file again (otherwise it will use the existing copy)
-     * @return the CSVReader
-     * @throws IllegalStateException if we fail to produce the reader
-     */
-    CSVReader readCSVResource(int minColumns, String headerStartsWith, boolean reRead) {
-        if (this.reader == null || reRead) {
-            assert minColumns > 0 : "minColumns must be > 0: "+minColumns;
-            assert StringUtils.isNotBlank(headerStartsWith) : "headerStartsWith must not be blank: "+ getPath();
-            CSVReader fileCSV;
-            try {
-                Path csvPath = config.getApplicationHomeDirectory().resolve(Paths.get(getPath()));
-                InputStream fileCSV_IS = Files.newInputStream(csvPath);
-                fileCSV = new CSVReader(new InputStreamReader(fileCSV_IS));
-                String[] check = fileCSV.readNext();
-                if (check != null
-                        && check.length >= minColumns
-                        && StringUtils.startsWithIgnoreCase(headerStartsWith,StringUtils.trimToEmpty(check[0]))
-                        ) {
-                    //logger.debug(fileName+" file and header appear valid");
-                    this.reader = fileCSV;
-                } else {
-                    throw new IllegalStateException(getPath()+" file and header do not appear valid (no "+headerStartsWith+" header or less than "+minColumns+" required columns");
-                }
-            } catch (Exception e) {
-                throw new IllegalStateException(getPath()+" CSV is invalid: "+e);
-            }
+     * Opens the file, checks the header and reads all the records in a single pass (the file is closed when done)
+     */
+    @Override
+    public ReadResult readInputIntoDB() {
+        return readCSVFileIntoDB(openCSV());
+    }
+
+    /**
+     * @param csvPath the CSV file (gzip and zip compressed files are decompressed while they are read)
+     * @return the stream of the CSV data
+     * @throws IOException if the file cannot be opened
+     */
+    static InputStream openCSVStream(Path csvPath) throws IOException {
+        if (DecompressingInputStream.isCompressed(csvPath)) {
+            return new DecompressingInputStream(csvPath);
+        }
+        return Files.newInputStream(csvPath);
+    }
+
+    /**
+     * @return true if the CSV file is compressed (so it can only be read from the start, not in parts)
+     */
+    boolean isCompressed() {
+        return getPath() != null && DecompressingInputStream.isCompressed(resolveCSVPath());
+    }
+
+    /**
+     * @return the validation rules for each CSV column as SQL (for bulk loading) OR null if bulk loading is not supported
+     */
+    public BulkColumn[] getBulkColumns() {
+        return null;
+    }
+
+    @Override
+    public InputFingerprint makeFingerprint(boolean hash) {
+        if (getPath() == null) {
+            return null;
+        }
+        Path csvPath = resolveCSVPath();
+        return Files.isRegularFile(csvPath) ? makeFileFingerprint(getInputCollection(), csvPath, hash) : null;
+    }
+
+    /**
+     * @return the path to the CSV file (relative paths are relative to the application home dir)
+     */
+    Path resolveCSVPath() {
+        return config.getApplicationHomeDirectory().resolve(Paths.get(getPath()));
+    }
+
+    /**
+     * @param append if true, add to the reject file from the last read (otherwise it is replaced)
+     * @return the failures for a read of this CSV file (rejects go to {collection}-rejects.csv in the outputs dir if enabled)
+     */
+    InputFailures makeInputFailures(boolean append) {
+        return makeInputFailures(config, getInputCollection(), getHandledType(), append);
+    }
+
+    static void closeQuietly(CSVReader csvReader) {
+        try {
+            csvReader.close();
+        } catch (IOException e) {
+            // nothing to do
         }
-        return this.reader;
     }
 
     /**
-     * @param csvReader the csvReader used to read the file
+     * @param csvReader the csvReader used to read the file (positioned after the header, closed when done)
      * @return the results of the processing (line failures are recorded but will not stop the processing)
      * @throws IllegalArgumentException if the reader cannot be read
      */
     ReadResult readCSVFileIntoDB(CSVReader csvReader) {
         ReadResult result = new ReadResult(getPath());
-        String insertSQL = makeInsertSQL();
-        int[] insertTypes = makeInsertSQLParams();
-
         int line = 1;
+        try (InputFailures failures = makeInputFailures(false)) {
+            BatchInserter inserter = makeBatchInserter(config, failures);
+            Path csvPath = resolveCSVPath();
+            boolean compressed = isCompressed(); // already being decompressed by the reader
+            if (!compressed && config.isInputCSVBulk() && getBulkColumns() != null && H2BulkCSVLoader.isSupported(getTempDatabase())) {
+                // let the database read and validate the file (the header was already checked)
+                closeQuietly(csvReader);
+                int records = new H2BulkCSVLoader(getTempDatabase()).load(this, csvPath, getBulkColumns(), inserter, failures);
+                if (getMetrics() != null) {
+                    getMetrics().setBytes(csvPath.toFile().length());
+                }
+                result.done(line + records, failures);
+                return result;
+            }
+            int splitThreads = config.getInputCSVSplitThreads();
+            if (!compressed && splitThreads > 1 && csvPath.toFile().length() >= config.getInputCSVSplitMinSize()) {
+                // large file so split it up and read the parts in parallel (the header was already checked)
+                closeQuietly(csvReader);
+                long chunkBytes = Math.max(MIN_CHUNK_BYTES, csvPath.toFile().length() / (splitThreads * 4));
+                ChunkedCSVReader chunked = new ChunkedCSVReader(csvPath, splitThreads, chunkBytes);
+                int records;
+                try {
+                    records = chunked.readIntoDB(this, inserter, failures);
+                } finally {
+                    result.stages = chunked.getStages();
+                }
+                if (getMetrics() != null) {
+                    getMetrics().setBytes(csvPath.toFile().length());
+                }
+                result.done(line + records, failures);
+                return result;
+            }
+            line = readRecords(csvReader, line, inserter, failures, result);
+            result.done(line, failures);
+        } finally {
+            closeQuietly(csvReader);
+        }
+        return result;
+    }
+
+    /**
+     * Reads CSV data from a stream (e.g. a download) into the database as it arrives (nothing is staged on disk),
+     * the header must start with the first column and hold all the required columns
+     * @param source the name of the stream source (e.g. the URL)
+     * @param csvStream the CSV data (closed when done)
+     * @return the results of the processing
+     * @throws IllegalStateException if the header is not valid
+     * @throws IllegalArgumentException if the stream cannot be read
+     */
+    public ReadResult readCSVStreamIntoDB(String source, InputStream csvStream) {
+        ReadResult result = new ReadResult(source);
+        try (InputFailures failures = makeInputFailures(false);
+             CSVReader csvReader = new CSVReader(new InputStreamReader(csvStream))) {
+            checkStreamHeader(source, csvReader.readNext());
+            BatchInserter inserter = makeBatchInserter(config, failures);
+            int line = readRecords(csvReader, 1, inserter, failures, result);
+            result.done(line, failures);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the CSV from "+source+": "+e, e);
+        }
+        return result;
+    }
+
+    /**
+     * Checks the header of CSV data from a stream (e.g. a download) without reading any records
+     * @param source the name of the stream source (e.g. the URL)
+     * @param csvStream the CSV data (closed when done)
+     * @throws IllegalStateException if the header is not valid
+     * @throws IllegalArgumentException if the stream cannot be read
+     */
+    public void verifyCSVStream(String source, InputStream csvStream) {
+        try (CSVReader csvReader = new CSVReader(new InputStreamReader(csvStream))) {
+            checkStreamHeader(source, csvReader.readNext());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the CSV from "+source+": "+e, e);
+        }
+    }
+
+    /**
+     * @param source the name of the stream source
+     * @param header the header line
+     * @throws IllegalStateException if the header does not start with the first column and hold all the required columns
+     */
+    void checkStreamHeader(String source, String[] header) {
+        BulkColumn[] columns = getBulkColumns();
+        int required = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].isCannotBeBlank()) {
+                required = i + 1;
+            }
+        }
+        if (header == null || header.length < required
+                || !StringUtils.equalsIgnoreCase(StringUtils.trimToEmpty(header[0]), columns[0].getName())) {
+            throw new IllegalStateException(source+" header does not appear valid (no "+columns[0].getName()+" header or less than "+required+" required columns)");
+        }
+    }
+
+    /**
+     * Reads only the records appended to the CSV file since it was last loaded
+     * @param loaded the fingerprint of the file when it was last loaded (the records before its size were already loaded)
+     * @param current the fingerprint of the file now (records after its size are left for the next load)
+     * @return the results of the processing (total is the number of appended records)
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    ReadResult readCSVTailIntoDB(InputFingerprint loaded, InputFingerprint current) {
+        ReadResult result = new ReadResult(getPath());
+        // the rejects from the records loaded before are kept
+        try (InputFailures failures = makeInputFailures(true);
+             FileChannel channel = FileChannel.open(resolveCSVPath(), StandardOpenOption.READ)) {
+            BatchInserter inserter = makeBatchInserter(config, failures);
+            CSVReader csvReader = new CSVReader(new InputStreamReader(new ChunkedCSVReader.ChannelRangeInputStream(channel, loaded.getSize(), current.getSize())));
+            int line;
+            try {
+                line = readRecords(csvReader, loaded.getLines(), inserter, failures, result);
+            } finally {
+                closeQuietly(csvReader);
+            }
+            result.done(line - loaded.getLines(), failures);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("csvReader cannot read from file: "+e, e);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the remaining records into the DB
+     * @param csvReader the reader (positioned at the first record to read)
+     * @param line the number of the line before the first record to read
+     * @param inserter the batch writer for the converted rows (flushed when done)
+     * @param failures the failures to record failed lines into
+     * @param result the results of the read (the stage times are added if the records are read in stages)
+     * @return the number of the last line read
+     * @throws IllegalArgumentException if the reader cannot be read
+     */
+    int readRecords(CSVReader csvReader, int line, BatchInserter inserter, InputFailures failures, ReadResult result) {
+        int stageThreads = config.getInputCSVStageThreads();
+        if (stageThreads > 0) {
+            // parse, convert and insert on separate threads at the same time
+            StagedCSVReader staged = new StagedCSVReader(stageThreads, config.getInputCSVStageQueueSize(), inserter.getBatchSize());
+            try {
+                return staged.readIntoDB(csvReader, line, this, inserter, failures);
+            } finally {
+                result.stages = staged.getStages();
+            }
+        }
         String[] csvLine;
-        ArrayList<String> failures = new ArrayList<>();
         try {
             while ((csvLine = csvReader.readNext()) != null) { // IOException
                 line++;
                 try {
                     trimStringArrayToNull(csvLine);
                     Object[] params = validateAndConvertParams(csvLine);
-                    getTempDatabase().update(insertSQL, params, insertTypes);
+                    inserter.add(line, params);
                 } catch (Exception e) {
-                    String msg = getHandledType()+" line "+line+": "+e.getMessage();
-                    if (logger.isDebugEnabled()) logger.debug(msg, e); // to help in fixing the problem
-                    failures.add(msg);
+                    if (logger.isDebugEnabled()) logger.debug(getHandledType()+" line "+line+": "+e.getMessage(), e); // to help in fixing the problem
+                    failures.add(InputFailures.Category.INVALID, line, e.getMessage(), csvLine);
                 }
             }
         } catch (IOException e) {
             throw new IllegalArgumentException("csvReader cannot read from file: "+e,e);
+        } finally {
+            inserter.flush(); // send the last partial batch
         }
-        result.done(line, failures);
-        return result;
+        return line;
     }
 
     @Override
@@ -169,4 +400,9 @@ public abstract class BaseCSVInputHandler extends BaseInputHandler implements CS
     public void setPath(String path) {
         this.path = path;
     }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ":" + getInputCollection() + ", path=" + path;
+    }
 }
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.csv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The validation and conversion rules for a single CSV column written as SQL,
+ * used to validate and convert a whole file at once in the database (bulk loading).
+ * The factory methods match the BaseInputHandler parse* methods (and their failure messages)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class BulkColumn {
+
+    enum Kind {
+        STRING, INTEGER, FLOAT, BOOLEAN, DATETIME
+    }
+
+    static final String INTEGER_REGEX = "^[-+]?[0-9]{1,10}$";
+    static final String FLOAT_REGEX = "^[-+]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][-+]?[0-9]+)?$";
+    static final String DATETIME_REGEX = "^[0-9]{4}-[0-9]{2}-[0-9]{2}(T[0-9]{2}:[0-9]{2}(:[0-9]{2}([-+][0-9]{2}:?[0-9]{2})?)?)?$";
+
+    final String name;
+    final Kind kind;
+    final boolean cannotBeBlank;
+    final Number min;
+    final Number max;
+    final String[] valid;
+    String convertSQL;
+
+    BulkColumn(String name, Kind kind, boolean cannotBeBlank, Number min, Number max, String[] valid) {
+        assert StringUtils.isNotBlank(name);
+        this.name = name;
+        this.kind = kind;
+        this.cannotBeBlank = cannotBeBlank;
+        this.min = min;
+        this.max = max;
+        this.valid = valid;
+    }
+
+    /**
+     * @see org.apereo.lap.services.input.handlers.FieldDecoder#decodeString(String, String[], boolean, String)
+     */
+    public static BulkColumn string(String name, String[] valid, boolean cannotBeBlank) {
+        return new BulkColumn(name, Kind.STRING, cannotBeBlank, null, null, valid);
+    }
+
+    /**
+     * @see org.apereo.lap.services.input.handlers.FieldDecoder#decodeInt(String, int, int, boolean, String)
+     */
+    public static BulkColumn integer(String name, Integer min, Integer max, boolean cannotBeBlank) {
+        return new BulkColumn(name, Kind.INTEGER, cannotBeBlank, min, max, null);
+    }
+
+    /**
+     * @see org.apereo.lap.services.input.handlers.FieldDecoder#decodeFloat(String, float, float, boolean, String)
+     */
+    public static BulkColumn decimal(String name, Float min, Float max, boolean cannotBeBlank) {
+        return new BulkColumn(name, Kind.FLOAT, cannotBeBlank, min, max, null);
+    }
+
+    /**
+     * @see org.apereo.lap.services.input.handlers.FieldDecoder#decodeBoolean(String, boolean, String)
+     */
+    public static BulkColumn bool(String name, boolean cannotBeBlank) {
+        return new BulkColumn(name, Kind.BOOLEAN, cannotBeBlank, null, null, null);
+    }
+
+    /**
+     * @see org.apereo.lap.services.input.handlers.FieldDecoder#decodeDateTime(String, boolean, String)
+     */
+    public static BulkColumn dateTime(String name, boolean cannotBeBlank) {
+        return new BulkColumn(name, Kind.DATETIME, cannotBeBlank, null, null, null);
+    }
+
+    /**
+     * Replaces the standard conversion of the (valid) value with custom SQL
+     * @param sql the SQL expression for the converted value, %1$s is replaced by the column
+     * @return this column
+     */
+    public BulkColumn convert(String sql) {
+        this.convertSQL = sql;
+        return this;
+    }
+
+    /**
+     * @param column the CSV column which holds the trimmed value (null if blank)
+     * @return the list of "WHEN invalid THEN reason" SQL clauses (in the order they should be checked)
+     */
+    List<String> makeRejectSQL(String column) {
+        List<String> clauses = new ArrayList<>();
+        if (cannotBeBlank) {
+            clauses.add("WHEN "+column+" IS NULL THEN '"+name+" (null) cannot be blank'");
+        }
+        String value = "', "+column+", '";
+        switch (kind) {
+            case STRING:
+                if (valid != null && valid.length > 0) {
+                    clauses.add("WHEN "+column+" NOT IN ("+makeInList(valid)+") THEN CONCAT('"+name+" ("+value+") must be in the valid set: "+escape(ArrayUtils.toString(valid))+"')");
+                }
+                break;
+            case INTEGER:
+                clauses.add("WHEN NOT ("+column+" REGEXP '"+INTEGER_REGEX+"') OR CAST("+column+" AS BIGINT) NOT BETWEEN "+Integer.MIN_VALUE+" AND "+Integer.MAX_VALUE+" THEN CONCAT('"+name+" ("+value+") must be an integer')");
+                addRangeSQL(clauses, column, "BIGINT", "integer");
+                break;
+            case FLOAT:
+                clauses.add("WHEN NOT ("+column+" REGEXP '"+FLOAT_REGEX+"') THEN CONCAT('"+name+" ("+value+") must be a float')");
+                addRangeSQL(clauses, column, "DOUBLE", "number");
+                break;
+            case DATETIME:
+                clauses.add("WHEN NOT ("+column+" REGEXP '"+DATETIME_REGEX+"') THEN CONCAT('"+name+" ("+value+") cannot be parsed into a Timestamp/Date, format should be ISO-8601 (yyyy-MM-dd''T''HH:mm, e.g. 2014-02-03T12:34)')");
+                break;
+            default:
+                // BOOLEAN is always valid
+        }
+        return clauses;
+    }
+
+    private void addRangeSQL(List<String> clauses, String column, String castType, String typeName) {
+        if (min != null) {
+            clauses.add("WHEN CAST("+column+" AS "+castType+") < "+min+" THEN CONCAT('"+name+" "+typeName+" (', "+column+", ') is less than the minimum ("+min+")')");
+        }
+        if (max != null) {
+            clauses.add("WHEN CAST("+column+" AS "+castType+") > "+max+" THEN CONCAT('"+name+" "+typeName+" (', "+column+", ') is greater than the maximum ("+max+")')");
+        }
+    }
+
+    /**
+     * @param column the CSV column which holds the trimmed value (null if blank)
+     * @return the SQL expression for the converted (valid) value
+     */
+    String makeValueSQL(String column) {
+        if (convertSQL != null) {
+            return String.format(convertSQL, column);
+        }
+        switch (kind) {
+            case INTEGER:
+                return "CAST("+column+" AS INTEGER)";
+            case FLOAT:
+                return "CAST("+column+" AS REAL)";
+            case BOOLEAN:
+                return "CASE WHEN "+column+" IS NULL THEN NULL WHEN UPPER("+column+") IN ('T','Y','YES','TRUE') THEN TRUE ELSE FALSE END";
+            case DATETIME:
+                // CAST is much faster than PARSEDATETIME so it is used when there is no time zone
+                return "CASE LENGTH("+column+")"
+                        + " WHEN 10 THEN CAST("+column+" AS TIMESTAMP)"
+                        + " WHEN 16 THEN CAST(CONCAT(REPLACE("+column+", 'T', ' '), ':00') AS TIMESTAMP)"
+                        + " WHEN 19 THEN CAST(REPLACE("+column+", 'T', ' ') AS TIMESTAMP)"
+                        + " WHEN 24 THEN PARSEDATETIME("+column+", 'yyyy-MM-dd''T''HH:mm:ssXX')"
+                        + " ELSE PARSEDATETIME("+column+", 'yyyy-MM-dd''T''HH:mm:ssXXX') END";
+            default:
+                return column;
+        }
+    }
+
+    static String makeInList(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append('\'').append(escape(value)).append('\'');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the name of the column (matches the CSV header and the temp table column)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the column value cannot be blank
+     */
+    public boolean isCannotBeBlank() {
+        return cannotBeBlank;
+    }
+
+    static String escape(String sqlString) {
+        return StringUtils.replace(sqlString, "'", "''");
+    }
+
+    @Override
+    public String toString() {
+        return "BulkColumn:" + name + ", " + kind;
+    }
+}
@@ -36,13 +36,12 @@ public interface CSVInputHandler extends InputHandler {
     void setPath(String path);
 
     /**
-     * Read in the CSV file (does not process it, only the header line)
-     * NOTE: the implementation SHOULD cache this so it is not rebuilt every time this method is called (unless reRead is true)
-     * @param reRead force reading the file again (otherwise it will use the cached copy)
-     * @return the CSVReader
-     * @throws IllegalStateException if we fail to produce the reader
+     * Opens the CSV file and checks the header line (does not read any records)
+     * NOTE: the reader is not kept by the handler, the caller MUST close it
+     * @return the CSVReader positioned at the first record
+     * @throws IllegalStateException if the file cannot be opened or the header is not valid
      */
-    CSVReader readCSV(boolean reRead);
+    CSVReader openCSV();
 
     int getOrder();
 }
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.RowBatch;
+import org.apereo.lap.services.input.handlers.StageStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import au.com.bytecode.opencsv.CSVParser;
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Reads a single large CSV file using multiple threads.
+ *
+ * The file is scanned once (bytes only, no parsing) to split it into chunks which start and end
+ * on record boundaries (newlines inside quoted values are not boundaries), then each chunk is parsed
+ * and converted on a worker thread and the converted rows are sent to a single batch writer.
+ * Line numbers are the CSV record numbers (header is line 1) so failures match the single thread reader.
+ * The split, convert and write stages are counted the same way as a {@link StagedCSVReader} (see {@link #getStages()}).
+ *
+ * NOTE: the file charset must be ASCII compatible (e.g. UTF-8, ISO-8859-1) so the quote and newline bytes can be found
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class ChunkedCSVReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedCSVReader.class);
+
+    static final int SCAN_BUFFER_SIZE = 256 * 1024;
+
+    final Path csvPath;
+    final int threads;
+    final long chunkBytes;
+    final StageStats splitStage;
+    final StageStats convertStage;
+    final StageStats writeStage;
+
+    /**
+     * @param csvPath the CSV file to read
+     * @param threads the number of parsing threads to use
+     * @param chunkBytes the target size (in bytes) of each chunk (chunks end on the first record boundary after this size)
+     */
+    public ChunkedCSVReader(Path csvPath, int threads, long chunkBytes) {
+        assert csvPath != null;
+        this.csvPath = csvPath;
+        this.threads = Math.max(1, threads);
+        this.chunkBytes = Math.max(1, chunkBytes);
+        splitStage = new StageStats("split", 1);
+        convertStage = new StageStats("convert", this.threads);
+        writeStage = new StageStats("write", 1);
+    }
+
+    /**
+     * A byte range of the file which holds only complete records
+     */
+    static class Chunk {
+        final long start;
+        final long end;
+        /**
+         * line (record) number of the first record in this chunk
+         */
+        final int firstLine;
+        final int records;
+
+        Chunk(long start, long end, int firstLine, int records) {
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+            this.records = records;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk:" + start + "-" + end + ", firstLine=" + firstLine + ", records=" + records;
+        }
+    }
+
+    /**
+     * Scans the file and splits it into chunks of complete records (skipping the header record)
+     * @param channel the open file channel
+     * @return the list of chunks in file order (empty if there are no records after the header)
+     * @throws IOException if the file cannot be read
+     */
+    List<Chunk> split(FileChannel channel) throws IOException {
+        Splitter splitter = new Splitter();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE);
+        long position = 0;
+        boolean inQuotes = false;
+        boolean escaped = false;
+        boolean lastCR = false;
+        int read;
+        while ((read = channel.read(buffer, position)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (lastCR) {
+                    // a CR ends the record but a CRLF ends it after the LF
+                    lastCR = false;
+                    if (b == '\n') {
+                        splitter.endRecord(position + i + 1);
+                        continue;
+                    }
+                    splitter.endRecord(position + i);
+                }
+                if (escaped) {
+                    escaped = false;
+                } else if (inQuotes) {
+                    if (b == CSVParser.DEFAULT_ESCAPE_CHARACTER) {
+                        escaped = true;
+                    } else if (b == CSVParser.DEFAULT_QUOTE_CHARACTER) {
+                        inQuotes = false;
+                    }
+                } else if (b == CSVParser.DEFAULT_QUOTE_CHARACTER) {
+                    inQuotes = true;
+                } else if (b == '\r') {
+                    lastCR = true;
+                } else if (b == '\n') {
+                    splitter.endRecord(position + i + 1);
+                }
+            }
+            position += read;
+            buffer.clear();
+        }
+        splitter.endFile(position);
+        return splitter.chunks;
+    }
+
+    /**
+     * Tracks the record boundaries found while scanning and cuts the chunks
+     */
+    class Splitter {
+        final List<Chunk> chunks = new ArrayList<>();
+        long recordStart = 0;
+        long chunkStart = -1; // -1 until the header is done
+        int chunkRecords = 0;
+        int line = 1; // the header
+
+        void endRecord(long nextRecordStart) {
+            recordStart = nextRecordStart;
+            if (chunkStart < 0) {
+                chunkStart = nextRecordStart; // header done
+            } else {
+                chunkRecords++;
+                if (nextRecordStart - chunkStart >= chunkBytes) {
+                    cut(nextRecordStart);
+                }
+            }
+        }
+
+        void endFile(long fileSize) {
+            if (chunkStart >= 0) {
+                if (recordStart < fileSize) {
+                    chunkRecords++; // last record has no newline
+                }
+                if (chunkRecords > 0) {
+                    cut(fileSize);
+                }
+            }
+        }
+
+        void cut(long chunkEnd) {
+            chunks.add(new Chunk(chunkStart, chunkEnd, line + 1, chunkRecords));
+            line += chunkRecords;
+            chunkStart = chunkEnd;
+            chunkRecords = 0;
+        }
+    }
+
+    /**
+     * Reads all the records (after the header) from the file into the database
+     * @param handler the handler which validates and converts each record
+     * @param inserter the batch writer for the converted rows (only used from the calling thread)
+     * @param failures the failures to record failed lines into (shared by all the parsing threads)
+     * @return the number of records read (not including the header)
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    public int readIntoDB(final InputHandler handler, BatchInserter inserter, final InputFailures failures) {
+        assert handler != null;
+        assert inserter != null;
+        assert failures != null;
+        final int batchSize = inserter.getBatchSize();
+        try (final FileChannel channel = FileChannel.open(csvPath, StandardOpenOption.READ)) {
+            splitStage.start();
+            List<Chunk> chunks;
+            try {
+                chunks = split(channel);
+            } finally {
+                splitStage.end();
+            }
+            int records = 0;
+            for (Chunk chunk : chunks) {
+                records += chunk.records;
+            }
+            splitStage.addBusy(records, splitStage.getElapsedNanos());
+            logger.info(csvPath.getFileName()+" split into "+chunks.size()+" chunks ("+records+" records) in "+(splitStage.getElapsedNanos() / 1000000)+" ms, reading with "+threads+" threads");
+            if (chunks.isEmpty()) {
+                return 0;
+            }
+            final BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<>(threads * 2);
+            final AtomicReference<Exception> error = new AtomicReference<>();
+            final AtomicInteger chunksLeft = new AtomicInteger(chunks.size());
+            convertStage.start();
+            writeStage.start();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunks.size()), new CustomizableThreadFactory("lap-csv-"));
+            try {
+                for (final Chunk chunk : chunks) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (error.get() == null) {
+                                    readChunk(channel, chunk, handler, batchSize, queue, failures);
+                                }
+                            } catch (Exception e) {
+                                error.compareAndSet(null, e);
+                            } finally {
+                                if (chunksLeft.decrementAndGet() == 0) {
+                                    convertStage.end();
+                                }
+                                try {
+                                    queue.put(RowBatch.DONE);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        }
+                    });
+                }
+                // write everything the workers produce from this thread
+                int chunksDone = 0;
+                while (chunksDone < chunks.size()) {
+                    long waitStart = System.nanoTime();
+                    RowBatch batch = queue.take();
+                    long start = System.nanoTime();
+                    writeStage.addInputWait(start - waitStart);
+                    if (batch == RowBatch.DONE) {
+                        chunksDone++;
+                    } else {
+                        batch.insert(inserter);
+                        writeStage.addBusy(batch.rows.size(), System.nanoTime() - start);
+                    }
+                }
+                inserter.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException("Interrupted while reading "+csvPath+": "+e, e);
+            } finally {
+                executor.shutdownNow();
+                writeStage.end();
+            }
+            if (error.get() != null) {
+                throw new IllegalArgumentException("csvReader cannot read from file: "+error.get(), error.get());
+            }
+            logger.info(csvPath.getFileName()+" chunked read of "+records+" records: "+splitStage+"; "+convertStage+"; "+writeStage);
+            return records;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("csvReader cannot read from file: "+e, e);
+        }
+    }
+
+    /**
+     * Parses and converts a single chunk, converted rows are put on the queue in batches
+     */
+    void readChunk(FileChannel channel, Chunk chunk, InputHandler handler, int batchSize, BlockingQueue<RowBatch> queue, InputFailures failures) throws IOException, InterruptedException {
+        CSVReader csvReader = new CSVReader(new InputStreamReader(new ChannelRangeInputStream(channel, chunk.start, chunk.end)));
+        try {
+            int line = chunk.firstLine - 1;
+            RowBatch batch = new RowBatch(batchSize);
+            String[] csvLine;
+            int converted = 0; // records since the last batch was sent
+            long start = System.nanoTime();
+            while ((csvLine = csvReader.readNext()) != null) {
+                line++;
+                converted++;
+                try {
+                    FieldDecoder.trimToNull(csvLine);
+                    Object[] params = handler.validateAndConvertParams(csvLine);
+                    if (batch.add(line, params)) {
+                        long now = System.nanoTime();
+                        convertStage.addBusy(converted, now - start);
+                        converted = 0;
+                        queue.put(batch);
+                        start = System.nanoTime();
+                        convertStage.addOutputWait(start - now);
+                        batch = new RowBatch(batchSize);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (logger.isDebugEnabled()) logger.debug(handler.getHandledType()+" line "+line+": "+e.getMessage(), e); // to help in fixing the problem
+                    failures.add(InputFailures.Category.INVALID, line, e.getMessage(), csvLine);
+                }
+            }
+            long now = System.nanoTime();
+            convertStage.addBusy(converted, now - start);
+            if (!batch.isEmpty()) {
+                queue.put(batch);
+                convertStage.addOutputWait(System.nanoTime() - now);
+            }
+        } finally {
+            csvReader.close();
+        }
+    }
+
+    /**
+     * @return the counters for the split, convert and write stages (in that order)
+     */
+    public List<StageStats> getStages() {
+        return Arrays.asList(splitStage, convertStage, writeStage);
+    }
+
+    /**
+     * Reads a byte range of a file channel using positional reads (so many can share the same channel)
+     */
+    static class ChannelRangeInputStream extends InputStream {
+        final FileChannel channel;
+        final long end;
+        long position;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() {
+            // the channel is shared, it is closed by the owner
+        }
+    }
+}
@@ -18,6 +18,7 @@ import java.sql.Types;
 
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -31,6 +32,14 @@ public class CourseCSVInputHandler extends BaseCSVInputHandler {
             Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BOOLEAN
     };
 
+    static final BulkColumn[] BULK_COLUMNS = new BulkColumn[] {
+            // MUST match validateAndConvertParams
+            BulkColumn.string("COURSE_ID", null, true),
+            BulkColumn.string("SUBJECT", null, false),
+            BulkColumn.integer("ENROLLMENT", 0, null, false),
+            BulkColumn.bool("ONLINE_FLAG", false)
+    };
+
     public CourseCSVInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
         super(configuration, jdbcTemplate);
     }
@@ -51,29 +60,29 @@ public class CourseCSVInputHandler extends BaseCSVInputHandler {
     }
 
     @Override
-    public BaseInputHandlerService.InputCollection getInputCollection() {
-        return BaseInputHandlerService.InputCollection.COURSE;
+    public BulkColumn[] getBulkColumns() {
+        return BULK_COLUMNS;
     }
 
     @Override
-    public CSVReader readCSV(boolean reRead) {
-        return readCSV(4, "COURSE_ID", reRead);
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return BaseInputHandlerService.InputCollection.COURSE;
     }
 
     @Override
-    public ReadResult readInputIntoDB() {
-        CSVReader reader = readCSV(false);
-        return readCSVFileIntoDB(reader);
+    public CSVReader openCSV() {
+        return openCSV(4, "COURSE_ID");
     }
 
     @Override
     public Object[] validateAndConvertParams(String[] csvLine) {
         assert csvLine != null && csvLine.length > 0;
-        Object[] params = new Object[csvLine.length];
-        params[0] = parseString(csvLine[0], null, true, "COURSE_ID");
-        params[1] = parseString(csvLine[1], null, false, "SUBJECT");
-        params[2] = parseInt(csvLine[2], 0, null, false, "ENROLLMENT");
-        params[3] = parseBoolean(csvLine[3], false, "ONLINE_FLAG");
+        FieldDecoder decoder = FieldDecoder.get();
+        Object[] params = new Object[SQL_TYPES.length];
+        params[0] = decoder.decodeString(csvLine[0], null, true, "COURSE_ID");
+        params[1] = decoder.decodeString(csvLine[1], null, false, "SUBJECT");
+        params[2] = decoder.decodeInt(csvLine[2], 0, Integer.MAX_VALUE, false, "ENROLLMENT");
+        params[3] = decoder.decodeBoolean(csvLine[3], false, "ONLINE_FLAG");
         return params;
     }
 
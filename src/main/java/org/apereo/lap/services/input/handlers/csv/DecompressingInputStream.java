@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.csv;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Reads a compressed (gzip or zip) file which is decompressed by a separate thread,
+ * the decompressed data is passed through a fixed set of buffers so decompressing and parsing overlap
+ * without decompressing the whole file to disk (or memory) first.
+ *
+ * Zip files must hold a single file (the first file in the zip is read).
+ * NOTE: this must be closed if it is not read to the end (otherwise the decompressing thread waits for it)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class DecompressingInputStream extends InputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(DecompressingInputStream.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFERS = 16;
+
+    private static final CustomizableThreadFactory THREAD_FACTORY = new CustomizableThreadFactory("lap-inflate-");
+    static {
+        THREAD_FACTORY.setDaemon(true);
+    }
+
+    /**
+     * A buffer of decompressed data (the buffers are reused)
+     */
+    static class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+    static final Block END = new Block(0);
+
+    final Path file;
+    final BlockingQueue<Block> full;
+    final BlockingQueue<Block> free;
+    final Thread decompressor;
+    volatile IOException error;
+    volatile boolean closed = false;
+    Block current;
+    int position;
+
+    /**
+     * @param file the compressed file (gzip or zip)
+     * @param bufferSize the size of each buffer
+     * @param buffers the number of buffers (max amount of decompressed data waiting to be read)
+     * @throws IOException if the file cannot be opened (or is not a valid compressed file)
+     */
+    public DecompressingInputStream(Path file, int bufferSize, int buffers) throws IOException {
+        assert file != null;
+        assert bufferSize > 0;
+        assert buffers > 0;
+        this.file = file;
+        this.full = new ArrayBlockingQueue<>(buffers + 1); // room for the END block
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Block(bufferSize));
+        }
+        // the header is read here so invalid files fail right away
+        final InputStream source = openDecompressed(file);
+        this.decompressor = THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                decompress(source);
+            }
+        });
+        this.decompressor.start();
+    }
+
+    public DecompressingInputStream(Path file) throws IOException {
+        this(file, BUFFER_SIZE, BUFFERS);
+    }
+
+    /**
+     * @param file any file
+     * @return true if the file is gzip or zip compressed (based on the name)
+     */
+    public static boolean isCompressed(Path file) {
+        String name = file.getFileName().toString();
+        return StringUtils.endsWithIgnoreCase(name, ".gz")
+                || StringUtils.endsWithIgnoreCase(name, ".gzip")
+                || StringUtils.endsWithIgnoreCase(name, ".zip");
+    }
+
+    /**
+     * @param file the compressed file
+     * @return the stream of the decompressed file content (read in the calling thread)
+     * @throws IOException if the file cannot be opened or is not a valid compressed file
+     */
+    static InputStream openDecompressed(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+        try {
+            if (StringUtils.endsWithIgnoreCase(file.getFileName().toString(), ".zip")) {
+                ZipInputStream zip = new ZipInputStream(in);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null && entry.isDirectory()) {
+                    // skip to the first file
+                }
+                if (entry == null) {
+                    throw new IOException("zip file has no files in it: "+file);
+                }
+                logger.debug("Reading "+entry.getName()+" from "+file);
+                return zip;
+            }
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    void decompress(InputStream source) {
+        try {
+            while (!closed) {
+                Block block = free.take();
+                int read = source.read(block.data, 0, block.data.length);
+                if (read == -1) {
+                    break;
+                }
+                block.length = read;
+                full.put(block);
+            }
+        } catch (InterruptedException e) {
+            // closed by the reader
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            // the full queue always has room for this
+            full.offer(END);
+        }
+    }
+
+    /**
+     * @return the current block with data to read OR null if there is no more data
+     * @throws IOException if the decompressing failed
+     */
+    private Block nextBlock() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: "+file);
+        }
+        if (current != null && position < current.length) {
+            return current;
+        }
+        if (current == END) {
+            return null;
+        }
+        if (current != null) {
+            free.offer(current);
+        }
+        try {
+            current = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading "+file);
+        }
+        position = 0;
+        if (current == END) {
+            if (error != null) {
+                throw new IOException("Unable to decompress "+file+": "+error, error);
+            }
+            return null;
+        }
+        return current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Block block = nextBlock();
+        if (block == null) {
+            return -1;
+        }
+        return block.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Block block = nextBlock();
+        if (block == null) {
+            return -1;
+        }
+        int count = Math.min(len, block.length - position);
+        System.arraycopy(block.data, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current != null && current != END ? current.length - position : 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            decompressor.interrupt();
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ import java.sql.Types;
 
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -33,6 +34,16 @@ public class EnrollmentCSVInputHandler extends BaseCSVInputHandler {
             Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP
     };
 
+    static final String[] FINAL_GRADES = new String[] {"A","A-","B+","B","B-","C+","C","C-","D+","D","D-","F","I","W"};
+
+    static final BulkColumn[] BULK_COLUMNS = new BulkColumn[] {
+            // MUST match validateAndConvertParams
+            BulkColumn.string("ALTERNATIVE_ID", null, true),
+            BulkColumn.string("COURSE_ID", null, true),
+            BulkColumn.string("FINAL_GRADE", FINAL_GRADES, false),
+            BulkColumn.dateTime("WITHDRAWAL_DATE", false)
+    };
+
     public EnrollmentCSVInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
         super(configuration, jdbcTemplate);
     }
@@ -53,29 +64,29 @@ public class EnrollmentCSVInputHandler extends BaseCSVInputHandler {
     }
 
     @Override
-    public BaseInputHandlerService.InputCollection getInputCollection() {
-        return BaseInputHandlerService.InputCollection.ENROLLMENT;
+    public BulkColumn[] getBulkColumns() {
+        return BULK_COLUMNS;
     }
 
     @Override
-    public CSVReader readCSV(boolean reRead) {
-        return readCSV(4, "ALTERNATIVE_ID", reRead);
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return BaseInputHandlerService.InputCollection.ENROLLMENT;
     }
 
     @Override
-    public ReadResult readInputIntoDB() {
-        CSVReader reader = readCSV(false);
-        return readCSVFileIntoDB(reader);
+    public CSVReader openCSV() {
+        return openCSV(4, "ALTERNATIVE_ID");
     }
 
     @Override
     public Object[] validateAndConvertParams(String[] csvLine) {
         assert csvLine != null && csvLine.length > 0;
-        Object[] params = new Object[csvLine.length];
-        params[0] = parseString(csvLine[0], null, true, "ALTERNATIVE_ID");
-        params[1] = parseString(csvLine[1], null, true, "COURSE_ID");
-        params[2] = parseString(csvLine[2], new String[] {"A","A-","B+","B","B-","C+","C","C-","D+","D","D-","F","I","W"}, false, "FINAL_GRADE");
-        params[3] = parseDateTime(csvLine[3], false, "WITHDRAWAL_DATE");
+        FieldDecoder decoder = FieldDecoder.get();
+        Object[] params = new Object[SQL_TYPES.length];
+        params[0] = decoder.decodeString(csvLine[0], null, true, "ALTERNATIVE_ID");
+        params[1] = decoder.decodeString(csvLine[1], null, true, "COURSE_ID");
+        params[2] = decoder.decodeString(csvLine[2], FINAL_GRADES, false, "FINAL_GRADE");
+        params[3] = decoder.decodeDateTime(csvLine[3], false, "WITHDRAWAL_DATE");
         return params;
     }
 
@@ -18,6 +18,7 @@ import java.sql.Types;
 
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -35,6 +36,18 @@ public class GradeCSVInputHandler extends BaseCSVInputHandler {
             Types.INTEGER, Types.INTEGER, Types.FLOAT, Types.TIMESTAMP
     };
 
+    static final BulkColumn[] BULK_COLUMNS = new BulkColumn[] {
+            // MUST match validateAndConvertParams
+            BulkColumn.string("ALTERNATIVE_ID", null, true),
+            BulkColumn.string("COURSE_ID", null, true),
+            BulkColumn.string("GRADABLE_OBJECT", null, true),
+            BulkColumn.string("CATEGORY", null, false),
+            BulkColumn.decimal("MAX_POINTS", 0f, 1000f, false),
+            BulkColumn.decimal("EARNED_POINTS", 0f, 1000f, false),
+            BulkColumn.decimal("WEIGHT", 0f, 1f, false),
+            BulkColumn.dateTime("GRADE_DATE", false)
+    };
+
     public GradeCSVInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
         super(configuration, jdbcTemplate);
     }
@@ -54,33 +67,33 @@ public class GradeCSVInputHandler extends BaseCSVInputHandler {
     }
 
     @Override
-    public BaseInputHandlerService.InputCollection getInputCollection() {
-        return BaseInputHandlerService.InputCollection.GRADE;
+    public BulkColumn[] getBulkColumns() {
+        return BULK_COLUMNS;
     }
 
     @Override
-    public CSVReader readCSV(boolean reRead) {
-        return readCSV(8, "ALTERNATIVE_ID", reRead);
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return BaseInputHandlerService.InputCollection.GRADE;
     }
 
     @Override
-    public ReadResult readInputIntoDB() {
-        CSVReader reader = readCSV(false);
-        return readCSVFileIntoDB(reader);
+    public CSVReader openCSV() {
+        return openCSV(8, "ALTERNATIVE_ID");
     }
 
     @Override
     public Object[] validateAndConvertParams(String[] csvLine) {
         assert csvLine != null && csvLine.length > 0;
-        Object[] params = new Object[csvLine.length];
-        params[0] = parseString(csvLine[0], null, true, "ALTERNATIVE_ID");
-        params[1] = parseString(csvLine[1], null, true, "COURSE_ID");
-        params[2] = parseString(csvLine[2], null, true, "GRADABLE_OBJECT");
-        params[3] = parseString(csvLine[3], null, false, "CATEGORY");
-        params[4] = parseFloat(csvLine[4], 0f, 1000f, false, "MAX_POINTS"); // default 0
-        params[5] = parseFloat(csvLine[5], 0f, 1000f, false, "EARNED_POINTS"); // default 0
-        params[6] = parseFloat(csvLine[6], 0f, 1f, false, "WEIGHT");
-        params[7] = parseDateTime(csvLine[7], false, "GRADE_DATE");
+        FieldDecoder decoder = FieldDecoder.get();
+        Object[] params = new Object[SQL_TYPES.length];
+        params[0] = decoder.decodeString(csvLine[0], null, true, "ALTERNATIVE_ID");
+        params[1] = decoder.decodeString(csvLine[1], null, true, "COURSE_ID");
+        params[2] = decoder.decodeString(csvLine[2], null, true, "GRADABLE_OBJECT");
+        params[3] = decoder.decodeString(csvLine[3], null, false, "CATEGORY");
+        params[4] = decoder.decodeFloat(csvLine[4], 0f, 1000f, false, "MAX_POINTS"); // default 0
+        params[5] = decoder.decodeFloat(csvLine[5], 0f, 1000f, false, "EARNED_POINTS"); // default 0
+        params[6] = decoder.decodeFloat(csvLine[6], 0f, 1f, false, "WEIGHT");
+        params[7] = decoder.decodeDateTime(csvLine[7], false, "GRADE_DATE");
         return params;
     }
 
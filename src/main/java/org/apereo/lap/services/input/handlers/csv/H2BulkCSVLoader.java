@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.csv;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * Loads a CSV file into the H2 temp database without reading it in java:
+ * the file is read by H2 (CSVREAD) and validated with SQL, the rejected lines are stored in INPUT_REJECTS
+ * and the valid rows are converted and copied into the target table with a single INSERT ... SELECT.
+ *
+ * If the copy fails (e.g. duplicate keys) the valid rows are inserted through the batch inserter instead
+ * so the failing lines are still reported.
+ * NOTE: H2 skips blank lines so line numbers will not match the other readers if the file has blank lines
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class H2BulkCSVLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(H2BulkCSVLoader.class);
+
+    public static final String REJECTS_TABLE = "INPUT_REJECTS";
+
+    final JdbcTemplate jdbc;
+
+    public H2BulkCSVLoader(JdbcTemplate jdbcTemplate) {
+        assert jdbcTemplate != null;
+        this.jdbc = jdbcTemplate;
+    }
+
+    /**
+     * @param jdbcTemplate the temp database
+     * @return true if the database can bulk load CSV files (is H2)
+     */
+    public static boolean isSupported(JdbcTemplate jdbcTemplate) {
+        try {
+            String product = (String) JdbcUtils.extractDatabaseMetaData(jdbcTemplate.getDataSource(), "getDatabaseProductName");
+            return "H2".equalsIgnoreCase(product);
+        } catch (MetaDataAccessException e) {
+            logger.warn("Unable to check the temp database type (bulk loading is disabled): "+e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads all the records (after the header) from the file into the database
+     * @param handler the handler for the file (provides the insert SQL and the collection)
+     * @param csvPath the CSV file to load
+     * @param columns the validation rules for each column (MUST be in the same order as the insert SQL)
+     * @param inserter the batch writer used if the bulk copy fails (or if it filters out duplicates)
+     * @param failures the failures to record the rejected lines into
+     * @return the number of records read (not including the header)
+     */
+    public int load(InputHandler handler, Path csvPath, BulkColumn[] columns, BatchInserter inserter, final InputFailures failures) {
+        assert handler != null;
+        assert csvPath != null;
+        assert columns != null && columns.length > 0;
+        String collection = handler.getInputCollection().name();
+        String insertSQL = handler.makeInsertSQL();
+        int valuesIndex = StringUtils.indexOfIgnoreCase(insertSQL, " VALUES");
+        assert valuesIndex > 0 : "insert SQL must be INSERT INTO T (cols) VALUES (...): "+insertSQL;
+
+        StringBuilder csvColumns = new StringBuilder();
+        StringBuilder trimmedColumns = new StringBuilder();
+        StringBuilder valueColumns = new StringBuilder();
+        StringBuilder reason = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            String column = "C"+i;
+            if (i > 0) {
+                csvColumns.append(',');
+                trimmedColumns.append(", ");
+                valueColumns.append(", ");
+            }
+            csvColumns.append(column);
+            // same as StringUtils.trimToNull (only use the regex when the value starts or ends with a space or control char)
+            trimmedColumns.append("NULLIF(CASE WHEN LEFT(").append(column).append(",1) > ' ' AND RIGHT(").append(column).append(",1) > ' ' THEN ").append(column)
+                    .append(" ELSE REGEXP_REPLACE(").append(column).append(", '^[\\x00-\\x20]+|[\\x00-\\x20]+$', '') END, '') AS ").append(column);
+            valueColumns.append(columns[i].makeValueSQL(column));
+            for (String clause : columns[i].makeRejectSQL(column)) {
+                reason.append(' ').append(clause);
+            }
+        }
+        String reasonSQL = reason.length() > 0 ? "CASE"+reason+" END" : "CAST(NULL AS VARCHAR)";
+        // the file is read by H2 while the statement runs (nothing is stored except the results)
+        String csvSQL = "(SELECT ROWNUM() AS LINE, "+trimmedColumns+" FROM CSVREAD('"+BulkColumn.escape(csvPath.toAbsolutePath().toString())
+                +"', '"+csvColumns+"', 'charset="+Charset.defaultCharset().name()+" escape=\\')) CSV WHERE LINE > 1"; // skip the header
+
+        long startMS = System.currentTimeMillis();
+        // validate
+        jdbc.update("DELETE FROM "+REJECTS_TABLE+" WHERE COLLECTION = ?", collection);
+        int rejected = jdbc.update("INSERT INTO "+REJECTS_TABLE+" (COLLECTION, SOURCE, LINE, REASON) SELECT ?, ?, LINE, REASON FROM (SELECT LINE, "
+                +reasonSQL+" AS REASON FROM "+csvSQL+") R WHERE REASON IS NOT NULL", collection, csvPath.toString());
+        if (rejected > 0) {
+            // streamed so only the sample of the rejects is kept in memory
+            jdbc.query("SELECT LINE, REASON FROM "+REJECTS_TABLE+" WHERE COLLECTION = ? ORDER BY LINE", new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    failures.add(InputFailures.Category.INVALID, rs.getInt(1), rs.getString(2), null);
+                }
+            }, collection);
+        }
+        long validateMS = System.currentTimeMillis();
+
+        // convert and copy
+        int copied;
+        String batchSQL = "SELECT LINE, "+valueColumns+" FROM "+csvSQL+" AND "+reasonSQL+" IS NULL";
+        if (inserter.getDuplicateFilter() != null) {
+            // each row has to be checked so the copy goes through the inserter
+            copied = copyInBatches(batchSQL, columns.length, inserter);
+        } else {
+            try {
+                long copyStart = System.nanoTime();
+                copied = jdbc.update(insertSQL.substring(0, valuesIndex)+" SELECT "+valueColumns+" FROM "+csvSQL+" AND "+reasonSQL+" IS NULL");
+                if (inserter.getMetrics() != null) {
+                    // the copy reads, converts and inserts in one statement so it all counts as insert time
+                    inserter.getMetrics().addInsert(copied, System.nanoTime() - copyStart);
+                }
+            } catch (DataAccessException e) {
+                logger.warn(collection+" bulk copy failed (inserting the rows in batches instead): "+e.getMostSpecificCause());
+                copied = copyInBatches(batchSQL, columns.length, inserter);
+            }
+        }
+        logger.info(csvPath.getFileName()+" bulk loaded "+copied+" records ("+rejected+" rejected), validate="+(validateMS - startMS)
+                +"ms, copy="+(System.currentTimeMillis() - validateMS)+"ms");
+        return copied + rejected;
+    }
+
+    private int copyInBatches(String selectSQL, final int columnCount, final BatchInserter inserter) {
+        final int[] count = new int[1];
+        jdbc.query(selectSQL, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                Object[] params = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    params[i] = rs.getObject(i + 2);
+                }
+                inserter.add(rs.getInt(1), params);
+                count[0]++;
+            }
+        });
+        inserter.flush();
+        return count[0];
+    }
+}
@@ -18,6 +18,7 @@ import java.sql.Types;
 
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -35,6 +36,29 @@ public class PersonalCSVInputHandler extends BaseCSVInputHandler {
             Types.FLOAT, Types.FLOAT, Types.INTEGER, Types.BOOLEAN, Types.VARCHAR
     };
 
+    static final String[] GENDERS = new String[]{"M","F","N"};
+    static final String[] ENROLLMENT_STATUSES = new String[]{"FT","F","PT","P"};
+    static final String[] CLASS_CODES = new String[]{"FR", "SO", "JR", "SR", "GR"};
+
+    static final BulkColumn[] BULK_COLUMNS = new BulkColumn[] {
+            // MUST match validateAndConvertParams (GENDER and ENROLLMENT_STATUS cannot be blank there either)
+            BulkColumn.string("ALTERNATIVE_ID", null, true),
+            BulkColumn.integer("PERCENTILE", 0, 100, false),
+            BulkColumn.integer("SAT_VERBAL", 300, 800, false),
+            BulkColumn.integer("SAT_MATH", 300, 800, false),
+            BulkColumn.integer("ACT_COMPOSITE", 11, 36, false),
+            BulkColumn.integer("AGE", 1, 150, true),
+            BulkColumn.string("RACE", null, false),
+            BulkColumn.string("GENDER", GENDERS, true).convert("CASE WHEN UPPER(%1$s) = 'F' THEN 1 ELSE 2 END"),
+            BulkColumn.string("ENROLLMENT_STATUS", ENROLLMENT_STATUSES, true).convert("CASE WHEN %1$s IN ('PT','P') THEN 2 ELSE 1 END"),
+            BulkColumn.integer("EARNED_CREDIT_HOURS", 0, 600, false),
+            BulkColumn.decimal("GPA_CUMULATIVE", 0f, 4f, false),
+            BulkColumn.decimal("GPA_SEMESTER", 0f, 4f, false),
+            BulkColumn.integer("STANDING", 0, 2, false),
+            BulkColumn.bool("PELL_STATUS", false),
+            BulkColumn.string("CLASS_CODE", CLASS_CODES, true)
+    };
+
     public PersonalCSVInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate) {
         super(configuration, jdbcTemplate);
     }
@@ -60,36 +84,36 @@ public class PersonalCSVInputHandler extends BaseCSVInputHandler {
     }
 
     @Override
-    public CSVReader readCSV(boolean reRead) {
-        return readCSV(14, "ALTERNATIVE_ID", reRead);
+    public BulkColumn[] getBulkColumns() {
+        return BULK_COLUMNS;
     }
 
     @Override
-    public ReadResult readInputIntoDB() {
-        CSVReader reader = readCSV(false);
-        return readCSVFileIntoDB(reader);
+    public CSVReader openCSV() {
+        return openCSV(14, "ALTERNATIVE_ID");
     }
 
     @Override
     public Object[] validateAndConvertParams(String[] csvLine) {
         assert csvLine != null && csvLine.length > 0;
-        Object[] params = new Object[csvLine.length];
-        params[0] = parseString(csvLine[0], null, true, "ALTERNATIVE_ID");
-        params[1] = parseInt(csvLine[1], 0, 100, false, "PERCENTILE");
-        params[2] = parseInt(csvLine[2], 300, 800, false, "SAT_VERBAL");
-        params[3] = parseInt(csvLine[3], 300, 800, false, "SAT_MATH");
-        params[4] = parseInt(csvLine[4], 11, 36, false, "ACT_COMPOSITE");
-        params[5] = parseInt(csvLine[5], 1, 150, true, "AGE");
-        params[6] = parseString(csvLine[6], null, false, "RACE"); // RACE
-        params[7] = (parseString(csvLine[7], new String[]{"M","F","N"}, false, "GENDER").equalsIgnoreCase("F") ? 1 : 2);
-        csvLine[8] = parseString(csvLine[8], new String[]{"FT","F","PT","P"}, false, "ENROLLMENT_STATUS");
+        FieldDecoder decoder = FieldDecoder.get();
+        Object[] params = new Object[SQL_TYPES.length];
+        params[0] = decoder.decodeString(csvLine[0], null, true, "ALTERNATIVE_ID");
+        params[1] = decoder.decodeInt(csvLine[1], 0, 100, false, "PERCENTILE");
+        params[2] = decoder.decodeInt(csvLine[2], 300, 800, false, "SAT_VERBAL");
+        params[3] = decoder.decodeInt(csvLine[3], 300, 800, false, "SAT_MATH");
+        params[4] = decoder.decodeInt(csvLine[4], 11, 36, false, "ACT_COMPOSITE");
+        params[5] = decoder.decodeInt(csvLine[5], 1, 150, true, "AGE");
+        params[6] = decoder.decodeString(csvLine[6], null, false, "RACE"); // RACE
+        params[7] = (decoder.decodeString(csvLine[7], GENDERS, false, "GENDER").equalsIgnoreCase("F") ? 1 : 2);
+        csvLine[8] = decoder.decodeString(csvLine[8], ENROLLMENT_STATUSES, false, "ENROLLMENT_STATUS");
         params[8] = ((csvLine[8].equals("PT") || csvLine[8].equals("P")) ? 2 : 1); // ENROLLMENT_STATUS
-        params[9] = parseInt(csvLine[9], 0, 600, false, "EARNED_CREDIT_HOURS");
-        params[10] = parseFloat(csvLine[10], 0f, 4f, false, "GPA_CUMULATIVE");
-        params[11] = parseFloat(csvLine[11], 0f, 4f, false, "GPA_SEMESTER");
-        params[12] = parseInt(csvLine[12], 0, 2, false, "STANDING");
-        params[13] = parseBoolean(csvLine[13], false, "PELL_STATUS"); // PELL_STATUS
-        params[14] = parseString(csvLine[14], new String[]{"FR", "SO", "JR", "SR", "GR"}, true, "CLASS_CODE");
+        params[9] = decoder.decodeInt(csvLine[9], 0, 600, false, "EARNED_CREDIT_HOURS");
+        params[10] = decoder.decodeFloat(csvLine[10], 0f, 4f, false, "GPA_CUMULATIVE");
+        params[11] = decoder.decodeFloat(csvLine[11], 0f, 4f, false, "GPA_SEMESTER");
+        params[12] = decoder.decodeInt(csvLine[12], 0, 2, false, "STANDING");
+        params[13] = decoder.decodeBoolean(csvLine[13], false, "PELL_STATUS"); // PELL_STATUS
+        params[14] = decoder.decodeString(csvLine[14], CLASS_CODES, true, "CLASS_CODE");
         return params;
     }
 }
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.csv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.RowBatch;
+import org.apereo.lap.services.input.handlers.StageStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Reads CSV records from any reader (a file, a download, a compressed file, the tail of a file) in 3 stages
+ * which run at the same time and are joined by bounded queues:
+ * a reader thread parses the records into blocks, the convert threads validate and convert the blocks
+ * and a single writer (the calling thread) inserts the converted rows in the original record order.
+ *
+ * The queues are bounded so a slow stage holds back the stages before it and a converted block is only handed to
+ * the writer when it is less than queueSize blocks ahead of the next block to write (so the blocks converted out of order
+ * which wait for the writer are bounded too), memory use is limited to about (queueSize * 2 + threads) blocks.
+ * The time each stage spends working and waiting is counted
+ * (see {@link #getStages()}) so the slowest stage can be found.
+ * Line numbers and failures are the same as reading the records on a single thread.
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class StagedCSVReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(StagedCSVReader.class);
+
+    /**
+     * how long to wait for a queue before checking whether the stage before is done
+     */
+    static final long POLL_MS = 10;
+
+    final int threads;
+    final int queueSize;
+    final int blockSize;
+    final StageStats readStage;
+    final StageStats convertStage;
+    final StageStats writeStage;
+
+    /**
+     * @param threads the number of convert threads to use
+     * @param queueSize the number of blocks which can wait between 2 stages
+     * @param blockSize the number of records in each block
+     */
+    public StagedCSVReader(int threads, int queueSize, int blockSize) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.blockSize = Math.max(1, blockSize);
+        readStage = new StageStats("read", 1);
+        convertStage = new StageStats("convert", this.threads);
+        writeStage = new StageStats("write", 1);
+    }
+
+    /**
+     * A block of records in read order, converted by one of the convert threads
+     */
+    static class Block {
+        final long sequence;
+        /**
+         * line (record) number of the first record in this block
+         */
+        final int firstLine;
+        final List<String[]> csvLines;
+        RowBatch rows;
+
+        Block(long sequence, int firstLine, int size) {
+            this.sequence = sequence;
+            this.firstLine = firstLine;
+            this.csvLines = new ArrayList<>(size);
+        }
+    }
+
+    /**
+     * Reads all the remaining records from the reader into the database
+     * @param csvReader the reader (positioned at the first record to read, NOT closed)
+     * @param line the number of the line before the first record to read
+     * @param handler the handler which validates and converts each record
+     * @param inserter the batch writer for the converted rows (only used from the calling thread, flushed when done)
+     * @param failures the failures to record failed lines into (shared by all the convert threads)
+     * @return the number of the last line read
+     * @throws IllegalArgumentException if the reader cannot be read
+     */
+    public int readIntoDB(final CSVReader csvReader, final int line, final InputHandler handler, BatchInserter inserter, final InputFailures failures) {
+        assert csvReader != null;
+        assert handler != null;
+        assert inserter != null;
+        assert failures != null;
+        final BlockingQueue<Block> readQueue = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Block> writeQueue = new ArrayBlockingQueue<>(queueSize);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final AtomicInteger lastLine = new AtomicInteger(line);
+        final AtomicInteger activeConverters = new AtomicInteger(threads);
+        // the sequence of the next block to write (converters wait on this for their write slot)
+        final AtomicLong nextWrite = new AtomicLong();
+        final AtomicBoolean readDone = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1, new CustomizableThreadFactory("lap-csv-stage-"));
+        readStage.start();
+        convertStage.start();
+        writeStage.start();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lastLine.set(readBlocks(csvReader, line, readQueue, error));
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        readDone.set(true);
+                        readStage.end();
+                    }
+                }
+            });
+            for (int i = 0; i < threads; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            convertBlocks(handler, readQueue, writeQueue, nextWrite, failures, readDone, error);
+                        } catch (Exception e) {
+                            error.compareAndSet(null, e);
+                        } finally {
+                            if (activeConverters.decrementAndGet() == 0) {
+                                convertStage.end();
+                            }
+                        }
+                    }
+                });
+            }
+            writeBlocks(inserter, writeQueue, nextWrite, activeConverters, error);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while reading "+handler.getHandledType()+": "+e, e);
+        } finally {
+            executor.shutdownNow(); // stops the reader and converters if the writer failed
+            try {
+                // the caller closes the reader so wait for the read thread to stop using it
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                inserter.flush(); // send the last partial batch
+            } finally {
+                writeStage.end();
+            }
+        }
+        if (error.get() != null) {
+            throw new IllegalArgumentException("csvReader cannot read from file: "+error.get(), error.get());
+        }
+        logger.info(handler.getHandledType()+" staged read of "+(lastLine.get() - line)+" records: "+readStage+"; "+convertStage+"; "+writeStage);
+        return lastLine.get();
+    }
+
+    /**
+     * Read stage: parses the records into blocks (stops early if another stage failed)
+     * @return the number of the last line read
+     */
+    int readBlocks(CSVReader csvReader, int line, BlockingQueue<Block> readQueue, AtomicReference<Exception> error) throws IOException, InterruptedException {
+        long sequence = 0;
+        Block block = new Block(sequence++, line + 1, blockSize);
+        long start = System.nanoTime();
+        String[] csvLine;
+        while (error.get() == null && (csvLine = csvReader.readNext()) != null) {
+            line++;
+            block.csvLines.add(csvLine);
+            if (block.csvLines.size() >= blockSize) {
+                long now = System.nanoTime();
+                readStage.addBusy(block.csvLines.size(), now - start);
+                readQueue.put(block);
+                start = System.nanoTime();
+                readStage.addOutputWait(start - now);
+                block = new Block(sequence++, line + 1, blockSize);
+            }
+        }
+        long now = System.nanoTime();
+        readStage.addBusy(block.csvLines.size(), now - start);
+        if (!block.csvLines.isEmpty()) {
+            readQueue.put(block);
+            readStage.addOutputWait(System.nanoTime() - now);
+        }
+        return line;
+    }
+
+    /**
+     * Convert stage: validates and converts the records of each block until the reader is done and all blocks are taken
+     */
+    void convertBlocks(InputHandler handler, BlockingQueue<Block> readQueue, BlockingQueue<Block> writeQueue, AtomicLong nextWrite,
+                       InputFailures failures, AtomicBoolean readDone, AtomicReference<Exception> error) throws InterruptedException {
+        while (error.get() == null) {
+            long waitStart = System.nanoTime();
+            Block block = readQueue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            convertStage.addInputWait(start - waitStart);
+            if (block == null) {
+                if (readDone.get() && readQueue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            block.rows = new RowBatch(block.csvLines.size());
+            int line = block.firstLine;
+            for (String[] csvLine : block.csvLines) {
+                try {
+                    FieldDecoder.trimToNull(csvLine);
+                    block.rows.add(line, handler.validateAndConvertParams(csvLine));
+                } catch (Exception e) {
+                    if (logger.isDebugEnabled()) logger.debug(handler.getHandledType()+" line "+line+": "+e.getMessage(), e); // to help in fixing the problem
+                    failures.add(InputFailures.Category.INVALID, line, e.getMessage(), csvLine);
+                }
+                line++;
+            }
+            long now = System.nanoTime();
+            convertStage.addBusy(block.csvLines.size(), now - start);
+            awaitWriteSlot(block.sequence, nextWrite, error);
+            writeQueue.put(block);
+            convertStage.addOutputWait(System.nanoTime() - now);
+        }
+    }
+
+    /**
+     * Waits until the block is less than queueSize blocks ahead of the next block to write,
+     * the next block itself never waits (so the writer always gets it)
+     */
+    void awaitWriteSlot(long sequence, AtomicLong nextWrite, AtomicReference<Exception> error) throws InterruptedException {
+        synchronized (nextWrite) {
+            while (sequence >= nextWrite.get() + queueSize && error.get() == null) {
+                nextWrite.wait(POLL_MS);
+            }
+        }
+    }
+
+    /**
+     * Write stage: inserts the converted blocks in read order until all the converters are done
+     */
+    void writeBlocks(BatchInserter inserter, BlockingQueue<Block> writeQueue, AtomicLong nextWrite, AtomicInteger activeConverters, AtomicReference<Exception> error) throws InterruptedException {
+        // blocks converted out of order wait here until the blocks before them are written (less than queueSize of them)
+        Map<Long, Block> waiting = new HashMap<>();
+        long next = 0;
+        while (error.get() == null) {
+            long waitStart = System.nanoTime();
+            Block block = writeQueue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            writeStage.addInputWait(start - waitStart);
+            if (block == null) {
+                if (activeConverters.get() == 0 && writeQueue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            waiting.put(block.sequence, block);
+            while ((block = waiting.remove(next)) != null) {
+                block.rows.insert(inserter);
+                writeStage.addBusy(block.csvLines.size(), 0);
+                next++;
+            }
+            if (next > nextWrite.get()) {
+                synchronized (nextWrite) {
+                    nextWrite.set(next);
+                    nextWrite.notifyAll();
+                }
+            }
+            writeStage.addBusy(0, System.nanoTime() - start);
+        }
+        if (error.get() == null && !waiting.isEmpty()) {
+            // cannot happen unless a converter lost a block
+            error.compareAndSet(null, new IllegalStateException("Blocks "+Arrays.toString(waiting.keySet().toArray())+" were never written, missing block "+next));
+        }
+    }
+
+    /**
+     * @return the counters for the read, convert and write stages (in that order)
+     */
+    public List<StageStats> getStages() {
+        return Arrays.asList(readStage, convertStage, writeStage);
+    }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.db;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.BaseInputHandler;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.RowBatch;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.BulkColumn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reads a single input collection from a source database query into the temp database.
+ *
+ * The query results are read with a forward-only cursor (in fetch size blocks) on a separate thread
+ * while the converted rows are written to the temp database in batches, so reading the source and writing overlap.
+ * The query must return the columns of the CSV extract for the collection (by name, in any order),
+ * optional columns can be left out. Each row is validated and converted by the CSV handler
+ * for the same collection so the rules are the same as for the extracts.
+ *
+ * NOTE: changes in the source cannot be detected so the collection is always read again when it is loaded
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class DatabaseInputHandler extends BaseInputHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseInputHandler.class);
+
+    /**
+     * the number of row batches which can wait for the writer
+     */
+    static final int QUEUED_BATCHES = 4;
+
+    private static final CustomizableThreadFactory THREAD_FACTORY = new CustomizableThreadFactory("lap-db-");
+    static {
+        THREAD_FACTORY.setDaemon(true);
+    }
+
+    final ConfigurationService config;
+    final BaseCSVInputHandler converter;
+    final JdbcTemplate source;
+    final TransactionTemplate sourceTransaction;
+    final String query;
+
+    /**
+     * @param configuration current system config
+     * @param jdbcTemplate temp DB jdbc template
+     * @param converter the CSV handler for the collection (defines the columns and converts the values)
+     * @param dataSource the source database
+     * @param query the SQL query which selects the collection rows from the source
+     * @param fetchSize the number of rows fetched from the source at a time (0 uses the driver default)
+     */
+    public DatabaseInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate, BaseCSVInputHandler converter,
+                                DataSource dataSource, String query, int fetchSize) {
+        super(jdbcTemplate);
+        assert configuration != null;
+        assert converter != null;
+        assert dataSource != null;
+        assert StringUtils.isNotBlank(query);
+        this.config = configuration;
+        this.converter = converter;
+        this.query = query;
+        this.source = new JdbcTemplate(dataSource);
+        this.source.setFetchSize(Math.max(0, fetchSize));
+        // some drivers (e.g. PostgreSQL) only use a cursor (instead of reading all the rows) inside a transaction
+        this.sourceTransaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.sourceTransaction.setReadOnly(true);
+    }
+
+    @Override
+    public BaseInputHandlerService.InputType getHandledType() {
+        return BaseInputHandlerService.InputType.DATABASE;
+    }
+
+    @Override
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return converter.getInputCollection();
+    }
+
+    @Override
+    public String makeInsertSQL() {
+        return converter.makeInsertSQL();
+    }
+
+    @Override
+    public int[] makeInsertSQLParams() {
+        return converter.makeInsertSQLParams();
+    }
+
+    @Override
+    public Object[] validateAndConvertParams(String[] params) {
+        return converter.validateAndConvertParams(params);
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Runs the query (only the first row is fetched) to check that it returns the columns needed for the collection
+     * @throws IllegalStateException if the query fails or a required column is missing
+     */
+    @Override
+    public void verify() {
+        JdbcTemplate check = new JdbcTemplate(source.getDataSource());
+        check.setMaxRows(1);
+        try {
+            check.query(query, new ResultSetExtractor<int[]>() {
+                @Override
+                public int[] extractData(ResultSet rs) throws SQLException {
+                    return mapColumns(rs.getMetaData());
+                }
+            });
+        } catch (DataAccessException e) {
+            throw new IllegalStateException(getInputCollection()+" source query is invalid ("+query+"): "+e.getMostSpecificCause(), e);
+        }
+    }
+
+    /**
+     * @param metaData the query result columns
+     * @return the result column (1 based) for each CSV column (0 if it is not in the results)
+     * @throws IllegalStateException if a required column is missing
+     */
+    int[] mapColumns(ResultSetMetaData metaData) throws SQLException {
+        Map<String, Integer> resultColumns = new HashMap<>();
+        for (int i = metaData.getColumnCount(); i > 0; i--) {
+            resultColumns.put(metaData.getColumnLabel(i).toUpperCase(), i);
+        }
+        BulkColumn[] columns = converter.getBulkColumns();
+        int[] mapping = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Integer column = resultColumns.get(columns[i].getName());
+            if (column != null) {
+                mapping[i] = column;
+            } else if (columns[i].isCannotBeBlank()) {
+                throw new IllegalStateException(getInputCollection()+" source query does not return the required "
+                        +columns[i].getName()+" column (returns "+resultColumns.keySet()+"): "+query);
+            }
+        }
+        return mapping;
+    }
+
+    @Override
+    public ReadResult readInputIntoDB() {
+        ReadResult result = new ReadResult(getInputCollection()+" query: "+query);
+        try (InputFailures failures = makeInputFailures(config, getInputCollection(), getHandledType(), false)) {
+            BatchInserter inserter = makeBatchInserter(config, failures);
+            int records = readIntoDB(inserter, failures);
+            result.done(records, failures);
+            logger.info(getInputCollection()+" read "+records+" rows from the source database in "+result.totalTimeMS+" ms ("+inserter.getBatches()+" batches)");
+        }
+        return result;
+    }
+
+    /**
+     * Reads the query results on a separate thread and writes the converted rows from this thread
+     * @param inserter the batch writer for the converted rows
+     * @param failures the failures to record failed rows into
+     * @return the number of rows read from the source
+     * @throws IllegalStateException if the source cannot be read
+     */
+    int readIntoDB(BatchInserter inserter, final InputFailures failures) {
+        final int batchSize = inserter.getBatchSize();
+        final BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final int[] records = new int[1];
+        Thread reader = THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    records[0] = readSource(batchSize, queue, failures);
+                } catch (Exception e) {
+                    error.set(e);
+                } finally {
+                    try {
+                        queue.put(RowBatch.DONE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        reader.start();
+        try {
+            RowBatch batch;
+            while ((batch = queue.take()) != RowBatch.DONE) {
+                batch.insert(inserter);
+            }
+            inserter.flush();
+            reader.join();
+        } catch (InterruptedException e) {
+            reader.interrupt();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the "+getInputCollection()+" source query", e);
+        } catch (RuntimeException e) {
+            reader.interrupt(); // stops the reader waiting for room in the queue
+            throw e;
+        }
+        if (error.get() != null) {
+            Exception e = error.get();
+            Throwable cause = e instanceof DataAccessException ? ((DataAccessException) e).getMostSpecificCause() : e;
+            throw new IllegalStateException("Unable to read the "+getInputCollection()+" source query ("+query+"): "+cause, e);
+        }
+        return records[0];
+    }
+
+    /**
+     * Streams the query results (in the reader thread), converted rows are put on the queue in batches
+     * @return the number of rows read
+     */
+    int readSource(int batchSize, BlockingQueue<RowBatch> queue, InputFailures failures) {
+        final SourceRowHandler rowHandler = new SourceRowHandler(batchSize, queue, failures);
+        sourceTransaction.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                source.query(query, rowHandler);
+            }
+        });
+        rowHandler.putBatch();
+        return rowHandler.line;
+    }
+
+    /**
+     * Converts the source rows into batches of insert params
+     */
+    class SourceRowHandler implements RowCallbackHandler {
+        final int batchSize;
+        final BlockingQueue<RowBatch> queue;
+        final InputFailures failures;
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        int[] mapping;
+        String[] values;
+        RowBatch batch;
+        int line = 0;
+
+        SourceRowHandler(int batchSize, BlockingQueue<RowBatch> queue, InputFailures failures) {
+            this.batchSize = batchSize;
+            this.queue = queue;
+            this.failures = failures;
+            this.batch = new RowBatch(batchSize);
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            if (mapping == null) {
+                mapping = mapColumns(rs.getMetaData());
+                values = new String[mapping.length];
+            }
+            line++;
+            Object[] params;
+            try {
+                for (int i = 0; i < mapping.length; i++) {
+                    values[i] = mapping[i] > 0 ? toValue(rs.getObject(mapping[i]), dateFormat) : null;
+                }
+                FieldDecoder.trimToNull(values);
+                params = validateAndConvertParams(values);
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                if (logger.isDebugEnabled()) logger.debug(getInputCollection()+" source row "+line+": "+e.getMessage(), e); // to help in fixing the problem
+                failures.add(InputFailures.Category.INVALID, line, e.getMessage(), values.clone());
+                return;
+            }
+            if (batch.add(line, params)) {
+                putBatch();
+            }
+        }
+
+        /**
+         * Hands the current batch (if it has any rows) to the writer
+         */
+        void putBatch() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading the "+getInputCollection()+" source query", e);
+            }
+            batch = new RowBatch(batchSize);
+        }
+    }
+
+    /**
+     * @param value the value from the source database
+     * @param dateFormat the format for dates (ISO-8601)
+     * @return the value as it would appear in the CSV extract
+     */
+    static String toValue(Object value, SimpleDateFormat dateFormat) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Date) {
+            return dateFormat.format((Date) value);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+        } else if ((value instanceof Double || value instanceof Float)
+                && ((Number) value).doubleValue() == Math.rint(((Number) value).doubleValue())
+                && !Double.isInfinite(((Number) value).doubleValue())) {
+            // whole numbers without the .0 so they can be used for integer columns
+            return String.valueOf(((Number) value).longValue());
+        }
+        return value.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DatabaseInputHandler:" + getInputCollection() + ", query=" + query;
+    }
+}
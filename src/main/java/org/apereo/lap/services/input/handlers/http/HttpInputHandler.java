@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.BaseInputHandler;
+import org.apereo.lap.services.input.handlers.InputMetrics;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.storage.InputFingerprintPersistentStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Reads a single input collection from a CSV extract served over HTTP into the temp database.
+ *
+ * The download is parsed and inserted as it arrives (it is not staged on disk), gzip content encoding is requested
+ * and .gz extracts are decompressed while they are read. The extract is validated and converted by the CSV handler
+ * for the same collection.
+ * Changes are detected with a conditional HEAD request using the ETag and Last-Modified validators stored in the fingerprint
+ * of the last load, so checking an extract never downloads it and an unchanged extract only costs a 304 response.
+ * The extract is only downloaded completely (with a GET) when it is loaded.
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class HttpInputHandler extends BaseInputHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpInputHandler.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    final BaseCSVInputHandler converter;
+    final URL url;
+    final String authorization;
+    final int timeoutMS;
+    final InputFingerprintPersistentStorage registry;
+
+    /**
+     * @param jdbcTemplate temp DB jdbc template
+     * @param converter the CSV handler for the collection (defines the columns and converts the values)
+     * @param url the URL of the CSV extract
+     * @param username OPTIONAL user for basic authentication
+     * @param password OPTIONAL password for basic authentication
+     * @param timeoutMS the connect and read timeout (0 waits forever)
+     * @param registry OPTIONAL the fingerprints of the loaded inputs (holds the validators from the last load)
+     */
+    public HttpInputHandler(JdbcTemplate jdbcTemplate, BaseCSVInputHandler converter, URL url, String username, String password,
+                            int timeoutMS, InputFingerprintPersistentStorage registry) {
+        super(jdbcTemplate);
+        assert converter != null;
+        assert url != null;
+        this.converter = converter;
+        this.url = url;
+        this.authorization = StringUtils.isNotBlank(username)
+                ? "Basic "+DatatypeConverter.printBase64Binary((username+":"+StringUtils.defaultString(password)).getBytes(StandardCharsets.UTF_8)) : null;
+        this.timeoutMS = Math.max(0, timeoutMS);
+        this.registry = registry;
+    }
+
+    @Override
+    public BaseInputHandlerService.InputType getHandledType() {
+        return BaseInputHandlerService.InputType.HTTP;
+    }
+
+    @Override
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return converter.getInputCollection();
+    }
+
+    @Override
+    public String makeInsertSQL() {
+        return converter.makeInsertSQL();
+    }
+
+    @Override
+    public int[] makeInsertSQLParams() {
+        return converter.makeInsertSQLParams();
+    }
+
+    @Override
+    public Object[] validateAndConvertParams(String[] params) {
+        return converter.validateAndConvertParams(params);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @param method the HTTP method
+     * @return the connection with the standard headers set (not connected yet)
+     * @throws IOException if the connection cannot be opened
+     */
+    HttpURLConnection openConnection(String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMS);
+        connection.setReadTimeout(timeoutMS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    /**
+     * Makes a conditional HEAD request with the validators from the last load (nothing is downloaded)
+     * @param hash ignored, the validators from the server are used to detect changes
+     * @return the fingerprint with the current validators (ETag is the hash) OR null if the server does not send any validators
+     * @throws IllegalStateException if the request fails
+     */
+    @Override
+    public InputFingerprint makeFingerprint(boolean hash) {
+        InputFingerprint loaded = registry != null ? registry.get(getInputCollection().name()) : null;
+        if (loaded != null && !StringUtils.equals(url.toString(), loaded.getSource())) {
+            loaded = null; // loaded from somewhere else
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection("HEAD");
+            if (loaded != null) {
+                if (loaded.getHash() != null) {
+                    connection.setRequestProperty("If-None-Match", loaded.getHash());
+                }
+                if (loaded.getLastModified() > 0) {
+                    connection.setIfModifiedSince(loaded.getLastModified());
+                }
+            }
+            int status = connection.getResponseCode();
+            InputFingerprint inputFingerprint = new InputFingerprint();
+            inputFingerprint.setCollection(getInputCollection().name());
+            inputFingerprint.setSource(url.toString());
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && loaded != null) {
+                logger.debug(url+" is not modified (304)");
+                inputFingerprint.setSize(loaded.getSize());
+                inputFingerprint.setLastModified(loaded.getLastModified());
+                inputFingerprint.setHash(loaded.getHash());
+                return inputFingerprint;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IllegalStateException(url+" returned "+status+" "+connection.getResponseMessage());
+            }
+            String etag = connection.getHeaderField("ETag");
+            if (etag == null && connection.getLastModified() <= 0) {
+                return null; // changes cannot be detected
+            }
+            inputFingerprint.setSize(connection.getContentLengthLong());
+            inputFingerprint.setLastModified(connection.getLastModified());
+            inputFingerprint.setHash(etag);
+            return inputFingerprint;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to check "+url+" for changes: "+e, e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Downloads the start of the extract (a range request) and checks the CSV header
+     * @throws IllegalStateException if the request fails or the CSV header is not valid
+     */
+    @Override
+    public void verify() {
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection("GET");
+            // servers which do not support ranges send all of it (only the header is read before disconnecting)
+            connection.setRequestProperty("Range", "bytes=0-"+(BUFFER_SIZE - 1));
+            converter.verifyCSVStream(url.toString(), openDownload(connection));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to download "+url+": "+e, e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @param connection the connection for the GET request
+     * @return the stream of the (decompressed) extract
+     * @throws IllegalStateException if the request fails
+     * @throws IOException if the response cannot be read
+     */
+    InputStream openDownload(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IllegalStateException(url+" returned "+status+" "+connection.getResponseMessage());
+        }
+        InputStream in = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (StringUtils.endsWithIgnoreCase(url.getPath(), ".gz")) {
+            // the extract itself is compressed (on top of any content encoding)
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * Downloads the extract and loads it as it arrives
+     * @return the results of the processing
+     * @throws IllegalStateException if the download fails or the CSV header is not valid
+     */
+    @Override
+    public ReadResult readInputIntoDB() {
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection("GET");
+            ReadResult result = converter.readCSVStreamIntoDB(url.toString(), countBytes(openDownload(connection)));
+            logger.info(getInputCollection()+" downloaded and read "+result.total+" lines from "+url+" in "+result.totalTimeMS+" ms");
+            return result;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to download "+url+": "+e, e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public void setMetrics(InputMetrics metrics) {
+        super.setMetrics(metrics);
+        converter.setMetrics(metrics); // the converter does the inserts
+    }
+
+    @Override
+    public String toString() {
+        return "HttpInputHandler:" + getInputCollection() + ", url=" + url;
+    }
+}
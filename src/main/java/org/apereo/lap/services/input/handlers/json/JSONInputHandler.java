@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.input.handlers.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.handlers.BaseInputHandler;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.BulkColumn;
+import org.apereo.lap.services.input.handlers.csv.DecompressingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a single input collection from a JSON file into the temp database.
+ *
+ * The file is read with a streaming parser one record at a time (no tree is built and the document is never held in memory)
+ * and can be any of these forms:
+ * - NDJSON (or any other sequence of objects), one record object per line
+ * - an array of record objects
+ * - an object which holds the array of record objects as its first field (e.g. extracts/sample1_input.json),
+ *   so a record cannot start with an array field
+ * Record fields are matched to the columns of the CSV extract for the collection by name (missing fields are blank,
+ * unknown fields and nested objects or arrays are ignored). Each record is validated and converted
+ * by the CSV handler for the same collection so the rules are the same as for the extracts.
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class JSONInputHandler extends BaseInputHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(JSONInputHandler.class);
+
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    final ConfigurationService config;
+    final BaseCSVInputHandler converter;
+    /**
+     * the column (in the CSV extract order) for each field name (upper case)
+     */
+    final Map<String, Integer> columns = new HashMap<>();
+    private String path;
+
+    /**
+     * @param configuration current system config
+     * @param jdbcTemplate temp DB jdbc template
+     * @param converter the CSV handler for the collection (defines the fields and converts the values)
+     */
+    public JSONInputHandler(ConfigurationService configuration, JdbcTemplate jdbcTemplate, BaseCSVInputHandler converter) {
+        super(jdbcTemplate);
+        assert configuration != null;
+        assert converter != null;
+        this.config = configuration;
+        this.converter = converter;
+        BulkColumn[] bulkColumns = converter.getBulkColumns();
+        for (int i = 0; i < bulkColumns.length; i++) {
+            columns.put(bulkColumns[i].getName().toUpperCase(), i);
+        }
+    }
+
+    @Override
+    public BaseInputHandlerService.InputType getHandledType() {
+        return BaseInputHandlerService.InputType.JSON;
+    }
+
+    @Override
+    public BaseInputHandlerService.InputCollection getInputCollection() {
+        return converter.getInputCollection();
+    }
+
+    @Override
+    public String makeInsertSQL() {
+        return converter.makeInsertSQL();
+    }
+
+    @Override
+    public int[] makeInsertSQLParams() {
+        return converter.makeInsertSQLParams();
+    }
+
+    @Override
+    public Object[] validateAndConvertParams(String[] params) {
+        return converter.validateAndConvertParams(params);
+    }
+
+    /**
+     * @return the path of the JSON file (relative to the LAP home OR absolute)
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    Path resolveJSONPath() {
+        return config.getApplicationHomeDirectory().resolve(Paths.get(getPath()));
+    }
+
+    @Override
+    public InputFingerprint makeFingerprint(boolean hash) {
+        if (getPath() == null) {
+            return null;
+        }
+        return makeFileFingerprint(getInputCollection(), resolveJSONPath(), hash);
+    }
+
+    /**
+     * Checks that the JSON file can be read and starts with an object or an array (does not read the records)
+     * @throws IllegalStateException if the file is not valid
+     */
+    @Override
+    public void verify() {
+        try (JsonParser parser = JSON_FACTORY.createParser(openJSONReader(resolveJSONPath()))) {
+            JsonToken token = parser.nextToken();
+            if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+                throw new IllegalStateException(getPath()+" JSON does not start with an object or an array: "+token);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(getPath()+" JSON is invalid: "+e);
+        }
+    }
+
+    /**
+     * @param jsonPath the JSON file (gzip and zip compressed files are decompressed while they are read)
+     * @return the reader for the JSON data (UTF-8)
+     * @throws IOException if the file cannot be opened
+     */
+    static Reader openJSONReader(Path jsonPath) throws IOException {
+        return new InputStreamReader(openJSONStream(jsonPath), StandardCharsets.UTF_8);
+    }
+
+    static InputStream openJSONStream(Path jsonPath) throws IOException {
+        return DecompressingInputStream.isCompressed(jsonPath) ? new DecompressingInputStream(jsonPath) : Files.newInputStream(jsonPath);
+    }
+
+    @Override
+    public ReadResult readInputIntoDB() {
+        try {
+            return readJSONIntoDB(getPath(), new InputStreamReader(countBytes(openJSONStream(resolveJSONPath())), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the JSON file "+getPath()+": "+e, e);
+        }
+    }
+
+    /**
+     * Reads the JSON records into the database (e.g. JSON which was posted instead of a file)
+     * @param source the name of the JSON source (for messages)
+     * @param json the JSON data (closed when done)
+     * @return the results of the processing (total is the number of records)
+     * @throws IllegalArgumentException if the JSON cannot be read or is not valid
+     */
+    public ReadResult readJSONIntoDB(String source, Reader json) {
+        ReadResult result = new ReadResult(source);
+        try (InputFailures failures = makeInputFailures(config, getInputCollection(), getHandledType(), false);
+             JsonParser parser = JSON_FACTORY.createParser(json)) {
+            BatchInserter inserter = makeBatchInserter(config, failures);
+            int records;
+            try {
+                records = readRecords(parser, inserter, failures);
+            } finally {
+                inserter.flush(); // send the last partial batch
+            }
+            result.done(records, failures);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(source+" JSON is invalid: "+e.getOriginalMessage()+" at line "+e.getLocation().getLineNr(), e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the JSON from "+source+": "+e, e);
+        }
+        return result;
+    }
+
+    /**
+     * Reads all the records from the parser (one at a time)
+     * @return the number of records read
+     */
+    int readRecords(JsonParser parser, BatchInserter inserter, InputFailures failures) throws IOException {
+        int record = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_ARRAY) {
+                record = readArray(parser, record, inserter, failures);
+            } else if (token == JsonToken.START_OBJECT) {
+                token = parser.nextToken();
+                if (token == JsonToken.FIELD_NAME && parser.nextToken() == JsonToken.START_ARRAY) {
+                    // the records are wrapped in an object (the first field), the other fields are ignored
+                    record = readArray(parser, record, inserter, failures);
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                } else {
+                    readRecord(parser, ++record, inserter, failures);
+                }
+            } else {
+                throw new JsonParseException("expected an object or an array of objects but found "+token, parser.getCurrentLocation());
+            }
+        }
+        return record;
+    }
+
+    int readArray(JsonParser parser, int record, BatchInserter inserter, InputFailures failures) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException("expected a record object but found "+token, parser.getCurrentLocation());
+            }
+            parser.nextToken();
+            readRecord(parser, ++record, inserter, failures);
+        }
+        return record;
+    }
+
+    /**
+     * Reads the fields of a single record and inserts it
+     * (the parser is at the first field name, the value of the first field or the end of the object)
+     */
+    void readRecord(JsonParser parser, int record, BatchInserter inserter, InputFailures failures) throws IOException {
+        String[] values = new String[columns.size()];
+        for (JsonToken token = parser.getCurrentToken(); token != JsonToken.END_OBJECT; token = parser.nextToken()) {
+            if (token == JsonToken.FIELD_NAME) {
+                continue; // the value is next
+            }
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                parser.skipChildren(); // nested values are not columns
+            } else if (token != JsonToken.VALUE_NULL) {
+                Integer column = columns.get(parser.getCurrentName().toUpperCase());
+                if (column != null) {
+                    values[column] = parser.getText();
+                }
+            }
+        }
+        try {
+            FieldDecoder.trimToNull(values);
+            inserter.add(record, validateAndConvertParams(values));
+        } catch (Exception e) {
+            if (logger.isDebugEnabled()) logger.debug(getHandledType()+" record "+record+": "+e.getMessage(), e); // to help in fixing the problem
+            failures.add(InputFailures.Category.INVALID, record, e.getMessage(), values);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JSONInputHandler:" + getInputCollection() + ", path=" + path;
+    }
+}
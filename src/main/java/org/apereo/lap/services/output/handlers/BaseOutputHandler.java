@@ -14,8 +14,12 @@
  *******************************************************************************/
 package org.apereo.lap.services.output.handlers;
 
+import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.model.Output;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.storage.StorageService;
+import org.apereo.lap.services.storage.TempStoreCatalog;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -29,4 +33,37 @@ public abstract class BaseOutputHandler implements OutputHandler {
 
     @Autowired StorageService storage;
 
+    /**
+     * Checks the output source against the temp store catalog (the table and plain source columns must exist)
+     * and finds the number of rows to output, without querying the temp store when the catalog already knows them
+     * @param output the output to check
+     * @return the number of rows in the output source table
+     * @throws RuntimeException if the source table or a source column does not exist or the rows cannot be counted
+     */
+    int planOutput(Output output) {
+        assert output != null;
+        TempStoreCatalog catalog = storage.getCatalog();
+        int rows;
+        try {
+            if (!catalog.hasTable(output.from)) {
+                throw new IllegalStateException("Output source table "+output.from+" does not exist in the temp store (tables: "+catalog.getTableNames()+")");
+            }
+            for (String source : output.makeSourceColumns()) {
+                // a qualified column (e.g. T.COL) is checked by the column name, expressions are left to the database
+                String column = StringUtils.substringAfterLast(source, ".");
+                if (StringUtils.isEmpty(column)) {
+                    column = source;
+                }
+                if (column.matches("\\w+") && !catalog.hasColumn(output.from, column)) {
+                    throw new IllegalStateException("Output source column "+source+" does not exist in the temp store table "+output.from+" (columns: "+catalog.getColumns(output.from)+")");
+                }
+            }
+            rows = catalog.getRowCount(output.from);
+        } catch (Exception e) {
+            throw new RuntimeException("Failure while trying to count the output data rows: "+output.makeTempDBCheckSQL()+": "+e.getMessage(), e);
+        }
+        LoggerFactory.getLogger(getClass()).info("Preparing to output "+rows+" rows from temp table "+output.from+" ("+getHandledType()+")");
+        return rows;
+    }
+
 }
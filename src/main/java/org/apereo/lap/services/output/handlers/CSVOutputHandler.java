@@ -66,13 +66,9 @@ public class CSVOutputHandler extends BaseOutputHandler implements OutputHandler
             }
         }
 
-        // make sure we can read from the temp data source
-        try {
-            int rows = storage.getTempJdbcTemplate().queryForObject(output.makeTempDBCheckSQL(), Integer.class);
-            logger.info("Preparing to output "+rows+" from temp table "+output.from+" to "+output.filename);
-        } catch (Exception e) {
-            throw new RuntimeException("Failure while trying to count the output data rows: "+output.makeTempDBCheckSQL());
-        }
+        // make sure we can read from the temp data source (checked against the cached catalog)
+        int rows = planOutput(output);
+        if (logger.isDebugEnabled()) logger.debug("Writing "+rows+" rows from temp table "+output.from+" to "+output.filename);
 
         Map<String, String> sourceToHeaderMap = output.makeSourceTargetMap();
         String selectSQL = output.makeTempDBSelectSQL();
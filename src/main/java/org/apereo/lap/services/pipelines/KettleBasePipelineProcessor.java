@@ -17,6 +17,7 @@ package org.apereo.lap.services.pipelines;
 import org.apereo.lap.kettle.KettleConfiguration;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.storage.StorageService;
+import org.pentaho.di.core.variables.VariableSpace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,4 +37,12 @@ public abstract class KettleBasePipelineProcessor implements PipelineProcessor{
 
     @Autowired
     protected KettleConfiguration kettleConfiguration;
+
+    /**
+     * Points the shared database connections of a job or transformation (and anything it runs) at the temp store of the current run
+     * @param variables the job or transformation
+     */
+    protected void setTempStore(VariableSpace variables) {
+        variables.setVariable(KettleConfiguration.TEMP_DB_VARIABLE, KettleConfiguration.makeDatabaseName(storage.getTempUrl()));
+    }
 }
@@ -44,7 +44,14 @@ public class KettleDataPipelineProcessor implements PipelineProcessor {
 
     @PostConstruct
     public void init() {
-        // create the temp table
+        createTable();
+        logger.info("INIT: created temp table KETTLE_DATA");
+    }
+
+    /**
+     * Creates the temp table (if it does not exist, e.g. in the temp store of an isolated run)
+     */
+    void createTable() {
         storage.getTempJdbcTemplate().execute(
                 "CREATE TABLE IF NOT EXISTS KETTLE_DATA (" +
                 "  ID INT(11) NOT NULL AUTO_INCREMENT," +
@@ -89,7 +96,6 @@ public class KettleDataPipelineProcessor implements PipelineProcessor {
                 "  UNIQUE KEY KETTLE_DATA_UNIQUE (ALTERNATIVE_ID, COURSE_ID)" +
                 ")"
         );
-        logger.info("INIT: created temp table KETTLE_DATA");
     }
 
     @Override
@@ -102,6 +108,7 @@ public class KettleDataPipelineProcessor implements PipelineProcessor {
         ProcessorResult result = new ProcessorResult(Processor.ProcessorType.KETTLE_DATA);
 
         // clear the temp table
+        createTable();
         storage.getTempJdbcTemplate().execute("TRUNCATE TABLE KETTLE_DATA");
 
         // get the data from the PCSM_SCORING table
@@ -47,6 +47,7 @@ public class KettleJobPipelineProcessor extends KettleBasePipelineProcessor {
 
             // run the job
             Job job = new Job(null, jobMeta);
+            setTempStore(job);
             job.start();
             job.waitUntilFinished();
 
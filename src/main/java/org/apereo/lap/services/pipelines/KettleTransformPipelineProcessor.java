@@ -53,6 +53,7 @@ public class KettleTransformPipelineProcessor extends KettleBasePipelineProcesso
 
             // run the transformation
             Trans trans = new Trans(transMeta);
+            setTempStore(trans);
             trans.calculateBatchIdAndDateRange();
             trans.beginProcessing();
             trans.execute(new String[]{});
@@ -14,18 +14,59 @@
  *******************************************************************************/
 package org.apereo.lap.services.storage;
 
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 @Component
 @ConfigurationProperties(prefix = "datasource")
 public class DatasourceProperties {
+
+    /**
+     * How the temp store keeps the loaded data
+     */
+    public static enum TempStoreMode {
+        /**
+         * all the data in the heap (the configured url, fastest but limited by the heap size)
+         */
+        MEMORY,
+        /**
+         * the data in a local MVStore file with a bounded page cache in the heap (for data larger than the heap)
+         */
+        FILE,
+        /**
+         * all the data in the heap but LZF compressed (page store on the compressed in-memory file system,
+         * with a bounded cache of uncompressed pages), fits more data in the same heap than memory but is slower.
+         * The string columns are not dictionary encoded: H2 has no column encodings, so the codes would have to be read
+         * through views which join the dictionary back in, that makes the kettle queries much slower and moves the
+         * foreign keys off the id columns (see InputLoadBenchmarkTest benchmarkTempStoreModes, COMPRESSED_DICT)
+         */
+        COMPRESSED;
+
+        public static TempStoreMode fromString(String str) {
+            if (StringUtils.isBlank(str)) {
+                return MEMORY;
+            }
+            for (TempStoreMode mode : values()) {
+                if (StringUtils.equalsIgnoreCase(str.trim(), mode.name())) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("temp store mode ("+str+") does not match the valid modes: "+ ArrayUtils.toString(values()));
+        }
+    }
+
     public static class JdbcInfo {
         private String username;
         private String password;
         private String driverClassName;
         private String url;
         private String dialect;
+        // temp store only
+        private String mode;
+        private String file = "/tmp/lap-temp-db";
+        private int cacheSize = 65536;
 
         public String getUsername() {
             return username;
@@ -66,6 +107,65 @@ public class DatasourceProperties {
         public void setDialect(String dialect) {
             this.dialect = dialect;
         }
+
+        /**
+         * @return the temp store mode (memory or file)
+         */
+        public String getMode() {
+            return mode;
+        }
+
+        public void setMode(String mode) {
+            this.mode = mode;
+        }
+
+        /**
+         * @return the path of the database file (without the .mv.db extension) for the file mode
+         */
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        /**
+         * @return the size (KB) of the page cache for the file mode
+         */
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+    }
+
+    /**
+     * Makes the url of the temp store for a mode, the settings of the configured url (e.g. MODE=MYSQL) are kept in every mode
+     * @param mode the temp store mode
+     * @param url the configured (in memory) url
+     * @param file the path of the database file (for the file mode)
+     * @param cacheSize the size (KB) of the page cache (for the file and compressed modes)
+     * @return the url to connect to the temp store with
+     */
+    public static String makeTempUrl(TempStoreMode mode, String url, String file, int cacheSize) {
+        assert StringUtils.isNotBlank(url);
+        String settings = StringUtils.contains(url, ';') ? url.substring(url.indexOf(';')) : "";
+        if (mode == TempStoreMode.FILE) {
+            assert StringUtils.isNotBlank(file);
+            return "jdbc:h2:file:" + file + settings + ";MV_STORE=TRUE;CACHE_SIZE=" + cacheSize;
+        } else if (mode == TempStoreMode.COMPRESSED) {
+            // same database name as the in memory url so it is shared in the JVM the same way,
+            // the compressed file systems only work with the page store (not the MVStore) in this H2 version
+            String name = StringUtils.substringBefore(StringUtils.substringAfter(url, "jdbc:h2:mem:"), ";");
+            if (StringUtils.isBlank(name)) {
+                name = "lap-temp-db";
+            }
+            return "jdbc:h2:memLZF:" + name + settings + ";MV_STORE=FALSE;CACHE_SIZE=" + cacheSize;
+        }
+        return url;
     }
 
     private JdbcInfo temp = new JdbcInfo();
@@ -75,6 +175,39 @@ public class DatasourceProperties {
         return temp;
     }
 
+    /**
+     * @return the temp store mode (from datasource.temp.mode)
+     */
+    public TempStoreMode getTempMode() {
+        return TempStoreMode.fromString(temp.getMode());
+    }
+
+    /**
+     * @param runId the unique id of the run
+     * @return the url of a separate temp store for a single run (same mode and settings as the shared temp store)
+     */
+    public String getRunTempUrl(String runId) {
+        assert StringUtils.isNotBlank(runId);
+        String url = temp.getUrl();
+        String name = StringUtils.substringBefore(StringUtils.substringAfter(url, "jdbc:h2:mem:"), ";");
+        if (StringUtils.isBlank(name)) {
+            name = "lap-temp-db";
+        }
+        String settings = StringUtils.contains(url, ';') ? url.substring(url.indexOf(';')) : "";
+        if (!StringUtils.containsIgnoreCase(settings, "DB_CLOSE_DELAY")) {
+            settings += ";DB_CLOSE_DELAY=-1"; // the run store is used with a new connection each time
+        }
+        return makeTempUrl(getTempMode(), "jdbc:h2:mem:" + name + "-" + runId + settings, temp.getFile() + "-" + runId, temp.getCacheSize());
+    }
+
+    /**
+     * @return the url the temp store is connected with (for the temp store mode),
+     * everything which connects to the temp store (the temp datasource and the kettle shared connection) MUST use this
+     */
+    public String getTempUrl() {
+        return makeTempUrl(getTempMode(), temp.getUrl(), temp.getFile(), temp.getCacheSize());
+    }
+
     public JdbcInfo getPersistent() {
         return persistent;
     }
@@ -0,0 +1,22 @@
+/**
+ *
+ */
+package org.apereo.lap.services.storage;
+
+import org.apereo.lap.model.InputFingerprint;
+
+/**
+ * Registry of the extracts currently loaded into the temp store (1 per input collection)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public interface InputFingerprintPersistentStorage {
+  /**
+   * Saves the fingerprint, replacing any existing fingerprint for the same collection
+   */
+  InputFingerprint save(InputFingerprint inputFingerprint);
+  /**
+   * @return the fingerprint of the extract last loaded for this collection OR null if there is none
+   */
+  InputFingerprint get(String collection);
+}
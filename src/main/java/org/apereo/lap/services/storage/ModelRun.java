@@ -18,6 +18,7 @@
 package org.apereo.lap.services.storage;
 
 import java.util.Date;
+import java.util.Map;
 
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
@@ -42,6 +43,8 @@ public class ModelRun implements PersistentLAPEntity {
   private String modelName;
   private int modelCount;
   private boolean success;
+  private Map<String, Object> inputMetrics;
+  private Map<String, Object> stageTimings;
   
   public String getId() {
     return id;
@@ -86,6 +89,24 @@ public class ModelRun implements PersistentLAPEntity {
   public void setModelName(String modelName) {
     this.modelName = modelName;
   }
+  /**
+   * @return the throughput of the input loads during the run (totals and the metrics for each collection) OR null if not known
+   */
+  public Map<String, Object> getInputMetrics() {
+    return inputMetrics;
+  }
+  public void setInputMetrics(Map<String, Object> inputMetrics) {
+    this.inputMetrics = inputMetrics;
+  }
+  /**
+   * @return the time spent building the index hints and running each processor during the run OR null if not known
+   */
+  public Map<String, Object> getStageTimings() {
+    return stageTimings;
+  }
+  public void setStageTimings(Map<String, Object> stageTimings) {
+    this.stageTimings = stageTimings;
+  }
   @Override
   public String toString() {
     return "ModelRun [id=" + id + ", created_date=" + createdDate + ", model_run_id=" + model_run_id + ", modelType=" + modelType + ", modelName="
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+/**
+ * A temp store (a separate temp database) which is only used by a single pipeline run,
+ * so runs which overlap cannot see or change the temp data of each other (the loaded inputs and the processor tables).
+ * It is created from schema.sql when the run starts and dropped when the run is done.
+ *
+ * NOTE: use {@link StorageService#openRunTempStore(String)} and {@link StorageService#closeRunTempStore(RunTempStore)}
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+public class RunTempStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunTempStore.class);
+
+    static final String SCHEMA = "schema.sql";
+
+    final String runId;
+    final String url;
+    final JdbcTemplate jdbcTemplate;
+    final TempStoreCatalog catalog;
+    final long createdMS;
+    volatile boolean closed = false;
+
+    /**
+     * @param runId the unique id of the run
+     * @param url the url of the run temp database
+     * @param username the temp database user
+     * @param password the temp database password
+     */
+    RunTempStore(String runId, String url, String username, String password) {
+        this.runId = runId;
+        this.url = url;
+        // opens a connection each time (the database stays open until it is dropped)
+        this.jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(url, username, password));
+        this.catalog = new TempStoreCatalog(jdbcTemplate);
+        this.createdMS = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates the temp tables (from schema.sql)
+     */
+    void create() {
+        DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource(SCHEMA)), jdbcTemplate.getDataSource());
+        logger.info("Created the temp store for run "+runId+": "+url);
+    }
+
+    /**
+     * Drops everything in the run temp database and closes it (the files are deleted for the file mode)
+     */
+    void drop() {
+        closed = true;
+        try {
+            jdbcTemplate.execute("DROP ALL OBJECTS DELETE FILES");
+            jdbcTemplate.execute("SHUTDOWN");
+            logger.info("Dropped the temp store for run "+runId+" (used for "+(System.currentTimeMillis() - createdMS)+" ms)");
+        } catch (Exception e) {
+            logger.warn("Unable to drop the temp store for run "+runId+" ("+url+"): "+e);
+        }
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @return the url of the run temp database (for the connections which are not made with the jdbc template, e.g. kettle)
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    public TempStoreCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return true if the run is done and the store was dropped
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "RunTempStore:" + runId + ", url=" + url + (closed ? " (closed)" : "");
+    }
+}
@@ -35,6 +35,7 @@ public class StorageFactory {
   @Autowired private Map<String, PersistentStorage<ModelOutput>> persistentStorageOptions;
   @Autowired private Map<String, ModelRunPersistentStorage> modelRunPersistentStorageOptions;
   @Autowired private Map<String, SSPConfigPersistentStorage> sspConfigPersistentStorageOptions;
+  @Autowired private Map<String, InputFingerprintPersistentStorage> inputFingerprintPersistentStorageOptions;
   
   public PersistentStorage<ModelOutput> getPersistentStorage() {
     return persistentStorageOptions.get(persistentStorage);
@@ -53,5 +54,12 @@ public class StorageFactory {
     
     return sspConfigPersistentStorageOptions.get(key);
   }
+  
+  public InputFingerprintPersistentStorage getInputFingerprintPersistentStorage() {
+    
+    String key = persistentStorage + "-InputFingerprintPersistentStorage";
+    
+    return inputFingerprintPersistentStorageOptions.get(key);
+  }
 
 }
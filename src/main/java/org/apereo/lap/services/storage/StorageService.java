@@ -14,18 +14,42 @@
  *******************************************************************************/
 package org.apereo.lap.services.storage;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang.StringUtils;
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService.InputCollection;
+import org.apereo.lap.services.input.InputMetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.MapType;
+
 /**
  * Manages the various types of storage (temporary and persistent),
  * probably would be good to have a service for each type of storage (temp and persistent)
@@ -38,10 +62,54 @@ public class StorageService {
 
     private static final Logger logger = LoggerFactory.getLogger(StorageService.class);
 
+    /**
+     * the prefix of the secondary indexes built from the pipeline index hints (only these are dropped before a load)
+     */
+    public static final String INDEX_PREFIX = "LAP_IDX_";
+
+    /**
+     * the file name prefix and extension of the temp store snapshots (in the snapshots dir)
+     */
+    static final String SNAPSHOT_PREFIX = "tempstore-";
+    static final String SNAPSHOT_EXTENSION = ".zip";
+    /**
+     * the extension of the file next to a temp store snapshot which holds the input fingerprints of the snapshot data
+     */
+    static final String SNAPSHOT_FINGERPRINTS_EXTENSION = ".fingerprints.json";
+
+    private static final ObjectMapper JSON = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
     @Autowired ConfigurationService configuration;
 
     @Autowired JdbcTemplate tempJdbcTemplate;
 
+    @Autowired StorageFactory storageFactory;
+
+    @Autowired TempStoreCatalog catalog;
+
+    @Autowired DatasourceProperties datasourceProperties;
+
+    @Autowired InputMetricsRegistry inputMetricsRegistry;
+
+    /**
+     * the temp store of the pipeline run on this thread (and the threads it starts) OR null to use the shared temp store
+     */
+    final InheritableThreadLocal<RunTempStore> runTempStore = new InheritableThreadLocal<>();
+
+    /**
+     * held (shared) by everything which uses the shared temp store (pipeline runs, input loads, activity event inserts, snapshots)
+     * and held (exclusive) while the shared temp store is restored from a snapshot
+     */
+    final ReentrantReadWriteLock tempStoreLock = new ReentrantReadWriteLock();
+    /**
+     * held while the rows of a loaded temp table are counted or added to and its input fingerprint is updated to match
+     */
+    final ReentrantLock inputFingerprintLock = new ReentrantLock();
+    /**
+     * the number of times the shared temp store was restored from a snapshot
+     */
+    final AtomicLong tempStoreRestores = new AtomicLong();
+
     @PostConstruct
     public void init() {
         // Initialize the temp database connection
@@ -53,20 +121,73 @@ public class StorageService {
         logger.info("DESTROY");
     }
 
+    /**
+     * Creates a separate temp store for a pipeline run and uses it (instead of the shared temp store) for everything
+     * done on this thread and any threads it starts until {@link #closeRunTempStore(RunTempStore)} is called
+     * @param runId the unique id of the run
+     * @return the temp store of the run (with empty temp tables)
+     */
+    public RunTempStore openRunTempStore(String runId) {
+        assert StringUtils.isNotBlank(runId);
+        RunTempStore store = new RunTempStore(runId, datasourceProperties.getRunTempUrl(runId),
+                datasourceProperties.getTemp().getUsername(), datasourceProperties.getTemp().getPassword());
+        store.create();
+        runTempStore.set(store);
+        return store;
+    }
+
+    /**
+     * Drops the temp store of a pipeline run and goes back to the shared temp store
+     * @param store the temp store of the run (from {@link #openRunTempStore(String)})
+     */
+    public void closeRunTempStore(RunTempStore store) {
+        assert store != null;
+        if (runTempStore.get() == store) {
+            runTempStore.remove();
+        }
+        store.drop();
+    }
+
+    /**
+     * @return the temp store of the pipeline run on this thread OR null if the shared temp store is used
+     */
+    public RunTempStore getRunTempStore() {
+        RunTempStore store = runTempStore.get();
+        return store != null && !store.isClosed() ? store : null;
+    }
+
     /**
      * Clears the temp datastore tables for data reload
      */
     public void resetTempStore() {
         // doesn't really make sense to reset the persistent store
-        this.tempJdbcTemplate.execute("TRUNCATE TABLE ACTIVITY");
-        this.tempJdbcTemplate.execute("TRUNCATE TABLE GRADE");
-        this.tempJdbcTemplate.execute("TRUNCATE TABLE ENROLLMENT");
-        this.tempJdbcTemplate.execute("TRUNCATE TABLE COURSE");
-        this.tempJdbcTemplate.execute("TRUNCATE TABLE PERSONAL");
+        clearTempTables("ACTIVITY", "GRADE", "ENROLLMENT", "COURSE", "PERSONAL", "INPUT_REJECTS");
+    }
+
+    /**
+     * Removes all rows from the temp store tables
+     * NOTE: uses DELETE since H2 will not TRUNCATE a table which is referenced by a foreign key
+     * @param tableNames the tables to clear (referencing tables MUST come before the tables they reference)
+     */
+    public void clearTempTables(String... tableNames) {
+        for (String tableName : tableNames) {
+            getTempJdbcTemplate().execute("DELETE FROM "+tableName);
+        }
+        getCatalog().invalidateData(tableNames);
     }
 
     /**
-     * Check if a table exists and contains the given column
+     * @param tableName the table name (should be all CAPS)
+     * @return the number of rows in the temp store table
+     */
+    public int countTempTableRows(String tableName) {
+        assert StringUtils.isNotBlank(tableName);
+        Integer count = getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM "+tableName, Integer.class);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Check if a table exists and contains the given column (uses the cached catalog metadata)
      * @param tableName the table name (should be all CAPS)
      * @param columnName the column name (should be all CAPS)
      * @return true if the table and column exist, false otherwise
@@ -74,17 +195,324 @@ public class StorageService {
     public boolean checkTableAndColumnExist(String tableName, String columnName) {
         assert StringUtils.isNotBlank(tableName);
         assert StringUtils.isNotBlank(columnName);
-        String query = "SELECT COUNT(*) as COUNT FROM information_schema.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?";
-        Integer count;
-        count = this.getTempJdbcTemplate().queryForObject(query, Integer.class, tableName, columnName);
-        return (count != null && count > 0);
+        return getCatalog().hasColumn(tableName, columnName);
+    }
+
+    /**
+     * @param tableName the table name (should be all CAPS)
+     * @return the names of the secondary indexes built from the index hints on the table
+     */
+    public List<String> findIndexes(String tableName) {
+        assert StringUtils.isNotBlank(tableName);
+        List<String> indexNames = getTempJdbcTemplate().queryForList("SELECT DISTINCT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES WHERE UPPER(TABLE_NAME) = ? AND UPPER(INDEX_NAME) LIKE ?",
+                String.class, StringUtils.upperCase(tableName), INDEX_PREFIX+"%");
+        // the MySQL compatibility mode reports the names in lower case
+        for (int i = 0; i < indexNames.size(); i++) {
+            indexNames.set(i, StringUtils.upperCase(indexNames.get(i)));
+        }
+        return indexNames;
+    }
+
+    /**
+     * Builds a secondary index on a temp store table (if it does not exist already),
+     * build these after the table is loaded since each index slows down every insert
+     * @param indexName the index name (must start with {@link #INDEX_PREFIX})
+     * @param tableName the table name (should be all CAPS)
+     * @param columns the indexed columns (in index order)
+     * @return true if the index was built, false if it already existed
+     */
+    public boolean createIndex(String indexName, String tableName, List<String> columns) {
+        assert StringUtils.startsWith(indexName, INDEX_PREFIX);
+        assert StringUtils.isNotBlank(tableName);
+        assert columns != null && !columns.isEmpty();
+        if (findIndexes(tableName).contains(indexName)) {
+            return false;
+        }
+        getTempJdbcTemplate().execute("CREATE INDEX IF NOT EXISTS "+indexName+" ON "+tableName+" ("+StringUtils.join(columns, ",")+")");
+        return true;
+    }
+
+    /**
+     * Drops the secondary indexes built from the index hints so the tables can be loaded without maintaining them
+     * (the primary keys and the indexes backing the constraints are kept)
+     * @param tableNames the tables which are about to be loaded
+     * @return the number of indexes dropped
+     */
+    public int dropIndexes(String... tableNames) {
+        int dropped = 0;
+        for (String tableName : tableNames) {
+            for (String indexName : findIndexes(tableName)) {
+                getTempJdbcTemplate().execute("DROP INDEX IF EXISTS "+indexName);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            logger.info("Dropped "+dropped+" secondary indexes before loading "+StringUtils.join(tableNames, ","));
+        }
+        return dropped;
+    }
+
+    /**
+     * @param name the snapshot name
+     * @return true if the name can be used for a temp store snapshot (letters, digits, - and _ only)
+     */
+    public static boolean isValidTempStoreSnapshotName(String name) {
+        return StringUtils.isNotBlank(name) && name.matches("[A-Za-z0-9_-]+");
+    }
+
+    /**
+     * @param name the snapshot name (letters, digits, - and _ only)
+     * @return the file for the temp store snapshot (may not exist)
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    public Path getTempStoreSnapshotFile(String name) {
+        if (!isValidTempStoreSnapshotName(name)) {
+            throw new IllegalArgumentException("Invalid temp store snapshot name ("+name+"), only letters, digits, - and _ are allowed");
+        }
+        return configuration.getSnapshotDirectory().resolve(SNAPSHOT_PREFIX + name + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * @return the names of the temp store snapshots which exist (sorted)
+     */
+    public List<String> findTempStoreSnapshots() {
+        List<String> names = new ArrayList<>();
+        Path directory = configuration.getSnapshotDirectory();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_EXTENSION)) {
+                for (Path file : files) {
+                    names.add(StringUtils.removeEnd(StringUtils.removeStart(file.getFileName().toString(), SNAPSHOT_PREFIX), SNAPSHOT_EXTENSION));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to list the temp store snapshots in "+directory+": "+e, e);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Marks the start of work which uses the shared temp store (e.g. a pipeline run or an input load),
+     * the shared temp store cannot be restored from a snapshot until {@link #endTempStoreUse()} is called (on the same thread).
+     * Waits if the temp store is being restored.
+     */
+    public void beginTempStoreUse() {
+        tempStoreLock.readLock().lock();
+    }
+
+    /**
+     * Marks the end of work started with {@link #beginTempStoreUse()} (on the same thread)
+     */
+    public void endTempStoreUse() {
+        tempStoreLock.readLock().unlock();
+    }
+
+    /**
+     * Marks the start of a change to a loaded temp table which is also recorded in its input fingerprint
+     * (e.g. counting the rows after a load and saving the fingerprint, or inserting rows and adding them to the fingerprint),
+     * the other changes wait until {@link #endInputFingerprintUpdate()} is called (on the same thread) so no update is lost
+     */
+    public void beginInputFingerprintUpdate() {
+        inputFingerprintLock.lock();
+    }
+
+    /**
+     * Marks the end of a change started with {@link #beginInputFingerprintUpdate()} (on the same thread)
+     */
+    public void endInputFingerprintUpdate() {
+        inputFingerprintLock.unlock();
+    }
+
+    /**
+     * @return the number of times the shared temp store was restored from a snapshot
+     * (anything remembered about the loaded temp data from before a restore is out of date)
+     */
+    public long getTempStoreRestores() {
+        return tempStoreRestores.get();
+    }
+
+    /**
+     * @param snapshotFile the temp store snapshot file
+     * @return the file which holds the input fingerprints of the snapshot data
+     */
+    static Path getSnapshotFingerprintsFile(Path snapshotFile) {
+        return snapshotFile.resolveSibling(StringUtils.removeEnd(snapshotFile.getFileName().toString(), SNAPSHOT_EXTENSION) + SNAPSHOT_FINGERPRINTS_EXTENSION);
+    }
+
+    /**
+     * Writes a snapshot of the whole temp store (every table including the processor tables, the indexes and the data)
+     * to a compressed script file in the snapshots dir, replaces any existing snapshot with the same name.
+     * The input fingerprints for the shared temp store are written with it (so the inputs are not loaded again after it is restored).
+     * @param name the snapshot name (letters, digits, - and _ only)
+     * @return the snapshot file
+     * @throws IllegalArgumentException if the name is not valid
+     * @throws IllegalStateException if the snapshot cannot be written
+     */
+    public synchronized Path snapshotTempStore(String name) {
+        Path file = getTempStoreSnapshotFile(name);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Path fingerprintsFile = getSnapshotFingerprintsFile(file);
+        long start = System.currentTimeMillis();
+        beginTempStoreUse();
+        try {
+            Files.createDirectories(file.getParent());
+            // read the fingerprints first, a load which finishes during the script only leaves them out of date (so it is loaded again)
+            Map<String, InputFingerprint> fingerprints = null;
+            InputFingerprintPersistentStorage registry = getInputFingerprintStorage();
+            if (registry != null) {
+                fingerprints = new TreeMap<>();
+                for (InputCollection ic : InputCollection.values()) {
+                    InputFingerprint fingerprint = registry.get(ic.name());
+                    if (fingerprint != null) {
+                        fingerprint.setId(null);
+                        fingerprints.put(ic.name(), fingerprint);
+                    }
+                }
+            }
+            getTempJdbcTemplate().execute("SCRIPT TO '"+sqlPath(tmp)+"' COMPRESSION ZIP");
+            if (fingerprints != null) {
+                JSON.writeValue(fingerprintsFile.toFile(), fingerprints);
+            } else {
+                Files.deleteIfExists(fingerprintsFile);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e1) {
+                // nothing to do
+            }
+            throw new IllegalStateException("Unable to write the temp store snapshot ("+file+"): "+e, e);
+        } finally {
+            endTempStoreUse();
+        }
+        logger.info("Wrote the temp store snapshot "+name+" ("+file+") in "+(System.currentTimeMillis() - start)+" ms");
+        return file;
+    }
+
+    /**
+     * Replaces everything in the shared temp store with a snapshot (from {@link #snapshotTempStore(String)})
+     * and the input fingerprints with the ones written with the snapshot
+     * (the inputs without a fingerprint in the snapshot are loaded again the next time they are needed)
+     * @param name the snapshot name
+     * @return true if the snapshot was restored, false if there is no snapshot with the name
+     * @throws IllegalArgumentException if the name is not valid
+     * @throws IllegalStateException if the temp store is in use (see {@link #beginTempStoreUse()})
+     * OR the snapshot cannot be restored (the temp store is left with empty temp tables)
+     */
+    public synchronized boolean restoreTempStore(String name) {
+        Path file = getTempStoreSnapshotFile(name);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        if (getRunTempStore() != null) {
+            throw new IllegalStateException("The temp store snapshot ("+name+") cannot be restored into the temp store of run "+getRunTempStore().getRunId());
+        }
+        if (!tempStoreLock.writeLock().tryLock()) {
+            throw new IllegalStateException("The temp store snapshot ("+name+") cannot be restored while the temp store is in use (by a pipeline run, an input load or the activity events), try again later");
+        }
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, InputFingerprint> fingerprints = null;
+            Path fingerprintsFile = getSnapshotFingerprintsFile(file);
+            if (Files.isRegularFile(fingerprintsFile)) {
+                MapType type = JSON.getTypeFactory().constructMapType(TreeMap.class, String.class, InputFingerprint.class);
+                fingerprints = JSON.readValue(fingerprintsFile.toFile(), type);
+            }
+            try {
+                getTempJdbcTemplate().execute("DROP ALL OBJECTS");
+                getTempJdbcTemplate().execute("RUNSCRIPT FROM '"+sqlPath(file)+"' COMPRESSION ZIP");
+            } catch (RuntimeException e) {
+                fingerprints = null;
+                // put back the empty temp tables so the temp store can still be loaded
+                DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource(RunTempStore.SCHEMA)), getTempJdbcTemplate().getDataSource());
+                throw new IllegalStateException("Unable to restore the temp store snapshot ("+file+"), the temp store is empty now: "+e, e);
+            } finally {
+                // the tables were all replaced
+                getCatalog().invalidate();
+                tempStoreRestores.incrementAndGet();
+                restoreInputFingerprints(fingerprints);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the input fingerprints of the temp store snapshot ("+file+"): "+e, e);
+        } finally {
+            tempStoreLock.writeLock().unlock();
+        }
+        logger.info("Restored the temp store snapshot "+name+" ("+file+") in "+(System.currentTimeMillis() - start)+" ms");
+        return true;
+    }
+
+    /**
+     * Replaces the input fingerprints with the ones for the restored temp store data,
+     * the inputs without one are marked as not loaded (their row count never matches) so they are loaded again
+     * @param fingerprints the fingerprints of the restored data (collection -> fingerprint) OR null if there are none
+     */
+    void restoreInputFingerprints(Map<String, InputFingerprint> fingerprints) {
+        InputFingerprintPersistentStorage registry = getInputFingerprintStorage();
+        if (registry == null) {
+            return;
+        }
+        for (InputCollection ic : InputCollection.values()) {
+            InputFingerprint fingerprint = fingerprints != null ? fingerprints.get(ic.name()) : null;
+            if (fingerprint == null) {
+                fingerprint = registry.get(ic.name());
+                if (fingerprint == null) {
+                    continue;
+                }
+                fingerprint.setRowCount(-1);
+            }
+            fingerprint.setId(null);
+            registry.save(fingerprint);
+        }
+    }
+
+    private static String sqlPath(Path file) {
+        return StringUtils.replace(file.toAbsolutePath().toString(), "'", "''");
     }
 
     public ConfigurationService getConfiguration() {
         return configuration;
     }
 
+    /**
+     * @return the temp store (the temp store of the pipeline run on this thread if there is one)
+     */
     public JdbcTemplate getTempJdbcTemplate() {
-        return tempJdbcTemplate;
+        RunTempStore store = getRunTempStore();
+        return store != null ? store.getJdbcTemplate() : tempJdbcTemplate;
+    }
+
+    /**
+     * @return the catalog of the temp store tables (cached metadata, row counts and column statistics)
+     */
+    public TempStoreCatalog getCatalog() {
+        RunTempStore store = getRunTempStore();
+        return store != null ? store.getCatalog() : catalog;
+    }
+
+    /**
+     * @return the url of the temp store (for connections not made with the jdbc template, e.g. kettle)
+     */
+    public String getTempUrl() {
+        RunTempStore store = getRunTempStore();
+        return store != null ? store.getUrl() : datasourceProperties.getTempUrl();
+    }
+
+    /**
+     * @return the live metrics of the input loads (for the input handler services, which are not created by spring)
+     */
+    public InputMetricsRegistry getInputMetricsRegistry() {
+        return inputMetricsRegistry;
+    }
+
+    /**
+     * @return the registry of the extracts loaded into the temp store
+     * (null if the persistent store does not have one OR a run temp store is used since the registry describes the shared temp store)
+     */
+    public InputFingerprintPersistentStorage getInputFingerprintStorage() {
+        if (getRunTempStore() != null) {
+            return null;
+        }
+        return storageFactory.getInputFingerprintPersistentStorage();
     }
 }
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+/**
+ * Catalog of the temp store tables which caches the table and column metadata, the row counts and basic column statistics
+ * so the checks done on every pipeline run (inputs exist, output sizes) do not query the information schema or count the tables each time.
+ *
+ * The metadata for all the tables is read with a single query the first time it is needed and kept until {@link #invalidate()}
+ * is called (after anything which may change the tables, e.g. the pipeline processors).
+ * The row counts and column statistics are read the first time each is needed and kept until the table data changes
+ * (see {@link #invalidateData(String...)}, called when the temp tables are cleared or loaded).
+ *
+ * NOTE: names are not case sensitive (the temp store uses upper case names)
+ *
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ */
+@Component
+public class TempStoreCatalog {
+
+    private static final Logger logger = LoggerFactory.getLogger(TempStoreCatalog.class);
+
+    static final String COLUMNS_SQL = "SELECT TABLE_NAME, COLUMN_NAME, TYPE_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+            + " WHERE TABLE_SCHEMA <> 'INFORMATION_SCHEMA' ORDER BY TABLE_NAME, ORDINAL_POSITION";
+
+    @Autowired JdbcTemplate tempJdbcTemplate;
+
+    public TempStoreCatalog() {}
+
+    /**
+     * @param tempJdbcTemplate the temp store to catalog (e.g. the temp store of a single run)
+     */
+    public TempStoreCatalog(JdbcTemplate tempJdbcTemplate) {
+        this.tempJdbcTemplate = tempJdbcTemplate;
+    }
+
+    /**
+     * table name -> table (null until the metadata is read)
+     */
+    Map<String, Table> tables;
+    int queries = 0;
+
+    /**
+     * Cached details of a single table
+     */
+    static class Table {
+        final String name;
+        /**
+         * column name -> type name (in column order)
+         */
+        final Map<String, String> columns = new LinkedHashMap<>();
+        Integer rowCount;
+        final Map<String, ColumnStats> columnStats = new HashMap<>();
+
+        Table(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Basic statistics for the values of a single column
+     */
+    public static class ColumnStats {
+        final String table;
+        final String column;
+        final int rows;
+        final int nulls;
+        final int distinct;
+        final Object min;
+        final Object max;
+
+        ColumnStats(String table, String column, int rows, int nulls, int distinct, Object min, Object max) {
+            this.table = table;
+            this.column = column;
+            this.rows = rows;
+            this.nulls = nulls;
+            this.distinct = distinct;
+            this.min = min;
+            this.max = max;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getNulls() {
+            return nulls;
+        }
+
+        public int getDistinct() {
+            return distinct;
+        }
+
+        /**
+         * @return the lowest value OR null if there are no values
+         */
+        public Object getMin() {
+            return min;
+        }
+
+        /**
+         * @return the highest value OR null if there are no values
+         */
+        public Object getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "ColumnStats:" + table + "." + column + ", rows=" + rows + ", nulls=" + nulls + ", distinct=" + distinct + ", min=" + min + ", max=" + max;
+        }
+    }
+
+    private Map<String, Table> getTables() {
+        if (tables == null) {
+            long start = System.currentTimeMillis();
+            final Map<String, Table> read = new LinkedHashMap<>();
+            tempJdbcTemplate.query(COLUMNS_SQL, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    String tableName = StringUtils.upperCase(rs.getString(1));
+                    Table table = read.get(tableName);
+                    if (table == null) {
+                        table = new Table(tableName);
+                        read.put(tableName, table);
+                    }
+                    table.columns.put(StringUtils.upperCase(rs.getString(2)), rs.getString(3));
+                }
+            });
+            queries++;
+            tables = read;
+            if (logger.isDebugEnabled()) logger.debug("Read the metadata of "+tables.size()+" temp store tables in "+(System.currentTimeMillis() - start)+" ms");
+        }
+        return tables;
+    }
+
+    private Table findTable(String tableName) {
+        assert StringUtils.isNotBlank(tableName);
+        return getTables().get(StringUtils.upperCase(tableName));
+    }
+
+    private Table getTable(String tableName) {
+        Table table = findTable(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("No table named "+tableName+" in the temp store");
+        }
+        return table;
+    }
+
+    /**
+     * @return the names of all the tables in the temp store (sorted)
+     */
+    public synchronized Set<String> getTableNames() {
+        return new TreeSet<>(getTables().keySet());
+    }
+
+    /**
+     * @param tableName the table name
+     * @return true if the table exists
+     */
+    public synchronized boolean hasTable(String tableName) {
+        return findTable(tableName) != null;
+    }
+
+    /**
+     * @param tableName the table name
+     * @param columnName the column name
+     * @return true if the table exists and contains the column
+     */
+    public synchronized boolean hasColumn(String tableName, String columnName) {
+        assert StringUtils.isNotBlank(columnName);
+        Table table = findTable(tableName);
+        return table != null && table.columns.containsKey(StringUtils.upperCase(columnName));
+    }
+
+    /**
+     * @param tableName the table name
+     * @return the column names of the table (in column order) OR empty list if the table does not exist
+     */
+    public synchronized List<String> getColumns(String tableName) {
+        Table table = findTable(tableName);
+        return table != null ? new ArrayList<>(table.columns.keySet()) : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param tableName the table name
+     * @param columnName the column name
+     * @return the database type name of the column OR null if the table or column does not exist
+     */
+    public synchronized String getColumnType(String tableName, String columnName) {
+        Table table = findTable(tableName);
+        return table != null ? table.columns.get(StringUtils.upperCase(columnName)) : null;
+    }
+
+    /**
+     * @param tableName the table name
+     * @return the number of rows in the table (counted once until the table data changes)
+     * @throws IllegalArgumentException if the table does not exist
+     */
+    public synchronized int getRowCount(String tableName) {
+        Table table = getTable(tableName);
+        if (table.rowCount == null) {
+            Integer count = tempJdbcTemplate.queryForObject("SELECT COUNT(*) FROM "+table.name, Integer.class);
+            queries++;
+            table.rowCount = count != null ? count : 0;
+        }
+        return table.rowCount;
+    }
+
+    /**
+     * @param tableName the table name
+     * @param columnName the column name
+     * @return the statistics for the column values (read once until the table data changes)
+     * @throws IllegalArgumentException if the table or column does not exist
+     */
+    public synchronized ColumnStats getColumnStats(String tableName, String columnName) {
+        final Table table = getTable(tableName);
+        final String column = StringUtils.upperCase(columnName);
+        if (!table.columns.containsKey(column)) {
+            throw new IllegalArgumentException("No column named "+columnName+" in the temp store table "+tableName);
+        }
+        ColumnStats stats = table.columnStats.get(column);
+        if (stats == null) {
+            stats = tempJdbcTemplate.queryForObject("SELECT COUNT(*), COUNT("+column+"), COUNT(DISTINCT "+column+"), MIN("+column+"), MAX("+column+") FROM "+table.name,
+                    new RowMapper<ColumnStats>() {
+                        @Override
+                        public ColumnStats mapRow(ResultSet rs, int rowNum) throws SQLException {
+                            int rows = rs.getInt(1);
+                            return new ColumnStats(table.name, column, rows, rows - rs.getInt(2), rs.getInt(3), rs.getObject(4), rs.getObject(5));
+                        }
+                    });
+            queries++;
+            table.rowCount = stats.rows;
+            table.columnStats.put(column, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Drops all the cached metadata, counts and statistics (call after the tables may have been created, altered or dropped)
+     */
+    public synchronized void invalidate() {
+        tables = null;
+    }
+
+    /**
+     * Drops the cached row counts and column statistics for tables (call after the data in the tables changed)
+     * @param tableNames the tables which changed
+     */
+    public synchronized void invalidateData(String... tableNames) {
+        if (tables == null) {
+            return;
+        }
+        for (String tableName : tableNames) {
+            Table table = findTable(tableName);
+            if (table != null) {
+                table.rowCount = null;
+                table.columnStats.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of queries the catalog has sent to the temp store (metadata, counts and statistics)
+     */
+    public synchronized int getQueries() {
+        return queries;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TempStoreCatalog: tables=" + (tables != null ? tables.keySet() : "(not read)") + ", queries=" + queries;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package org.apereo.lap.services.storage.h2;
+
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.storage.InputFingerprintPersistentStorage;
+import org.apereo.lap.services.storage.h2.model.InputFingerprintRepository;
+import org.apereo.lap.services.storage.h2.model.JpaInputFingerprint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ *
+ */
+@Component("H2-InputFingerprintPersistentStorage")
+public class H2InputFingerprintPersistentStorage implements InputFingerprintPersistentStorage {
+
+  @Autowired private InputFingerprintRepository inputFingerprintRepository;
+
+  @Override
+  public InputFingerprint save(InputFingerprint inputFingerprint) {
+    JpaInputFingerprint jpaInputFingerprint = inputFingerprintRepository.findByCollection(inputFingerprint.getCollection());
+    if (jpaInputFingerprint == null) {
+      jpaInputFingerprint = new JpaInputFingerprint(inputFingerprint);
+    } else {
+      jpaInputFingerprint.update(inputFingerprint);
+    }
+    JpaInputFingerprint saved = inputFingerprintRepository.save(jpaInputFingerprint);
+
+    inputFingerprint.setId(saved.getId().toString());
+    return inputFingerprint;
+  }
+
+  @Override
+  public InputFingerprint get(String collection) {
+    JpaInputFingerprint saved = inputFingerprintRepository.findByCollection(collection);
+    return saved != null ? saved.toInputFingerprint() : null;
+  }
+
+}
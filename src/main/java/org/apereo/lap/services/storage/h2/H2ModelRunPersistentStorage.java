@@ -17,19 +17,25 @@
  */
 package org.apereo.lap.services.storage.h2;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apereo.lap.services.storage.ModelRun;
 import org.apereo.lap.services.storage.ModelRunPersistentStorage;
 import org.apereo.lap.services.storage.h2.model.Run;
 import org.apereo.lap.services.storage.h2.model.RunRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * @author ggilbert
  *
@@ -37,6 +43,9 @@ import org.springframework.stereotype.Component;
 @Component("H2-ModelRunPersistentStorage")
 public class H2ModelRunPersistentStorage implements ModelRunPersistentStorage {
   
+  private static final Logger logger = LoggerFactory.getLogger(H2ModelRunPersistentStorage.class);
+  private static final ObjectMapper JSON = new ObjectMapper();
+
   @Autowired private RunRepository runRepository;
 
   @Override
@@ -76,6 +85,8 @@ public class H2ModelRunPersistentStorage implements ModelRunPersistentStorage {
     run.setModelType(modelRun.getModelType());
     run.setModelRunId(modelRun.getModel_run_id());
     run.setSuccess(modelRun.isSuccess());
+    run.setInputMetrics(toJSON(modelRun.getInputMetrics(), "input metrics"));
+    run.setStageTimings(toJSON(modelRun.getStageTimings(), "stage timings"));
     
     return run;
   }
@@ -89,9 +100,37 @@ public class H2ModelRunPersistentStorage implements ModelRunPersistentStorage {
     modelRun.setModelName(run.getModelName());
     modelRun.setModelType(run.getModelType());
     modelRun.setSuccess(run.isSuccess());
+    modelRun.setInputMetrics(fromJSON(run.getInputMetrics(), "input metrics of run "+run.getId()));
+    modelRun.setStageTimings(fromJSON(run.getStageTimings(), "stage timings of run "+run.getId()));
     
     return modelRun;
   }
+
+  private String toJSON(Map<String, Object> data, String name) {
+    if (data == null) {
+      return null;
+    }
+    try {
+      return JSON.writeValueAsString(data);
+    } catch (IOException e) {
+      logger.warn("Unable to store the "+name+" of the run (skipping them): "+e);
+      return null;
+    }
+  }
+
+  private Map<String, Object> fromJSON(String json, String name) {
+    if (json == null) {
+      return null;
+    }
+    try {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> data = JSON.readValue(json, Map.class);
+      return data;
+    } catch (IOException e) {
+      logger.warn("Unable to read the "+name+" (skipping them): "+e);
+      return null;
+    }
+  }
   
 
 }
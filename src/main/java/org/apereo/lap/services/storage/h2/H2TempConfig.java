@@ -20,6 +20,8 @@ package org.apereo.lap.services.storage.h2;
 import javax.sql.DataSource;
 
 import org.apereo.lap.services.storage.DatasourceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
@@ -36,6 +38,8 @@ import org.springframework.transaction.PlatformTransactionManager;
  */
 @Configuration
 public class H2TempConfig {
+    private static final Logger logger = LoggerFactory.getLogger(H2TempConfig.class);
+
     @Autowired
     private DatasourceProperties datasourceProperties;
 
@@ -49,9 +53,10 @@ public class H2TempConfig {
     @Bean(name = "tempDataSource")
     public DataSource tempDataSource() {
         DatasourceProperties.JdbcInfo p = datasourceProperties.getTemp();
+        logger.info("Temp store mode "+datasourceProperties.getTempMode()+": "+datasourceProperties.getTempUrl());
         return DataSourceBuilder
                 .create()
-                .url(p.getUrl())
+                .url(datasourceProperties.getTempUrl())
                 .username(p.getUsername())
                 .password(p.getPassword())
                 .driverClassName(p.getDriverClassName())
@@ -0,0 +1,14 @@
+/**
+ *
+ */
+package org.apereo.lap.services.storage.h2.model;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+/**
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ *
+ */
+public interface InputFingerprintRepository extends JpaRepository<JpaInputFingerprint, Long> {
+  JpaInputFingerprint findByCollection(String collection);
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.storage.h2.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+
+import org.apereo.lap.model.InputFingerprint;
+
+/**
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ *
+ */
+@Entity(name="input_fingerprint")
+public class JpaInputFingerprint extends BaseEntity {
+
+  private static final long serialVersionUID = 1L;
+
+  public JpaInputFingerprint() {}
+
+  public JpaInputFingerprint(InputFingerprint inputFingerprint) {
+    update(inputFingerprint);
+  }
+
+  public void update(InputFingerprint inputFingerprint) {
+    this.collection = inputFingerprint.getCollection();
+    this.source = inputFingerprint.getSource();
+    this.size = inputFingerprint.getSize();
+    this.lastModified = inputFingerprint.getLastModified();
+    this.hash = inputFingerprint.getHash();
+    this.edgeHash = inputFingerprint.getEdgeHash();
+    this.rowCount = inputFingerprint.getRowCount();
+    this.lines = inputFingerprint.getLines();
+    this.highWaterMark = inputFingerprint.getHighWaterMark();
+    this.loadedAt = inputFingerprint.getLoadedAt();
+  }
+
+  public InputFingerprint toInputFingerprint() {
+    InputFingerprint inputFingerprint = new InputFingerprint();
+    inputFingerprint.setId(getId().toString());
+    inputFingerprint.setCollection(collection);
+    inputFingerprint.setSource(source);
+    inputFingerprint.setSize(size);
+    inputFingerprint.setLastModified(lastModified);
+    inputFingerprint.setHash(hash);
+    inputFingerprint.setEdgeHash(edgeHash);
+    inputFingerprint.setRowCount(rowCount);
+    inputFingerprint.setLines(lines);
+    inputFingerprint.setHighWaterMark(highWaterMark);
+    inputFingerprint.setLoadedAt(loadedAt);
+    return inputFingerprint;
+  }
+
+  @Column(name="COLLECTION", unique=true, nullable=false)
+  private String collection;
+  @Column(name="SOURCE", length=1024)
+  private String source;
+  @Column(name="FILE_SIZE")
+  private long size;
+  @Column(name="LAST_MODIFIED")
+  private long lastModified;
+  @Column(name="HASH")
+  private String hash;
+  @Column(name="EDGE_HASH")
+  private String edgeHash;
+  @Column(name="ROW_COUNT")
+  private int rowCount;
+  @Column(name="LINE_COUNT")
+  private int lines;
+  @Column(name="HIGH_WATER_MARK")
+  private Date highWaterMark;
+  @Column(name="LOADED_AT")
+  private Date loadedAt;
+
+  public String getCollection() {
+    return collection;
+  }
+  public String getSource() {
+    return source;
+  }
+  public long getSize() {
+    return size;
+  }
+  public long getLastModified() {
+    return lastModified;
+  }
+  public String getHash() {
+    return hash;
+  }
+  public String getEdgeHash() {
+    return edgeHash;
+  }
+  public int getRowCount() {
+    return rowCount;
+  }
+  public int getLines() {
+    return lines;
+  }
+  public Date getHighWaterMark() {
+    return highWaterMark;
+  }
+  public Date getLoadedAt() {
+    return loadedAt;
+  }
+
+  @Override
+  protected boolean matchesClassAndId(Object other) {
+    return JpaInputFingerprint.class.isInstance(other) ? matchesId((JpaInputFingerprint)other) : false;
+  }
+
+}
@@ -22,6 +22,7 @@ import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Lob;
 
 /**
  * @author ggilbert
@@ -44,6 +45,12 @@ public class Run extends BaseEntity {
   private int modelCount;
   @Column(name="SUCCESS")
   private boolean success;
+  @Lob
+  @Column(name="INPUT_METRICS")
+  private String inputMetrics;
+  @Lob
+  @Column(name="STAGE_TIMINGS")
+  private String stageTimings;
 
   @Override
   protected boolean matchesClassAndId(Object other) {
@@ -98,6 +105,25 @@ public class Run extends BaseEntity {
     this.success = success;
   }
 
+  /**
+   * @return the input load metrics of the run as JSON
+   */
+  public String getInputMetrics() {
+    return inputMetrics;
+  }
+
+  public void setInputMetrics(String inputMetrics) {
+    this.inputMetrics = inputMetrics;
+  }
+
+  public String getStageTimings() {
+    return stageTimings;
+  }
+
+  public void setStageTimings(String stageTimings) {
+    this.stageTimings = stageTimings;
+  }
+
   @Override
   public String toString() {
     return "Run [modelRunId=" + modelRunId + ", dateCreated=" + dateCreated + ", modelType=" + modelType + ", modelName=" + modelName
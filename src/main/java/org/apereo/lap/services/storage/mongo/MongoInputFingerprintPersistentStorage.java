@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services.storage.mongo;
+
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.storage.InputFingerprintPersistentStorage;
+import org.apereo.lap.services.storage.mongo.model.MongoInputFingerprintRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author Aaron Zeckoski (azeckoski @ unicon.net) (azeckoski @ vt.edu)
+ *
+ */
+@Component("MongoDB-InputFingerprintPersistentStorage")
+@Profile({"mongo", "mongo-multitenant"})
+public class MongoInputFingerprintPersistentStorage implements InputFingerprintPersistentStorage {
+
+  @Autowired private MongoInputFingerprintRepository mongoInputFingerprintRepository;
+
+  @Override
+  public InputFingerprint save(InputFingerprint inputFingerprint) {
+    InputFingerprint existing = mongoInputFingerprintRepository.findByCollection(inputFingerprint.getCollection());
+    if (existing != null) {
+      inputFingerprint.setId(existing.getId());
+    }
+    return mongoInputFingerprintRepository.save(inputFingerprint);
+  }
+
+  @Override
+  public InputFingerprint get(String collection) {
+    return mongoInputFingerprintRepository.findByCollection(collection);
+  }
+
+}
@@ -68,6 +68,16 @@ CREATE TABLE IF NOT EXISTS ACTIVITY (
   FOREIGN KEY (COURSE_ID) REFERENCES COURSE(COURSE_ID)
 );
 
+-- rows rejected by the bulk CSV loading
+CREATE TABLE IF NOT EXISTS INPUT_REJECTS (
+  ID integer NOT NULL AUTO_INCREMENT,
+  COLLECTION varchar(50) NOT NULL,
+  SOURCE varchar(255),
+  LINE integer,
+  REASON varchar(1000),
+  PRIMARY KEY (ID)
+);
+
 CREATE TABLE IF NOT EXISTS CONFIGURATION (
   ID integer NOT NULL AUTO_INCREMENT,
   SSP_BASE_URL varchar(100) NOT NULL,
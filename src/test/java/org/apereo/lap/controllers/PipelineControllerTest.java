@@ -16,6 +16,10 @@ package org.apereo.lap.controllers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -30,6 +34,9 @@ import org.apereo.lap.exception.MissingPipelineException;
 import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.model.PipelineConfig.InputField;
 import org.apereo.lap.services.ProcessingManagerService;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.InputMetricsRegistry;
+import org.apereo.lap.services.storage.StorageService;
 import org.apereo.lap.test.AbstractUnitTest;
 import org.junit.After;
 import org.junit.Before;
@@ -38,8 +45,10 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 public class PipelineControllerTest extends AbstractUnitTest{
@@ -48,9 +57,15 @@ public class PipelineControllerTest extends AbstractUnitTest{
     @Mock
     ProcessingManagerService processingManagerService;
     @Mock
+    StorageService storage;
+    @Mock
+    ConfigurationService configuration;
+    @Mock
     PipelineConfig pipelineConfig;
     @Mock
     InputField inputField; 
+    @Spy
+    InputMetricsRegistry inputMetricsRegistry = new InputMetricsRegistry();
     @InjectMocks
     PipelineController pipelineController;
     
@@ -133,6 +148,59 @@ public class PipelineControllerTest extends AbstractUnitTest{
         verify(processingManagerService, times(1)).process("type", null);
     }
 
+    @Test
+    public void inputMetricsWillReturnTheActiveAndRecentLoads(){
+        Map<String, Object> data = pipelineController.inputMetrics();
+
+        assertEquals(Boolean.FALSE, data.get("loading"));
+        assertEquals(0, ((Map<?, ?>) data.get("active")).get("loads"));
+        assertTrue(data.get("recent") instanceof Map);
+    }
+
+    @Test
+    public void restoreSnapshotWillCallStorageRestoreWithTheName(){
+        when(configuration.isTempStoreSnapshotRestoreApi()).thenReturn(true);
+        when(storage.restoreTempStore("sample")).thenReturn(true);
+        Map<String, Object> data = pipelineController.restoreSnapshot("sample");
+
+        verify(storage, times(1)).restoreTempStore("sample");
+        assertEquals("sample", data.get("name"));
+        assertEquals(Boolean.TRUE, data.get("restored"));
+    }
+
+    @Test
+    public void restoreSnapshotWillThrowAccessDeniedExceptionWhenTheRestoreApiIsNotEnabled(){
+        try {
+            pipelineController.restoreSnapshot("sample");
+            fail("should have failed");
+        } catch (AccessDeniedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("tempstore.snapshot.restore.api"));
+        }
+        verify(storage, never()).restoreTempStore(anyString());
+    }
+
+    @Test
+    public void snapshotsWillThrowIllegalArgumentExceptionWhenGivenAnInvalidName(){
+        when(configuration.isTempStoreSnapshotRestoreApi()).thenReturn(true);
+        for (String name : new String[] {"../sample", "sample.zip", "a/b", " "}) {
+            try {
+                pipelineController.restoreSnapshot(name);
+                fail("should have failed: "+name);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                pipelineController.snapshot(name);
+                fail("should have failed: "+name);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        verify(storage, never()).restoreTempStore(anyString());
+        verify(storage, never()).snapshotTempStore(anyString());
+        verify(storage, never()).getTempStoreSnapshotFile(anyString());
+    }
+
     private @ResponseBody Map<String, Object> createExpectedResponseBody(List<PipelineConfig> procs){
         Map<String, Object> data = new LinkedHashMap<>();
         data.put("processors", procs);
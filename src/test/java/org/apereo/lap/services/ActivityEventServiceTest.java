@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apereo.lap.controllers.api.ActivityEventController;
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.ActivityEventService;
+import org.apereo.lap.services.input.BaseInputHandlerService.InputCollection;
+import org.apereo.lap.services.input.CSVInputHandlerService;
+import org.apereo.lap.services.input.handlers.RingBuffer;
+import org.apereo.lap.services.storage.StorageService;
+import org.apereo.lap.test.AbstractUnitTest;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Integration services test for the activity events
+ */
+public class ActivityEventServiceTest extends AbstractUnitTest {
+    private static final Logger logger = LoggerFactory.getLogger(ActivityEventServiceTest.class);
+
+    @Autowired
+    ConfigurationService configuration;
+    @Autowired
+    StorageService storage;
+    @Autowired
+    ActivityEventService activityEventService;
+    @Autowired
+    ActivityEventController activityEventController;
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        assertNull(buffer.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertEquals(0, buffer.poll().intValue());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, buffer.poll().intValue());
+        }
+        assertTrue(buffer.isEmpty());
+
+        // many producers and one consumer, every item is taken once and in the order each producer added them
+        final RingBuffer<int[]> shared = new RingBuffer<>(64);
+        final int producers = 4;
+        final int items = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < items; i++) {
+                        while (!shared.offer(new int[] {producer, i})) {
+                            Thread.yield(); // full
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        int[] next = new int[producers];
+        for (int taken = 0; taken < producers * items; ) {
+            int[] item = shared.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[item[0]], item[1]);
+            next[item[0]]++;
+            taken++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(shared.isEmpty());
+        int[] expected = new int[producers];
+        Arrays.fill(expected, items);
+        assertTrue(Arrays.equals(expected, next));
+    }
+
+    @Test
+    public void testActivityEvents() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0)).loadInputCollection(InputCollection.PERSONAL, InputCollection.COURSE);
+        try {
+            Map<String, Object> metrics = activityEventService.getMetrics();
+            long inserted = (Long) metrics.get("inserted");
+            int failed = (Integer) metrics.get("failed");
+            assertEquals(true, metrics.get("enabled"));
+            // an activity extract which was already loaded
+            InputFingerprint loaded = new InputFingerprint();
+            loaded.setCollection(InputCollection.ACTIVITY.name());
+            loaded.setSource("activity.csv");
+            loaded.setRowCount(storage.countTempTableRows(InputCollection.ACTIVITY.name()));
+            storage.getInputFingerprintStorage().save(loaded);
+
+            List<Map<String, Object>> events = new ArrayList<>();
+            events.add(event("STUDENT1", "MNG_333N_222_08F", "content.available", "2010-09-03T10:58:34"));
+            events.add(event("STUDENT1", "MNG_333N_222_08F", "content.read", "2010-09-03T11:00:00"));
+            events.add(event("STUDENT1", "MNG_333N_222_08F", "content.read", "not a date"));
+            events.add(event("NOBODY", "MNG_333N_222_08F", "content.read", "2010-09-03T11:00:00")); // not a known student
+            ActivityEventService.OfferResult result = activityEventService.offer(events);
+            assertEquals(4, result.received);
+            assertEquals(3, result.accepted);
+            assertEquals(1, result.invalid.size());
+            assertTrue(result.invalid.get(0), result.invalid.get(0).startsWith("event 3: "));
+            assertEquals(0, result.refused);
+
+            // the events are inserted within the flush interval (or sooner if the batch is full)
+            long timeout = System.currentTimeMillis() + configuration.getInputEventsFlushInterval() + 10000;
+            while (((Long) activityEventService.getMetrics().get("inserted")) < inserted + 2 || ((Integer) activityEventService.getMetrics().get("failed")) < failed + 1) {
+                assertTrue("events were not inserted: "+activityEventService.getMetrics(), System.currentTimeMillis() < timeout);
+                Thread.sleep(20);
+            }
+            assertEquals(2, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM ACTIVITY WHERE ALTERNATIVE_ID='STUDENT1'", Integer.class).intValue());
+            // the loaded extract still matches the table so it is not loaded again (which would replace the events)
+            assertEquals(storage.countTempTableRows(InputCollection.ACTIVITY.name()), storage.getInputFingerprintStorage().get(InputCollection.ACTIVITY.name()).getRowCount());
+            metrics = activityEventService.getMetrics();
+            assertTrue((Long) metrics.get("flushes") > 0);
+            assertEquals(0, metrics.get("bufferDepth"));
+
+            // the endpoint accepts a single event or an array of events
+            ResponseEntity<Map<String, Object>> response = activityEventController.postEvents(event("STUDENT1", "MNG_333N_222_08F", "content.read", "2010-09-04T09:00:00"));
+            assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+            assertEquals(1, response.getBody().get("accepted"));
+            response = activityEventController.postEvents(Arrays.asList(event("STUDENT1", null, "content.read", "2010-09-04T09:00:00"), "event"));
+            assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+            assertEquals(2, ((List<?>) response.getBody().get("invalid")).size());
+
+            // events wait while a load counts the rows and saves the fingerprint so neither update is lost
+            timeout = System.currentTimeMillis() + configuration.getInputEventsFlushInterval() + 10000;
+            while (((Long) activityEventService.getMetrics().get("inserted")) < inserted + 3) {
+                assertTrue("event was not inserted: "+activityEventService.getMetrics(), System.currentTimeMillis() < timeout);
+                Thread.sleep(20);
+            }
+            inserted += 3;
+            storage.beginInputFingerprintUpdate();
+            try {
+                assertEquals(1, activityEventService.offer(Arrays.asList(event("STUDENT1", "MNG_333N_222_08F", "content.read", "2010-09-05T09:00:00"))).accepted);
+                Thread.sleep(configuration.getInputEventsFlushInterval() + 200);
+                assertEquals(inserted, ((Long) activityEventService.getMetrics().get("inserted")).longValue());
+                loaded.setRowCount(storage.countTempTableRows(InputCollection.ACTIVITY.name()));
+                storage.getInputFingerprintStorage().save(loaded);
+            } finally {
+                storage.endInputFingerprintUpdate();
+            }
+            while (((Long) activityEventService.getMetrics().get("inserted")) < inserted + 1) {
+                assertTrue("event was not inserted: "+activityEventService.getMetrics(), System.currentTimeMillis() < timeout);
+                Thread.sleep(20);
+            }
+            assertEquals(storage.countTempTableRows(InputCollection.ACTIVITY.name()), storage.getInputFingerprintStorage().get(InputCollection.ACTIVITY.name()).getRowCount());
+
+            // nothing is started when the events are not enabled
+            ReflectionTestUtils.setField(configuration, "inputEventsEnabled", false);
+            ActivityEventService disabled = new ActivityEventService();
+            ReflectionTestUtils.setField(disabled, "config", configuration);
+            ReflectionTestUtils.setField(disabled, "storage", storage);
+            disabled.init();
+            assertFalse(disabled.isEnabled());
+            assertEquals(false, disabled.getMetrics().get("enabled"));
+            ActivityEventController controller = new ActivityEventController();
+            ReflectionTestUtils.setField(controller, "activityEventService", disabled);
+            response = controller.postEvents(event("STUDENT1", "MNG_333N_222_08F", "content.read", "2010-09-04T09:00:00"));
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+            disabled.destroy();
+        } finally {
+            ReflectionTestUtils.setField(configuration, "inputEventsEnabled", true);
+            storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            storage.getTempJdbcTemplate().execute("DELETE FROM PERSONAL");
+        }
+    }
+
+    @Test
+    public void testActivityEventsBackpressure() throws Exception {
+        new CSVInputHandlerService(configuration, storage, new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile())
+                .configurationsAt("sources.source").get(0)).loadInputCollection(InputCollection.PERSONAL, InputCollection.COURSE);
+        int bufferSize = configuration.getInputEventsBufferSize();
+        int flushInterval = configuration.getInputEventsFlushInterval();
+        // a small buffer which is only written out when the service is destroyed
+        ReflectionTestUtils.setField(configuration, "inputEventsBufferSize", 4);
+        ReflectionTestUtils.setField(configuration, "inputEventsFlushInterval", 600000);
+        ActivityEventService service = new ActivityEventService();
+        ReflectionTestUtils.setField(service, "config", configuration);
+        ReflectionTestUtils.setField(service, "storage", storage);
+        try {
+            service.init();
+            List<Map<String, Object>> events = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                events.add(event("STUDENT1", "MNG_333N_222_08F", "content.read", "2010-09-05T09:00:"+(10 + i)));
+            }
+            // the writer may take some events out of the buffer but it does not insert them until the interval is over
+            ActivityEventService.OfferResult result = service.offer(events);
+            assertTrue(result.toString(), result.accepted >= 4);
+            assertTrue(result.toString(), result.refused > 0);
+            assertEquals(20, result.accepted + result.refused);
+
+            ActivityEventController controller = new ActivityEventController();
+            ReflectionTestUtils.setField(controller, "activityEventService", service);
+            ResponseEntity<Map<String, Object>> response = controller.postEvents(events.subList(0, 2));
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            assertEquals(2, response.getBody().get("refused"));
+            assertEquals("600", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+            assertEquals(result.refused + 2L, service.getMetrics().get("refused"));
+            assertEquals(0L, service.getMetrics().get("inserted"));
+
+            // the buffered events are written before the service stops
+            service.destroy();
+            assertEquals((long) result.accepted, service.getMetrics().get("inserted"));
+            assertEquals(result.accepted, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM ACTIVITY WHERE EVENT_DATE >= '2010-09-05'", Integer.class).intValue());
+        } finally {
+            service.destroy();
+            ReflectionTestUtils.setField(configuration, "inputEventsBufferSize", bufferSize);
+            ReflectionTestUtils.setField(configuration, "inputEventsFlushInterval", flushInterval);
+            storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            storage.getTempJdbcTemplate().execute("DELETE FROM PERSONAL");
+        }
+    }
+
+    private Map<String, Object> event(String alternativeId, String courseId, String event, String eventDate) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("alternative_id", alternativeId); // field names are not case sensitive
+        values.put("COURSE_ID", courseId);
+        values.put("EVENT", event);
+        values.put("EVENT_DATE", eventDate);
+        return values;
+    }
+}
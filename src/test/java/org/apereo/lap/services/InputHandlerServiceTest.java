@@ -14,18 +14,88 @@
  *******************************************************************************/
 package org.apereo.lap.services;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
+import org.apereo.lap.model.InputFingerprint;
 import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.services.configuration.ConfigurationService;
 import org.apereo.lap.services.input.BaseInputHandlerService;
+import org.apereo.lap.services.input.BaseInputHandlerService.InputCollection;
+import org.apereo.lap.services.input.CSVInputHandlerService;
+import org.apereo.lap.services.input.InputMetricsRegistry;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.DuplicateFilter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.InputHandler;
+import org.apereo.lap.services.input.handlers.InputMetrics;
+import org.apereo.lap.services.input.handlers.StageStats;
+import org.apereo.lap.services.input.handlers.csv.ActivityCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.BaseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.CSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.ChunkedCSVReader;
+import org.apereo.lap.services.input.handlers.csv.CourseCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.DecompressingInputStream;
+import org.apereo.lap.services.input.handlers.csv.H2BulkCSVLoader;
+import org.apereo.lap.services.input.handlers.csv.StagedCSVReader;
+import org.apereo.lap.services.input.handlers.json.JSONInputHandler;
+import org.apereo.lap.services.storage.ModelRun;
+import org.apereo.lap.services.storage.StorageFactory;
 import org.apereo.lap.services.storage.StorageService;
 import org.apereo.lap.test.AbstractUnitTest;
 import org.junit.Rule;
@@ -35,6 +105,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
 
 public class InputHandlerServiceTest extends AbstractUnitTest {
     private static final Logger logger = LoggerFactory.getLogger(InputHandlerServiceTest.class);
@@ -45,12 +119,16 @@ public class InputHandlerServiceTest extends AbstractUnitTest {
     ResourceLoader resourceLoader;
     @Autowired
     StorageService storage;
+    @Autowired
+    StorageFactory storageFactory;
+    @Autowired
+    InputMetricsRegistry inputMetricsRegistry;
 
     public static final String SLASH = System.getProperty("file.separator");
 
     @Test
     public void testFindHandlers() {
-        assertEquals(4, BaseInputHandlerService.Type.values().length);
+        assertEquals(5, BaseInputHandlerService.Type.values().length);
     }
 
     @Rule
@@ -92,4 +170,1068 @@ public class InputHandlerServiceTest extends AbstractUnitTest {
         assertNotNull(inputHandler.getType());
         logger.info("Test Successful in fetching input types and collections from input handler");
     }
+
+    @Test
+    public void testBatchInserterFailures() {
+        String sql = "INSERT INTO COURSE (COURSE_ID,SUBJECT,ENROLLMENT,ONLINE_FLAG) VALUES (?,?,?,?)";
+        int[] types = new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BOOLEAN};
+        InputFailures failures = new InputFailures("CSV");
+        BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), sql, types, 3, "CSV", failures);
+        try {
+            inserter.add(2, new Object[] {"C1", "MATH", 10, false});
+            inserter.add(3, new Object[] {"C2", "ENGL", 20, true});
+            inserter.add(4, new Object[] {"C1", "DUPE", 30, false}); // duplicate key fails the first batch
+            inserter.add(5, new Object[] {"C3", "HIST", 40, false});
+            inserter.flush();
+            assertEquals(3, inserter.getInserted());
+            assertEquals(2, inserter.getBatches());
+            assertEquals(1, failures.size());
+            assertEquals(1, failures.getCount(InputFailures.Category.CONSTRAINT));
+            assertTrue(failures.getMessages().get(0).startsWith("CSV line 4:"));
+            assertEquals(3, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM COURSE", Integer.class).intValue());
+        } finally {
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+        }
+    }
+
+    @Test
+    public void testLoadInputCollectionDependencies() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        HierarchicalConfiguration source = xmlcfg.configurationsAt("sources.source").get(0);
+        CSVInputHandlerService inputHandler = new CSVInputHandlerService(configuration, storage, source);
+        try {
+            Map<InputCollection, InputHandler.ReadResult> results = inputHandler.loadInputCollection();
+            assertEquals(InputCollection.values().length, results.size());
+            for (InputCollection ic : InputCollection.values()) {
+                InputHandler.ReadResult result = results.get(ic);
+                assertNotNull(result);
+                assertTrue(result.loaded > 0);
+                assertTrue(result.loadTotalTimeMS >= result.totalTimeMS);
+                for (InputCollection dependency : ic.getDependsOn()) {
+                    // must not start before the referenced collections are loaded
+                    assertTrue(result.startTimeMS >= results.get(dependency).endTimeMS);
+                }
+            }
+            assertEquals(5, inputHandler.getLoadedInputCollections().size());
+        } finally {
+            storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+            storage.getTempJdbcTemplate().execute("DELETE FROM GRADE");
+            storage.getTempJdbcTemplate().execute("DELETE FROM ENROLLMENT");
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            storage.getTempJdbcTemplate().execute("DELETE FROM PERSONAL");
+        }
+    }
+
+    @Test
+    public void testChunkedCSVReader() throws Exception {
+        StringBuilder sb = new StringBuilder("COURSE_ID,SUBJECT,ENROLLMENT,ONLINE_FLAG\n");
+        sb.append("C1,\"Math\nwith a newline\",10,1\n");
+        sb.append("C2,\"Quote \\\"escaped\\\" here\",20,0\r\n");
+        sb.append("C3,History,abc,1\n"); // invalid ENROLLMENT
+        sb.append("\n");
+        for (int i = 4; i < 50; i++) {
+            sb.append("C").append(i).append(",Art,").append(i).append(",1\r\n");
+        }
+        sb.append("C50,Biology,-1,0"); // invalid ENROLLMENT and no final newline
+        Path csv = Files.createTempFile("lap-chunked-", ".csv");
+        Files.write(csv, sb.toString().getBytes(StandardCharsets.UTF_8));
+        CourseCSVInputHandler handler = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+        handler.setPath(csv.toAbsolutePath().toString());
+        try {
+            // single reader
+            InputHandler.ReadResult result = handler.readInputIntoDB();
+            int singleCount = storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM COURSE", Integer.class);
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            assertEquals(48, singleCount);
+            assertEquals(3, result.failures.size());
+            assertEquals(3, result.failures.getCount(InputFailures.Category.INVALID));
+            // the rejected rows are written to the outputs dir
+            Path rejects = result.failures.getRejectFile();
+            assertEquals(configuration.getOutputDirectory().resolve("course-rejects.csv"), rejects);
+            List<String> rejectLines = Files.readAllLines(rejects, Charset.defaultCharset());
+            assertEquals(4, rejectLines.size());
+            assertTrue(rejectLines.get(1), rejectLines.get(1).startsWith("\"4\",\"INVALID\",\"ENROLLMENT (abc) must be an integer"));
+            assertTrue(rejectLines.get(1), rejectLines.get(1).endsWith(",\"C3\",\"History\",\"abc\",\"1\""));
+
+            // chunked reader should produce the same rows and line numbers
+            InputFailures failures = new InputFailures("CSV");
+            BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), handler.makeInsertSQL(), handler.makeInsertSQLParams(), 3, "CSV", failures);
+            ChunkedCSVReader chunked = new ChunkedCSVReader(csv, 3, 40);
+            int records = chunked.readIntoDB(handler, inserter, failures);
+            assertEquals(result.total - 1, records);
+            assertEquals(singleCount, inserter.getInserted());
+            // the stages are counted like a staged read
+            List<StageStats> stages = chunked.getStages();
+            assertEquals("split", stages.get(0).getName());
+            assertEquals(records, stages.get(0).getItems());
+            assertEquals(records, stages.get(1).getItems());
+            assertEquals(singleCount, stages.get(2).getItems());
+            for (StageStats stage : stages) {
+                assertTrue(stage.toString(), stage.getElapsedNanos() > 0);
+            }
+            assertEquals(result.failures.getMessages(), failures.getMessages());
+            assertEquals("Math\nwith a newline", storage.getTempJdbcTemplate().queryForObject("SELECT SUBJECT FROM COURSE WHERE COURSE_ID='C1'", String.class));
+        } finally {
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            Files.deleteIfExists(csv);
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve("course-rejects.csv"));
+        }
+    }
+
+    @Test
+    public void testStagedCSVReader() throws Exception {
+        StringBuilder sb = new StringBuilder("COURSE_ID,SUBJECT,ENROLLMENT,ONLINE_FLAG\n");
+        sb.append("C1,\"Math\nwith a newline\",10,1\n");
+        for (int i = 2; i < 200; i++) {
+            if (i % 25 == 0) {
+                sb.append("C").append(i).append(",Art,many,1\n"); // invalid ENROLLMENT
+            } else {
+                sb.append("C").append(i).append(",Art,").append(i).append(",1\n");
+            }
+        }
+        Path csv = Files.createTempFile("lap-staged-", ".csv");
+        Files.write(csv, sb.toString().getBytes(StandardCharsets.UTF_8));
+        CourseCSVInputHandler handler = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+        handler.setPath(csv.toAbsolutePath().toString());
+        int stageThreads = configuration.getInputCSVStageThreads();
+        try {
+            // single thread
+            ReflectionTestUtils.setField(configuration, "inputCSVStageThreads", 0);
+            InputHandler.ReadResult result = handler.readInputIntoDB();
+            assertNull(result.stages);
+            List<Map<String, Object>> singleRows = storage.getTempJdbcTemplate().queryForList("SELECT COURSE_ID, SUBJECT, ENROLLMENT FROM COURSE ORDER BY _ROWID_");
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            assertEquals(192, singleRows.size());
+            assertEquals(7, result.failures.size());
+
+            // staged with small blocks and queues (so the stages wait on each other) should produce the same rows in the same order
+            InputFailures failures = new InputFailures("CSV");
+            BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), handler.makeInsertSQL(), handler.makeInsertSQLParams(), 7, "CSV", failures);
+            StagedCSVReader staged = new StagedCSVReader(3, 1, 5);
+            CSVReader csvReader = new CSVReader(Files.newBufferedReader(csv, StandardCharsets.UTF_8), ',', '"', 1);
+            try {
+                assertEquals(result.total, staged.readIntoDB(csvReader, 1, handler, inserter, failures));
+            } finally {
+                csvReader.close();
+            }
+            assertEquals(singleRows.size(), inserter.getInserted());
+            assertEquals(result.failures.getMessages(), failures.getMessages());
+            assertEquals(singleRows, storage.getTempJdbcTemplate().queryForList("SELECT COURSE_ID, SUBJECT, ENROLLMENT FROM COURSE ORDER BY _ROWID_"));
+            List<StageStats> stages = staged.getStages();
+            assertEquals(3, stages.size());
+            assertEquals("read", stages.get(0).getName());
+            assertEquals(result.total - 1, stages.get(0).getItems());
+            assertEquals(3, stages.get(1).getThreads());
+            assertEquals(result.total - 1, stages.get(1).getItems());
+            assertEquals(result.total - 1, stages.get(2).getItems());
+            for (StageStats stage : stages) {
+                assertTrue(stage.toString(), stage.getUtilization() >= 0 && stage.getUtilization() <= 1);
+                assertTrue(stage.toString(), stage.getElapsedNanos() > 0);
+            }
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+
+            // the handler reads in stages by default
+            ReflectionTestUtils.setField(configuration, "inputCSVStageThreads", 2);
+            result = handler.readInputIntoDB();
+            assertNotNull(result.stages);
+            assertEquals(7, result.failed);
+            assertEquals(singleRows, storage.getTempJdbcTemplate().queryForList("SELECT COURSE_ID, SUBJECT, ENROLLMENT FROM COURSE ORDER BY _ROWID_"));
+        } finally {
+            ReflectionTestUtils.setField(configuration, "inputCSVStageThreads", stageThreads);
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            Files.deleteIfExists(csv);
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve("course-rejects.csv"));
+        }
+    }
+
+    @Test
+    public void testInputMetrics() throws Exception {
+        long startMS = System.currentTimeMillis();
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        inputMetricsRegistry.beginRun("shared-run-1"); // a pipeline run on the shared temp store
+        try {
+            Map<InputCollection, InputHandler.ReadResult> results = new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0)).loadInputCollection();
+            assertEquals(InputCollection.values().length, results.size());
+            for (Map.Entry<InputCollection, InputHandler.ReadResult> entry : results.entrySet()) {
+                InputMetrics metrics = entry.getValue().metrics;
+                assertEquals("shared-run-1", metrics.getRunId());
+                assertNotNull(entry.getKey().name(), metrics);
+                assertEquals(entry.getKey().name(), metrics.getCollection());
+                assertEquals("CSV", metrics.getInputType());
+                assertEquals(InputMetrics.State.LOADED, metrics.getState());
+                assertEquals(entry.getValue().total, metrics.getRecords());
+                assertEquals(entry.getValue().failed, metrics.getFailed());
+                assertEquals(storage.countTempTableRows(entry.getKey().name()), metrics.getInserted());
+                assertTrue(metrics.toString(), metrics.getBytes() > 0);
+                assertTrue(metrics.toString(), metrics.getRowsPerSecond() > 0);
+                assertTrue(metrics.toString(), metrics.getParseTimeMS() + metrics.getInsertTimeMS() <= metrics.getElapsedMS() + 1);
+                assertTrue(metrics.toString(), metrics.getFailureRate() >= 0 && metrics.getFailureRate() <= 1);
+            }
+            // the loads are kept (and not active) after they finish
+            InputMetricsRegistry registry = inputMetricsRegistry;
+            assertTrue(registry.getActive().isEmpty());
+            List<InputMetrics> loads = registry.findStartedSince(startMS, "shared-run-1");
+            assertEquals(results.size(), loads.size());
+            // loads of the other runs (shared or isolated) and outside of a run are kept apart
+            assertTrue(registry.findStartedSince(startMS, "other-run-1").isEmpty());
+            assertTrue(registry.findStartedSince(startMS, null).isEmpty());
+            Map<String, Object> summary = InputMetricsRegistry.summarize(loads);
+            assertEquals(results.size(), summary.get("loads"));
+            assertEquals(results.size(), ((List<?>) summary.get("collections")).size());
+            long records = 0;
+            for (InputHandler.ReadResult result : results.values()) {
+                records += result.total;
+            }
+            assertEquals(records, summary.get("records"));
+
+            // stored with the run
+            ModelRun modelRun = new ModelRun();
+            modelRun.setModelName("metrics");
+            modelRun.setInputMetrics(summary);
+            storageFactory.getModelRunPersistentStorage().save(modelRun);
+            ModelRun saved = storageFactory.getModelRunPersistentStorage().findAll(new PageRequest(0, 1)).getContent().get(0);
+            assertEquals("metrics", saved.getModelName());
+            assertNotNull(saved.getInputMetrics());
+            assertEquals(results.size(), ((Number) saved.getInputMetrics().get("loads")).intValue());
+            assertEquals(records, ((Number) saved.getInputMetrics().get("records")).longValue());
+        } finally {
+            inputMetricsRegistry.endRun();
+            deleteCollections();
+        }
+    }
+
+    @Test
+    public void testInputFailures() throws Exception {
+        Path rejects = Files.createTempFile("lap-rejects-", ".csv");
+        InputFailures failures = new InputFailures("COURSE", 2, rejects, false);
+        try {
+            assertTrue(failures.isEmpty());
+            assertFalse(Files.exists(rejects)); // old rejects are removed
+            failures.add(InputFailures.Category.INVALID, 9, "bad 9", new String[] {"C9", null});
+            failures.add(InputFailures.Category.INVALID, 3, "bad 3", new String[] {"C3", "Art"});
+            failures.add(InputFailures.Category.CONSTRAINT, 7, "dupe 7", new Object[] {"C7", 7});
+            failures.add(InputFailures.Category.INVALID, 1, "bad 1", null);
+            failures.add(InputFailures.Category.INSERT, 5, "fail 5", new Object[] {"C5", true});
+            failures.close();
+            // all counted but only the lowest lines are kept
+            assertEquals(5, failures.size());
+            assertEquals(3, failures.getCount(InputFailures.Category.INVALID));
+            assertEquals(1, failures.getCount(InputFailures.Category.CONSTRAINT));
+            assertEquals(1, failures.getCount(InputFailures.Category.INSERT));
+            assertEquals(3, failures.getCounts().size());
+            List<String> messages = failures.getMessages();
+            assertEquals(2, messages.size());
+            assertEquals("COURSE line 1: bad 1", messages.get(0));
+            assertEquals("COURSE line 3: bad 3", messages.get(1));
+            assertTrue(failures.toString(), failures.toString().startsWith("5 failures {INVALID=3, CONSTRAINT=1, INSERT=1} (first 2 shown)"));
+            // every rejected row is in the file
+            assertEquals(rejects, failures.getRejectFile());
+            List<String> lines = Files.readAllLines(rejects, Charset.defaultCharset());
+            assertEquals(6, lines.size());
+            assertEquals("\"9\",\"INVALID\",\"bad 9\",\"C9\",", lines.get(1));
+            assertEquals("\"1\",\"INVALID\",\"bad 1\"", lines.get(4));
+            assertEquals("\"5\",\"INSERT\",\"fail 5\",\"C5\",\"true\"", lines.get(5));
+
+            // appending keeps the existing rejects (no second header)
+            failures = new InputFailures("COURSE", 2, rejects, true);
+            failures.add(InputFailures.Category.INVALID, 11, "bad 11", null);
+            failures.close();
+            assertEquals(7, Files.readAllLines(rejects, Charset.defaultCharset()).size());
+
+            // a reject file which cannot be written (the disk is full) is reported and the failures are still counted
+            Path full = Paths.get("/dev/full");
+            if (Files.isWritable(full)) {
+                failures = new InputFailures("COURSE", 2, full, true);
+                failures.add(InputFailures.Category.INVALID, 1, "bad 1", null);
+                failures.add(InputFailures.Category.INVALID, 2, "bad 2", null);
+                failures.close();
+                assertEquals(2, failures.size());
+                assertNull(failures.getRejectFile());
+            }
+        } finally {
+            Files.deleteIfExists(rejects);
+        }
+    }
+
+    @Test
+    public void testCompressedCSVLoad() throws Exception {
+        Path course = configuration.getApplicationHomeDirectory().resolve(Paths.get("extracts", "course.csv"));
+        byte[] expectedBytes = Files.readAllBytes(course);
+        Path dir = Files.createTempDirectory("lap-compressed-");
+        Path gz = dir.resolve("course.csv.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            out.write(expectedBytes);
+        }
+        Path zip = dir.resolve("course.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("extracts/"));
+            out.putNextEntry(new ZipEntry("extracts/course.csv"));
+            out.write(expectedBytes);
+        }
+        Path invalid = dir.resolve("invalid.csv.gz");
+        Files.write(invalid, expectedBytes); // not compressed
+        try {
+            // small buffers so the reader has to wait for the decompressing thread
+            try (InputStream in = new DecompressingInputStream(gz, 16, 2)) {
+                assertArrayEquals(expectedBytes, IOUtils.toByteArray(in));
+                assertEquals(-1, in.read());
+            }
+            InputStream in = new DecompressingInputStream(zip, 16, 2);
+            assertEquals(expectedBytes[0], in.read());
+            in.close(); // stops the decompressing before the end
+            try {
+                in.read();
+                fail("should have failed");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Stream closed"));
+            }
+
+            CourseCSVInputHandler handler = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+            handler.setPath(course.toString());
+            handler.readInputIntoDB();
+            List<Map<String, Object>> expected = selectCollection(InputCollection.COURSE);
+            assertTrue(expected.size() > 0);
+            for (Path compressed : new Path[] {gz, zip}) {
+                storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+                handler = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+                handler.setPath(compressed.toString());
+                handler.verify(); // preflight only reads the header
+                InputHandler.ReadResult result = handler.readInputIntoDB();
+                assertEquals(compressed+": "+result.failures, 0, result.failed);
+                assertEquals(compressed.toString(), expected, selectCollection(InputCollection.COURSE));
+            }
+
+            handler = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+            handler.setPath(invalid.toString());
+            try {
+                handler.verify();
+                fail("should have failed");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("CSV is invalid"));
+            }
+        } finally {
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            for (Path file : new Path[] {gz, zip, invalid}) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testBulkCSVLoad() throws Exception {
+        assertTrue(H2BulkCSVLoader.isSupported(storage.getTempJdbcTemplate()));
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        CSVInputHandlerService inputHandler = new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0));
+        Map<InputCollection, BaseCSVInputHandler> handlers = new EnumMap<>(InputCollection.class);
+        for (CSVInputHandler handler : inputHandler.findHandlers(CSVInputHandler.class).values()) {
+            handlers.put(handler.getInputCollection(), (BaseCSVInputHandler) handler);
+        }
+        assertEquals(5, handlers.size());
+        try {
+            // load the sample files both ways and compare the tables
+            inputHandler.loadInputCollection();
+            Map<InputCollection, List<Map<String, Object>>> expected = new EnumMap<>(InputCollection.class);
+            for (InputCollection ic : InputCollection.values()) {
+                expected.put(ic, selectCollection(ic));
+            }
+            deleteCollections();
+            for (BaseCSVInputHandler handler : handlers.values()) {
+                InputFailures failures = new InputFailures("CSV");
+                BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), handler.makeInsertSQL(), handler.makeInsertSQLParams(), 100, "CSV", failures);
+                int records = new H2BulkCSVLoader(storage.getTempJdbcTemplate()).load(handler, configuration.getApplicationHomeDirectory().resolve(handler.getPath()), handler.getBulkColumns(), inserter, failures);
+                assertTrue(records > 0);
+                assertEquals(handler.getInputCollection()+": "+failures, expected.get(handler.getInputCollection()), selectCollection(handler.getInputCollection()));
+            }
+            deleteCollections();
+
+            // rejected lines match the ones from the standard reader
+            Path csv = Files.createTempFile("lap-bulk-", ".csv");
+            Files.write(csv, ("COURSE_ID,SUBJECT,ENROLLMENT,ONLINE_FLAG\n"
+                    + "C1,\"Math, with a newline\n\",10,1\n"
+                    + "C2,History,abc,Y\r\n"
+                    + ",Art,2,0\n"
+                    + "C3,Biology,-1,0\n"
+                    + "C4,Physics,99999999999,0\n"
+                    + "C5,Music,7,true").getBytes(StandardCharsets.UTF_8));
+            CourseCSVInputHandler course = new CourseCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+            course.setPath(csv.toAbsolutePath().toString());
+            InputHandler.ReadResult result = course.readInputIntoDB();
+            List<Map<String, Object>> expectedCourses = selectCollection(InputCollection.COURSE);
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            InputFailures failures = new InputFailures("CSV");
+            BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), course.makeInsertSQL(), course.makeInsertSQLParams(), 100, "CSV", failures);
+            int records = new H2BulkCSVLoader(storage.getTempJdbcTemplate()).load(course, csv, course.getBulkColumns(), inserter, failures);
+            Files.deleteIfExists(csv);
+            assertEquals(result.total - 1, records);
+            assertEquals(expectedCourses, selectCollection(InputCollection.COURSE));
+            assertEquals(4, failures.size());
+            assertEquals(result.failures.size(), failures.size());
+            for (int i = 0; i < failures.size(); i++) {
+                // same line and field, the messages only differ in the java exception details
+                String prefix = StringUtils.substringBefore(result.failures.getMessages().get(i), "(");
+                assertTrue(failures.getMessages().get(i)+" should start with "+prefix, failures.getMessages().get(i).startsWith(prefix));
+            }
+            assertEquals(4, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM INPUT_REJECTS WHERE COLLECTION='COURSE'", Integer.class).intValue());
+        } finally {
+            deleteCollections();
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve("course-rejects.csv"));
+        }
+    }
+
+    @Test
+    public void testLoadChangedInputCollections() throws Exception {
+        // copy the sample extracts so they can be changed
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        HierarchicalConfiguration source = xmlcfg.configurationsAt("sources.source").get(0);
+        Path dir = Files.createTempDirectory("lap-extracts-");
+        Map<InputCollection, Path> extracts = copyExtracts(source, dir);
+        try {
+            Set<InputCollection> loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(5, loaded.size());
+            int activityCount = storage.countTempTableRows("ACTIVITY");
+            storage.createIndex("LAP_IDX_ACTIVITY_TEST", "ACTIVITY", Arrays.asList("COURSE_ID", "EVENT"));
+            storage.createIndex("LAP_IDX_COURSE_TEST", "COURSE", Arrays.asList("SUBJECT"));
+
+            // a new service (e.g. after a restart) does not load the same files again
+            CSVInputHandlerService inputHandler = new CSVInputHandlerService(configuration, storage, source);
+            assertTrue(inputHandler.loadInputCollections(false, false, new HashSet<InputCollection>()).isEmpty());
+            assertEquals(5, inputHandler.getLoadedInputCollections().size());
+            assertEquals(Arrays.asList("LAP_IDX_ACTIVITY_TEST"), storage.findIndexes("ACTIVITY"));
+
+            // only the changed file is loaded again
+            Path activity = extracts.get(InputCollection.ACTIVITY);
+            List<String> lines = Files.readAllLines(activity, StandardCharsets.UTF_8);
+            Files.write(activity, lines.subList(0, lines.size() - 1), StandardCharsets.UTF_8);
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.ACTIVITY), loaded);
+            assertEquals(activityCount - 1, storage.countTempTableRows("ACTIVITY"));
+            // only the hinted indexes of the cleared table are dropped for the load
+            assertTrue(storage.findIndexes("ACTIVITY").isEmpty());
+            assertEquals(Arrays.asList("LAP_IDX_COURSE_TEST"), storage.findIndexes("COURSE"));
+
+            // collections which reference a changed collection are loaded again as well
+            Path personal = extracts.get(InputCollection.PERSONAL);
+            Files.setLastModifiedTime(personal, FileTime.fromMillis(Files.getLastModifiedTime(personal).toMillis() + 10000));
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.PERSONAL, InputCollection.ENROLLMENT, InputCollection.GRADE, InputCollection.ACTIVITY), loaded);
+            assertEquals(activityCount - 1, storage.countTempTableRows("ACTIVITY"));
+
+            // data removed from the temp store is loaded again
+            storage.clearTempTables("GRADE");
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.GRADE), loaded);
+        } finally {
+            storage.dropIndexes("ACTIVITY", "COURSE");
+            deleteCollections();
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    @Test
+    public void testIncrementalActivityLoad() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        HierarchicalConfiguration source = xmlcfg.configurationsAt("sources.source").get(0);
+        Path dir = Files.createTempDirectory("lap-extracts-");
+        Map<InputCollection, Path> extracts = copyExtracts(source, dir);
+        Path activity = extracts.get(InputCollection.ACTIVITY);
+        List<String> lines = Files.readAllLines(activity, StandardCharsets.UTF_8);
+        ReflectionTestUtils.setField(configuration, "inputIncremental", true);
+        try {
+            new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            int activityCount = storage.countTempTableRows("ACTIVITY");
+            long firstId = storage.getTempJdbcTemplate().queryForObject("SELECT MIN(ID) FROM ACTIVITY", Long.class);
+            InputFingerprint fingerprint = storage.getInputFingerprintStorage().get("ACTIVITY");
+            assertEquals(lines.size(), fingerprint.getLines());
+            // the latest event in the file
+            Timestamp fileMark = storage.getTempJdbcTemplate().queryForObject("SELECT MAX(EVENT_DATE) FROM ACTIVITY", Timestamp.class);
+            assertEquals(fileMark, fingerprint.getHighWaterMark());
+
+            // only the appended records are loaded (the existing rows are kept)
+            String appended = "STUDENT1,MNG_333N_222_08F,content.available,2030-01-02T03:04:05\n"
+                    + "STUDENT1,MNG_333N_222_08F,,2030-01-02T03:04:06\n" // invalid
+                    + "STUDENT1,MNG_333N_222_08F,content.read,2030-01-02T03:04:07\n";
+            Files.write(activity, appended.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Set<InputCollection> loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.ACTIVITY), loaded);
+            assertEquals(activityCount + 2, storage.countTempTableRows("ACTIVITY"));
+            assertEquals(firstId, storage.getTempJdbcTemplate().queryForObject("SELECT MIN(ID) FROM ACTIVITY", Long.class).longValue());
+            fingerprint = storage.getInputFingerprintStorage().get("ACTIVITY");
+            assertEquals(lines.size() + 3, fingerprint.getLines());
+            assertEquals(Timestamp.valueOf("2030-01-02 03:04:07"), fingerprint.getHighWaterMark());
+
+            // appended records older than the mark do not move it back
+            Files.write(activity, "STUDENT1,MNG_333N_222_08F,content.read,2029-01-02T03:04:05\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.ACTIVITY), loaded);
+            assertEquals(activityCount + 3, storage.countTempTableRows("ACTIVITY"));
+            assertEquals(Timestamp.valueOf("2030-01-02 03:04:07"), storage.getInputFingerprintStorage().get("ACTIVITY").getHighWaterMark());
+
+            // a rewritten file is loaded completely
+            lines.set(1, lines.get(1).replace("content.available", "content.rewritten"));
+            lines.add("STUDENT1,MNG_333N_222_08F,content.read,2030-02-02T03:04:07");
+            Files.write(activity, lines, StandardCharsets.UTF_8);
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.ACTIVITY), loaded);
+            assertEquals(activityCount + 1, storage.countTempTableRows("ACTIVITY"));
+            assertTrue(storage.getTempJdbcTemplate().queryForObject("SELECT MIN(ID) FROM ACTIVITY", Long.class) > firstId);
+            assertEquals(Timestamp.valueOf("2030-02-02 03:04:07"), storage.getInputFingerprintStorage().get("ACTIVITY").getHighWaterMark());
+
+            // the bulk loader mark only comes from the rows it inserted
+            lines.set(lines.size() - 1, "STUDENT1,MNG_333N_222_08F,content.read,2030-03-02T03:04:07");
+            Files.write(activity, lines, StandardCharsets.UTF_8);
+            ReflectionTestUtils.setField(configuration, "inputCSVBulk", true);
+            loaded = new CSVInputHandlerService(configuration, storage, source).loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.ACTIVITY), loaded);
+            assertEquals(Timestamp.valueOf("2030-03-02 03:04:07"), storage.getInputFingerprintStorage().get("ACTIVITY").getHighWaterMark());
+        } finally {
+            ReflectionTestUtils.setField(configuration, "inputCSVBulk", false);
+            ReflectionTestUtils.setField(configuration, "inputIncremental", false);
+            deleteCollections();
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    @Test
+    public void testActivityDuplicates() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        HierarchicalConfiguration source = xmlcfg.configurationsAt("sources.source").get(0);
+        Path dir = Files.createTempDirectory("lap-extracts-");
+        Map<InputCollection, Path> extracts = copyExtracts(source, dir);
+        Path activity = extracts.get(InputCollection.ACTIVITY);
+        List<String> lines = Files.readAllLines(activity, StandardCharsets.UTF_8);
+        // the last export overlaps the first 100 records
+        List<String> overlapping = lines.subList(1, 101);
+        Files.write(activity, overlapping, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        Files.write(activity, "STUDENT1,MNG_333N_222_08F,content.read,2030-01-02T03:04:05\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        ReflectionTestUtils.setField(configuration, "inputDedup", true);
+        // much smaller than the extract so there are many false positives to check
+        ReflectionTestUtils.setField(configuration, "inputDedupExpected", 1000L);
+        try {
+            CSVInputHandlerService inputHandler = new CSVInputHandlerService(configuration, storage, source);
+            Map<InputCollection, InputHandler.ReadResult> results = inputHandler.loadInputCollection();
+            InputHandler.ReadResult result = results.get(InputCollection.ACTIVITY);
+            assertEquals(lines.size() + 101, result.total); // the lines (including the header)
+            assertEquals(100, result.failures.getCount(InputFailures.Category.DUPLICATE));
+            assertEquals(lines.size(), storage.countTempTableRows("ACTIVITY")); // the header is replaced by the new record
+            assertEquals(0, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM (SELECT ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE FROM ACTIVITY "
+                    + "GROUP BY ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE HAVING COUNT(*) > 1)", Integer.class).intValue());
+
+            // the rows already in the table are found too (also when the database reads the file)
+            ReflectionTestUtils.setField(configuration, "inputCSVBulk", true);
+            try {
+                result = inputHandler.loadInputCollection(InputCollection.ACTIVITY).get(InputCollection.ACTIVITY);
+            } finally {
+                ReflectionTestUtils.setField(configuration, "inputCSVBulk", false);
+            }
+            assertEquals(lines.size() + 100, result.failures.getCount(InputFailures.Category.DUPLICATE));
+            assertEquals(lines.size(), storage.countTempTableRows("ACTIVITY"));
+
+            ActivityCSVInputHandler handler = (ActivityCSVInputHandler) inputHandler.findHandlers(ActivityCSVInputHandler.class).get(activity.toString());
+            String stream = lines.get(0)+"\n"+lines.get(1)+"\n"+lines.get(2)+"\n"
+                    + "STUDENT1,MNG_333N_222_08F,content.read,2030-01-03T03:04:05\n"
+                    + "STUDENT1,MNG_333N_222_08F,content.read,2030-01-03T03:04:05\n"; // not loaded yet so only in the batch
+            result = handler.readCSVStreamIntoDB("stream", new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(3, result.failures.getCount(InputFailures.Category.DUPLICATE));
+            assertEquals(lines.size() + 1, storage.countTempTableRows("ACTIVITY"));
+        } finally {
+            ReflectionTestUtils.setField(configuration, "inputDedup", false);
+            ReflectionTestUtils.setField(configuration, "inputDedupExpected", 10000000L);
+            deleteCollections();
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve("activity-rejects.csv"));
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    @Test
+    public void testDuplicateFilterNullKeys() throws Exception {
+        JdbcTemplate jdbc = storage.getTempJdbcTemplate();
+        jdbc.execute("CREATE TABLE DEDUP_TEST (NAME VARCHAR(20) NOT NULL, CODE VARCHAR(20), WHEN_DATE TIMESTAMP)");
+        try {
+            jdbc.update("INSERT INTO DEDUP_TEST (NAME, CODE, WHEN_DATE) VALUES ('A', NULL, NULL)");
+            jdbc.update("INSERT INTO DEDUP_TEST (NAME, CODE, WHEN_DATE) VALUES ('B', 'X', NULL)");
+            DuplicateFilter filter = new DuplicateFilter(jdbc, "DEDUP_TEST", new String[] {"NAME", "CODE", "WHEN_DATE"}, new int[] {0, 1, 2},
+                    new int[] {Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP}, 1000);
+            filter.addExistingKeys();
+            List<Object[]> pending = new ArrayList<>();
+            // the rows with null key columns are found in the table
+            assertTrue(filter.isDuplicate(new Object[] {"A", null, null}, pending));
+            assertTrue(filter.isDuplicate(new Object[] {"B", "X", null}, pending));
+            assertEquals(2, filter.getDuplicates());
+            // a null only matches a null (the second check of each key is done against the table)
+            for (int i = 0; i < 2; i++) {
+                assertFalse(filter.isDuplicate(new Object[] {"B", null, null}, pending));
+                assertFalse(filter.isDuplicate(new Object[] {"A", "X", null}, pending));
+            }
+            assertTrue(filter.getPossibleHits() >= 4);
+            assertEquals(2, filter.getDuplicates());
+        } finally {
+            jdbc.execute("DROP TABLE DEDUP_TEST");
+        }
+    }
+
+    /**
+     * Copies the extracts for the source into a directory (and updates the source to use the copies)
+     */
+    private Map<InputCollection, Path> copyExtracts(HierarchicalConfiguration source, Path dir) throws IOException {
+        Map<InputCollection, Path> extracts = new EnumMap<>(InputCollection.class);
+        List<HierarchicalConfiguration> files = source.configurationsAt("params.files.file");
+        for (HierarchicalConfiguration file : files) {
+            Path extract = dir.resolve(Paths.get(file.getString("path")).getFileName());
+            Files.copy(configuration.getApplicationHomeDirectory().resolve(file.getString("path")), extract);
+            file.setProperty("path", extract.toString());
+            extracts.put(InputCollection.fromString(file.getString("type")), extract);
+        }
+        return extracts;
+    }
+
+    private void deleteExtracts(Map<InputCollection, Path> extracts, Path dir) throws IOException {
+        for (Path extract : extracts.values()) {
+            Files.deleteIfExists(extract);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testPreflightInputs() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        HierarchicalConfiguration source = xmlcfg.configurationsAt("sources.source").get(0);
+        Path dir = Files.createTempDirectory("lap-extracts-");
+        Map<InputCollection, Path> extracts = copyExtracts(source, dir);
+        try {
+            storage.resetTempStore();
+            CSVInputHandlerService inputHandler = new CSVInputHandlerService(configuration, storage, source);
+            Map<InputCollection, String> checked = inputHandler.preflightInputCollections();
+            assertEquals(EnumSet.allOf(InputCollection.class), checked.keySet());
+            for (String problem : checked.values()) {
+                assertNull(problem);
+            }
+
+            // only the header is checked and nothing is loaded
+            Path grade = extracts.get(InputCollection.GRADE);
+            List<String> lines = Files.readAllLines(grade, StandardCharsets.UTF_8);
+            lines.set(0, "STUDENT,COURSE");
+            Files.write(grade, lines, StandardCharsets.UTF_8);
+            Files.delete(extracts.get(InputCollection.ACTIVITY));
+            checked = inputHandler.preflightInputCollections(InputCollection.PERSONAL, InputCollection.GRADE, InputCollection.ACTIVITY);
+            assertEquals(EnumSet.of(InputCollection.PERSONAL, InputCollection.GRADE, InputCollection.ACTIVITY), checked.keySet());
+            assertNull(checked.get(InputCollection.PERSONAL));
+            assertTrue(checked.get(InputCollection.GRADE), checked.get(InputCollection.GRADE).contains("CSV is invalid"));
+            assertTrue(checked.get(InputCollection.ACTIVITY), checked.get(InputCollection.ACTIVITY).contains("CSV is invalid"));
+            for (InputCollection ic : InputCollection.values()) {
+                assertEquals(0, storage.countTempTableRows(ic.name()));
+            }
+
+            // the load checks the header as the file is opened
+            Map<String, CSVInputHandler> handlers = inputHandler.findHandlers(CSVInputHandler.class);
+            try {
+                handlers.get(grade.toString()).readInputIntoDB();
+                fail("should have failed");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("CSV is invalid"));
+            }
+        } finally {
+            deleteCollections();
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    @Test
+    public void testDatabaseInput() throws Exception {
+        Path extracts = configuration.getApplicationHomeDirectory().resolve("extracts");
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0)).loadInputCollection();
+        Map<InputCollection, List<Map<String, Object>>> expected = new EnumMap<>(InputCollection.class);
+        for (InputCollection ic : InputCollection.values()) {
+            expected.put(ic, selectCollection(ic));
+            assertTrue(expected.get(ic).size() > 0);
+        }
+        deleteCollections();
+
+        // a second (file) database stands in for the data warehouse, the columns are typed differently to the temp tables
+        Path dir = Files.createTempDirectory("lap-warehouse-");
+        String url = "jdbc:h2:file:"+dir.resolve("warehouse");
+        JdbcTemplate warehouse = new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""));
+        int batchSize = configuration.getInputBatchSize();
+        try {
+            warehouse.execute("CREATE TABLE W_PERSONAL AS SELECT * FROM CSVREAD('"+extracts.resolve("personal.csv")+"')");
+            warehouse.execute("ALTER TABLE W_PERSONAL DROP COLUMN RACE"); // optional so it can be left out
+            warehouse.execute("CREATE TABLE COURSE AS SELECT * FROM CSVREAD('"+extracts.resolve("course.csv")+"')");
+            warehouse.execute("CREATE TABLE W_ENROLLMENT AS SELECT * FROM CSVREAD('"+extracts.resolve("enrollment.csv")+"')");
+            warehouse.execute("CREATE TABLE W_GRADE AS SELECT ALTERNATIVE_ID, COURSE_ID, GRADABLE_OBJECT, CATEGORY,"
+                    + " CAST(MAX_POINTS AS DECIMAL(10,2)) MAX_POINTS, CAST(EARNED_POINTS AS DOUBLE) EARNED_POINTS, CAST(WEIGHT AS DOUBLE) WEIGHT,"
+                    + " PARSEDATETIME(NULLIF(GRADE_DATE, ''), 'yyyy-MM-dd''T''HH:mm:ss') GRADE_DATE FROM CSVREAD('"+extracts.resolve("grade.csv")+"')");
+            warehouse.execute("CREATE TABLE W_ACTIVITY AS SELECT EVENT_DATE AS RAW_DATE, PARSEDATETIME(EVENT_DATE, 'yyyy-MM-dd''T''HH:mm:ss') EVENT_DATE,"
+                    + " EVENT, COURSE_ID, ALTERNATIVE_ID FROM CSVREAD('"+extracts.resolve("activity.csv")+"')");
+
+            XMLConfiguration source = new XMLConfiguration();
+            source.load(new StringReader("<source><type>DATABASE</type><params>"
+                    + "<url>"+url+"</url><username>sa</username><password></password><fetchSize>7</fetchSize>"
+                    + "<queries>"
+                    + "<query><type>PERSONAL</type><table>W_PERSONAL</table></query>"
+                    + "<query><type>COURSE</type></query>"
+                    + "<query><type>ENROLLMENT</type><sql>SELECT * FROM W_ENROLLMENT</sql></query>"
+                    + "<query><type>GRADE</type><table>W_GRADE</table></query>"
+                    + "<query><type>ACTIVITY</type><sql>SELECT ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE FROM W_ACTIVITY</sql></query>"
+                    + "</queries></params></source>"));
+            BaseInputHandlerService inputHandler = BaseInputHandlerService.getInputHandler("DATABASE", source, configuration, storage);
+            assertEquals(BaseInputHandlerService.Type.DATABASE, inputHandler.getType());
+            ReflectionTestUtils.setField(configuration, "inputBatchSize", 50); // many batches so reading and writing overlap
+            Map<InputCollection, InputHandler.ReadResult> results = inputHandler.loadInputCollection();
+            assertEquals(InputCollection.values().length, results.size());
+            for (InputCollection ic : InputCollection.values()) {
+                InputHandler.ReadResult result = results.get(ic);
+                assertEquals(ic+": "+result.failures, 0, result.failed);
+                assertEquals(ic.toString(), expected.get(ic).size(), result.loaded);
+                assertEquals(ic.toString(), expected.get(ic), selectCollection(ic));
+            }
+
+            // invalid rows are rejected (and the rest are loaded)
+            storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+            warehouse.execute("INSERT INTO W_ACTIVITY (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE) VALUES ('STUDENT1', 'MNG_333N_222_08F', NULL, NOW())");
+            results = inputHandler.loadInputCollection(InputCollection.ACTIVITY);
+            assertEquals(1, results.get(InputCollection.ACTIVITY).failures.getCount(InputFailures.Category.INVALID));
+            assertEquals(expected.get(InputCollection.ACTIVITY), selectCollection(InputCollection.ACTIVITY));
+
+            // queries without the required columns fail before anything is loaded
+            source.setProperty("params.queries.query(1).sql", "SELECT SUBJECT FROM COURSE");
+            inputHandler = BaseInputHandlerService.getInputHandler("DATABASE", source, configuration, storage);
+            try {
+                inputHandler.loadInputCollection(InputCollection.COURSE);
+                fail("should have failed");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("COURSE_ID"));
+            }
+        } finally {
+            ReflectionTestUtils.setField(configuration, "inputBatchSize", batchSize);
+            deleteCollections();
+            warehouse.execute("DROP ALL OBJECTS DELETE FILES");
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testHttpInput() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0)).loadInputCollection();
+        Map<InputCollection, List<Map<String, Object>>> expected = new EnumMap<>(InputCollection.class);
+        for (InputCollection ic : InputCollection.values()) {
+            expected.put(ic, selectCollection(ic));
+        }
+        deleteCollections();
+
+        final Path dir = Files.createTempDirectory("lap-http-");
+        Map<InputCollection, Path> extracts = copyExtracts(xmlcfg.configurationsAt("sources.source").get(0), dir);
+        Path activityGz = dir.resolve("activity.csv.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(activityGz))) {
+            Files.copy(extracts.get(InputCollection.ACTIVITY), out);
+        }
+        // serves the extracts with validators (and gzip encoding when asked for) like a typical web server
+        final AtomicInteger downloads = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/extracts/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Path file = dir.resolve(Paths.get(exchange.getRequestURI().getPath()).getFileName().toString());
+                    if (!Files.exists(file)) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    long lastModified = Files.getLastModifiedTime(file).toMillis();
+                    String etag = "\""+Files.size(file)+"-"+lastModified+"\"";
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                    httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    exchange.getResponseHeaders().set("Last-Modified", httpDate.format(new Date(lastModified)));
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        notModified.incrementAndGet();
+                        exchange.sendResponseHeaders(304, -1);
+                        return;
+                    }
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    downloads.incrementAndGet();
+                    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                        exchange.sendResponseHeaders(200, 0);
+                        try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                            Files.copy(file, out);
+                        }
+                    } else {
+                        exchange.sendResponseHeaders(200, Files.size(file));
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            Files.copy(file, out);
+                        }
+                    }
+                } catch (IOException e) {
+                    // the client closed the connection (only the validators were needed)
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        try {
+            XMLConfiguration source = new XMLConfiguration();
+            source.load(new StringReader("<source><type>HTTP</type><params>"
+                    + "<baseUrl>http://127.0.0.1:"+server.getAddress().getPort()+"/extracts</baseUrl><timeout>10000</timeout>"
+                    + "<files>"
+                    + "<file><type>PERSONAL</type><url>personal.csv</url></file>"
+                    + "<file><type>COURSE</type><url>course.csv</url></file>"
+                    + "<file><type>ENROLLMENT</type><url>enrollment.csv</url></file>"
+                    + "<file><type>GRADE</type><url>grade.csv</url></file>"
+                    + "<file><type>ACTIVITY</type><url>activity.csv.gz</url></file>"
+                    + "</files></params></source>"));
+            BaseInputHandlerService inputHandler = BaseInputHandlerService.getInputHandler("HTTP", source, configuration, storage);
+            assertEquals(BaseInputHandlerService.Type.HTTP, inputHandler.getType());
+            Set<InputCollection> loaded = inputHandler.loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.allOf(InputCollection.class), loaded);
+            for (InputCollection ic : InputCollection.values()) {
+                assertEquals(ic.toString(), expected.get(ic), selectCollection(ic));
+            }
+            assertEquals(0, notModified.get());
+            assertEquals(5, downloads.get()); // the changes are checked without downloading
+
+            // nothing changed so the server only sends 304s (and nothing is loaded again)
+            int downloaded = downloads.get();
+            loaded = inputHandler.loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertTrue(loaded.isEmpty());
+            assertEquals(5, notModified.get());
+            assertEquals(downloaded, downloads.get());
+
+            // only the changed extract is downloaded and loaded again
+            Path grade = extracts.get(InputCollection.GRADE);
+            Files.setLastModifiedTime(grade, FileTime.fromMillis(Files.getLastModifiedTime(grade).toMillis() + 60000));
+            loaded = inputHandler.loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.of(InputCollection.GRADE), loaded);
+            assertEquals(9, notModified.get());
+            assertEquals(downloaded + 1, downloads.get());
+            assertEquals(expected.get(InputCollection.GRADE), selectCollection(InputCollection.GRADE));
+
+            // a missing extract fails the load
+            source.setProperty("params.files.file(0).url", "missing.csv");
+            inputHandler = BaseInputHandlerService.getInputHandler("HTTP", source, configuration, storage);
+            try {
+                inputHandler.loadInputCollection(InputCollection.PERSONAL);
+                fail("should have failed");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("404"));
+            }
+        } finally {
+            server.stop(0);
+            deleteCollections();
+            Files.deleteIfExists(activityGz);
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    @Test
+    public void testJSONInput() throws Exception {
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0)).loadInputCollection();
+        Map<InputCollection, List<Map<String, Object>>> expected = new EnumMap<>(InputCollection.class);
+        for (InputCollection ic : InputCollection.values()) {
+            expected.put(ic, selectCollection(ic));
+        }
+        deleteCollections();
+
+        // the extracts as JSON in each of the supported forms
+        Path dir = Files.createTempDirectory("lap-json-");
+        Map<InputCollection, Path> extracts = copyExtracts(xmlcfg.configurationsAt("sources.source").get(0), dir);
+        Map<InputCollection, Path> jsonFiles = new EnumMap<>(InputCollection.class);
+        jsonFiles.put(InputCollection.PERSONAL, writeJSON(extracts.get(InputCollection.PERSONAL), dir.resolve("personal.json"), "element"));
+        jsonFiles.put(InputCollection.COURSE, writeJSON(extracts.get(InputCollection.COURSE), dir.resolve("course.json"), ""));
+        jsonFiles.put(InputCollection.ENROLLMENT, writeJSON(extracts.get(InputCollection.ENROLLMENT), dir.resolve("enrollment.ndjson"), null));
+        jsonFiles.put(InputCollection.GRADE, writeJSON(extracts.get(InputCollection.GRADE), dir.resolve("grade.ndjson"), null));
+        jsonFiles.put(InputCollection.ACTIVITY, writeJSON(extracts.get(InputCollection.ACTIVITY), dir.resolve("activity.ndjson.gz"), null));
+        try {
+            StringBuilder files = new StringBuilder();
+            for (Map.Entry<InputCollection, Path> jsonFile : jsonFiles.entrySet()) {
+                files.append("<file><type>").append(jsonFile.getKey()).append("</type><path>").append(jsonFile.getValue()).append("</path></file>");
+            }
+            XMLConfiguration source = new XMLConfiguration();
+            source.load(new StringReader("<source><type>JSON</type><params><files>"+files+"</files></params></source>"));
+            BaseInputHandlerService inputHandler = BaseInputHandlerService.getInputHandler("JSON", source, configuration, storage);
+            assertEquals(BaseInputHandlerService.Type.JSON, inputHandler.getType());
+            Set<InputCollection> loaded = inputHandler.loadInputCollections(false, false, new HashSet<InputCollection>());
+            assertEquals(EnumSet.allOf(InputCollection.class), loaded);
+            for (InputCollection ic : InputCollection.values()) {
+                assertEquals(ic.toString(), expected.get(ic), selectCollection(ic));
+            }
+
+            // records are validated like the CSV rows, the invalid ones are rejected
+            JSONInputHandler personal = (JSONInputHandler) inputHandler.findHandlers(JSONInputHandler.class).get(jsonFiles.get(InputCollection.PERSONAL).toString());
+            InputHandler.ReadResult result = personal.readJSONIntoDB("posted", new StringReader(
+                    "{\"ALTERNATIVE_ID\":\"json1\",\"SAT_VERBAL\":590,\"AGE\":22,\"GENDER\":\"F\",\"ENROLLMENT_STATUS\":\"F\",\"EARNED_CREDIT_HOURS\":70,"
+                    + "\"GPA_CUMULATIVE\":3.4225,\"GPA_SEMESTER\":3.54,\"STANDING\":1,\"PELL_STATUS\":\"Y\",\"CLASS_CODE\":\"SR\",\"extra\":{\"ignored\":[1,2]}}\n"
+                    + "{\"ALTERNATIVE_ID\":\"json2\",\"AGE\":1000,\"GENDER\":\"M\",\"ENROLLMENT_STATUS\":\"F\",\"EARNED_CREDIT_HOURS\":70,"
+                    + "\"GPA_CUMULATIVE\":3.4225,\"GPA_SEMESTER\":3.54,\"STANDING\":1,\"PELL_STATUS\":\"Y\",\"CLASS_CODE\":\"SR\"}\n"));
+            assertEquals(2, result.total);
+            assertEquals(result.failures.getMessages().toString(), 1, result.loaded);
+            assertEquals(1, result.failed);
+            assertEquals(1, result.failures.size());
+            assertTrue(result.failures.getMessages().get(0), result.failures.getMessages().get(0).contains(" line 2: "));
+
+            // malformed JSON fails the load
+            try {
+                personal.readJSONIntoDB("posted", new StringReader("[{\"ALTERNATIVE_ID\":\"json3\"},\n5]"));
+                fail("should have failed");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+            }
+        } finally {
+            deleteCollections();
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve("personal-rejects.csv"));
+            for (Path jsonFile : jsonFiles.values()) {
+                Files.deleteIfExists(jsonFile);
+            }
+            deleteExtracts(extracts, dir);
+        }
+    }
+
+    /**
+     * Writes a CSV extract as JSON records (numbers are written as JSON numbers and blank values are left out)
+     * @param wrapper the field of the object which holds the array of records, "" for only an array, null for NDJSON
+     */
+    private Path writeJSON(Path csv, Path json, String wrapper) throws IOException {
+        try (CSVReader reader = new CSVReader(Files.newBufferedReader(csv, StandardCharsets.UTF_8));
+             OutputStream out = json.toString().endsWith(".gz") ? new GZIPOutputStream(Files.newOutputStream(json)) : Files.newOutputStream(json);
+             JsonGenerator generator = new JsonFactory().createGenerator(out)) {
+            String[] header = reader.readNext();
+            if (wrapper == null) {
+                generator.setRootValueSeparator(new SerializedString("\n"));
+            } else if (wrapper.isEmpty()) {
+                generator.writeStartArray();
+            } else {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart(wrapper);
+            }
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                generator.writeStartObject();
+                for (int i = 0; i < header.length && i < row.length; i++) {
+                    if (StringUtils.isBlank(row[i])) {
+                        continue;
+                    }
+                    generator.writeFieldName(header[i]);
+                    if (row[i].matches("-?[1-9][0-9]{0,8}")) {
+                        generator.writeNumber(row[i]);
+                    } else {
+                        generator.writeString(row[i]);
+                    }
+                }
+                generator.writeEndObject();
+            }
+            if (wrapper != null) {
+                generator.writeEndArray();
+                if (!wrapper.isEmpty()) {
+                    generator.writeStringField("source", csv.getFileName().toString()); // ignored
+                    generator.writeEndObject();
+                }
+            }
+        }
+        return json;
+    }
+
+    @Test
+    public void testFieldDecoder() throws Exception {
+        FieldDecoder decoder = FieldDecoder.get();
+        String[] formats = new String[]{"yyyy-MM-dd'T'HH:mm:ssZZ","yyyy-MM-dd'T'HH:mm:ss","yyyy-MM-dd'T'HH:mm","yyyy-MM-dd"};
+        // decoded dates MUST be the same as the date formats (including the lenient rollover and the fallback forms)
+        String[] dates = new String[]{"2014-02-03", "2014-02-03T12:34", "2014-02-03T12:34:56", "2014-02-03T12:34:56+0500",
+                "2014-02-03T12:34:56-0330", "2014-02-03T12:34:56+05:00", "2014-07-01T23:59:59-07:00", "2014-03-09T02:30",
+                "2014-11-02T01:30:00", "2010-02-30", "2010-13-01T10:00", "2010-01-01T24:61:61", "2010-9-3", "2010-09-03T8:05",
+                "1582-10-10", "0099-01-01", "2014-02-03T12:34:56Z", "2014-02-03T12:34:56+5", "2014-02-03T12:34:56+99:00"};
+        for (String date : dates) {
+            Long expected;
+            try {
+                expected = DateUtils.parseDate(date, formats).getTime();
+            } catch (ParseException e) {
+                expected = null;
+            }
+            Long actual;
+            try {
+                actual = decoder.decodeDateTime(date, true, "DATE").getTime();
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("DATE ("+date+") cannot be parsed"));
+                actual = null;
+            }
+            assertEquals(date, expected, actual);
+        }
+        assertNull(decoder.decodeDateTime(null, false, "DATE"));
+        assertNull(decoder.decodeDateTime("  ", false, "DATE"));
+
+        String[] ints = new String[]{"0", "-0", "+7", "42", "-2147483648", "2147483647", "2147483648", "00000000042", "4 2", "4.2", "x", "-", "+"};
+        for (String string : ints) {
+            Integer expected;
+            try {
+                expected = Integer.parseInt(string);
+            } catch (NumberFormatException e) {
+                expected = null;
+            }
+            Integer actual;
+            try {
+                actual = decoder.decodeInt(string, Integer.MIN_VALUE, Integer.MAX_VALUE, true, "INT");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("INT ("+string+") must be an integer: java.lang.NumberFormatException"));
+                actual = null;
+            }
+            assertEquals(string, expected, actual);
+        }
+        try {
+            decoder.decodeInt("101", 0, 100, true, "PERCENTILE");
+            fail("should have failed");
+        } catch (IllegalArgumentException e) {
+            assertEquals("PERCENTILE integer (101) is greater than the maximum (100)", e.getMessage());
+        }
+        assertEquals(3.25f, decoder.decodeFloat("3.25", 0f, 4f, true, "GPA"), 0f);
+        assertEquals(Boolean.TRUE, decoder.decodeBoolean("yes", true, "PELL"));
+        assertEquals(Boolean.FALSE, decoder.decodeBoolean("0", true, "PELL"));
+        try {
+            decoder.decodeString("X", new String[]{"M","F","N"}, false, "GENDER");
+            fail("should have failed");
+        } catch (IllegalArgumentException e) {
+            assertEquals("GENDER (X) must be in the valid set: {M,F,N}", e.getMessage());
+        }
+
+        String[] fields = new String[]{" a ", "", "b", null, "\tc", "  "};
+        FieldDecoder.trimToNull(fields);
+        assertArrayEquals(new String[]{"a", null, "b", null, "c", null}, fields);
+    }
+
+    private List<Map<String, Object>> selectCollection(InputCollection ic) {
+        String sql;
+        switch (ic) {
+            case PERSONAL:
+                sql = "SELECT * FROM PERSONAL ORDER BY ALTERNATIVE_ID";
+                break;
+            case COURSE:
+                sql = "SELECT * FROM COURSE ORDER BY COURSE_ID";
+                break;
+            case GRADE:
+                sql = "SELECT * FROM GRADE ORDER BY ALTERNATIVE_ID, COURSE_ID, GRADABLE_OBJECT";
+                break;
+            case ACTIVITY: // skip the generated ID
+                sql = "SELECT ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE FROM ACTIVITY ORDER BY ALTERNATIVE_ID, COURSE_ID, EVENT_DATE, EVENT";
+                break;
+            default:
+                sql = "SELECT * FROM "+ic.name()+" ORDER BY ALTERNATIVE_ID, COURSE_ID";
+        }
+        return storage.getTempJdbcTemplate().queryForList(sql);
+    }
+
+    private void deleteCollections() {
+        storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+        storage.getTempJdbcTemplate().execute("DELETE FROM GRADE");
+        storage.getTempJdbcTemplate().execute("DELETE FROM ENROLLMENT");
+        storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+        storage.getTempJdbcTemplate().execute("DELETE FROM PERSONAL");
+        storage.getTempJdbcTemplate().execute("DELETE FROM INPUT_REJECTS");
+    }
 }
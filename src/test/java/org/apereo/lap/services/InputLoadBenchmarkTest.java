@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *******************************************************************************/
+package org.apereo.lap.services;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
+import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.BaseInputHandlerService.InputCollection;
+import org.apereo.lap.services.input.CSVInputHandlerService;
+import org.apereo.lap.services.input.handlers.BaseInputHandler;
+import org.apereo.lap.services.input.handlers.BatchInserter;
+import org.apereo.lap.services.input.handlers.FieldDecoder;
+import org.apereo.lap.services.input.handlers.InputFailures;
+import org.apereo.lap.services.input.handlers.csv.ActivityCSVInputHandler;
+import org.apereo.lap.services.input.handlers.csv.ChunkedCSVReader;
+import org.apereo.lap.services.input.handlers.csv.H2BulkCSVLoader;
+import org.apereo.lap.services.storage.DatasourceProperties;
+import org.apereo.lap.services.storage.StorageService;
+import org.apereo.lap.test.AbstractUnitTest;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Compares the ways of loading (and decoding) a large CSV file into the temp database,
+ * uses the sample activity.csv repeated many times (the sample personal and course data are loaded first)
+ *
+ * Only runs when requested: mvn test -Dtest=InputLoadBenchmarkTest -Dlap.benchmark=true [-Dlap.benchmark.scale=20]
+ *
+ * Temp store modes (benchmarkTempStoreModes, [-Dlap.benchmark.cacheSize=16384] sets the file and compressed mode page cache in KB):
+ * loads 1/4, 1/2 and all of the records into a separate temp store in each mode and runs a kettle style
+ * GROUP BY over them, reporting the load and query throughput and the heap used after the load.
+ * Guidance for choosing datasource.temp.mode from the results:
+ * - memory needs heap for all the data (about the reported heap per row times the real number of rows), use it while that fits
+ * - file keeps the heap use close to the page cache size at any data size, loads are about as fast as memory
+ *   (the MVStore appends to the file) but queries are slower (more so once the data is larger than the cache),
+ *   use it when the data does not fit in the heap and size the cache for the largest table the processors query
+ * - compressed keeps all the data in the heap but uses less of it than memory (compare the heap per row),
+ *   it is slower than memory on loads and queries, use it when the data almost fits in the heap
+ * - COMPRESSED_DICT is not a mode, it is the compressed mode with the ACTIVITY strings dictionary encoded
+ *   (integer codes in the table and the kettle columns read through a view), it shows what the temp store
+ *   would gain (heap) and lose (query speed) with dictionary encoded string columns
+ * - run it with a scale close to the real data size and a cacheSize close to the planned datasource.temp.cacheSize
+ */
+public class InputLoadBenchmarkTest extends AbstractUnitTest {
+
+    @Autowired
+    ConfigurationService configuration;
+    @Autowired
+    StorageService storage;
+
+    Path csv;
+    ActivityCSVInputHandler handler;
+    int records;
+
+    @Before
+    public void setup() throws Exception {
+        Assume.assumeTrue("benchmark only runs with -Dlap.benchmark=true", Boolean.getBoolean("lap.benchmark"));
+        int scale = Integer.getInteger("lap.benchmark.scale", 20);
+        XMLConfiguration xmlcfg = new XMLConfiguration(configuration.getApplicationHomeDirectory().resolve(Paths.get("pipelines", "sample.xml")).toFile());
+        new CSVInputHandlerService(configuration, storage, xmlcfg.configurationsAt("sources.source").get(0))
+                .loadInputCollection(InputCollection.PERSONAL, InputCollection.COURSE);
+
+        List<String> lines = Files.readAllLines(configuration.getApplicationHomeDirectory().resolve(Paths.get("extracts", "activity.csv")), Charset.defaultCharset());
+        csv = Files.createTempFile("lap-benchmark-activity-", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, Charset.defaultCharset())) {
+            writer.write(lines.get(0));
+            writer.newLine();
+            for (int i = 0; i < scale; i++) {
+                for (int j = 1; j < lines.size(); j++) {
+                    if (!lines.get(j).isEmpty()) {
+                        writer.write(lines.get(j));
+                        writer.newLine();
+                        records++;
+                    }
+                }
+            }
+        }
+        handler = new ActivityCSVInputHandler(configuration, storage.getTempJdbcTemplate());
+        handler.setPath(csv.toString());
+        logger.info("Benchmark file: "+csv+" ("+records+" records, "+Files.size(csv)+" bytes)");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        if (csv != null) {
+            Files.deleteIfExists(csv);
+            storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+            storage.getTempJdbcTemplate().execute("DELETE FROM COURSE");
+            storage.getTempJdbcTemplate().execute("DELETE FROM PERSONAL");
+        }
+    }
+
+    @Test
+    public void benchmarkActivityLoad() throws Exception {
+        Load rows = new Load() {
+            public void run(BatchInserter inserter, InputFailures failures) throws Exception {
+                readAll(inserter, failures);
+            }
+        };
+        Load chunked = new Load() {
+            public void run(BatchInserter inserter, InputFailures failures) throws Exception {
+                new ChunkedCSVReader(csv, Runtime.getRuntime().availableProcessors(), 1024 * 1024).readIntoDB(handler, inserter, failures);
+            }
+        };
+        Load bulk = new Load() {
+            public void run(BatchInserter inserter, InputFailures failures) throws Exception {
+                new H2BulkCSVLoader(storage.getTempJdbcTemplate()).load(handler, csv, handler.getBulkColumns(), inserter, failures);
+            }
+        };
+        List<String> report = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            // first round is only to warm up the JVM and the database
+            report.clear();
+            report.add(time("row by row", rows, 1));
+            report.add(time("batched", rows, 1000));
+            report.add(time("chunked ("+Runtime.getRuntime().availableProcessors()+" threads)", chunked, 1000));
+            report.add(time("bulk (H2 CSVREAD)", bulk, 1000));
+        }
+        logger.info("ACTIVITY load benchmark ("+records+" records):\n"+ StringUtils.join(report, "\n"));
+    }
+
+    @Test
+    public void benchmarkFieldDecoding() throws Exception {
+        // decoding only (no database), the records are read into memory first
+        final List<String[]> lines = new ArrayList<>(records);
+        try (CSVReader reader = new CSVReader(new InputStreamReader(Files.newInputStream(csv)))) {
+            reader.readNext(); // header
+            String[] csvLine;
+            while ((csvLine = reader.readNext()) != null) {
+                lines.add(csvLine);
+            }
+        }
+        final String[] formats = new String[]{"yyyy-MM-dd'T'HH:mm:ssZZ","yyyy-MM-dd'T'HH:mm:ss","yyyy-MM-dd'T'HH:mm","yyyy-MM-dd"};
+        Decode legacy = new Decode() {
+            public long run() throws Exception {
+                // the way the handlers decoded fields before the FieldDecoder
+                long sum = 0;
+                for (String[] line : lines) {
+                    String[] fields = line.clone();
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = StringUtils.trimToNull(fields[i]);
+                    }
+                    Object[] params = new Object[fields.length];
+                    System.arraycopy(fields, 0, params, 0, 3);
+                    params[3] = new Timestamp(DateUtils.parseDate(fields[3], formats).getTime());
+                    sum += ((Timestamp) params[3]).getTime();
+                }
+                return sum;
+            }
+        };
+        Decode decoder = new Decode() {
+            public long run() throws Exception {
+                long sum = 0;
+                for (String[] line : lines) {
+                    String[] fields = line.clone();
+                    FieldDecoder.trimToNull(fields);
+                    sum += ((Timestamp) handler.validateAndConvertParams(fields)[3]).getTime();
+                }
+                return sum;
+            }
+        };
+        List<String> report = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            // first rounds are only to warm up the JVM
+            report.clear();
+            long expected = legacy.run();
+            report.add(time("legacy (DateUtils)", legacy, expected));
+            report.add(time("FieldDecoder", decoder, expected));
+        }
+        logger.info("ACTIVITY decoding benchmark ("+records+" records):\n"+ StringUtils.join(report, "\n"));
+    }
+
+    @Test
+    public void benchmarkTempStoreModes() throws Exception {
+        int cacheSize = Integer.getInteger("lap.benchmark.cacheSize", 16384);
+        // convert the records once so only the temp store is measured
+        final List<Object[]> rows = new ArrayList<>(records);
+        try (CSVReader reader = new CSVReader(new InputStreamReader(Files.newInputStream(csv)))) {
+            reader.readNext(); // header
+            String[] csvLine;
+            while ((csvLine = reader.readNext()) != null) {
+                FieldDecoder.trimToNull(csvLine);
+                rows.add(Arrays.copyOf(handler.validateAndConvertParams(csvLine), 4));
+            }
+        }
+        Path dir = Files.createTempDirectory("lap-benchmark-temp-store-");
+        try {
+            List<String> report = new ArrayList<>();
+            for (int round = 0; round < 2; round++) {
+                // first round is only to warm up the JVM and the databases
+                report.clear();
+                for (int size : new int[] {records / 4, records / 2, records}) {
+                    for (DatasourceProperties.TempStoreMode mode : DatasourceProperties.TempStoreMode.values()) {
+                        for (boolean dictionary : mode == DatasourceProperties.TempStoreMode.COMPRESSED ? new boolean[] {false, true} : new boolean[] {false}) {
+                            // a new database every time so the heap of an earlier (dropped) in-memory file system is not reused
+                            String name = "lap-benchmark-"+mode+(dictionary ? "-dict-" : "-")+size+"-"+round;
+                            String url = DatasourceProperties.makeTempUrl(mode, "jdbc:h2:mem:"+name+";MODE=MYSQL;DB_CLOSE_DELAY=-1",
+                                    dir.resolve(name).toString(), cacheSize);
+                            report.add(timeTempStore(mode.name()+(dictionary ? "_DICT" : ""), url, rows.subList(0, size), dictionary));
+                        }
+                    }
+                }
+            }
+            logger.info("Temp store modes benchmark (page cache "+cacheSize+" KB):\n"+ StringUtils.join(report, "\n"));
+        } finally {
+            for (Path file : Files.newDirectoryStream(dir)) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    String timeTempStore(String name, String url, List<Object[]> rows, boolean dictionary) throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(url, "sa", "", true);
+        try {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            String type = dictionary ? "integer" : "varchar(100)";
+            jdbcTemplate.execute("CREATE TABLE "+(dictionary ? "ACTIVITY_CODES" : "ACTIVITY")+" (ID integer NOT NULL AUTO_INCREMENT, ALTERNATIVE_ID "+type+" NOT NULL,"
+                    + " COURSE_ID "+type+" NOT NULL, EVENT "+type+" NOT NULL, EVENT_DATE TIMESTAMP NOT NULL, PRIMARY KEY (ID))");
+            if (dictionary) {
+                // the codes are only in this table, the kettle style query reads the strings through the view
+                jdbcTemplate.execute("CREATE TABLE DICTIONARY (CODE integer NOT NULL, VAL varchar(255) NOT NULL, PRIMARY KEY (CODE))");
+                jdbcTemplate.execute("CREATE VIEW ACTIVITY AS SELECT A.ID, S.VAL AS ALTERNATIVE_ID, C.VAL AS COURSE_ID, E.VAL AS EVENT, A.EVENT_DATE"
+                        + " FROM ACTIVITY_CODES A JOIN DICTIONARY S ON S.CODE = A.ALTERNATIVE_ID JOIN DICTIONARY C ON C.CODE = A.COURSE_ID JOIN DICTIONARY E ON E.CODE = A.EVENT");
+            }
+            System.gc();
+            long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            long start = System.nanoTime();
+            Map<Object, Integer> codes = new HashMap<>();
+            for (int i = 0; i < rows.size(); i += 1000) {
+                List<Object[]> batch = rows.subList(i, Math.min(rows.size(), i + 1000));
+                if (dictionary) {
+                    List<Object[]> values = new ArrayList<>();
+                    List<Object[]> encoded = new ArrayList<>(batch.size());
+                    for (Object[] row : batch) {
+                        Object[] codedRow = row.clone();
+                        for (int c = 0; c < 3; c++) {
+                            Integer code = codes.get(row[c]);
+                            if (code == null) {
+                                code = codes.size() + 1;
+                                codes.put(row[c], code);
+                                values.add(new Object[] {code, row[c]});
+                            }
+                            codedRow[c] = code;
+                        }
+                        encoded.add(codedRow);
+                    }
+                    jdbcTemplate.batchUpdate("INSERT INTO DICTIONARY (CODE, VAL) VALUES (?,?)", values);
+                    jdbcTemplate.batchUpdate("INSERT INTO ACTIVITY_CODES (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE) VALUES (?,?,?,?)", encoded);
+                } else {
+                    jdbcTemplate.batchUpdate("INSERT INTO ACTIVITY (ALTERNATIVE_ID, COURSE_ID, EVENT, EVENT_DATE) VALUES (?,?,?,?)", batch);
+                }
+            }
+            long loadMS = Math.max(1, (System.nanoTime() - start) / 1000000);
+            System.gc();
+            heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - heap;
+            start = System.nanoTime();
+            jdbcTemplate.queryForList("SELECT COURSE_ID, ALTERNATIVE_ID, EVENT, COUNT(*) FROM ACTIVITY GROUP BY COURSE_ID, ALTERNATIVE_ID, EVENT");
+            long queryMS = Math.max(1, (System.nanoTime() - start) / 1000000);
+            jdbcTemplate.execute("DROP ALL OBJECTS DELETE FILES");
+            return String.format("%-15s %9d rows: load %10d rows/sec, group by %10d rows/sec, heap %6d KB", name, rows.size(),
+                    rows.size() * 1000L / loadMS, rows.size() * 1000L / queryMS, Math.max(0, heap / 1024));
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    String rate(String name, long startNanos) {
+        long ms = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+        return String.format("%-28s %8d ms %10d rows/sec", name, ms, records * 1000L / ms);
+    }
+
+    interface Decode {
+        /**
+         * @return a checksum of the decoded values (so the work cannot be skipped)
+         */
+        long run() throws Exception;
+    }
+
+    String time(String name, Decode decode, long expected) throws Exception {
+        long start = System.nanoTime();
+        long checksum = decode.run();
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        assertEquals(name, expected, checksum);
+        return String.format("%-28s %8d ms %10d rows/sec", name, ms, records * 1000L / ms);
+    }
+
+    interface Load {
+        void run(BatchInserter inserter, InputFailures failures) throws Exception;
+    }
+
+    String time(String name, Load load, int batchSize) throws Exception {
+        storage.getTempJdbcTemplate().execute("DELETE FROM ACTIVITY");
+        InputFailures failures = new InputFailures("CSV");
+        BatchInserter inserter = new BatchInserter(storage.getTempJdbcTemplate(), handler.makeInsertSQL(), handler.makeInsertSQLParams(), batchSize, "CSV", failures);
+        long start = System.nanoTime();
+        load.run(inserter, failures);
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        assertEquals(failures.getMessages().toString(), 0, failures.size());
+        assertEquals(records, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(*) FROM ACTIVITY", Integer.class).intValue());
+        return String.format("%-28s %8d ms %10d rows/sec", name, ms, records * 1000L / ms);
+    }
+
+    void readAll(BatchInserter inserter, InputFailures failures) throws Exception {
+        try (CSVReader reader = new CSVReader(new InputStreamReader(Files.newInputStream(csv)))) {
+            reader.readNext(); // header
+            String[] csvLine;
+            int line = 1;
+            while ((csvLine = reader.readNext()) != null) {
+                line++;
+                BaseInputHandler.trimStringArrayToNull(csvLine);
+                inserter.add(line, handler.validateAndConvertParams(csvLine));
+            }
+            inserter.flush();
+        }
+    }
+}
@@ -35,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
 
 public class LapControllerAdviceTest extends AbstractUnitTest{
     private static final Logger logger = LoggerFactory.getLogger(LapControllerAdviceTest.class);
@@ -83,4 +84,15 @@ public class LapControllerAdviceTest extends AbstractUnitTest{
         assertEquals(new Integer(404), responseBody.getStatus());
         assertEquals("/pipeline", responseBody.getPath());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void handleAppExceptionWillReturnResponseWith403WhenGivenAnAccessDeniedException() throws IOException {
+        given(httpServletRequest.getRequestURL()).willReturn(new StringBuffer("/pipelines/snapshots/restore/sample"));
+        ResponseEntity jsonResponseEntity = (ResponseEntity)lapControllerAdvice.handleAppException(httpServletRequest, new AccessDeniedException("Restore not enabled"));
+
+        assertEquals(HttpStatus.FORBIDDEN, jsonResponseEntity.getStatusCode());
+        ExceptionResponseDto responseBody = (ExceptionResponseDto)jsonResponseEntity.getBody();
+        assertEquals("Restore not enabled", responseBody.getMessage());
+        assertEquals(new Integer(403), responseBody.getStatus());
+    }
+}
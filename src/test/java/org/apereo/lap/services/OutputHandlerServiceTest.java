@@ -14,8 +14,12 @@
  *******************************************************************************/
 package org.apereo.lap.services;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.file.Files;
 import java.util.List;
 
 import org.apereo.lap.model.Output;
@@ -59,4 +63,21 @@ public class OutputHandlerServiceTest extends AbstractUnitTest{
             logger.info("Output of type:"+output.type+" complete: " + result);	
         }
     }
+
+    @Test
+    public void testOutputMissingTable() throws Exception {
+        Output output = Output.makeCSV("NO_SUCH_TABLE", "no_such_table_output.csv");
+        try {
+            outputHandler.doOutput(output);
+            fail("should have failed");
+        } catch (RuntimeException e) {
+            // the handler failure wraps the count failure (same as when the rows were counted with the check SQL)
+            assertNotNull(e.getCause());
+            assertEquals(RuntimeException.class, e.getCause().getClass());
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Failure while trying to count the output data rows: "+output.makeTempDBCheckSQL()));
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("NO_SUCH_TABLE does not exist"));
+        } finally {
+            Files.deleteIfExists(configuration.getOutputDirectory().resolve(output.filename));
+        }
+    }
 }
@@ -14,6 +14,9 @@
  *******************************************************************************/
 package org.apereo.lap.services;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -21,10 +24,13 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.input.InputMetricsRegistry;
 import org.apereo.lap.services.notification.NotificationService;
 import org.apereo.lap.services.output.OutputHandlerService;
 import org.apereo.lap.services.storage.ModelRun;
@@ -35,10 +41,12 @@ import org.apereo.lap.test.AbstractUnitTest;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +60,10 @@ public class ProcessingManagerServiceTest extends AbstractUnitTest{
     PipelineConfig pipelineConfig;
     @Mock
     ModelRunPersistentStorage modelRunPersistentStorage;
+    @Mock
+    StorageService storage;
+    @Spy
+    InputMetricsRegistry inputMetrics = new InputMetricsRegistry();
     @InjectMocks
     ProcessingManagerService processingManagerService;
 
@@ -119,5 +131,22 @@ public class ProcessingManagerServiceTest extends AbstractUnitTest{
         verify(notification, times(1)).sendNotification(anyString(), eq(NotificationService.NotificationLevel.INFO));
         verify(modelRunPersistentStorage, times(1)).save((ModelRun) anyObject());
     }
-}
 
+    @Test
+    public void testProcessWillRecordTheStageTimingsWithTheRun() {
+        ConcurrentHashMap<String, PipelineConfig> pipelineConfigs = new ConcurrentHashMap<>();
+        when(configuration.getPipelineConfig("type")).thenReturn(pipelineConfig);
+        when(modelRunPersistentStorage.save((ModelRun) anyObject())).thenReturn(new ModelRun());
+        when(configuration.getPipelineConfigs()).thenReturn(pipelineConfigs);
+        processingManagerService.process("type", null);
+
+        ArgumentCaptor<ModelRun> saved = ArgumentCaptor.forClass(ModelRun.class);
+        verify(modelRunPersistentStorage, times(1)).save(saved.capture());
+        Map<String, Object> stageTimings = saved.getValue().getStageTimings();
+        assertNotNull(stageTimings);
+        assertEquals(0L, stageTimings.get("indexMS"));
+        assertTrue(stageTimings.containsKey("processorMS"));
+        assertTrue(((List<?>) stageTimings.get("indexes")).isEmpty());
+        assertTrue(((List<?>) stageTimings.get("processors")).isEmpty());
+    }
+}
@@ -14,20 +14,36 @@
  *******************************************************************************/
 package org.apereo.lap.services;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apereo.lap.model.InputFingerprint;
+import org.apereo.lap.model.PipelineConfig;
 import org.apereo.lap.services.configuration.ConfigurationService;
+import org.apereo.lap.services.storage.DatasourceProperties;
+import org.apereo.lap.services.storage.RunTempStore;
 import org.apereo.lap.services.storage.StorageService;
+import org.apereo.lap.services.storage.TempStoreCatalog;
 import org.apereo.lap.test.AbstractUnitTest;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 /**
  * Integration services test for Storage
@@ -65,4 +81,205 @@ public class StorageServiceTest extends AbstractUnitTest{
         assertTrue(results.isEmpty() );
     }
 
+    @Test
+    public void testCatalog() {
+        TempStoreCatalog catalog = storage.getCatalog();
+        assertNotNull(catalog);
+        storage.resetTempStore();
+        catalog.invalidate();
+
+        // metadata is read once for all the tables
+        assertTrue(catalog.hasTable("PERSONAL"));
+        assertTrue(catalog.hasTable("course"));
+        assertFalse(catalog.hasTable("NO_SUCH_TABLE"));
+        int queries = catalog.getQueries();
+        assertTrue(catalog.hasColumn("PERSONAL", "ALTERNATIVE_ID"));
+        assertTrue(storage.checkTableAndColumnExist("PERSONAL", "alternative_id"));
+        assertFalse(catalog.hasColumn("PERSONAL", "NO_SUCH_COLUMN"));
+        assertFalse(catalog.getColumns("COURSE").isEmpty());
+        assertNotNull(catalog.getColumnType("COURSE", "COURSE_ID"));
+        assertEquals(queries, catalog.getQueries());
+
+        // counts are cached until the data changes
+        assertEquals(0, catalog.getRowCount("COURSE"));
+        queries = catalog.getQueries();
+        storage.getTempJdbcTemplate().update("INSERT INTO COURSE (COURSE_ID, SUBJECT, ENROLLMENT) VALUES ('C1', 'ABC', 10)");
+        storage.getTempJdbcTemplate().update("INSERT INTO COURSE (COURSE_ID, SUBJECT, ENROLLMENT) VALUES ('C2', 'ABC', NULL)");
+        assertEquals(0, catalog.getRowCount("COURSE"));
+        assertEquals(queries, catalog.getQueries());
+        catalog.invalidateData("COURSE");
+        assertEquals(2, catalog.getRowCount("COURSE"));
+
+        TempStoreCatalog.ColumnStats stats = catalog.getColumnStats("COURSE", "ENROLLMENT");
+        assertEquals(2, stats.getRows());
+        assertEquals(1, stats.getNulls());
+        assertEquals(1, stats.getDistinct());
+        assertEquals(10, ((Number) stats.getMax()).intValue());
+        stats = catalog.getColumnStats("COURSE", "SUBJECT");
+        assertEquals(1, stats.getDistinct());
+        assertEquals("ABC", stats.getMin());
+
+        // clearing the tables drops the cached counts
+        storage.resetTempStore();
+        assertEquals(0, catalog.getRowCount("COURSE"));
+
+        // new tables are found after the metadata is invalidated
+        storage.getTempJdbcTemplate().execute("CREATE TABLE CATALOG_TEST (ID INT)");
+        try {
+            assertFalse(catalog.hasTable("CATALOG_TEST"));
+            catalog.invalidate();
+            assertTrue(catalog.hasTable("CATALOG_TEST"));
+            assertEquals(0, catalog.getRowCount("CATALOG_TEST"));
+        } finally {
+            storage.getTempJdbcTemplate().execute("DROP TABLE CATALOG_TEST");
+            catalog.invalidate();
+        }
+    }
+
+    @Test
+    public void testIndexes() {
+        // the sample pipeline has index hints for the collections the kettle job groups and joins
+        List<PipelineConfig.IndexHint> hints = configuration.getPipelineConfig("sample").getIndexes();
+        assertEquals(3, hints.size());
+        assertEquals("LAP_IDX_ACTIVITY_ALTERNATIVE_ID_COURSE_ID_EVENT", hints.get(0).getName());
+
+        storage.dropIndexes("ACTIVITY");
+        assertTrue(storage.findIndexes("ACTIVITY").isEmpty());
+        assertTrue(storage.createIndex("LAP_IDX_ACTIVITY_TEST", "ACTIVITY", Arrays.asList("COURSE_ID", "EVENT")));
+        assertFalse(storage.createIndex("LAP_IDX_ACTIVITY_TEST", "ACTIVITY", Arrays.asList("COURSE_ID", "EVENT")));
+        assertEquals(Arrays.asList("LAP_IDX_ACTIVITY_TEST"), storage.findIndexes("ACTIVITY"));
+
+        // only the hinted indexes are dropped (the key and constraint indexes stay)
+        int indexes = storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(DISTINCT INDEX_NAME) FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_NAME = 'ACTIVITY'", Integer.class);
+        assertEquals(1, storage.dropIndexes("ACTIVITY", "GRADE"));
+        assertTrue(storage.findIndexes("ACTIVITY").isEmpty());
+        assertEquals(indexes - 1, storage.getTempJdbcTemplate().queryForObject("SELECT COUNT(DISTINCT INDEX_NAME) FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_NAME = 'ACTIVITY'", Integer.class).intValue());
+    }
+
+    @Test
+    public void testTempStoreModes() {
+        String url = "jdbc:h2:mem:temp-db;MODE=MYSQL;DB_CLOSE_DELAY=-1";
+        assertEquals(DatasourceProperties.TempStoreMode.MEMORY, DatasourceProperties.TempStoreMode.fromString(null));
+        assertEquals(DatasourceProperties.TempStoreMode.FILE, DatasourceProperties.TempStoreMode.fromString(" file "));
+        assertEquals(url, DatasourceProperties.makeTempUrl(DatasourceProperties.TempStoreMode.MEMORY, url, "/tmp/lap-temp-db", 1024));
+        assertEquals("jdbc:h2:file:/tmp/lap-temp-db;MODE=MYSQL;DB_CLOSE_DELAY=-1;MV_STORE=TRUE;CACHE_SIZE=1024",
+                DatasourceProperties.makeTempUrl(DatasourceProperties.TempStoreMode.FILE, url, "/tmp/lap-temp-db", 1024));
+        assertEquals("jdbc:h2:memLZF:temp-db;MODE=MYSQL;DB_CLOSE_DELAY=-1;MV_STORE=FALSE;CACHE_SIZE=1024",
+                DatasourceProperties.makeTempUrl(DatasourceProperties.TempStoreMode.COMPRESSED, url, "/tmp/lap-temp-db", 1024));
+        try {
+            DatasourceProperties.TempStoreMode.fromString("disk");
+            fail("invalid mode");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRunTempStore() throws Exception {
+        storage.resetTempStore();
+        final JdbcTemplate shared = storage.getTempJdbcTemplate();
+        assertNull(storage.getRunTempStore());
+
+        RunTempStore store = storage.openRunTempStore("test-1");
+        try {
+            assertSame(store, storage.getRunTempStore());
+            assertNotSame(shared, storage.getTempJdbcTemplate());
+            assertNotSame(shared, store.getJdbcTemplate());
+            assertTrue(store.getUrl().contains("test-1"));
+            assertEquals(store.getUrl(), storage.getTempUrl());
+            assertNull(storage.getInputFingerprintStorage());
+            // the run store has the temp tables (empty)
+            assertTrue(storage.checkTableAndColumnExist("PERSONAL", "ALTERNATIVE_ID"));
+            assertEquals(0, storage.countTempTableRows("COURSE"));
+
+            // data in the run store is not in the shared store
+            storage.getTempJdbcTemplate().update("INSERT INTO COURSE (COURSE_ID, SUBJECT) VALUES ('c1', 'MATH')");
+            assertEquals(1, storage.countTempTableRows("COURSE"));
+            assertEquals(1, storage.getCatalog().getRowCount("COURSE"));
+            assertEquals(0, shared.queryForObject("SELECT COUNT(*) FROM COURSE", Integer.class).intValue());
+
+            // threads started by the run use the run store
+            final AtomicReference<JdbcTemplate> used = new AtomicReference<>();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    used.set(storage.getTempJdbcTemplate());
+                }
+            });
+            thread.start();
+            thread.join();
+            assertSame(store.getJdbcTemplate(), used.get());
+        } finally {
+            storage.closeRunTempStore(store);
+        }
+        assertTrue(store.isClosed());
+        assertNull(storage.getRunTempStore());
+        assertSame(shared, storage.getTempJdbcTemplate());
+        assertEquals(0, storage.countTempTableRows("COURSE"));
+    }
+
+    @Test
+    public void testTempStoreSnapshot() throws Exception {
+        storage.resetTempStore();
+        storage.getTempJdbcTemplate().update("INSERT INTO COURSE (COURSE_ID, SUBJECT) VALUES ('c1', 'MATH')");
+        storage.getTempJdbcTemplate().execute("CREATE TABLE IF NOT EXISTS SNAPSHOT_TEST (ID INT PRIMARY KEY, NAME VARCHAR(20))");
+        storage.getTempJdbcTemplate().update("INSERT INTO SNAPSHOT_TEST (ID, NAME) VALUES (1, 'one')");
+        InputFingerprint loaded = new InputFingerprint();
+        loaded.setCollection("COURSE");
+        loaded.setSource("snapshot-course.csv");
+        loaded.setSize(100);
+        loaded.setRowCount(1);
+        storage.getInputFingerprintStorage().save(loaded);
+        try {
+            Path file = storage.snapshotTempStore("test");
+            assertTrue(Files.isRegularFile(file));
+            assertTrue(Files.isRegularFile(file.resolveSibling("tempstore-test.fingerprints.json")));
+            assertTrue(storage.findTempStoreSnapshots().contains("test"));
+
+            // changes after the snapshot are undone by the restore (including the fingerprints of the inputs loaded since then)
+            storage.resetTempStore();
+            storage.getTempJdbcTemplate().execute("DROP TABLE SNAPSHOT_TEST");
+            loaded.setSize(200);
+            loaded.setRowCount(0);
+            storage.getInputFingerprintStorage().save(loaded);
+            assertFalse(storage.getCatalog().hasTable("SNAPSHOT_TEST"));
+            long restores = storage.getTempStoreRestores();
+            assertTrue(storage.restoreTempStore("test"));
+            assertEquals(restores + 1, storage.getTempStoreRestores());
+            assertEquals(1, storage.countTempTableRows("COURSE"));
+            assertTrue(storage.getCatalog().hasTable("SNAPSHOT_TEST"));
+            assertEquals(1, storage.getCatalog().getRowCount("SNAPSHOT_TEST"));
+            InputFingerprint restored = storage.getInputFingerprintStorage().get("COURSE");
+            assertEquals(100, restored.getSize());
+            assertEquals(1, restored.getRowCount());
+
+            // the temp store is not restored while it is in use
+            storage.beginTempStoreUse();
+            try {
+                storage.restoreTempStore("test");
+                fail("in use");
+            } catch (IllegalStateException e) {
+                // expected
+            } finally {
+                storage.endTempStoreUse();
+            }
+            assertEquals(restores + 1, storage.getTempStoreRestores());
+
+            assertFalse(storage.restoreTempStore("missing"));
+            try {
+                storage.snapshotTempStore("../test");
+                fail("invalid name");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Files.delete(file);
+            Files.delete(file.resolveSibling("tempstore-test.fingerprints.json"));
+        } finally {
+            loaded.setRowCount(-1); // not loaded
+            storage.getInputFingerprintStorage().save(loaded);
+            storage.getTempJdbcTemplate().execute("DROP TABLE IF EXISTS SNAPSHOT_TEST");
+            storage.getCatalog().invalidate();
+            storage.resetTempStore();
+        }
+    }
 }